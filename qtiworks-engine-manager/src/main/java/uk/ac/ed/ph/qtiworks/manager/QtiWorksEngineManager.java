@@ -86,6 +86,7 @@ public final class QtiWorksEngineManager {
         actionMap.put("exportLtiDomains", new ExportLtiDomainsAction());
         actionMap.put("runMaintenanceJobs", new RunMaintenanceJobs());
         actionMap.put("sendQueuedLtiOutcomes", new SendQueuedLtiOutcomesAction());
+        actionMap.put("rescoreDelivery", new RescoreDeliveryAction());
 //        actionMap.put("adhoc", new AdhocAction());
     }
 
@@ -33,7 +33,7 @@
  */
 package uk.ac.ed.ph.qtiworks.manager;
 
-import uk.ac.ed.ph.qtiworks.services.LtiOutcomeService;
+import uk.ac.ed.ph.qtiworks.services.LtiOutcomeDispatcher;
 
 import uk.ac.ed.ph.jqtiplus.internal.util.Pair;
 
@@ -59,8 +59,8 @@ public final class SendQueuedLtiOutcomesAction extends ManagerAction {
 
     @Override
     public void run(final ApplicationContext applicationContext, final List<String> parameters) {
-        final LtiOutcomeService ltiOutcomeService = applicationContext.getBean(LtiOutcomeService.class);
-        final Pair<Integer, Integer> result = ltiOutcomeService.sendQueuedLtiOutcomes(true);
+        final LtiOutcomeDispatcher ltiOutcomeDispatcher = applicationContext.getBean(LtiOutcomeDispatcher.class);
+        final Pair<Integer, Integer> result = ltiOutcomeDispatcher.dispatchQueuedLtiOutcomes(true);
 
         final int failureCount = result.getFirst().intValue();
         final int sendCount = result.getSecond().intValue();
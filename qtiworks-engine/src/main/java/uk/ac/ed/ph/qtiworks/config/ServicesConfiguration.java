@@ -40,13 +40,17 @@ import uk.ac.ed.ph.qtiworks.services.RequestTimestampContext;
 import uk.ac.ed.ph.jqtiplus.JqtiExtensionManager;
 import uk.ac.ed.ph.jqtiplus.JqtiExtensionPackage;
 import uk.ac.ed.ph.jqtiplus.reading.QtiXmlReader;
+import uk.ac.ed.ph.jqtiplus.resolution.SharedRootNodeCache;
 import uk.ac.ed.ph.jqtiplus.serialization.QtiSerializer;
+import uk.ac.ed.ph.jqtiplus.utils.contentpackaging.QtiContentPackageExtractor;
 import uk.ac.ed.ph.jqtiplus.xmlutils.SchemaCache;
 import uk.ac.ed.ph.jqtiplus.xmlutils.SimpleSchemaCache;
-import uk.ac.ed.ph.jqtiplus.xmlutils.xslt.SimpleXsltStylesheetCache;
+import uk.ac.ed.ph.jqtiplus.xmlutils.locators.ClassPathResourceLocator;
+import uk.ac.ed.ph.jqtiplus.xmlutils.xslt.ConcurrentXsltStylesheetCache;
 import uk.ac.ed.ph.jqtiplus.xmlutils.xslt.XsltStylesheetCache;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
 
@@ -112,6 +116,17 @@ public class ServicesConfiguration {
         final Properties jpaProperties = new Properties();
         jpaProperties.put("hibernate.dialect", qtiWorksDeploymentSettings.getHibernateDialect());
         jpaProperties.put("hibernate.id.new_generator_mappings", Boolean.TRUE);
+
+        /* Send inserts and updates in JDBC batches, ordering them so that each batch contains only
+         * one entity type. (This relies on entities written frequently having a sequence allocation
+         * size greater than 1.)
+         */
+        final int jdbcBatchSize = qtiWorksDeploymentSettings.getJdbcBatchSize();
+        if (jdbcBatchSize > 1) {
+            jpaProperties.put("hibernate.jdbc.batch_size", Integer.toString(jdbcBatchSize));
+            jpaProperties.put("hibernate.order_inserts", "true");
+            jpaProperties.put("hibernate.order_updates", "true");
+        }
         jpaProperties.putAll(extraJpaProperties);
         return jpaProperties;
     }
@@ -153,7 +168,7 @@ public class ServicesConfiguration {
 
     @Bean
     public XsltStylesheetCache xsltStylesheetCache() {
-        return new SimpleXsltStylesheetCache();
+        return new ConcurrentXsltStylesheetCache(qtiWorksDeploymentSettings.getXsltTransformerPoolSize());
     }
 
     @Bean(initMethod="init", destroyMethod="destroy")
@@ -174,6 +189,17 @@ public class ServicesConfiguration {
         return new QtiXmlReader(jqtiExtensionManager(), schemaCache());
     }
 
+    /**
+     * Cache of resolved resources shared by all assessment loads. This holds the standard RP
+     * templates, plus items within uploaded packages and bundled samples (identified by their
+     * content hash).
+     */
+    @Bean
+    public SharedRootNodeCache sharedRootNodeCache() {
+        return new SharedRootNodeCache(qtiXmlReader(), qtiWorksDeploymentSettings.getSharedRootNodeCacheSize(),
+                Arrays.asList(QtiContentPackageExtractor.PACKAGE_URI_SCHEME.getSchemeName(), ClassPathResourceLocator.CLASSPATH_SCHEME_NAME));
+    }
+
     @Bean
     public QtiSerializer qtiSerializer() {
         return new QtiSerializer(jqtiExtensionManager());
@@ -61,12 +61,44 @@ public final class QtiWorksDeploymentSettings implements Serializable {
     private @Value("${qtiworks.filesystem.base}") String filesystemBase;
     private @Value("${qtiworks.extensions.mathassess:false}") boolean enableMathAssessExtension;
     private @Value("${qtiworks.hibernate.dialect}") String hibernateDialect;
+    private @Value("${qtiworks.jdbc.batchsize:25}") int jdbcBatchSize; /* (Optional - default 25, 0 = no batching) */
     private @Value("${qtiworks.admin.name}") String adminName;
     private @Value("${qtiworks.admin.email}") String adminEmailAddress;
     private @Value("${qtiworks.base.url}") String baseUrl;
     private @Value("${qtiworks.web.authn.fake.login:}") String fakeLoginName; /* (Optional - default null) */
     private @Value("${qtiworks.features.publicdemos:false}") boolean publicDemosEnabled; /* (Optional - default false) */
     private @Value("${qtiworks.features.rest:false}") boolean restEnabled; /* (Optional - default false) */
+    private @Value("${qtiworks.cache.assessmentobjects.size:50}") int assessmentObjectCacheSize; /* (Optional - default 50) */
+    private @Value("${qtiworks.cache.assessmentobjects.ttl:0}") int assessmentObjectCacheTtlMinutes; /* (Optional - default 0 = never expire) */
+    private @Value("${qtiworks.cache.sessionstates.size:65536}") int sessionStateCacheSizeKb; /* (Optional - default 64MB, 0 = disabled) */
+    private @Value("${qtiworks.cache.assessmentsources.size:200}") int assessmentSourceCacheSize; /* (Optional - default 200, 0 = disabled) */
+    private @Value("${qtiworks.cache.renderedoutput.size:32768}") int renderedOutputCacheSizeKb; /* (Optional - default 32MB, 0 = disabled) */
+    private @Value("${qtiworks.rendering.buffer.size:256}") int renderingBufferSizeKb; /* (Optional - default 256KB) */
+    private @Value("${qtiworks.rendering.transformerpool.size:8}") int xsltTransformerPoolSize; /* (Optional - default 8, 0 = disabled) */
+    private @Value("${qtiworks.storage.binarystate:false}") boolean binaryStateStorage; /* (Optional - default false = XML) */
+    private @Value("${qtiworks.storage.statejournal:false}") boolean stateJournalEnabled; /* (Optional - default false) */
+    private @Value("${qtiworks.storage.statejournal.checkpoint:20}") int stateJournalCheckpointInterval; /* (Optional - default 20) */
+    private @Value("${qtiworks.cache.statejournaltails.size:1000}") int stateJournalTailCacheSize; /* (Optional - default 1000) */
+    private @Value("${qtiworks.cache.statejournaltails.ttl:60}") int stateJournalTailCacheTtlMinutes; /* (Optional - default 60, 0 = never expire) */
+    private @Value("${qtiworks.warmup.threads:4}") int warmupThreadCount; /* (Optional - default 4, 0 = disabled) */
+    private @Value("${qtiworks.warmup.packages.max:20}") int warmupPackageCount; /* (Optional - default 20, 0 = disabled) */
+    private @Value("${qtiworks.warmup.packages.days:7}") int warmupPackageDays; /* (Optional - default 7) */
+    private @Value("${qtiworks.processing.compiled:false}") boolean compiledProcessing; /* (Optional - default false) */
+    private @Value("${qtiworks.rescoring.threads:4}") int rescoringThreadCount; /* (Optional - default 4) */
+    private @Value("${qtiworks.rescoring.batchsize:50}") int rescoringBatchSize; /* (Optional - default 50) */
+    private @Value("${qtiworks.lti.outcomes.threads:8}") int ltiOutcomeThreadCount; /* (Optional - default 8) */
+    private @Value("${qtiworks.lti.outcomes.pagesize:100}") int ltiOutcomePageSize; /* (Optional - default 100) */
+    private @Value("${qtiworks.lti.outcomes.timeout:30}") int ltiOutcomeTimeout; /* (Optional - default 30 seconds) */
+    private @Value("${qtiworks.lti.outcomes.consumer.concurrency:2}") int ltiOutcomeConsumerConcurrency; /* (Optional - default 2) */
+    private @Value("${qtiworks.lti.outcomes.consumer.rate:5}") int ltiOutcomeConsumerRate; /* (Optional - default 5 per second, 0 = unlimited) */
+    private @Value("${qtiworks.reporting.threads:4}") int reportingThreadCount; /* (Optional - default 4) */
+    private @Value("${qtiworks.validation.threads:0}") int validationThreadCount; /* (Optional - default 0 = one per processor) */
+    private @Value("${qtiworks.resolution.cache.size:500}") int sharedRootNodeCacheSize; /* (Optional - default 500) */
+    private @Value("${qtiworks.lti.nonces.shared:false}") boolean ltiNoncesShared; /* (Optional - default false) */
+    private @Value("${qtiworks.results.deferred:false}") boolean assessmentResultsDeferred; /* (Optional - default false) */
+    private @Value("${qtiworks.results.deferred.delay:2}") int assessmentResultDeferralDelay; /* (Optional - default 2) */
+    private @Value("${qtiworks.storage.packagezips:false}") boolean assessmentPackageZipStorage; /* (Optional - default false) */
+    private @Value("${qtiworks.cache.packagezips.size:100}") int assessmentPackageZipCacheSize; /* (Optional - default 100) */
 
 
     public String getJdbcDriverClassName() {
@@ -89,6 +121,10 @@ public final class QtiWorksDeploymentSettings implements Serializable {
         return hibernateDialect;
     }
 
+    public int getJdbcBatchSize() {
+        return jdbcBatchSize;
+    }
+
     public String getAdminName() {
         return adminName;
     }
@@ -121,6 +157,130 @@ public final class QtiWorksDeploymentSettings implements Serializable {
         return restEnabled;
     }
 
+    public int getAssessmentObjectCacheSize() {
+        return assessmentObjectCacheSize;
+    }
+
+    public int getAssessmentObjectCacheTtlMinutes() {
+        return assessmentObjectCacheTtlMinutes;
+    }
+
+    public int getSessionStateCacheSizeKb() {
+        return sessionStateCacheSizeKb;
+    }
+
+    public int getAssessmentSourceCacheSize() {
+        return assessmentSourceCacheSize;
+    }
+
+    public int getRenderedOutputCacheSizeKb() {
+        return renderedOutputCacheSizeKb;
+    }
+
+    public int getRenderingBufferSizeKb() {
+        return renderingBufferSizeKb;
+    }
+
+    public int getXsltTransformerPoolSize() {
+        return xsltTransformerPoolSize;
+    }
+
+    public boolean isBinaryStateStorage() {
+        return binaryStateStorage;
+    }
+
+    public boolean isStateJournalEnabled() {
+        return stateJournalEnabled;
+    }
+
+    public int getStateJournalCheckpointInterval() {
+        return stateJournalCheckpointInterval;
+    }
+
+    public int getStateJournalTailCacheSize() {
+        return stateJournalTailCacheSize;
+    }
+
+    public int getStateJournalTailCacheTtlMinutes() {
+        return stateJournalTailCacheTtlMinutes;
+    }
+
+    public int getWarmupThreadCount() {
+        return warmupThreadCount;
+    }
+
+    public int getWarmupPackageCount() {
+        return warmupPackageCount;
+    }
+
+    public int getWarmupPackageDays() {
+        return warmupPackageDays;
+    }
+
+    public boolean isCompiledProcessing() {
+        return compiledProcessing;
+    }
+
+    public int getRescoringThreadCount() {
+        return rescoringThreadCount;
+    }
+
+    public int getRescoringBatchSize() {
+        return rescoringBatchSize;
+    }
+
+    public int getLtiOutcomeThreadCount() {
+        return ltiOutcomeThreadCount;
+    }
+
+    public int getLtiOutcomePageSize() {
+        return ltiOutcomePageSize;
+    }
+
+    public int getLtiOutcomeTimeout() {
+        return ltiOutcomeTimeout;
+    }
+
+    public int getLtiOutcomeConsumerConcurrency() {
+        return ltiOutcomeConsumerConcurrency;
+    }
+
+    public int getLtiOutcomeConsumerRate() {
+        return ltiOutcomeConsumerRate;
+    }
+
+    public int getReportingThreadCount() {
+        return reportingThreadCount;
+    }
+
+    public int getValidationThreadCount() {
+        return validationThreadCount;
+    }
+
+    public int getSharedRootNodeCacheSize() {
+        return sharedRootNodeCacheSize;
+    }
+
+    public boolean isLtiNoncesShared() {
+        return ltiNoncesShared;
+    }
+
+    public boolean isAssessmentResultsDeferred() {
+        return assessmentResultsDeferred;
+    }
+
+    public int getAssessmentResultDeferralDelay() {
+        return assessmentResultDeferralDelay;
+    }
+
+    public boolean isAssessmentPackageZipStorage() {
+        return assessmentPackageZipStorage;
+    }
+
+    public int getAssessmentPackageZipCacheSize() {
+        return assessmentPackageZipCacheSize;
+    }
+
     @Override
     public String toString() {
         return ObjectUtilities.beanToString(this);
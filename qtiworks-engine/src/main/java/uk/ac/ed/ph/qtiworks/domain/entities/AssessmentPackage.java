@@ -95,7 +95,26 @@ import org.hibernate.annotations.Type;
     @NamedQuery(name="AssessmentPackage.getAll",
             query="SELECT ap"
                 + "  FROM AssessmentPackage ap"
-                + "  LEFT JOIN FETCH ap.assessment a")
+                + "  LEFT JOIN FETCH ap.assessment a"),
+    @NamedQuery(name="AssessmentPackage.getSelectedForRecentCandidateSessions",
+            query="SELECT ap"
+                + "  FROM AssessmentPackage ap"
+                + "  WHERE ap.id IN ("
+                + "    SELECT x.delivery.assessment.selectedAssessmentPackage.id"
+                + "    FROM CandidateSession x"
+                + "    WHERE x.terminationTime IS NULL"
+                + "      OR x.creationTime >= :creationTime)"
+                + "  ORDER BY ap.id DESC"),
+    @NamedQuery(name="AssessmentPackage.getForContentHash",
+            query="SELECT ap"
+                + "  FROM AssessmentPackage ap"
+                + "  WHERE ap.contentHash = :contentHash"
+                + "  ORDER BY ap.id DESC"),
+    @NamedQuery(name="AssessmentPackage.countOthersSharingSandbox",
+            query="SELECT COUNT(ap)"
+                + "  FROM AssessmentPackage ap"
+                + "  WHERE ap.sandboxPath = :sandboxPath"
+                + "    AND ap.id <> :apid")
 })
 public class AssessmentPackage implements BaseEntity, TimestampedOnCreation {
 
@@ -155,6 +174,25 @@ public class AssessmentPackage implements BaseEntity, TimestampedOnCreation {
     @Column(name="sandbox_path")
     private String sandboxPath;
 
+    /**
+     * Hex-encoded SHA-256 hash of the data uploaded to create this package, used to share
+     * a single stored copy (and its parsed forms) between identical uploads.
+     * <p>
+     * This will be null for bundled packages and for packages imported before this was recorded.
+     * When not null, the sandbox may be shared with other packages having the same hash.
+     */
+    @Basic(optional=true)
+    @Column(name="content_hash", length=64, updatable=false)
+    private String contentHash;
+
+    /**
+     * Whether this package's files are kept in the originally uploaded ZIP file within
+     * the sandbox, rather than having been unpacked into it.
+     */
+    @Basic(optional=false)
+    @Column(name="stored_as_zip", updatable=false)
+    private boolean storedAsZip;
+
     /** Href of the assessment item/test within this package */
     @Lob
     @Type(type="org.hibernate.type.TextType")
@@ -297,6 +335,24 @@ public class AssessmentPackage implements BaseEntity, TimestampedOnCreation {
     }
 
 
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public void setContentHash(final String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+
+    public boolean isStoredAsZip() {
+        return storedAsZip;
+    }
+
+    public void setStoredAsZip(final boolean storedAsZip) {
+        this.storedAsZip = storedAsZip;
+    }
+
+
     public String getAssessmentHref() {
         return assessmentHref;
     }
@@ -87,6 +87,11 @@ public enum CandidateItemEventType {
      */
     EXIT,
 
+    /**
+     * Session was re-scored after it had been finished, e.g. after the assessment was changed
+     */
+    RESCORE,
+
     ;
 
 }
@@ -121,6 +121,20 @@ import org.hibernate.annotations.Type;
                 + "  FROM CandidateSession x"
                 + "  WHERE x.delivery = :delivery"
                 + "  ORDER BY x.id"),
+    @NamedQuery(name="CandidateSession.getIdsForDelivery",
+            query="SELECT x.id"
+                + "  FROM CandidateSession x"
+                + "  WHERE x.delivery.id = :did"
+                + "    AND x.id >= :firstXid"
+                + "  ORDER BY x.id"),
+    @NamedQuery(name="CandidateSession.getSummaryDataForDelivery",
+            query="SELECT x.id, x.creationTime, x.candidate.firstName, x.candidate.lastName, x.candidate.emailAddress,"
+                + "    x.finishTime, x.terminationTime, x.exploded, x.lisOutcomeReportingStatus, x.lisScore"
+                + "  FROM CandidateSession x"
+                + "  WHERE x.delivery = :delivery"
+                + "    AND x.id > :afterXid"
+                + "    AND EXISTS (SELECT xo.id FROM CandidateSessionOutcome xo WHERE xo.candidateSession = x)"
+                + "  ORDER BY x.id"),
     @NamedQuery(name="CandidateSession.getNonTerminatedForDeliveryAndCandidate",
             query="SELECT x"
                 + "  FROM CandidateSession x"
@@ -65,18 +65,24 @@ import org.hibernate.annotations.Type;
  */
 @Entity
 @Table(name="candidate_session_outcomes")
-@SequenceGenerator(name="candidateSessionOutcomeSequence", sequenceName="candidate_session_outcome_sequence", initialValue=1, allocationSize=10)
+@SequenceGenerator(name="candidateSessionOutcomeSequence", sequenceName="candidate_session_outcome_sequence", initialValue=1, allocationSize=50)
 @NamedQueries({
     @NamedQuery(name="CandidateSessionOutcome.getForSession",
             query="SELECT xo"
                 + "  FROM CandidateSessionOutcome xo"
                 + "  WHERE xo.candidateSession = :candidateSession"
                 + "  ORDER BY xo.id"),
-    @NamedQuery(name="CandidateSessionOutcome.getForDelivery",
-            query="SELECT xo"
+    @NamedQuery(name="CandidateSessionOutcome.getOutcomeTypesForDelivery",
+            query="SELECT xo.outcomeIdentifier, xo.baseType, xo.cardinality, MIN(xo.id)"
                 + "  FROM CandidateSessionOutcome xo"
                 + "  WHERE xo.candidateSession.delivery = :delivery"
-                + "  ORDER BY xo.candidateSession.xid, xo.id"),
+                + "  GROUP BY xo.outcomeIdentifier, xo.baseType, xo.cardinality"
+                + "  ORDER BY MIN(xo.id)"),
+    @NamedQuery(name="CandidateSessionOutcome.getValuesForSessionIds",
+            query="SELECT xo.candidateSession.id, xo.outcomeIdentifier, xo.baseType, xo.cardinality, xo.stringValue"
+                + "  FROM CandidateSessionOutcome xo"
+                + "  WHERE xo.candidateSession.id IN (:xids)"
+                + "  ORDER BY xo.candidateSession.id, xo.id"),
     @NamedQuery(name="CandidateSessionOutcome.deleteForSession",
             query="DELETE FROM CandidateSessionOutcome xo"
                 + "  WHERE xo.candidateSession = :candidateSession")
@@ -104,13 +110,13 @@ public class CandidateSessionOutcome implements BaseEntity {
 
     /** QTI {@link BaseType} of this variable */
     @Basic(optional=true)
-    @Column(name="base_type", updatable=false, length=14)
+    @Column(name="base_type", length=14)
     @Enumerated(EnumType.STRING)
     private BaseType baseType;
 
     /** QTI {@link Cardinality} of this variable */
     @Basic(optional=false)
-    @Column(name="cardinality", updatable=false, length=8)
+    @Column(name="cardinality", length=8)
     @Enumerated(EnumType.STRING)
     private Cardinality cardinality;
 
@@ -118,7 +124,7 @@ public class CandidateSessionOutcome implements BaseEntity {
     @Lob
     @Type(type="org.hibernate.type.TextType")
     @Basic(optional=false)
-    @Column(name="string_value", updatable=false)
+    @Column(name="string_value")
     private String stringValue;
 
     //------------------------------------------------------------
@@ -106,6 +106,9 @@ public enum CandidateTestEventType {
     /** Solution of a particular item (in review state) */
     SOLUTION_ITEM,
 
+    /** Session was re-scored after it had been finished, e.g. after the assessment was changed */
+    RESCORE,
+
     ;
 
 }
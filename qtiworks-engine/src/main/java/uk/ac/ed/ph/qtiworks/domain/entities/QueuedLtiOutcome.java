@@ -72,12 +72,36 @@ import javax.persistence.TemporalType;
 @Table(name="queued_lti_outcomes")
 @SequenceGenerator(name="queuedLtiOutcomeSequence", sequenceName="queued_lti_outcome_sequence", initialValue=1, allocationSize=1)
 @NamedQueries({
-    /* Retrieves all queued outcomes, in insertion order */
-    @NamedQuery(name="QueuedLtiOutcome.getAllQueuedOutcomes",
+    /* Retrieves the next page of queued outcomes that are due to be sent, in insertion order */
+    @NamedQuery(name="QueuedLtiOutcome.getDueQueuedOutcomes",
             query="SELECT q"
                 + "  FROM QueuedLtiOutcome q"
+                + "  WHERE q.id > :afterQoid"
+                + "    AND (q.retryTime IS NULL OR q.retryTime <= :timestamp)"
                 + "  ORDER BY q.id"),
 
+    /* Retrieves the next page of queued outcomes, ignoring retry times, in insertion order */
+    @NamedQuery(name="QueuedLtiOutcome.getQueuedOutcomesAfter",
+            query="SELECT q"
+                + "  FROM QueuedLtiOutcome q"
+                + "  WHERE q.id > :afterQoid"
+                + "  ORDER BY q.id"),
+
+    /* Retrieves queued outcomes for which a later outcome has been queued for the same session */
+    @NamedQuery(name="QueuedLtiOutcome.getSupersededQueuedOutcomes",
+            query="SELECT q"
+                + "  FROM QueuedLtiOutcome q"
+                + "  WHERE EXISTS ("
+                + "    SELECT q2 FROM QueuedLtiOutcome q2"
+                + "    WHERE q2.candidateSession = q.candidateSession"
+                + "      AND q2.id > q.id"
+                + "  )"
+                + "  ORDER BY q.id"),
+
+    @NamedQuery(name="QueuedLtiOutcome.countQueuedOutcomes",
+            query="SELECT COUNT(q)"
+                + "  FROM QueuedLtiOutcome q"),
+
 })
 public class QueuedLtiOutcome implements BaseEntity, TimestampedOnCreation {
 
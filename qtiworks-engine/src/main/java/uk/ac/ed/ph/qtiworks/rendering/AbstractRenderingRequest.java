@@ -61,6 +61,12 @@ public abstract class AbstractRenderingRequest<P extends AbstractRenderingOption
     @NotNull
     private URI assessmentResourceUri;
 
+    /**
+     * Optional ID of the package containing the assessment. If set, this allows the
+     * parsed assessment source to be cached between renderings.
+     */
+    private Long assessmentPackageId;
+
     private boolean authorMode;
 
     /* Validation information copied from AssessmentPackage */
@@ -99,6 +105,15 @@ public abstract class AbstractRenderingRequest<P extends AbstractRenderingOption
     }
 
 
+    public Long getAssessmentPackageId() {
+        return assessmentPackageId;
+    }
+
+    public void setAssessmentPackageId(final Long assessmentPackageId) {
+        this.assessmentPackageId = assessmentPackageId;
+    }
+
+
     public boolean isValidated() {
         return validated;
     }
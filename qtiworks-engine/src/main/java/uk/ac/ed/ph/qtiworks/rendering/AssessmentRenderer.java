@@ -48,18 +48,23 @@ import uk.ac.ed.ph.jqtiplus.state.TestPlanNode;
 import uk.ac.ed.ph.jqtiplus.state.TestPlanNodeKey;
 import uk.ac.ed.ph.jqtiplus.state.TestSessionState;
 import uk.ac.ed.ph.jqtiplus.state.marshalling.ItemSessionStateXmlMarshaller;
+import uk.ac.ed.ph.jqtiplus.state.marshalling.TestSessionStateBinaryMarshaller;
 import uk.ac.ed.ph.jqtiplus.state.marshalling.TestSessionStateXmlMarshaller;
 import uk.ac.ed.ph.jqtiplus.xmlutils.locators.ClassPathResourceLocator;
 import uk.ac.ed.ph.jqtiplus.xmlutils.locators.ResourceLocator;
 import uk.ac.ed.ph.jqtiplus.xmlutils.xslt.XsltStylesheetCache;
 import uk.ac.ed.ph.jqtiplus.xmlutils.xslt.XsltStylesheetManager;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.StringReader;
 import java.io.Writer;
 import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -69,6 +74,7 @@ import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Result;
+import javax.xml.transform.Source;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.sax.SAXResult;
 import javax.xml.transform.sax.TransformerHandler;
@@ -82,6 +88,10 @@ import org.springframework.validation.Validator;
 import org.w3c.dom.Document;
 import org.xml.sax.InputSource;
 import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
 
 /**
  * This key service performs the actual rendering of items and tests, supporting the
@@ -118,12 +128,24 @@ public class AssessmentRenderer {
     private static final URI terminatedXsltUri = URI.create("classpath:/rendering-xslt/terminated.xsl");
     private static final URI explodedXsltUri = URI.create("classpath:/rendering-xslt/exploded.xsl");
 
+    /** All of the stylesheets used by this renderer, in roughly decreasing order of importance */
+    private static final List<URI> renderingXsltUris = Collections.unmodifiableList(Arrays.asList(
+            testItemXsltUri, itemStandaloneXsltUri, ctopXsltUri, serializeXsltUri,
+            testEntryXsltUri, testPartNavigationXsltUri, testPartFeedbackXsltUri, testFeedbackXsltUri,
+            terminatedXsltUri, explodedXsltUri, itemAuthorViewXsltUri, testAuthorViewXsltUri));
+
     @Resource
     private QtiWorksProperties qtiWorksProperties;
 
     @Resource
     private XsltStylesheetCache xsltStylesheetCache;
 
+    @Resource
+    private AssessmentSourceCache assessmentSourceCache;
+
+    @Resource
+    private RenderedOutputCache renderedOutputCache;
+
     @Resource
     private Validator jsr303Validator;
 
@@ -153,6 +175,24 @@ public class AssessmentRenderer {
     }
 
 
+    public AssessmentSourceCache getAssessmentSourceCache() {
+        return assessmentSourceCache;
+    }
+
+    public void setAssessmentSourceCache(final AssessmentSourceCache assessmentSourceCache) {
+        this.assessmentSourceCache = assessmentSourceCache;
+    }
+
+
+    public RenderedOutputCache getRenderedOutputCache() {
+        return renderedOutputCache;
+    }
+
+    public void setRenderedOutputCache(final RenderedOutputCache renderedOutputCache) {
+        this.renderedOutputCache = renderedOutputCache;
+    }
+
+
     public Validator getJsr303Validator() {
         return jsr303Validator;
     }
@@ -177,6 +217,23 @@ public class AssessmentRenderer {
         this.stylesheetManager = new XsltStylesheetManager(new ClassPathResourceLocator(), xsltStylesheetCache);
     }
 
+    /**
+     * Returns the URIs of all of the XSLT stylesheets that may be used by this renderer.
+     */
+    public List<URI> getRenderingStylesheetUris() {
+        return renderingXsltUris;
+    }
+
+    /**
+     * Compiles the XSLT stylesheet having the given URI (and anything it imports), storing the
+     * result in the {@link XsltStylesheetCache}. This is used to warm up the cache so that the
+     * first rendering requests don't have to wait for stylesheet compilation.
+     */
+    public void precompileStylesheet(final URI stylesheetUri) {
+        Assert.notNull(stylesheetUri, "stylesheetUri");
+        stylesheetManager.getCompiledStylesheet(stylesheetUri);
+    }
+
     //----------------------------------------------------
 
     /**
@@ -277,11 +334,8 @@ public class AssessmentRenderer {
         xsltParameters.put("exitTestUrl", renderingOptions.getExitTestUrl());
 
         final TestRenderingMode testRenderingMode = request.getTestRenderingMode();
-        if (testRenderingMode==TestRenderingMode.ITEM_REVIEW) {
-            doRenderTestItemReview(request, xsltParameters, result);
-        }
-        else if (testRenderingMode==TestRenderingMode.ITEM_SOLUTION) {
-            doRenderTestItemSolution(request, xsltParameters, result);
+        if (testRenderingMode==TestRenderingMode.ITEM_REVIEW || testRenderingMode==TestRenderingMode.ITEM_SOLUTION) {
+            doRenderModalTestItem(request, notifications, xsltParameters, result);
         }
         else {
             /* Render current state */
@@ -363,6 +417,82 @@ public class AssessmentRenderer {
         doTransform(request, itemSystemId, testItemXsltUri, xsltParameters, result);
     }
 
+    /**
+     * Renders the review or solution view of a test item. These are deterministic once the test
+     * has ended, so we use the {@link RenderedOutputCache} (if available) in this case.
+     */
+    private void doRenderModalTestItem(final TestRenderingRequest request, final List<CandidateEventNotification> notifications,
+            final Map<String, Object> xsltParameters, final Result result) {
+        final String cacheKey = createModalTestItemCacheKey(request, notifications, result);
+        if (cacheKey==null) {
+            doRenderModalTestItemUncached(request, xsltParameters, result);
+            return;
+        }
+        byte[] output = renderedOutputCache.get(cacheKey);
+        if (output==null) {
+            final ByteArrayOutputStream outputBuilder = new ByteArrayOutputStream();
+            doRenderModalTestItemUncached(request, xsltParameters, new StreamResult(outputBuilder));
+            output = outputBuilder.toByteArray();
+            renderedOutputCache.put(cacheKey, output);
+        }
+        try {
+            ((StreamResult) result).getOutputStream().write(output);
+        }
+        catch (final IOException e) {
+            throw new QtiWorksRenderingException("Could not write cached rendering to result", e);
+        }
+    }
+
+    private void doRenderModalTestItemUncached(final TestRenderingRequest request,
+            final Map<String, Object> xsltParameters, final Result result) {
+        if (request.getTestRenderingMode()==TestRenderingMode.ITEM_SOLUTION) {
+            doRenderTestItemSolution(request, xsltParameters, result);
+        }
+        else {
+            doRenderTestItemReview(request, xsltParameters, result);
+        }
+    }
+
+    /**
+     * Creates the {@link RenderedOutputCache} key for the given modal test item rendering, returning
+     * null if the rendering may not be cached. The key covers everything the output depends on:
+     * the package, the item, the (frozen) state of the test and the rendering options.
+     */
+    private String createModalTestItemCacheKey(final TestRenderingRequest request,
+            final List<CandidateEventNotification> notifications, final Result result) {
+        final Long assessmentPackageId = request.getAssessmentPackageId();
+        if (renderedOutputCache==null || !renderedOutputCache.isEnabled() || assessmentPackageId==null
+                || (notifications!=null && !notifications.isEmpty())
+                || !(result instanceof StreamResult) || ((StreamResult) result).getOutputStream()==null) {
+            return null;
+        }
+        final TestSessionState testSessionState = request.getTestSessionController().getTestSessionState();
+        final ItemSessionState itemSessionState = testSessionState.getItemSessionStates().get(request.getModalItemKey());
+        if (!testSessionState.isEnded() || itemSessionState==null || !itemSessionState.isEnded()) {
+            return null;
+        }
+        final HashFunction sha1 = Hashing.sha1();
+        return assessmentPackageId
+                + "/" + request.getTestRenderingMode()
+                + "/" + request.getModalItemKey()
+                + "/" + request.isAuthorMode()
+                + "/" + sha1.hashBytes(TestSessionStateBinaryMarshaller.marshal(testSessionState))
+                + "/" + sha1.hashBytes(serializeRenderingOptions(request.getRenderingOptions()));
+    }
+
+    private static byte[] serializeRenderingOptions(final AbstractRenderingOptions renderingOptions) {
+        final ByteArrayOutputStream outputBuilder = new ByteArrayOutputStream();
+        try {
+            final ObjectOutputStream objectOutputStream = new ObjectOutputStream(outputBuilder);
+            objectOutputStream.writeObject(renderingOptions);
+            objectOutputStream.close();
+        }
+        catch (final IOException e) {
+            throw new QtiWorksRenderingException("Unexpected Exception serializing rendering options", e);
+        }
+        return outputBuilder.toByteArray();
+    }
+
     private void doRenderTestItemReview(final TestRenderingRequest request,
             final Map<String, Object> xsltParameters, final Result result) {
         /* Extract item to review */
@@ -617,17 +747,43 @@ public class AssessmentRenderer {
          *
          * Input --> Rendering XSLT --> MathML C-to-P --> Serialization XSLT --> Result
          *
+         * The MathML C-to-P stage is omitted if we know that the assessment contains no Content
+         * MathML, as it is then an identity transformation (and a rather expensive one).
+         *
          * NB: I'm not bothering to set up LexicalHandlers, so comments and things like that won't
          * be passed through the pipeline. If that becomes important, change the code below to
          * support that.
          */
-         /* First obtain the required compiled stylesheets. */
-        final TransformerHandler rendererTransformerHandler = stylesheetManager.getCompiledStylesheetHandler(rendererStylesheetUri, renderingRequest.getAssessmentResourceLocator());
-        final TransformerHandler mathmlTransformerHandler = stylesheetManager.getCompiledStylesheetHandler(ctopXsltUri, null);
+        final ResourceLocator assessmentResourceLocator = renderingRequest.getAssessmentResourceLocator();
+        final Long assessmentPackageId = renderingRequest.getAssessmentPackageId();
+
+        /* See if we can use a cached parse of the assessment source. (This is optional; if not set
+         * then we simply parse the source afresh.) If so, we can run the renderer using a (possibly
+         * pooled) Transformer directly. Otherwise we feed it the parsed source via a TransformerHandler.
+         */
+        Transformer pooledRendererTransformer = null;
+        Source cachedSource = null;
+        if (assessmentSourceCache!=null && inputUri!=null) {
+            pooledRendererTransformer = stylesheetManager.obtainTransformer(rendererStylesheetUri, assessmentResourceLocator);
+            cachedSource = assessmentSourceCache.obtainSource(pooledRendererTransformer, assessmentPackageId,
+                    inputUri, assessmentResourceLocator);
+            if (cachedSource==null) {
+                pooledRendererTransformer = null;
+            }
+        }
+
+         /* Obtain the remaining compiled stylesheets. */
+        final boolean contentMathmlPossible = mayContainContentMathml(renderingRequest, inputUri);
+        final TransformerHandler rendererTransformerHandler = pooledRendererTransformer==null
+                ? stylesheetManager.getCompiledStylesheetHandler(rendererStylesheetUri, assessmentResourceLocator)
+                : null;
+        final TransformerHandler mathmlTransformerHandler = contentMathmlPossible ? stylesheetManager.getCompiledStylesheetHandler(ctopXsltUri, null) : null;
         final TransformerHandler serializerTransformerHandler = stylesheetManager.getCompiledStylesheetHandler(serializeXsltUri, null);
 
         /* Pass necessary parameters to renderer */
-        final Transformer rendererTransformer = rendererTransformerHandler.getTransformer();
+        final Transformer rendererTransformer = pooledRendererTransformer!=null
+                ? pooledRendererTransformer
+                : rendererTransformerHandler.getTransformer();
         if (inputUri!=null) {
             rendererTransformer.setParameter("systemId", inputUri);
         }
@@ -676,10 +832,19 @@ public class AssessmentRenderer {
             }
         }
 
+        /* Let the XSLT pick up the cached assessment tree if it looks it up via document() */
+        if (assessmentSourceCache!=null && renderingRequest.getAssessmentResourceUri()!=null) {
+            assessmentSourceCache.configureUriResolution(rendererTransformer, assessmentPackageId,
+                    renderingRequest.getAssessmentResourceUri(), assessmentResourceLocator);
+        }
+
         /* Set up the XML source */
         final InputSource assessmentSaxSource;
-        if (inputUri!=null) {
-            final ResourceLocator assessmentResourceLocator = renderingRequest.getAssessmentResourceLocator();
+        if (cachedSource!=null) {
+            /* (Not needed) */
+            assessmentSaxSource = null;
+        }
+        else if (inputUri!=null) {
             final InputStream assessmentStream = assessmentResourceLocator.findResource(inputUri);
             assessmentSaxSource = new InputSource(assessmentStream);
             assessmentSaxSource.setSystemId(inputUri.toString());
@@ -697,20 +862,78 @@ public class AssessmentRenderer {
          * support that.
          */
         serializerTransformerHandler.setResult(result);
-        final SAXResult mathmlResult = new SAXResult(serializerTransformerHandler);
-        mathmlTransformerHandler.setResult(mathmlResult);
-        final SAXResult rendererResult = new SAXResult(mathmlTransformerHandler);
-        rendererTransformerHandler.setResult(rendererResult);
-        final XMLReader xmlReader = XmlUtilities.createNsAwareSaxReader(false);
-        xmlReader.setContentHandler(rendererTransformerHandler);
+        final SAXResult rendererResult;
+        if (mathmlTransformerHandler!=null) {
+            final SAXResult mathmlResult = new SAXResult(serializerTransformerHandler);
+            mathmlTransformerHandler.setResult(mathmlResult);
+            rendererResult = new SAXResult(mathmlTransformerHandler);
+        }
+        else {
+            /* The C-to-P stage would have dropped comments and processing instructions, so we
+             * need to do the same here to get identical output. (Passing through this filter,
+             * which is not a LexicalHandler, takes care of comments.)
+             */
+            final XMLFilterImpl ctopBypassFilter = new XMLFilterImpl() {
+                @Override
+                public void processingInstruction(final String target, final String data) {
+                    /* Drop */
+                }
+            };
+            ctopBypassFilter.setContentHandler(serializerTransformerHandler);
+            rendererResult = new SAXResult(ctopBypassFilter);
+        }
 
         /* Finally we run the pipeline */
         try {
-            xmlReader.parse(assessmentSaxSource);
+            if (cachedSource!=null) {
+                rendererTransformer.transform(cachedSource, rendererResult);
+            }
+            else {
+                rendererTransformerHandler.setResult(rendererResult);
+                final XMLReader xmlReader = XmlUtilities.createNsAwareSaxReader(false);
+                xmlReader.setContentHandler(rendererTransformerHandler);
+                xmlReader.parse(assessmentSaxSource);
+            }
         }
         catch (final Exception e) {
             logger.error("Rendering XSLT pipeline failed for request {}", renderingRequest, e);
             throw new QtiWorksRenderingException("Unexpected Exception running rendering XML pipeline", e);
         }
+        finally {
+            /* (The parser normally closes this, but make sure as ZIP-backed streams need closing) */
+            if (assessmentSaxSource!=null && assessmentSaxSource.getByteStream()!=null) {
+                try {
+                    assessmentSaxSource.getByteStream().close();
+                }
+                catch (final IOException e) {
+                    logger.warn("Could not close assessment source stream for request {}", renderingRequest, e);
+                }
+            }
+        }
+
+        /* Return renderer Transformer to pool (only when successful) */
+        if (pooledRendererTransformer!=null) {
+            stylesheetManager.releaseTransformer(rendererStylesheetUri, pooledRendererTransformer);
+        }
+    }
+
+    /**
+     * Decides whether the output of the given rendering might contain Content MathML, and hence
+     * needs to go through the MathML C-to-P stage. This is determined by looking at the input
+     * document and the assessment itself (which may be pulled in by the rendering XSLT).
+     * We can only rule this out if we have an {@link AssessmentSourceCache}.
+     */
+    private boolean mayContainContentMathml(final AbstractRenderingRequest<?> renderingRequest, final URI inputUri) {
+        final URI assessmentResourceUri = renderingRequest.getAssessmentResourceUri();
+        if (assessmentSourceCache==null || assessmentResourceUri==null) {
+            return true;
+        }
+        final Long assessmentPackageId = renderingRequest.getAssessmentPackageId();
+        final ResourceLocator assessmentResourceLocator = renderingRequest.getAssessmentResourceLocator();
+        if (assessmentSourceCache.mayContainContentMathml(assessmentPackageId, assessmentResourceUri, assessmentResourceLocator)) {
+            return true;
+        }
+        return inputUri!=null && !inputUri.equals(assessmentResourceUri)
+                && assessmentSourceCache.mayContainContentMathml(assessmentPackageId, inputUri, assessmentResourceLocator);
     }
 }
@@ -0,0 +1,379 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.rendering;
+
+import uk.ac.ed.ph.qtiworks.config.beans.QtiWorksDeploymentSettings;
+import uk.ac.ed.ph.qtiworks.utils.XmlUtilities;
+
+import uk.ac.ed.ph.jqtiplus.QtiConstants;
+import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
+import uk.ac.ed.ph.jqtiplus.internal.util.ObjectUtilities;
+import uk.ac.ed.ph.jqtiplus.xmlutils.locators.ResourceLocator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.xml.transform.Source;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.sax.SAXSource;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.Controller;
+import net.sf.saxon.om.DocumentInfo;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Caches parsed assessment source documents (as SAXON trees) so that the rendering
+ * XSLT pipeline doesn't have to re-parse the same item and test XML for every page view.
+ * <p>
+ * Entries are keyed on the ID of the package containing the source (packages are never
+ * modified once imported) and the source's System ID. SAXON requires that source trees are
+ * built using the same {@link Configuration} as the stylesheet being run, so this also forms
+ * part of the key. (Each stylesheet is compiled once and cached, so in practice there are only
+ * a handful of these.)
+ * <p>
+ * The size of this cache is controlled by {@link QtiWorksDeploymentSettings}. Setting this to
+ * zero disables the cache. This only works when using SAXON; the {@link AssessmentRenderer}
+ * falls back to parsing the source as normal when this returns null.
+ * <p>
+ * This also records whether each source contains any Content MathML, which lets the
+ * {@link AssessmentRenderer} skip the (expensive) Content-to-Presentation MathML stage of
+ * its pipeline when there's nothing for it to do.
+ * <p>
+ * An instance of this class is safe to use concurrently by multiple threads.
+ *
+ * @author David McKain
+ */
+@Service
+public class AssessmentSourceCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(AssessmentSourceCache.class);
+
+    @Resource
+    private QtiWorksDeploymentSettings qtiWorksDeploymentSettings;
+
+    /** MathML elements that pass through the C-to-P stage unchanged */
+    private static final Set<String> presentationMathmlElementNames = new HashSet<String>(Arrays.asList(
+            "math", "mi", "mn", "mo", "mtext", "mspace", "ms", "mglyph", "mrow", "mfrac", "msqrt",
+            "mroot", "mstyle", "merror", "mpadded", "mphantom", "mfenced", "menclose", "msub", "msup",
+            "msubsup", "munder", "mover", "munderover", "mmultiscripts", "mprescripts", "none",
+            "mtable", "mlabeledtr", "mtr", "mtd", "maligngroup", "malignmark", "mstack", "mlongdiv",
+            "msgroup", "msrow", "mscarries", "mscarry", "msline", "maction"
+    ));
+
+    /** Cache of parsed source trees. Null if disabled */
+    private Cache<SourceKey, DocumentInfo> cache;
+
+    /** Records whether each source contains Content MathML. Null if disabled */
+    private Cache<String, Boolean> contentMathmlCache;
+
+    @PostConstruct
+    public void init() {
+        final int cacheSize = qtiWorksDeploymentSettings.getAssessmentSourceCacheSize();
+        if (cacheSize > 0) {
+            logger.info("Caching up to {} parsed assessment source documents for rendering", cacheSize);
+            this.cache = CacheBuilder.newBuilder()
+                    .maximumSize(cacheSize)
+                    .build();
+            this.contentMathmlCache = CacheBuilder.newBuilder()
+                    .maximumSize(cacheSize)
+                    .build();
+        }
+        else {
+            logger.info("Caching of parsed assessment source documents is disabled");
+            this.cache = null;
+            this.contentMathmlCache = null;
+        }
+    }
+
+    public QtiWorksDeploymentSettings getQtiWorksDeploymentSettings() {
+        return qtiWorksDeploymentSettings;
+    }
+
+    public void setQtiWorksDeploymentSettings(final QtiWorksDeploymentSettings qtiWorksDeploymentSettings) {
+        this.qtiWorksDeploymentSettings = qtiWorksDeploymentSettings;
+    }
+
+    //----------------------------------------------------
+
+    /**
+     * Obtains a parsed tree for the source at the given System ID within the package having the
+     * given ID, suitable for passing to the given {@link Transformer}. This returns null if
+     * caching is disabled or not possible, in which case the caller should parse the source itself.
+     */
+    public Source obtainSource(final Transformer transformer, final Long assessmentPackageId,
+            final URI systemId, final ResourceLocator resourceLocator) {
+        Assert.notNull(transformer, "transformer");
+        Assert.notNull(systemId, "systemId");
+        Assert.notNull(resourceLocator, "resourceLocator");
+        if (cache==null || assessmentPackageId==null || !(transformer instanceof Controller)) {
+            return null;
+        }
+        final Configuration configuration = ((Controller) transformer).getConfiguration();
+        final SourceKey sourceKey = new SourceKey(configuration, assessmentPackageId, systemId);
+        try {
+            return cache.get(sourceKey, new Callable<DocumentInfo>() {
+                @Override
+                public DocumentInfo call() throws TransformerException {
+                    return buildSource(configuration, systemId, resourceLocator);
+                }
+            });
+        }
+        catch (final ExecutionException e) {
+            throw new QtiWorksRenderingException("Could not build source tree for " + systemId, e.getCause());
+        }
+        catch (final UncheckedExecutionException e) {
+            throw new QtiWorksRenderingException("Could not build source tree for " + systemId, e.getCause());
+        }
+    }
+
+    /**
+     * Wraps the {@link URIResolver} currently set on the given {@link Transformer} so that
+     * lookups of the given System ID (e.g. via <code>document($testSystemId)</code> in the
+     * rendering XSLT) are served from this cache. This does nothing if caching is disabled
+     * or not possible.
+     */
+    public void configureUriResolution(final Transformer transformer, final Long assessmentPackageId,
+            final URI systemId, final ResourceLocator resourceLocator) {
+        Assert.notNull(transformer, "transformer");
+        Assert.notNull(systemId, "systemId");
+        Assert.notNull(resourceLocator, "resourceLocator");
+        if (cache==null || assessmentPackageId==null || !(transformer instanceof Controller)) {
+            return;
+        }
+        final URIResolver delegate = transformer.getURIResolver();
+        transformer.setURIResolver(new URIResolver() {
+            @Override
+            public Source resolve(final String href, final String base) throws TransformerException {
+                final URI resolved = (base!=null && base.length() > 0) ? URI.create(base).resolve(href) : URI.create(href);
+                if (resolved.equals(systemId)) {
+                    return obtainSource(transformer, assessmentPackageId, systemId, resourceLocator);
+                }
+                return delegate!=null ? delegate.resolve(href, base) : null;
+            }
+        });
+    }
+
+    /**
+     * Returns whether the source at the given System ID within the package having the given ID
+     * might contain any Content MathML. The source is scanned once and the result remembered.
+     * This returns true if caching is disabled or not possible, so callers can safely treat a
+     * false result as meaning "definitely contains no Content MathML".
+     */
+    public boolean mayContainContentMathml(final Long assessmentPackageId, final URI systemId,
+            final ResourceLocator resourceLocator) {
+        Assert.notNull(systemId, "systemId");
+        Assert.notNull(resourceLocator, "resourceLocator");
+        if (contentMathmlCache==null || assessmentPackageId==null) {
+            return true;
+        }
+        try {
+            return contentMathmlCache.get(createContentMathmlKey(assessmentPackageId, systemId), new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return Boolean.valueOf(scanForContentMathml(systemId, resourceLocator));
+                }
+            }).booleanValue();
+        }
+        catch (final ExecutionException e) {
+            throw new QtiWorksRenderingException("Could not scan source " + systemId, e.getCause());
+        }
+        catch (final UncheckedExecutionException e) {
+            throw new QtiWorksRenderingException("Could not scan source " + systemId, e.getCause());
+        }
+    }
+
+    /**
+     * Removes all cached sources for the package having the given ID.
+     */
+    public void purge(final Long assessmentPackageId) {
+        Assert.notNull(assessmentPackageId, "assessmentPackageId");
+        if (cache==null) {
+            return;
+        }
+        for (final SourceKey sourceKey : cache.asMap().keySet()) {
+            if (sourceKey.assessmentPackageId.equals(assessmentPackageId)) {
+                cache.invalidate(sourceKey);
+            }
+        }
+        final String keyPrefix = createContentMathmlKey(assessmentPackageId, null);
+        for (final String key : contentMathmlCache.asMap().keySet()) {
+            if (key.startsWith(keyPrefix)) {
+                contentMathmlCache.invalidate(key);
+            }
+        }
+    }
+
+    private static String createContentMathmlKey(final Long assessmentPackageId, final URI systemId) {
+        return assessmentPackageId + " " + (systemId!=null ? systemId.toString() : "");
+    }
+
+    private boolean scanForContentMathml(final URI systemId, final ResourceLocator resourceLocator) {
+        logger.debug("Scanning {} for Content MathML", systemId);
+        final InputStream inputStream = resourceLocator.findResource(systemId);
+        if (inputStream==null) {
+            throw new QtiWorksRenderingException("Could not locate source " + systemId);
+        }
+        final ContentMathmlDetector detector = new ContentMathmlDetector();
+        try {
+            final InputSource inputSource = new InputSource(inputStream);
+            inputSource.setSystemId(systemId.toString());
+            final XMLReader xmlReader = XmlUtilities.createNsAwareSaxReader(false);
+            xmlReader.setContentHandler(detector);
+            xmlReader.parse(inputSource);
+        }
+        catch (final SAXException e) {
+            if (!detector.found) {
+                throw new QtiWorksRenderingException("Could not parse source " + systemId, e);
+            }
+        }
+        catch (final IOException e) {
+            throw new QtiWorksRenderingException("Could not read source " + systemId, e);
+        }
+        finally {
+            try {
+                inputStream.close();
+            }
+            catch (final IOException e) {
+                logger.warn("Could not close source stream for {}", systemId, e);
+            }
+        }
+        return detector.found;
+    }
+
+    private DocumentInfo buildSource(final Configuration configuration, final URI systemId,
+            final ResourceLocator resourceLocator) throws TransformerException {
+        logger.debug("Building source tree for {}", systemId);
+        final InputStream inputStream = resourceLocator.findResource(systemId);
+        if (inputStream==null) {
+            throw new QtiWorksRenderingException("Could not locate source " + systemId);
+        }
+        try {
+            final InputSource inputSource = new InputSource(inputStream);
+            inputSource.setSystemId(systemId.toString());
+            return configuration.buildDocument(new SAXSource(XmlUtilities.createNsAwareSaxReader(false), inputSource));
+        }
+        finally {
+            try {
+                inputStream.close();
+            }
+            catch (final IOException e) {
+                logger.warn("Could not close source stream for {}", systemId, e);
+            }
+        }
+    }
+
+    //----------------------------------------------------
+
+    private static final class SourceKey {
+
+        private final Configuration configuration;
+        private final Long assessmentPackageId;
+        private final URI systemId;
+
+        public SourceKey(final Configuration configuration, final Long assessmentPackageId, final URI systemId) {
+            this.configuration = configuration;
+            this.assessmentPackageId = assessmentPackageId;
+            this.systemId = systemId;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof SourceKey)) {
+                return false;
+            }
+            final SourceKey other = (SourceKey) obj;
+            return configuration==other.configuration
+                    && assessmentPackageId.equals(other.assessmentPackageId)
+                    && systemId.equals(other.systemId);
+        }
+
+        @Override
+        public int hashCode() {
+            return (System.identityHashCode(configuration) * 31 + assessmentPackageId.hashCode()) * 31 + systemId.hashCode();
+        }
+    }
+
+    /**
+     * SAX handler that looks for the first non-Presentation MathML element, stopping the
+     * parse as soon as one has been found.
+     */
+    private static final class ContentMathmlDetector extends DefaultHandler {
+
+        private boolean found = false;
+
+        @Override
+        public void startElement(final String uri, final String localName, final String qName,
+                final Attributes attributes) throws SAXException {
+            if (QtiConstants.MATHML_NAMESPACE_URI.equals(uri) && !presentationMathmlElementNames.contains(localName)) {
+                found = true;
+                throw new SAXException("Found Content MathML element " + localName);
+            }
+        }
+    }
+
+    //----------------------------------------------------
+    // Reporting
+
+    public long getCacheUsage() {
+        return cache!=null ? cache.size() : 0L;
+    }
+
+    @Override
+    public String toString() {
+        return ObjectUtilities.beanToString(this);
+    }
+}
@@ -0,0 +1,182 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.rendering;
+
+import uk.ac.ed.ph.qtiworks.config.beans.QtiWorksDeploymentSettings;
+
+import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
+import uk.ac.ed.ph.jqtiplus.internal.util.ObjectUtilities;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+/**
+ * Caches the rendered output of renderings that are known to be deterministic, such as the
+ * review and solution views of test items whose sessions have ended. This makes revisiting
+ * these views very cheap, which helps when a whole cohort reviews a test at the same time.
+ * <p>
+ * Keys are created by the {@link AssessmentRenderer} and must start with the ID of the
+ * package being rendered, followed by a '/', so that {@link #purge(Long)} can find them.
+ * <p>
+ * The total size of this cache (in bytes) is controlled by {@link QtiWorksDeploymentSettings}.
+ * Setting this to zero disables the cache. Least recently used entries are evicted first.
+ * <p>
+ * An instance of this class is safe to use concurrently by multiple threads.
+ *
+ * @author David McKain
+ */
+@Service
+public class RenderedOutputCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(RenderedOutputCache.class);
+
+    @Resource
+    private QtiWorksDeploymentSettings qtiWorksDeploymentSettings;
+
+    /** Cache of rendered output bytes. Null if disabled */
+    private Cache<String, byte[]> cache;
+
+    private final AtomicLong cacheHitCount = new AtomicLong();
+    private final AtomicLong cacheMissCount = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        final long maxBytes = qtiWorksDeploymentSettings.getRenderedOutputCacheSizeKb() * 1024L;
+        if (maxBytes > 0) {
+            logger.info("Caching up to {} bytes of rendered output", maxBytes);
+            this.cache = CacheBuilder.newBuilder()
+                    .maximumWeight(maxBytes)
+                    .weigher(new Weigher<String, byte[]>() {
+                        @Override
+                        public int weigh(final String key, final byte[] value) {
+                            return value.length;
+                        }
+                    })
+                    .build();
+        }
+        else {
+            logger.info("Rendered output caching is disabled");
+            this.cache = null;
+        }
+    }
+
+    public QtiWorksDeploymentSettings getQtiWorksDeploymentSettings() {
+        return qtiWorksDeploymentSettings;
+    }
+
+    public void setQtiWorksDeploymentSettings(final QtiWorksDeploymentSettings qtiWorksDeploymentSettings) {
+        this.qtiWorksDeploymentSettings = qtiWorksDeploymentSettings;
+    }
+
+    //----------------------------------------------------
+
+    public boolean isEnabled() {
+        return cache!=null;
+    }
+
+    /**
+     * Returns the output cached under the given key, or null if there is none.
+     * The caller must not modify the resulting array.
+     */
+    public byte[] get(final String key) {
+        Assert.notNull(key, "key");
+        if (cache==null) {
+            return null;
+        }
+        final byte[] result = cache.getIfPresent(key);
+        if (result!=null) {
+            logger.trace("Rendered output cache HIT for {}", key);
+            cacheHitCount.incrementAndGet();
+        }
+        else {
+            logger.trace("Rendered output cache MISS for {}", key);
+            cacheMissCount.incrementAndGet();
+        }
+        return result;
+    }
+
+    public void put(final String key, final byte[] output) {
+        Assert.notNull(key, "key");
+        Assert.notNull(output, "output");
+        if (cache!=null) {
+            cache.put(key, output);
+        }
+    }
+
+    /**
+     * Removes all cached output for the package having the given ID.
+     */
+    public void purge(final Long assessmentPackageId) {
+        Assert.notNull(assessmentPackageId, "assessmentPackageId");
+        if (cache==null) {
+            return;
+        }
+        final String keyPrefix = assessmentPackageId + "/";
+        for (final String key : cache.asMap().keySet()) {
+            if (key.startsWith(keyPrefix)) {
+                cache.invalidate(key);
+            }
+        }
+    }
+
+    //----------------------------------------------------
+    // Reporting
+
+    public long getCacheHitCount() {
+        return cacheHitCount.get();
+    }
+
+    public long getCacheMissCount() {
+        return cacheMissCount.get();
+    }
+
+    public long getCacheUsage() {
+        return cache!=null ? cache.size() : 0L;
+    }
+
+    @Override
+    public String toString() {
+        return ObjectUtilities.beanToString(this);
+    }
+}
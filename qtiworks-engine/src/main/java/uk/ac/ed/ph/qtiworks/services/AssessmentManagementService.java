@@ -71,7 +71,6 @@ import uk.ac.ed.ph.jqtiplus.node.AssessmentObjectType;
 import uk.ac.ed.ph.jqtiplus.node.outcome.declaration.OutcomeDeclaration;
 import uk.ac.ed.ph.jqtiplus.validation.AssessmentObjectValidationResult;
 
-import java.io.File;
 import java.io.InputStream;
 import java.util.Date;
 import java.util.List;
@@ -107,9 +106,6 @@ public class AssessmentManagementService {
     @Resource
     private AuditLogger auditLogger;
 
-    @Resource
-    private FilespaceManager filespaceManager;
-
     @Resource
     private Validator jsr303Validator;
 
@@ -920,11 +916,7 @@ public class AssessmentManagementService {
     }
 
     private void deleteAssessmentPackageSandbox(final AssessmentPackage assessmentPackage) {
-        final String sandboxPath = assessmentPackage.getSandboxPath();
-        if (sandboxPath==null) {
-            throw new QtiWorksLogicException("AssessmentPackage sandbox is null");
-        }
-        filespaceManager.deleteSandbox(new File(sandboxPath));
+        assessmentPackageFileService.deleteAssessmentPackageSandbox(assessmentPackage);
         assessmentPackage.setSandboxPath(null);
     }
 
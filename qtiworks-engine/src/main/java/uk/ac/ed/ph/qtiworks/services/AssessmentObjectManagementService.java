@@ -33,8 +33,9 @@
  */
 package uk.ac.ed.ph.qtiworks.services;
 
+import uk.ac.ed.ph.qtiworks.QtiWorksRuntimeException;
+import uk.ac.ed.ph.qtiworks.config.beans.QtiWorksDeploymentSettings;
 import uk.ac.ed.ph.qtiworks.domain.entities.AssessmentPackage;
-import uk.ac.ed.ph.qtiworks.utils.LruHashMap;
 
 import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
 import uk.ac.ed.ph.jqtiplus.internal.util.ObjectUtilities;
@@ -46,21 +47,39 @@ import uk.ac.ed.ph.jqtiplus.state.ItemProcessingMap;
 import uk.ac.ed.ph.jqtiplus.state.TestProcessingMap;
 
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
 /**
  * Middle layer service responsible for instantiating and caching {@link ItemProcessingMap}
  * and {@link TestProcessingMap} Objects.
  * <p>
  * This is NO authorisation at this level.
- *
- * FIXME: For the time being, we'll use an {@link LruHashMap}, though this is probably not the best choice.
+ * <p>
+ * The cache is a concurrent Guava {@link Cache} keyed on the content hash of each
+ * {@link AssessmentPackage} (and its validity), so that packages created from identical uploads
+ * share the same Objects. Packages without a content hash are keyed on their ID instead. Lookups
+ * for packages already in the cache never block, and each package is only read and resolved
+ * once even if many candidates request it at the same time (i.e. concurrent misses on the same
+ * package wait for the first load to finish, while misses on other packages proceed in parallel).
+ * The size and expiry of the cache are controlled by {@link QtiWorksDeploymentSettings}.
  *
  * @author David McKain
  */
@@ -69,18 +88,36 @@ public class AssessmentObjectManagementService {
 
     private static final Logger logger = LoggerFactory.getLogger(AssessmentObjectManagementService.class);
 
-    private int cacheMissCount;
-    private int cacheHitCount;
+    @Resource
+    private QtiWorksDeploymentSettings qtiWorksDeploymentSettings;
 
     @Resource
     private AssessmentPackageFileService assessmentPackageFileService;
 
-    private final LruHashMap<Long, Object> cache;
-
-    public AssessmentObjectManagementService() {
-        this.cache = new LruHashMap<Long, Object>();
-        this.cacheMissCount = 0;
-        this.cacheHitCount = 0;
+    /**
+     * Cache of {@link ItemProcessingMap}s and {@link TestProcessingMap}s, keyed as described
+     * in {@link #getCacheKey(AssessmentPackage)}. (Packages that could not be loaded are recorded
+     * as absent values, so that we don't keep on trying to load them.)
+     */
+    private Cache<String, Optional<Object>> cache;
+
+    private int cacheMaxSize;
+
+    @PostConstruct
+    public void init() {
+        this.cacheMaxSize = qtiWorksDeploymentSettings.getAssessmentObjectCacheSize();
+        final int cacheTtlMinutes = qtiWorksDeploymentSettings.getAssessmentObjectCacheTtlMinutes();
+        final CacheBuilder<Object, Object> cacheBuilder = CacheBuilder.newBuilder()
+                .recordStats();
+        if (cacheMaxSize > 0) {
+            cacheBuilder.maximumSize(cacheMaxSize);
+        }
+        if (cacheTtlMinutes > 0) {
+            cacheBuilder.expireAfterAccess(cacheTtlMinutes, TimeUnit.MINUTES);
+        }
+        logger.info("Caching at most {} assessment objects, with expiry after {} minute(s) of inactivity (0 = never)",
+                cacheMaxSize > 0 ? Integer.toString(cacheMaxSize) : "unlimited", cacheTtlMinutes);
+        this.cache = cacheBuilder.build();
     }
 
     /**
@@ -90,16 +127,11 @@ public class AssessmentObjectManagementService {
     public ItemProcessingMap getItemProcessingMap(final AssessmentPackage assessmentPackage) {
         Assert.notNull(assessmentPackage, "assessmentPackage");
         final Long apid = assessmentPackage.getId();
-        ItemProcessingMap result = null;
-        synchronized (cache) {
-            if (cache.containsKey(apid)) {
-                logger.debug("Cache HIT for package #{}", apid);
-                result = (ItemProcessingMap) cache.get(apid);
-                cacheHitCount++;
-            }
-            else {
+        return (ItemProcessingMap) getOrLoad(assessmentPackage, new Callable<Optional<Object>>() {
+            @Override
+            public Optional<Object> call() {
                 logger.debug("Cache MISS for package #{}. Reading and resolving XML", apid);
-                cacheMissCount++;
+                ItemProcessingMap result = null;
                 try {
                     final ResolvedAssessmentItem resolvedAssessmentItem = assessmentPackageFileService.loadAndResolveAssessmentObject(assessmentPackage);
                     result = new ItemProcessingInitializer(resolvedAssessmentItem, assessmentPackage.isValid()).initialize();
@@ -107,10 +139,9 @@ public class AssessmentObjectManagementService {
                 catch (final RuntimeException e) {
                     logger.info("Failed to create ItemProcessingMap for package #{}", apid);
                 }
-                cache.put(apid, result);
+                return Optional.<Object>fromNullable(result);
             }
-        }
-        return result;
+        });
     }
 
     /**
@@ -120,16 +151,11 @@ public class AssessmentObjectManagementService {
     public TestProcessingMap getTestProcessingMap(final AssessmentPackage assessmentPackage) {
         Assert.notNull(assessmentPackage, "assessmentPackage");
         final Long apid = assessmentPackage.getId();
-        TestProcessingMap result = null;
-        synchronized (cache) {
-            if (cache.containsKey(apid)) {
-                logger.debug("Cache HIT for package #{}", apid);
-                result = (TestProcessingMap) cache.get(apid);
-                cacheHitCount++;
-            }
-            else {
+        return (TestProcessingMap) getOrLoad(assessmentPackage, new Callable<Optional<Object>>() {
+            @Override
+            public Optional<Object> call() {
                 logger.debug("Cache MISS for package #{}. Reading and resolving XML", apid);
-                cacheMissCount++;
+                TestProcessingMap result = null;
                 try {
                     final ResolvedAssessmentTest resolvedAssessmentTest = assessmentPackageFileService.loadAndResolveAssessmentObject(assessmentPackage);
                     result = new TestProcessingInitializer(resolvedAssessmentTest, assessmentPackage.isValid()).initialize();
@@ -137,48 +163,79 @@ public class AssessmentObjectManagementService {
                 catch (final RuntimeException e) {
                     logger.info("Failed to create TestProcessingMap for package #{}", apid);
                 }
-                cache.put(apid, result);
+                return Optional.<Object>fromNullable(result);
             }
+        });
+    }
+
+    /**
+     * Packages created from the same uploaded data share a sandbox, so their processing
+     * maps are equivalent provided they agree on validity. (Packages imported before
+     * content hashes were recorded are keyed on their ID.)
+     */
+    private String getCacheKey(final AssessmentPackage assessmentPackage) {
+        final String contentHash = assessmentPackage.getContentHash();
+        if (contentHash!=null) {
+            return contentHash + (assessmentPackage.isValid() ? ":valid" : ":invalid");
+        }
+        return "#" + assessmentPackage.getId();
+    }
+
+    private Object getOrLoad(final AssessmentPackage assessmentPackage, final Callable<Optional<Object>> loader) {
+        final Long apid = assessmentPackage.getId();
+        try {
+            return cache.get(getCacheKey(assessmentPackage), loader).orNull();
+        }
+        catch (final ExecutionException e) {
+            throw new QtiWorksRuntimeException("Unexpected Exception loading package #" + apid, e.getCause());
+        }
+        catch (final UncheckedExecutionException e) {
+            throw new QtiWorksRuntimeException("Unexpected Exception loading package #" + apid, e.getCause());
         }
-        return result;
     }
 
     public void purge(final AssessmentPackage assessmentPackage) {
         Assert.notNull(assessmentPackage, "assessmentPackage");
-        final Long apid = assessmentPackage.getId();
-        synchronized (cache) {
-            if (cache.containsKey(apid)) {
-                cache.remove(apid);
-                logger.debug("Actively purged package #{}", assessmentPackage);
-            }
+        if (cache.asMap().remove(getCacheKey(assessmentPackage))!=null) {
+            logger.debug("Actively purged package #{}", assessmentPackage);
         }
     }
 
     //--------------------------------------------------------------------------
     // Reporting
 
-    public int getCacheUsage() {
+    public long getCacheUsage() {
         return cache.size();
     }
 
     public int getCacheMaxSize() {
-        return cache.getMaxSize();
+        return cacheMaxSize;
     }
 
-    public int getCacheMissCount() {
-        return cacheMissCount;
+    public long getCacheMissCount() {
+        return cache.stats().missCount();
     }
 
-    public int getCacheHitCount() {
-        return cacheHitCount;
+    public long getCacheHitCount() {
+        return cache.stats().hitCount();
     }
 
-    public int getCachePurgeCount() {
-        return cache.getPurgeCount();
+    public long getCachePurgeCount() {
+        return cache.stats().evictionCount();
     }
 
-    public Map<Long, Object> getCacheView() {
-        return Collections.unmodifiableMap(cache);
+    /** Returns the average time spent loading a package into the cache, in milliseconds */
+    public double getCacheAverageLoadMillis() {
+        final CacheStats stats = cache.stats();
+        return stats.averageLoadPenalty() / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public Map<String, Object> getCacheView() {
+        final Map<String, Object> result = new LinkedHashMap<String, Object>();
+        for (final Entry<String, Optional<Object>> entry : cache.asMap().entrySet()) {
+            result.put(entry.getKey(), entry.getValue().orNull());
+        }
+        return Collections.unmodifiableMap(result);
     }
 
     @Override
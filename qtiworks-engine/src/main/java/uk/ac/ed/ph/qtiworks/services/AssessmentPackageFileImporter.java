@@ -46,6 +46,7 @@ import uk.ac.ed.ph.jqtiplus.utils.contentpackaging.ImsManifestException;
 import uk.ac.ed.ph.jqtiplus.utils.contentpackaging.QtiContentPackageExtractor;
 import uk.ac.ed.ph.jqtiplus.utils.contentpackaging.QtiContentPackageSummary;
 import uk.ac.ed.ph.jqtiplus.xmlutils.XmlResourceNotFoundException;
+import uk.ac.ed.ph.jqtiplus.xmlutils.locators.ZipSandboxResourceLocator;
 
 import java.io.EOFException;
 import java.io.File;
@@ -59,6 +60,7 @@ import java.util.List;
 import java.util.Set;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 import org.apache.commons.io.FileUtils;
@@ -86,6 +88,9 @@ public class AssessmentPackageFileImporter {
     /** File name that will be used when uploading standalone XML */
     private static final String STANDALONE_XML_IMPORT_FILE_NAME = "qti.xml";
 
+    /** File name used to keep the uploaded ZIP file for packages that are stored as ZIPs */
+    public static final String STORED_ZIP_FILE_NAME = "package.zip";
+
     /**
      * Imports the assessment data from the given {@link MultipartFile} into the given
      * sandbox directory, which the caller must have created.
@@ -101,6 +106,27 @@ public class AssessmentPackageFileImporter {
     public AssessmentPackage importAssessmentPackageData(final File importSandboxDirectory,
             final MultipartFile multipartFile)
             throws AssessmentPackageDataImportException {
+        return importAssessmentPackageData(importSandboxDirectory, multipartFile, false);
+    }
+
+    /**
+     * Imports the assessment data from the given {@link MultipartFile} into the given
+     * sandbox directory, which the caller must have created.
+     * <p>
+     * If <code>storeAsZip</code> is true then ZIP data is saved as-is in the sandbox
+     * (as {@link #STORED_ZIP_FILE_NAME}) and read from there, rather than being unpacked.
+     * <p>
+     * Returns a partially-filled unpersisted {@link AssessmentPackage} object representing the
+     * results of this.
+     *
+     * @throws AssessmentPackageDataImportException
+     * @throws IllegalArgumentException if any of the provided arguments are null
+     * @throws QtiWorksRuntimeException if something unexpected happens, such as experiencing
+     *   an {@link IOException}
+     */
+    public AssessmentPackage importAssessmentPackageData(final File importSandboxDirectory,
+            final MultipartFile multipartFile, final boolean storeAsZip)
+            throws AssessmentPackageDataImportException {
         Assert.notNull(importSandboxDirectory, "importSandboxDirectory");
         Assert.notNull(multipartFile, "multipartFile");
         AssessmentPackage assessmentPackage = null;
@@ -111,12 +137,33 @@ public class AssessmentPackageFileImporter {
             logger.debug("Import data uses a known XML MIME type {} so saving to {} and treating as XML", contentType, importSandboxDirectory);
             assessmentPackage = importStandaloneXml(importSandboxDirectory, multipartFile);
         }
+        else if (storeAsZip) {
+            /* Try to treat as a ZIP, keeping it as-is */
+            final ZipFile zipFile = trySaveZipFile(importSandboxDirectory, multipartFile);
+            if (zipFile!=null) {
+                logger.debug("Import data was successfully saved as a ZIP file");
+                try {
+                    final ZipSandboxResourceLocator packageResourceLocator = new ZipSandboxResourceLocator(QtiContentPackageExtractor.PACKAGE_URI_SCHEME, zipFile);
+                    assessmentPackage = processContentPackage(importSandboxDirectory,
+                            new QtiContentPackageExtractor(packageResourceLocator), zipFile);
+                    assessmentPackage.setStoredAsZip(true);
+                }
+                finally {
+                    ServiceUtilities.ensureClose(zipFile);
+                }
+            }
+            else {
+                logger.warn("Import data with MIME type {} was not a supported XML MIME type and could not be read as a ZIP", contentType);
+                throw new AssessmentPackageDataImportException(ImportFailureReason.NOT_XML_OR_ZIP);
+            }
+        }
         else {
             /* Try to treat as a ZIP */
             final boolean zipSuccess = tryUnpackZipFile(importSandboxDirectory, multipartFile);
             if (zipSuccess) {
                 logger.debug("Import data was successfully expanded as a ZIP file");
-                assessmentPackage = processUnpackedZip(importSandboxDirectory);
+                assessmentPackage = processContentPackage(importSandboxDirectory,
+                        new QtiContentPackageExtractor(importSandboxDirectory), null);
             }
             else {
                 logger.warn("Import data with MIME type {} was not a supported XML MIME type and no ZIP entries were found within", contentType);
@@ -194,10 +241,52 @@ public class AssessmentPackageFileImporter {
         return foundEntry;
     }
 
-    private AssessmentPackage processUnpackedZip(final File importSandboxDirectory)
+    /**
+     * Saves the given data as {@link #STORED_ZIP_FILE_NAME} within the sandbox, returning an open
+     * {@link ZipFile} for reading it, or null if the data is not a ZIP file containing any entries.
+     */
+    private ZipFile trySaveZipFile(final File importSandboxDirectory, final MultipartFile multipartFile) {
+        final File zipFileFile = new File(importSandboxDirectory, STORED_ZIP_FILE_NAME);
+        InputStream inputStream = null;
+        try {
+            inputStream = ServiceUtilities.ensureInputSream(multipartFile);
+            FileUtils.copyInputStreamToFile(inputStream, zipFileFile);
+        }
+        catch (final IOException e) {
+            throw QtiWorksRuntimeException.unexpectedException(e);
+        }
+        finally {
+            ServiceUtilities.ensureClose(inputStream);
+        }
+        ZipFile zipFile = null;
+        try {
+            zipFile = new ZipFile(zipFileFile);
+            if (zipFile.size()==0) {
+                ServiceUtilities.ensureClose(zipFile);
+                zipFile = null;
+            }
+        }
+        catch (final ZipException e) {
+            zipFile = null;
+        }
+        catch (final IOException e) {
+            throw QtiWorksRuntimeException.unexpectedException(e);
+        }
+        if (zipFile==null && !zipFileFile.delete()) {
+            logger.warn("Could not delete non-ZIP file {}", zipFileFile);
+        }
+        return zipFile;
+    }
+
+    /**
+     * Reads the content package within the given sandbox using the given extractor. If
+     * <code>zipFile</code> is not null, then the package's files are within this ZIP file
+     * instead of having been unpacked into the sandbox.
+     */
+    private AssessmentPackage processContentPackage(final File importSandboxDirectory,
+            final QtiContentPackageExtractor contentPackageExtractor, final ZipFile zipFile)
             throws AssessmentPackageDataImportException {
         /* Expand content package */
-        final QtiContentPackageExtractor contentPackageExtractor = new QtiContentPackageExtractor(importSandboxDirectory);
         QtiContentPackageSummary contentPackageSummary;
         try {
             contentPackageSummary = contentPackageExtractor.parse();
@@ -220,14 +309,14 @@ public class AssessmentPackageFileImporter {
             /* Treat as a test */
             logger.debug("Package contains 1 test resource, so treating this as an AssessmentTest");
             assessmentPackage.setAssessmentType(AssessmentObjectType.ASSESSMENT_TEST);
-            assessmentPackage.setAssessmentHref(checkPackageFile(importSandboxDirectory,
+            assessmentPackage.setAssessmentHref(checkPackageFile(importSandboxDirectory, zipFile,
                     contentPackageSummary.getTestResources().get(0).getHref()));
         }
         else if (testCount==0 && itemCount==1) {
             /* Treat as an item */
             logger.debug("Package contains 1 item resource and no test resources, so treating this as an AssessmentItem");
             assessmentPackage.setAssessmentType(AssessmentObjectType.ASSESSMENT_ITEM);
-            assessmentPackage.setAssessmentHref(checkPackageFile(importSandboxDirectory,
+            assessmentPackage.setAssessmentHref(checkPackageFile(importSandboxDirectory, zipFile,
                     contentPackageSummary.getItemResources().get(0).getHref()));
         }
         else {
@@ -242,8 +331,8 @@ public class AssessmentPackageFileImporter {
          */
         final Set<String> packageQtiFileBuilder = new HashSet<String>();
         final Set<String> packageSafeFileBuilder = new HashSet<String>();
-        buildPackageFileMap(importSandboxDirectory, packageQtiFileBuilder, packageSafeFileBuilder, contentPackageSummary.getItemResources());
-        buildPackageFileMap(importSandboxDirectory, packageQtiFileBuilder, packageSafeFileBuilder, contentPackageSummary.getTestResources());
+        buildPackageFileMap(importSandboxDirectory, zipFile, packageQtiFileBuilder, packageSafeFileBuilder, contentPackageSummary.getItemResources());
+        buildPackageFileMap(importSandboxDirectory, zipFile, packageQtiFileBuilder, packageSafeFileBuilder, contentPackageSummary.getTestResources());
         assessmentPackage.setQtiFileHrefs(packageQtiFileBuilder);
         assessmentPackage.setSafeFileHrefs(packageSafeFileBuilder);
 
@@ -255,7 +344,7 @@ public class AssessmentPackageFileImporter {
      * to QTI XML files, which are assumed to be the *first* files declared within item or test
      * resource elements in the manifest.
      */
-    private void buildPackageFileMap(final File importSandboxDirectory,
+    private void buildPackageFileMap(final File importSandboxDirectory, final ZipFile zipFile,
             final Set<String> packageQtiFileBuilder, final Set<String> packageSafeFileBuilder,
             final List<ContentPackageResource> qtiResources)
             throws AssessmentPackageDataImportException {
@@ -263,7 +352,7 @@ public class AssessmentPackageFileImporter {
             final List<URI> fileHrefs = qtiResource.getFileHrefs();
             boolean isFirst = true;
             for (final URI fileHref : fileHrefs) {
-                final String fileHrefString = checkPackageFile(importSandboxDirectory, fileHref);
+                final String fileHrefString = checkPackageFile(importSandboxDirectory, zipFile, fileHref);
                 if (isFirst) {
                     packageQtiFileBuilder.add(fileHrefString);
                 }
@@ -276,11 +365,12 @@ public class AssessmentPackageFileImporter {
     }
 
     /**
-     * Checks the given file URI (href) and makes sure it exists within the sandbox.
+     * Checks the given file URI (href) and makes sure it exists within the sandbox (or within
+     * the given ZIP file, if not null).
      * Returns the original href as a String if successful, otherwise throws
      * {@link AssessmentPackageDataImportException}.
      */
-    private String checkPackageFile(final File importSandboxDirectory, final URI href)
+    private String checkPackageFile(final File importSandboxDirectory, final ZipFile zipFile, final URI href)
             throws AssessmentPackageDataImportException {
         final String hrefString = href.toString();
         final URI sandboxUri = importSandboxDirectory.toURI();
@@ -292,9 +382,18 @@ public class AssessmentPackageFileImporter {
         }
 
         /* Make sure file exists */
-        final File resolvedFile = new File(resolvedFileUri);
-        if (!resolvedFile.exists()) {
-            throw new AssessmentPackageDataImportException(ImportFailureReason.FILE_MISSING, hrefString);
+        if (zipFile!=null) {
+            final String entryName = sandboxUri.relativize(resolvedFileUri).getPath();
+            final ZipEntry zipEntry = zipFile.getEntry(entryName);
+            if (zipEntry==null || zipEntry.isDirectory()) {
+                throw new AssessmentPackageDataImportException(ImportFailureReason.FILE_MISSING, hrefString);
+            }
+        }
+        else {
+            final File resolvedFile = new File(resolvedFileUri);
+            if (!resolvedFile.exists()) {
+                throw new AssessmentPackageDataImportException(ImportFailureReason.FILE_MISSING, hrefString);
+            }
         }
 
         return hrefString;
@@ -35,11 +35,14 @@ package uk.ac.ed.ph.qtiworks.services;
 
 import uk.ac.ed.ph.qtiworks.QtiWorksLogicException;
 import uk.ac.ed.ph.qtiworks.QtiWorksRuntimeException;
+import uk.ac.ed.ph.qtiworks.config.beans.QtiWorksDeploymentSettings;
 import uk.ac.ed.ph.qtiworks.domain.DomainConstants;
 import uk.ac.ed.ph.qtiworks.domain.entities.AssessmentPackage;
 import uk.ac.ed.ph.qtiworks.domain.entities.AssessmentPackageImportType;
 import uk.ac.ed.ph.qtiworks.domain.entities.User;
 import uk.ac.ed.ph.qtiworks.samples.QtiSampleAssessment;
+import uk.ac.ed.ph.qtiworks.services.AssessmentPackageZipCache.ZipFileHandle;
+import uk.ac.ed.ph.qtiworks.services.dao.AssessmentPackageDao;
 import uk.ac.ed.ph.qtiworks.services.domain.AssessmentPackageDataImportException;
 import uk.ac.ed.ph.qtiworks.services.domain.OutputStreamer;
 
@@ -52,6 +55,7 @@ import uk.ac.ed.ph.jqtiplus.reading.AssessmentObjectXmlLoader;
 import uk.ac.ed.ph.jqtiplus.reading.QtiObjectReader;
 import uk.ac.ed.ph.jqtiplus.reading.QtiXmlReader;
 import uk.ac.ed.ph.jqtiplus.resolution.ResolvedAssessmentObject;
+import uk.ac.ed.ph.jqtiplus.resolution.SharedRootNodeCache;
 import uk.ac.ed.ph.jqtiplus.utils.contentpackaging.QtiContentPackageExtractor;
 import uk.ac.ed.ph.jqtiplus.validation.AssessmentObjectValidationResult;
 import uk.ac.ed.ph.jqtiplus.xmlutils.CustomUriScheme;
@@ -62,14 +66,24 @@ import uk.ac.ed.ph.jqtiplus.xmlutils.locators.ClassPathResourceLocator;
 import uk.ac.ed.ph.jqtiplus.xmlutils.locators.FileSandboxResourceLocator;
 import uk.ac.ed.ph.jqtiplus.xmlutils.locators.NetworkHttpResourceLocator;
 import uk.ac.ed.ph.jqtiplus.xmlutils.locators.ResourceLocator;
+import uk.ac.ed.ph.jqtiplus.xmlutils.locators.ZipSandboxResourceLocator;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.ZipEntry;
 
 import javax.activation.FileTypeMap;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 
 import org.apache.commons.io.FileUtils;
@@ -80,6 +94,8 @@ import org.springframework.util.Assert;
 import org.springframework.web.multipart.MultipartFile;
 import org.w3c.dom.Document;
 
+import com.google.common.util.concurrent.Striped;
+
 /**
  * Provides read-only access (and related services) to {@link AssessmentPackage} files.
  * <p>
@@ -101,18 +117,36 @@ public class AssessmentPackageFileService {
     /** Default title for assessment if it can't be extracted from the XML */
     private static final String DEFAULT_IMPORT_TITLE = "Assessment";
 
+    @Resource
+    private QtiWorksDeploymentSettings qtiWorksDeploymentSettings;
+
     @Resource
     private AssessmentPackageFileImporter assessmentPackageFileImporter;
 
     @Resource
     private QtiXmlReader qtiXmlReader;
 
+    @Resource
+    private SharedRootNodeCache sharedRootNodeCache;
+
     @Resource
     private FilespaceManager filespaceManager;
 
+    @Resource
+    private AssessmentPackageDao assessmentPackageDao;
+
+    @Resource
+    private AssessmentPackageZipCache assessmentPackageZipCache;
+
     @Resource
     private FileTypeMap fileTypeMap;
 
+    /**
+     * Locks keyed on content hash, used to stop a sandbox being deleted while a new package is
+     * being set up to share it. These are held until the current transaction completes.
+     */
+    private final Striped<Lock> contentHashLocks = Striped.lazyWeakLock(1024);
+
     /**
      * {@link ResourceLocator} for reading in sample assessment resources. These are bundled
      * within the ClassPath in a fixed way.
@@ -134,12 +168,42 @@ public class AssessmentPackageFileService {
         );
     }
 
+    /**
+     * Pool used to load, resolve and validate the items within tests in parallel. This is null
+     * if this is done sequentially.
+     */
+    private ExecutorService validationExecutorService;
+
+    @PostConstruct
+    public void init() {
+        int threadCount = qtiWorksDeploymentSettings.getValidationThreadCount();
+        if (threadCount<=0) {
+            threadCount = Runtime.getRuntime().availableProcessors();
+        }
+        if (threadCount>1) {
+            validationExecutorService = Executors.newFixedThreadPool(threadCount, new ValidationThreadFactory());
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (validationExecutorService!=null) {
+            validationExecutorService.shutdownNow();
+        }
+    }
+
     //-------------------------------------------------
 
     /**
      * Wraps around {@link AssessmentPackageFileImporter#importAssessmentPackageData(File, MultipartFile)}
-     * Imports the assessment data from the given {@link MultipartFile} into the given
-     * sandbox directory, which the caller must have created.
+     * Imports the assessment data from the given {@link MultipartFile} into a new sandbox
+     * within the shared content store.
+     * <p>
+     * If identical data has already been imported into an existing {@link AssessmentPackage}
+     * then the resulting package will share that package's sandbox (and validation summary)
+     * instead of unpacking the data again. The resulting package should be persisted within
+     * the current transaction, as this holds off deletion of that sandbox until the transaction
+     * completes.
      * <p>
      * Returns a partially-filled unpersisted {@link AssessmentPackage} object representing the
      * results of this.
@@ -154,21 +218,39 @@ public class AssessmentPackageFileService {
             throws AssessmentPackageDataImportException {
         Assert.notNull(owner, "owner");
         Assert.notNull(multipartFile, "multipartFile");
-        final File packageSandbox = filespaceManager.createAssessmentPackageSandbox(owner);
+        final String contentHash = ServiceUtilities.computeSha256Digest(multipartFile);
+        lockContentHash(contentHash);
+
+        /* See if we can share the sandbox of an existing package having the same data */
+        final AssessmentPackage existingPackage = findPackageWithContentHash(contentHash);
+        if (existingPackage!=null) {
+            logger.debug("Uploaded data has content hash {} so sharing sandbox of AssessmentPackage #{}",
+                    contentHash, existingPackage.getId());
+            final AssessmentPackage assessmentPackage = createSharingAssessmentPackage(existingPackage);
+            assessmentPackage.setImporter(owner);
+            assessmentPackage.setFileName(createPackageFileName(assessmentPackage, multipartFile));
+            assessmentPackage.setTitle(existingPackage.getTitle());
+            if (validate && !assessmentPackage.isValidated()) {
+                validateAndRecordSummary(assessmentPackage);
+            }
+            return assessmentPackage;
+        }
+
+        /* Otherwise unpack the data, then move it into the content store */
+        File packageSandbox = filespaceManager.createAssessmentPackageSandbox(owner);
         final AssessmentPackage assessmentPackage;
         try {
-            assessmentPackage = assessmentPackageFileImporter.importAssessmentPackageData(packageSandbox, multipartFile);
+            assessmentPackage = assessmentPackageFileImporter.importAssessmentPackageData(packageSandbox, multipartFile,
+                    qtiWorksDeploymentSettings.isAssessmentPackageZipStorage());
+            packageSandbox = filespaceManager.moveAssessmentPackageSandboxToContentStore(packageSandbox, contentHash);
+            assessmentPackage.setSandboxPath(packageSandbox.getAbsolutePath());
+            assessmentPackage.setContentHash(contentHash);
 
             /* Record importer */
             assessmentPackage.setImporter(owner);
 
-            /* Create name for package, using original fileName if available.
-             * If not supplied, use name of QTI assessment XML resource */
-            String fileName = multipartFile.getOriginalFilename();
-            if (fileName==null || fileName.isEmpty()) {
-                fileName = assessmentPackage.getAssessmentHref().replaceFirst("^.+/", "");
-            }
-            assessmentPackage.setFileName(ServiceUtilities.trimSentence(fileName, DomainConstants.ASSESSMENT_NAME_MAX_LENGTH));
+            /* Create name for package, using original fileName if available */
+            assessmentPackage.setFileName(createPackageFileName(assessmentPackage, multipartFile));
 
             /* Try to extract the title from the QTI XML */
             final String guessedTitle = extractAssessmentTitle(assessmentPackage);
@@ -177,25 +259,119 @@ public class AssessmentPackageFileService {
 
             /* Validate (if asked) and record summary result */
             if (validate) {
-                final AssessmentObjectValidationResult<?> validationResult = loadAndValidateAssessment(assessmentPackage);
-                assessmentPackage.setValidated(true);
-                assessmentPackage.setLaunchable(validationResult.getResolvedAssessmentObject().getRootNodeLookup().wasSuccessful());
-                assessmentPackage.setErrorCount(validationResult.getErrors().size());
-                assessmentPackage.setWarningCount(validationResult.getWarnings().size());
-                assessmentPackage.setValid(validationResult.isValid());
+                validateAndRecordSummary(assessmentPackage);
             }
         }
         catch (final AssessmentPackageDataImportException e) {
-            filespaceManager.deleteSandbox(packageSandbox);
+            deleteSandbox(packageSandbox);
             throw e;
         }
         catch (final RuntimeException e) {
-            filespaceManager.deleteSandbox(packageSandbox);
+            deleteSandbox(packageSandbox);
             throw e;
         }
         return assessmentPackage;
     }
 
+    /**
+     * Deletes the sandbox of the given {@link AssessmentPackage}, provided that it is not
+     * being shared with any other {@link AssessmentPackage}.
+     * <p>
+     * This waits for any import that is sharing the same data to complete, and holds off any
+     * further imports of that data until the current transaction completes.
+     *
+     * @return false if the sandbox could not be deleted, true otherwise
+     */
+    public boolean deleteAssessmentPackageSandbox(final AssessmentPackage assessmentPackage) {
+        Assert.notNull(assessmentPackage, "assessmentPackage");
+        if (assessmentPackage.getSandboxPath()==null) {
+            throw new QtiWorksLogicException("AssessmentPackage sandbox is null");
+        }
+        final String contentHash = assessmentPackage.getContentHash();
+        if (contentHash!=null) {
+            lockContentHash(contentHash);
+        }
+        final long sharingCount = assessmentPackageDao.countOthersSharingSandbox(assessmentPackage);
+        if (sharingCount > 0) {
+            logger.debug("Sandbox of AssessmentPackage #{} is still used by {} other package(s) so not deleting it",
+                    assessmentPackage.getId(), sharingCount);
+            return true;
+        }
+        assessmentPackageZipCache.purge(getStoredZipFile(new File(assessmentPackage.getSandboxPath())));
+        return filespaceManager.deleteAssessmentPackageSandbox(assessmentPackage);
+    }
+
+    private void lockContentHash(final String contentHash) {
+        ServiceUtilities.lockUntilTransactionCompletes(contentHashLocks.get(contentHash));
+    }
+
+    private void deleteSandbox(final File sandboxDirectory) {
+        assessmentPackageZipCache.purge(getStoredZipFile(sandboxDirectory));
+        filespaceManager.deleteSandbox(sandboxDirectory);
+    }
+
+    private File getStoredZipFile(final File sandboxDirectory) {
+        return new File(sandboxDirectory, AssessmentPackageFileImporter.STORED_ZIP_FILE_NAME);
+    }
+
+    /**
+     * Finds the newest existing {@link AssessmentPackage} created from data having the given hash
+     * whose sandbox is still present within the content store, returning null if there is no
+     * such package.
+     * <p>
+     * (Sandboxes left outside the content store belong to their importer, so are not shared.)
+     */
+    private AssessmentPackage findPackageWithContentHash(final String contentHash) {
+        for (final AssessmentPackage candidate : assessmentPackageDao.getForContentHash(contentHash)) {
+            final String sandboxPath = candidate.getSandboxPath();
+            if (sandboxPath!=null) {
+                final File sandboxDirectory = new File(sandboxPath);
+                if (sandboxDirectory.isDirectory() && filespaceManager.isInContentStore(sandboxDirectory)) {
+                    return candidate;
+                }
+            }
+        }
+        return null;
+    }
+
+    private AssessmentPackage createSharingAssessmentPackage(final AssessmentPackage existingPackage) {
+        final AssessmentPackage result = new AssessmentPackage();
+        result.setAssessmentType(existingPackage.getAssessmentType());
+        result.setImportType(existingPackage.getImportType());
+        result.setSandboxPath(existingPackage.getSandboxPath());
+        result.setStoredAsZip(existingPackage.isStoredAsZip());
+        result.setContentHash(existingPackage.getContentHash());
+        result.setAssessmentHref(existingPackage.getAssessmentHref());
+        result.setQtiFileHrefs(new HashSet<String>(existingPackage.getQtiFileHrefs()));
+        result.setSafeFileHrefs(new HashSet<String>(existingPackage.getSafeFileHrefs()));
+        if (existingPackage.isValidated()) {
+            result.setValidated(true);
+            result.setLaunchable(existingPackage.isLaunchable());
+            result.setErrorCount(existingPackage.getErrorCount());
+            result.setWarningCount(existingPackage.getWarningCount());
+            result.setValid(existingPackage.isValid());
+        }
+        return result;
+    }
+
+    private String createPackageFileName(final AssessmentPackage assessmentPackage, final MultipartFile multipartFile) {
+        /* Use original fileName if available. If not supplied, use name of QTI assessment XML resource */
+        String fileName = multipartFile.getOriginalFilename();
+        if (fileName==null || fileName.isEmpty()) {
+            fileName = assessmentPackage.getAssessmentHref().replaceFirst("^.+/", "");
+        }
+        return ServiceUtilities.trimSentence(fileName, DomainConstants.ASSESSMENT_NAME_MAX_LENGTH);
+    }
+
+    private void validateAndRecordSummary(final AssessmentPackage assessmentPackage) {
+        final AssessmentObjectValidationResult<?> validationResult = loadAndValidateAssessment(assessmentPackage);
+        assessmentPackage.setValidated(true);
+        assessmentPackage.setLaunchable(validationResult.getResolvedAssessmentObject().getRootNodeLookup().wasSuccessful());
+        assessmentPackage.setErrorCount(validationResult.getErrors().size());
+        assessmentPackage.setWarningCount(validationResult.getWarnings().size());
+        assessmentPackage.setValid(validationResult.isValid());
+    }
+
     /**
      * Attempts to extract the title from an {@link AssessmentItem} or {@link AssessmentTest} for
      * bootstrapping the initial state of the resulting {@link AssessmentPackage}.
@@ -239,6 +415,12 @@ public class AssessmentPackageFileService {
             /* This is a bundled sample, which lives in the ClassPath */
             result = classPathResourceLocator;
         }
+        else if (assessmentPackage.isStoredAsZip()) {
+            /* Uploaded by user and kept as a ZIP within a sandbox in the filesystem */
+            final File sandboxDirectory = new File(assessmentPackage.getSandboxPath());
+            final CustomUriScheme packageUriScheme = QtiContentPackageExtractor.PACKAGE_URI_SCHEME;
+            result = new CachedZipSandboxResourceLocator(assessmentPackageZipCache, packageUriScheme, getStoredZipFile(sandboxDirectory));
+        }
         else {
             /* Uploaded by user, so resource lives in a sandbox within the filesystem */
             final File sandboxDirectory = new File(assessmentPackage.getSandboxPath());
@@ -330,7 +512,8 @@ public class AssessmentPackageFileService {
     E loadAndResolveAssessmentObject(final AssessmentPackage assessmentPackage) {
         final ResourceLocator inputResourceLocator = createResolvingResourceLocator(assessmentPackage);
         final URI assessmentObjectSystemId = createAssessmentObjectUri(assessmentPackage);
-        final AssessmentObjectXmlLoader assessmentObjectXmlLoader = new AssessmentObjectXmlLoader(qtiXmlReader, inputResourceLocator);
+        final AssessmentObjectXmlLoader assessmentObjectXmlLoader = new AssessmentObjectXmlLoader(qtiXmlReader, inputResourceLocator,
+                validationExecutorService, sharedRootNodeCache);
         final AssessmentObjectType assessmentObjectType = assessmentPackage.getAssessmentType();
         E result;
         if (assessmentObjectType==AssessmentObjectType.ASSESSMENT_ITEM) {
@@ -356,7 +539,8 @@ public class AssessmentPackageFileService {
         Assert.notNull(assessmentPackage, "assessmentPackage");
         final ResourceLocator inputResourceLocator = createResolvingResourceLocator(assessmentPackage);
         final URI assessmentObjectSystemId = createAssessmentObjectUri(assessmentPackage);
-        final AssessmentObjectXmlLoader assessmentObjectXmlLoader = new AssessmentObjectXmlLoader(qtiXmlReader, inputResourceLocator);
+        final AssessmentObjectXmlLoader assessmentObjectXmlLoader = new AssessmentObjectXmlLoader(qtiXmlReader, inputResourceLocator,
+                validationExecutorService, sharedRootNodeCache);
         final AssessmentObjectType assessmentObjectType = assessmentPackage.getAssessmentType();
         E result;
         if (assessmentObjectType==AssessmentObjectType.ASSESSMENT_ITEM) {
@@ -443,6 +627,31 @@ public class AssessmentPackageFileService {
                 }
             }
         }
+        else if (assessmentPackage.isStoredAsZip()) {
+            /* Uploaded file, which exists in the ZIP file kept in the sandbox */
+            final File sandboxDirectory = new File(assessmentPackage.getSandboxPath());
+            final ZipFileHandle zipFileHandle = assessmentPackageZipCache.borrow(getStoredZipFile(sandboxDirectory));
+            try {
+                final ZipSandboxResourceLocator zipSandboxResourceLocator = new ZipSandboxResourceLocator(QtiContentPackageExtractor.PACKAGE_URI_SCHEME,
+                        zipFileHandle.getZipFile());
+                final ZipEntry zipEntry = zipSandboxResourceLocator.findZipEntry(createAssessmentFileUri(assessmentPackage, fileHref));
+                if (zipEntry==null) {
+                    /* (This should not happen due to the way we record what's in each package) */
+                    throw new QtiWorksRuntimeException("Uploaded AssessmentPackage file with href " + fileHref
+                            + " in package " + assessmentPackage + " yielded null lookup");
+                }
+                final InputStream entryStream = zipFileHandle.getZipFile().getInputStream(zipEntry);
+                try {
+                    outputStreamer.stream(contentType, zipEntry.getSize(), lastModifiedTime, entryStream);
+                }
+                finally {
+                    ServiceUtilities.ensureClose(entryStream);
+                }
+            }
+            finally {
+                zipFileHandle.release();
+            }
+        }
         else {
             /* Uploaded file, which exists in the sandbox */
             final File sandboxDirectory = new File(assessmentPackage.getSandboxPath());
@@ -468,4 +677,18 @@ public class AssessmentPackageFileService {
         }
         return result;
     }
+
+    //-------------------------------------------------
+
+    private static final class ValidationThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadCounter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "qtiworks-validation-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
 }
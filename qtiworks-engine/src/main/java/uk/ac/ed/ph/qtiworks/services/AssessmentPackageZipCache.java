@@ -0,0 +1,215 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.services;
+
+import uk.ac.ed.ph.qtiworks.QtiWorksRuntimeException;
+import uk.ac.ed.ph.qtiworks.config.beans.QtiWorksDeploymentSettings;
+import uk.ac.ed.ph.qtiworks.domain.entities.AssessmentPackage;
+
+import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.ZipFile;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Keeps the ZIP files of {@link AssessmentPackage}s that are stored as ZIPs open for reading,
+ * so that their central directories don't have to be re-read for every file requested from them.
+ * <p>
+ * Entries are keyed on the path of the ZIP file (packages are never modified once imported).
+ * Callers borrow a {@link ZipFileHandle} via {@link #borrow(File)} and must release it once they
+ * have finished reading. ZIP files that are evicted or purged while borrowed are only closed once
+ * the last borrower has released them, so the size of this cache (controlled by
+ * {@link QtiWorksDeploymentSettings}) only affects how often files get reopened.
+ * <p>
+ * An instance of this class is safe to use concurrently by multiple threads.
+ *
+ * @author David McKain
+ */
+@Service
+public class AssessmentPackageZipCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(AssessmentPackageZipCache.class);
+
+    @Resource
+    private QtiWorksDeploymentSettings qtiWorksDeploymentSettings;
+
+    private Cache<String, ZipFileHandle> cache;
+
+    @PostConstruct
+    public void init() {
+        final int cacheSize = qtiWorksDeploymentSettings.getAssessmentPackageZipCacheSize();
+        logger.info("Keeping up to {} package ZIP files open for reading", cacheSize);
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(cacheSize)
+                .removalListener(new RemovalListener<String, ZipFileHandle>() {
+                    @Override
+                    public void onRemoval(final RemovalNotification<String, ZipFileHandle> notification) {
+                        notification.getValue().evict();
+                    }
+                })
+                .build();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * Borrows an open {@link ZipFile} for reading the given ZIP file. The caller must NOT close
+     * the {@link ZipFile}, and must call {@link ZipFileHandle#release()} once it has finished
+     * with it.
+     */
+    public ZipFileHandle borrow(final File file) {
+        Assert.notNull(file, "file");
+        while (true) {
+            final ZipFileHandle handle;
+            try {
+                handle = cache.get(file.getAbsolutePath(), new Callable<ZipFileHandle>() {
+                    @Override
+                    public ZipFileHandle call() throws IOException {
+                        logger.debug("Opening package ZIP file {}", file);
+                        return new ZipFileHandle(new ZipFile(file));
+                    }
+                });
+            }
+            catch (final ExecutionException e) {
+                throw new QtiWorksRuntimeException("Could not open package ZIP file " + file, e.getCause());
+            }
+            catch (final UncheckedExecutionException e) {
+                throw new QtiWorksRuntimeException("Could not open package ZIP file " + file, e.getCause());
+            }
+            if (handle.tryBorrow()) {
+                return handle;
+            }
+            /* (Handle was evicted after we got it from the cache, so try again) */
+        }
+    }
+
+    /**
+     * Removes the given ZIP file from this cache, closing it once it is no longer borrowed.
+     * This should be called before the file is deleted.
+     */
+    public void purge(final File file) {
+        Assert.notNull(file, "file");
+        cache.invalidate(file.getAbsolutePath());
+    }
+
+    //-------------------------------------------------
+
+    /**
+     * Wraps a {@link ZipFile} held in this cache, counting how many times it is currently
+     * borrowed so that it is only closed once it has been evicted and is no longer in use.
+     */
+    public static final class ZipFileHandle {
+
+        private final ZipFile zipFile;
+
+        /** Number of outstanding borrows. (Guarded by this) */
+        private int borrowCount;
+
+        /** Whether this has been removed from the cache. (Guarded by this) */
+        private boolean evicted;
+
+        ZipFileHandle(final ZipFile zipFile) {
+            this.zipFile = zipFile;
+        }
+
+        public ZipFile getZipFile() {
+            return zipFile;
+        }
+
+        synchronized boolean tryBorrow() {
+            if (evicted) {
+                return false;
+            }
+            borrowCount++;
+            return true;
+        }
+
+        /**
+         * Releases this handle, which must have been obtained via {@link AssessmentPackageZipCache#borrow(File)}.
+         */
+        public void release() {
+            synchronized (this) {
+                if (borrowCount==0) {
+                    throw new IllegalStateException("ZipFileHandle released more times than it was borrowed");
+                }
+                borrowCount--;
+                if (!evicted || borrowCount > 0) {
+                    return;
+                }
+            }
+            closeZipFile();
+        }
+
+        void evict() {
+            synchronized (this) {
+                evicted = true;
+                if (borrowCount > 0) {
+                    logger.debug("Package ZIP file {} is still borrowed so will be closed once released", zipFile.getName());
+                    return;
+                }
+            }
+            closeZipFile();
+        }
+
+        private void closeZipFile() {
+            logger.debug("Closing package ZIP file {}", zipFile.getName());
+            try {
+                zipFile.close();
+            }
+            catch (final IOException e) {
+                logger.warn("Failed to close package ZIP file {}", zipFile.getName());
+            }
+        }
+    }
+}
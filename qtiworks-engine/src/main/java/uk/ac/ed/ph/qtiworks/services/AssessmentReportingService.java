@@ -33,11 +33,14 @@
  */
 package uk.ac.ed.ph.qtiworks.services;
 
+import uk.ac.ed.ph.qtiworks.QtiWorksRuntimeException;
+import uk.ac.ed.ph.qtiworks.config.beans.QtiWorksDeploymentSettings;
 import uk.ac.ed.ph.qtiworks.domain.DomainEntityNotFoundException;
 import uk.ac.ed.ph.qtiworks.domain.entities.CandidateEvent;
 import uk.ac.ed.ph.qtiworks.domain.entities.CandidateSession;
 import uk.ac.ed.ph.qtiworks.domain.entities.CandidateSessionOutcome;
 import uk.ac.ed.ph.qtiworks.domain.entities.Delivery;
+import uk.ac.ed.ph.qtiworks.domain.entities.LisOutcomeReportingStatus;
 import uk.ac.ed.ph.qtiworks.domain.entities.User;
 import uk.ac.ed.ph.qtiworks.services.dao.CandidateEventDao;
 import uk.ac.ed.ph.qtiworks.services.dao.CandidateSessionDao;
@@ -48,6 +51,8 @@ import uk.ac.ed.ph.qtiworks.services.domain.CandidateSessionSummaryMetadata;
 import uk.ac.ed.ph.qtiworks.services.domain.CandidateSessionSummaryReport;
 import uk.ac.ed.ph.qtiworks.services.domain.DeliveryCandidateSummaryReport;
 import uk.ac.ed.ph.qtiworks.services.domain.PrivilegeException;
+import uk.ac.ed.ph.qtiworks.utils.CompressedZipWriter;
+import uk.ac.ed.ph.qtiworks.utils.CompressedZipWriter.CompressedEntry;
 
 import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
 import uk.ac.ed.ph.jqtiplus.internal.util.StringUtilities;
@@ -57,18 +62,26 @@ import uk.ac.ed.ph.jqtiplus.value.Cardinality;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.TreeMap;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 
 import org.apache.commons.io.Charsets;
@@ -90,6 +103,12 @@ import com.csvreader.CsvWriter;
 @Transactional(readOnly=false, propagation=Propagation.REQUIRED)
 public class AssessmentReportingService {
 
+    /** Number of candidate sessions to fetch at a time when building delivery summary reports */
+    private static final int SUMMARY_REPORT_PAGE_SIZE = 200;
+
+    @Resource
+    private QtiWorksDeploymentSettings qtiWorksDeploymentSettings;
+
     @Resource
     private AuditLogger auditLogger;
 
@@ -108,6 +127,21 @@ public class AssessmentReportingService {
     @Resource
     private CandidateSessionOutcomeDao candidateSessionOutcomeDao;
 
+    /** Pool used to read and compress assessmentResult files when building ZIPs */
+    private ExecutorService reportExecutorService;
+    private int reportExecutorThreadCount;
+
+    @PostConstruct
+    public void init() {
+        reportExecutorThreadCount = Math.max(1, qtiWorksDeploymentSettings.getReportingThreadCount());
+        reportExecutorService = Executors.newFixedThreadPool(reportExecutorThreadCount, new ReportThreadFactory());
+    }
+
+    @PreDestroy
+    public void destroy() {
+        reportExecutorService.shutdownNow();
+    }
+
     //-------------------------------------------------
 
     public CandidateSession lookupCandidateSession(final long xid)
@@ -251,90 +285,116 @@ public class AssessmentReportingService {
     public DeliveryCandidateSummaryReport buildDeliveryCandidateSummaryReport(final Delivery delivery) {
         Assert.notNull(delivery, "delivery");
 
-        /* Look up all outcomes for all sessions associated with this delivery */
-        final List<CandidateSessionOutcome> candidateSessionOutcomes = candidateSessionOutcomeDao.getForDelivery(delivery);
+        final CandidateSessionSummaryMetadata summaryMetadata = buildDeliveryCandidateSummaryMetadata(delivery);
+        final List<CandidateSessionSummaryData> rows = new ArrayList<CandidateSessionSummaryData>();
+        long afterXid = 0L;
+        List<CandidateSessionSummaryData> page;
+        while (!(page = getNextCandidateSessionSummaryDataPage(delivery, summaryMetadata, afterXid)).isEmpty()) {
+            rows.addAll(page);
+            afterXid = page.get(page.size()-1).getSessionId();
+        }
 
-        /* Group results by each individual CandidateSession, also building up lists (ordered sets) of unique outcome identifiers */
-        final TreeMap<Long, CandidateSession> candidateSessionByIdMap = new TreeMap<Long, CandidateSession>();
-        final Map<Long, Map<String, String>> numericOutcomesBySessionIdMap = new HashMap<Long, Map<String,String>>();
-        final Map<Long, Map<String, String>> otherOutcomesBySessionIdMap = new HashMap<Long, Map<String,String>>();
+        auditLogger.recordEvent("Generated candidate summary report for Delivery #" + delivery.getId());
+        return new DeliveryCandidateSummaryReport(summaryMetadata, rows);
+    }
+
+    /**
+     * Builds the {@link CandidateSessionSummaryMetadata} for the given {@link Delivery}. This
+     * only needs to look at the distinct outcome variables recorded, rather than every outcome.
+     */
+    private CandidateSessionSummaryMetadata buildDeliveryCandidateSummaryMetadata(final Delivery delivery) {
         final LinkedHashSet<String> numericOutcomeIdentifiers = new LinkedHashSet<String>(); /* (Ordered avoiding duplicates) */
         final LinkedHashSet<String> otherOutcomeIdentifiers = new LinkedHashSet<String>(); /* (Ordered avoiding duplicates) */
-        for (final CandidateSessionOutcome candidateSessionOutcome : candidateSessionOutcomes) {
-            /* Do grouping first */
-            final Map<String, String> numericOutcomesForSession, otherOutcomesForSession;
-            final CandidateSession candidateSession = candidateSessionOutcome.getCandidateSession();
-            final Long xid = candidateSession.getId();
-            if (!candidateSessionByIdMap.containsKey(xid)) {
-                /* First outcome for this session, so set up appropriate map values */
-                candidateSessionByIdMap.put(xid, candidateSession);
-                numericOutcomesForSession = new HashMap<String, String>();
-                otherOutcomesForSession = new HashMap<String, String>();
-                numericOutcomesBySessionIdMap.put(xid, numericOutcomesForSession);
-                otherOutcomesBySessionIdMap.put(xid, otherOutcomesForSession);
+        for (final Object[] outcomeType : candidateSessionOutcomeDao.getOutcomeTypesForDelivery(delivery)) {
+            final String outcomeIdentifier = (String) outcomeType[0];
+            if (isNumericOutcome((BaseType) outcomeType[1], (Cardinality) outcomeType[2])) {
+                numericOutcomeIdentifiers.add(outcomeIdentifier);
             }
             else {
-                numericOutcomesForSession = numericOutcomesBySessionIdMap.get(xid);
-                otherOutcomesForSession = otherOutcomesBySessionIdMap.get(xid);
+                otherOutcomeIdentifiers.add(outcomeIdentifier);
             }
+        }
+        final String ltiResultOutcomeIdentifier = delivery.getAssessment().getLtiResultOutcomeIdentifier();
+        return new CandidateSessionSummaryMetadata(ltiResultOutcomeIdentifier, numericOutcomeIdentifiers, otherOutcomeIdentifiers);
+    }
 
-            /* Record outcomes */
-            final String outcomeIdentifier = candidateSessionOutcome.getOutcomeIdentifier();
-            final String outcomeValue = candidateSessionOutcome.getStringValue();
-            final BaseType baseType = candidateSessionOutcome.getBaseType();
-            if (baseType!=null && baseType.isNumeric() && candidateSessionOutcome.getCardinality()==Cardinality.SINGLE) {
-                numericOutcomeIdentifiers.add(outcomeIdentifier);
-                numericOutcomesForSession.put(outcomeIdentifier, outcomeValue);
+    /**
+     * Builds the {@link CandidateSessionSummaryData} for the next page of {@link CandidateSession}s
+     * in the given {@link Delivery} having ID greater than afterXid. This returns an empty List
+     * once all sessions have been done.
+     * <p>
+     * Only raw column data is fetched here (not entities), so memory use stays bounded by the
+     * page size regardless of the size of the {@link Delivery}.
+     */
+    private List<CandidateSessionSummaryData> getNextCandidateSessionSummaryDataPage(final Delivery delivery,
+            final CandidateSessionSummaryMetadata summaryMetadata, final long afterXid) {
+        final List<Object[]> sessionDataList = candidateSessionDao.getSummaryDataForDelivery(delivery, afterXid, SUMMARY_REPORT_PAGE_SIZE);
+        if (sessionDataList.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        /* Group outcomes for this page by each individual CandidateSession */
+        final Map<Long, Map<String, String>> numericOutcomesBySessionIdMap = new HashMap<Long, Map<String,String>>();
+        final Map<Long, Map<String, String>> otherOutcomesBySessionIdMap = new HashMap<Long, Map<String,String>>();
+        final List<Long> xids = new ArrayList<Long>(sessionDataList.size());
+        for (final Object[] sessionData : sessionDataList) {
+            final Long xid = (Long) sessionData[0];
+            xids.add(xid);
+            numericOutcomesBySessionIdMap.put(xid, new HashMap<String, String>());
+            otherOutcomesBySessionIdMap.put(xid, new HashMap<String, String>());
+        }
+        for (final Object[] outcomeData : candidateSessionOutcomeDao.getValuesForSessionIds(xids)) {
+            final Long xid = (Long) outcomeData[0];
+            final String outcomeIdentifier = (String) outcomeData[1];
+            final String outcomeValue = (String) outcomeData[4];
+            if (isNumericOutcome((BaseType) outcomeData[2], (Cardinality) outcomeData[3])) {
+                numericOutcomesBySessionIdMap.get(xid).put(outcomeIdentifier, outcomeValue);
             }
             else {
-                otherOutcomeIdentifiers.add(outcomeIdentifier);
-                otherOutcomesForSession.put(outcomeIdentifier, outcomeValue);
+                otherOutcomesBySessionIdMap.get(xid).put(outcomeIdentifier, outcomeValue);
             }
         }
 
-        /* Record metadata */
-        final String ltiResultOutcomeIdentifier = delivery.getAssessment().getLtiResultOutcomeIdentifier();
-        final CandidateSessionSummaryMetadata summaryMetadata = new CandidateSessionSummaryMetadata(ltiResultOutcomeIdentifier, numericOutcomeIdentifiers, otherOutcomeIdentifiers);
-
         /* Now build report for each session */
-        final List<CandidateSessionSummaryData> rows = new ArrayList<CandidateSessionSummaryData>();
-        for (final Entry<Long, CandidateSession> entry : candidateSessionByIdMap.entrySet()) {
-            final long xid = entry.getKey();
-            final CandidateSession candidateSession = entry.getValue();
+        final String ltiResultOutcomeIdentifier = summaryMetadata.getLisResultOutcomeIdentifier();
+        final List<CandidateSessionSummaryData> result = new ArrayList<CandidateSessionSummaryData>(sessionDataList.size());
+        for (final Object[] sessionData : sessionDataList) {
+            final Long xid = (Long) sessionData[0];
             final List<String> numericOutcomeValues = new ArrayList<String>();
             final List<String> otherOutcomeValues = new ArrayList<String>();
 
             final Map<String, String> numericOutcomesForSession = numericOutcomesBySessionIdMap.get(xid);
-            for (final String outcomeIdentifier : numericOutcomeIdentifiers) {
+            for (final String outcomeIdentifier : summaryMetadata.getNumericOutcomeIdentifiers()) {
                 numericOutcomeValues.add(safelyExtractOutcomeValue(numericOutcomesForSession, outcomeIdentifier));
             }
             final Map<String, String> otherOutcomesForSession = otherOutcomesBySessionIdMap.get(xid);
-            for (final String outcomeIdentifier : otherOutcomeIdentifiers) {
+            for (final String outcomeIdentifier : summaryMetadata.getOtherOutcomeIdentifiers()) {
                 otherOutcomeValues.add(safelyExtractOutcomeValue(otherOutcomesForSession, outcomeIdentifier));
             }
             String ltiResultOutcomeValue = null;
-            if (ltiResultOutcomeIdentifier!=null && numericOutcomesForSession!=null) {
+            if (ltiResultOutcomeIdentifier!=null) {
                 ltiResultOutcomeValue = safelyExtractOutcomeValue(numericOutcomesForSession, ltiResultOutcomeIdentifier);
             }
-            final User candidate = candidateSession.getCandidate();
-            final CandidateSessionSummaryData row = new CandidateSessionSummaryData(candidateSession.getId().longValue(),
-                    candidateSession.getCreationTime(),
-                    candidate.getFirstName(),
-                    candidate.getLastName(),
-                    candidate.getEmailAddress(),
-                    candidateSession.isFinished(),
-                    candidateSession.isTerminated(),
-                    candidateSession.isExploded(),
-                    candidateSession.getLisOutcomeReportingStatus(),
+            final CandidateSessionSummaryData row = new CandidateSessionSummaryData(xid.longValue(),
+                    (Date) sessionData[1],
+                    (String) sessionData[2],
+                    (String) sessionData[3],
+                    (String) sessionData[4],
+                    sessionData[5]!=null,
+                    sessionData[6]!=null,
+                    ((Boolean) sessionData[7]).booleanValue(),
+                    (LisOutcomeReportingStatus) sessionData[8],
                     ltiResultOutcomeValue,
-                    candidateSession.getLisScore(),
+                    (Double) sessionData[9],
                     numericOutcomeValues,
                     otherOutcomeValues);
-            rows.add(row);
+            result.add(row);
         }
+        return result;
+    }
 
-        auditLogger.recordEvent("Generated candidate summary report for Delivery #" + delivery.getId());
-        return new DeliveryCandidateSummaryReport(summaryMetadata, rows);
+    private static boolean isNumericOutcome(final BaseType baseType, final Cardinality cardinality) {
+        return baseType!=null && baseType.isNumeric() && cardinality==Cardinality.SINGLE;
     }
 
     /**
@@ -352,20 +412,24 @@ public class AssessmentReportingService {
      * Generates a UTF-8 CSV summary of all {@link CandidateSession}s for the given {@link Delivery},
      * streaming the result to the given {@link OutputStream}
      * <p>
+     * Sessions are read and written a page at a time, so memory use does not depend on the
+     * size of the {@link Delivery}.
+     * <p>
      * The stream will be flushed at the end of this; the caller is responsible for closing it.
      *
      * @param did ID (did) of the required {@link Delivery}
      * @param outputStream {@link OutputStream} to send the results to, which must not be null
      */
+    @Transactional(readOnly=true, propagation=Propagation.REQUIRED)
     public void streamDeliveryCandidateSummaryReportCsv(final long did, final OutputStream outputStream)
             throws PrivilegeException, DomainEntityNotFoundException, IOException {
         Assert.notNull(outputStream, "outputStream");
-        final DeliveryCandidateSummaryReport report = buildDeliveryCandidateSummaryReport(did);
+        final Delivery delivery = assessmentManagementService.lookupDelivery(did);
+        final CandidateSessionSummaryMetadata metadata = buildDeliveryCandidateSummaryMetadata(delivery);
         final CsvWriter csvWriter = new CsvWriter(outputStream, ',', Charsets.UTF_8);
         try {
             /* Write header */
             final StringBuilder headerBuilder = new StringBuilder("Session ID,Email Address,First Name,Last Name,Launch Time,Session Status");
-            final CandidateSessionSummaryMetadata metadata = report.getCandidateSessionSummaryMetadata();
             final String lisResultOutcomeIdentifier = metadata.getLisResultOutcomeIdentifier();
             if (lisResultOutcomeIdentifier!=null) {
                 /* LTI results set up, so add in details about that */
@@ -383,27 +447,34 @@ public class AssessmentReportingService {
             }
             csvWriter.writeComment(headerBuilder.toString());
 
-            /* Write each row */
-            for (final CandidateSessionSummaryData row : report.getRows()) {
-                csvWriter.write(Long.toString(row.getSessionId()));
-                csvWriter.write(StringUtilities.emptyIfNull(row.getEmailAddress()));
-                csvWriter.write(row.getFirstName());
-                csvWriter.write(row.getLastName());
-                csvWriter.write(row.getLaunchTime().toString());
-                csvWriter.write(row.getSessionStatusMessage());
-                if (lisResultOutcomeIdentifier!=null) {
-                    csvWriter.write(StringUtilities.emptyIfNull(row.getLisResultOutcomeValue()));
-                    csvWriter.write(StringUtilities.safeToStringEmptyIfNull(row.getLisScore()));
-                    csvWriter.write(StringUtilities.safeToStringEmptyIfNull(row.getLisOutcomeReportingStatus()));
+            /* Write each row, a page at a time */
+            long afterXid = 0L;
+            List<CandidateSessionSummaryData> page;
+            while (!(page = getNextCandidateSessionSummaryDataPage(delivery, metadata, afterXid)).isEmpty()) {
+                for (final CandidateSessionSummaryData row : page) {
+                    csvWriter.write(Long.toString(row.getSessionId()));
+                    csvWriter.write(StringUtilities.emptyIfNull(row.getEmailAddress()));
+                    csvWriter.write(row.getFirstName());
+                    csvWriter.write(row.getLastName());
+                    csvWriter.write(row.getLaunchTime().toString());
+                    csvWriter.write(row.getSessionStatusMessage());
+                    if (lisResultOutcomeIdentifier!=null) {
+                        csvWriter.write(StringUtilities.emptyIfNull(row.getLisResultOutcomeValue()));
+                        csvWriter.write(StringUtilities.safeToStringEmptyIfNull(row.getLisScore()));
+                        csvWriter.write(StringUtilities.safeToStringEmptyIfNull(row.getLisOutcomeReportingStatus()));
+                    }
+                    writeOutcomes(csvWriter, metadata.getNumericOutcomeIdentifiers(), row.getNumericOutcomeValues());
+                    writeOutcomes(csvWriter, metadata.getOtherOutcomeIdentifiers(), row.getOtherOutcomeValues());
+                    csvWriter.endRecord();
                 }
-                writeOutcomes(csvWriter, metadata.getNumericOutcomeIdentifiers(), row.getNumericOutcomeValues());
-                writeOutcomes(csvWriter, metadata.getOtherOutcomeIdentifiers(), row.getOtherOutcomeValues());
-                csvWriter.endRecord();
+                csvWriter.flush();
+                afterXid = page.get(page.size()-1).getSessionId();
             }
         }
         finally {
             csvWriter.flush();
         }
+        auditLogger.recordEvent("Streamed candidate summary CSV for Delivery #" + did);
     }
 
     private void writeOutcomes(final CsvWriter csvWriter, final List<String> outcomeNames, final List<String> outcomeValues)
@@ -429,6 +500,9 @@ public class AssessmentReportingService {
      * Generates a ZIP file containing the <code>assessmentReport</code>s for all closed or terminated
      * candidate sessions for the given {@link Delivery}, streaming the result to the given stream.
      * <p>
+     * The result files are read and compressed in parallel, with a bounded number in progress
+     * at any time, and written to the stream in session order.
+     * <p>
      * The stream will be flushed at the end of this; the caller is responsible for closing it.
      *
      * @param did ID (did) of the required {@link Delivery}
@@ -438,34 +512,115 @@ public class AssessmentReportingService {
             throws DomainEntityNotFoundException, PrivilegeException, IOException {
         Assert.notNull(outputStream, "outputStream");
 
-        /* Look up sessions */
+        /* Look up sessions and work out which files to include */
         final Delivery delivery = assessmentManagementService.lookupDelivery(did);
         final List<CandidateSession> candidateSessions = candidateSessionDao.getForDelivery(delivery);
-
-        /* Create ZIP builder */
-        final ZipOutputStream zipOutputStream = new ZipOutputStream(outputStream);
-        boolean hasIncludedSomething = false;
+        final List<ReportFile> reportFiles = new ArrayList<ReportFile>();
         for (final CandidateSession candidateSession : candidateSessions) {
             if (!candidateSession.isExploded() && (candidateSession.isFinished() || candidateSession.isTerminated())) {
-                addAssessmentReport(zipOutputStream, candidateSession);
-                hasIncludedSomething = true;
+                reportFiles.add(new ReportFile(makeReportFileName(candidateSession),
+                        candidateDataService.ensureAssessmentResultFile(candidateSession)));
             }
         }
-        safelyFinishZipStream(zipOutputStream, hasIncludedSomething);
+
+        /* Now build ZIP */
+        final CompressedZipWriter zipWriter = new CompressedZipWriter(outputStream);
+        if (!reportFiles.isEmpty()) {
+            addAssessmentReports(zipWriter, reportFiles);
+        }
+        else {
+            zipWriter.writeEntry(CompressedZipWriter.compressEntry("NoResults.txt",
+                    "There are no results for this delivery yet".getBytes("UTF-8"),
+                    System.currentTimeMillis()));
+        }
+        zipWriter.finish();
         auditLogger.recordEvent("Generated assessmentResult ZIP file for delviery #" + did);
     }
 
-    private void addAssessmentReport(final ZipOutputStream zipOutputStream, final CandidateSession candidateSession)
+    private void addAssessmentReports(final CompressedZipWriter zipWriter, final List<ReportFile> reportFiles)
             throws IOException {
-        final File assessmentResultFile = candidateDataService.ensureAssessmentResultFile(candidateSession);
+        final int maxPending = 2 * reportExecutorThreadCount;
+        final Iterator<ReportFile> reportFileIterator = reportFiles.iterator();
+        final LinkedList<Future<CompressedEntry>> pendingEntries = new LinkedList<Future<CompressedEntry>>();
+        try {
+            while (pendingEntries.size() < maxPending && reportFileIterator.hasNext()) {
+                pendingEntries.add(reportExecutorService.submit(new ReportCompressionTask(reportFileIterator.next())));
+            }
+            while (!pendingEntries.isEmpty()) {
+                final CompressedEntry entry = awaitCompressedEntry(pendingEntries.removeFirst());
+                if (reportFileIterator.hasNext()) {
+                    pendingEntries.add(reportExecutorService.submit(new ReportCompressionTask(reportFileIterator.next())));
+                }
+                zipWriter.writeEntry(entry);
+            }
+        }
+        finally {
+            for (final Future<CompressedEntry> pendingEntry : pendingEntries) {
+                pendingEntry.cancel(true);
+            }
+        }
+    }
 
-        /* Work out what to call the ZIP entry */
-        final String zipEntryName = makeReportFileName(candidateSession);
+    private CompressedEntry awaitCompressedEntry(final Future<CompressedEntry> future)
+            throws IOException {
+        try {
+            return future.get();
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while building assessmentResult ZIP");
+        }
+        catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw QtiWorksRuntimeException.unexpectedException(cause);
+        }
+    }
+
+    /**
+     * Creates daemon threads for building reports.
+     */
+    private static final class ReportThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadCounter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "qtiworks-reporting-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /** Reads and compresses a single assessmentResult file */
+    private static final class ReportCompressionTask implements Callable<CompressedEntry> {
+
+        private final ReportFile reportFile;
+
+        public ReportCompressionTask(final ReportFile reportFile) {
+            this.reportFile = reportFile;
+        }
 
-        /* Add result to ZIP */
-        zipOutputStream.putNextEntry(new ZipEntry(zipEntryName));
-        FileUtils.copyFile(assessmentResultFile, zipOutputStream);
-        zipOutputStream.closeEntry();
+        @Override
+        public CompressedEntry call() throws IOException {
+            final File file = reportFile.file;
+            return CompressedZipWriter.compressEntry(reportFile.zipEntryName,
+                    FileUtils.readFileToByteArray(file), file.lastModified());
+        }
+    }
+
+    /** Trivial holder for an assessmentResult file and the name to give it in the ZIP */
+    private static final class ReportFile {
+
+        final String zipEntryName;
+        final File file;
+
+        public ReportFile(final String zipEntryName, final File file) {
+            this.zipEntryName = zipEntryName;
+            this.file = file;
+        }
     }
 
     /**
@@ -489,17 +644,4 @@ public class AssessmentReportingService {
         return entryNameBuilder.toString();
     }
 
-    private void safelyFinishZipStream(final ZipOutputStream zipOutputStream, final boolean hasIncludedSomething)
-            throws IOException {
-        if (!hasIncludedSomething) {
-            zipOutputStream.putNextEntry(new ZipEntry("NoResults.txt"));
-            final OutputStreamWriter commentWriter = new OutputStreamWriter(zipOutputStream, "UTF-8");
-            commentWriter.write("There are no results for this delivery yet");
-            commentWriter.flush();
-            zipOutputStream.closeEntry();
-        }
-        zipOutputStream.finish();
-        zipOutputStream.flush();
-    }
-
 }
@@ -0,0 +1,138 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.services;
+
+import uk.ac.ed.ph.qtiworks.services.AssessmentPackageZipCache.ZipFileHandle;
+
+import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
+import uk.ac.ed.ph.jqtiplus.xmlutils.CustomUriScheme;
+import uk.ac.ed.ph.jqtiplus.xmlutils.locators.ResourceLocator;
+import uk.ac.ed.ph.jqtiplus.xmlutils.locators.ZipSandboxResourceLocator;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+
+/**
+ * Variant of {@link ZipSandboxResourceLocator} that reads from a ZIP file kept open by the
+ * {@link AssessmentPackageZipCache}.
+ * <p>
+ * The ZIP file is borrowed from the cache each time a resource is found, and released when
+ * the resulting {@link InputStream} is closed, so instances of this can be kept for as long as
+ * required. Callers MUST close the streams they obtain from this.
+ *
+ * @author David McKain
+ */
+public class CachedZipSandboxResourceLocator implements ResourceLocator {
+
+    private final AssessmentPackageZipCache assessmentPackageZipCache;
+    private final CustomUriScheme uriScheme;
+    private final File zipFile;
+
+    public CachedZipSandboxResourceLocator(final AssessmentPackageZipCache assessmentPackageZipCache,
+            final CustomUriScheme uriScheme, final File zipFile) {
+        Assert.notNull(assessmentPackageZipCache, "assessmentPackageZipCache");
+        Assert.notNull(uriScheme, "uriScheme");
+        Assert.notNull(zipFile, "zipFile");
+        this.assessmentPackageZipCache = assessmentPackageZipCache;
+        this.uriScheme = uriScheme;
+        this.zipFile = zipFile;
+    }
+
+    @Override
+    public InputStream findResource(final URI systemIdUri) {
+        final ZipFileHandle zipFileHandle = assessmentPackageZipCache.borrow(zipFile);
+        InputStream result = null;
+        try {
+            final ZipSandboxResourceLocator zipSandboxResourceLocator = new ZipSandboxResourceLocator(uriScheme, zipFileHandle.getZipFile());
+            final InputStream entryStream = zipSandboxResourceLocator.findResource(systemIdUri);
+            if (entryStream!=null) {
+                result = new ReleasingInputStream(entryStream, zipFileHandle);
+            }
+            return result;
+        }
+        finally {
+            if (result==null) {
+                zipFileHandle.release();
+            }
+        }
+    }
+
+    public CustomUriScheme getUriScheme() {
+        return uriScheme;
+    }
+
+    public File getZipFile() {
+        return zipFile;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(this))
+                + "(uriScheme=" + uriScheme
+                + ",zipFile=" + zipFile
+                + ")";
+    }
+
+    //-------------------------------------------------
+
+    /** Releases the borrowed ZIP file when the stream of one of its entries is closed */
+    private static final class ReleasingInputStream extends FilterInputStream {
+
+        private final ZipFileHandle zipFileHandle;
+        private boolean released;
+
+        ReleasingInputStream(final InputStream entryStream, final ZipFileHandle zipFileHandle) {
+            super(entryStream);
+            this.zipFileHandle = zipFileHandle;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            }
+            finally {
+                synchronized (this) {
+                    if (!released) {
+                        released = true;
+                        zipFileHandle.release();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -53,6 +53,7 @@ import uk.ac.ed.ph.qtiworks.mathassess.MathAssessConstants;
 import uk.ac.ed.ph.qtiworks.services.dao.CandidateEventDao;
 import uk.ac.ed.ph.qtiworks.services.dao.CandidateEventNotificationDao;
 import uk.ac.ed.ph.qtiworks.services.dao.CandidateSessionOutcomeDao;
+import uk.ac.ed.ph.qtiworks.services.domain.OutputStreamer;
 import uk.ac.ed.ph.qtiworks.utils.XmlUtilities;
 
 import uk.ac.ed.ph.jqtiplus.JqtiExtensionManager;
@@ -60,6 +61,7 @@ import uk.ac.ed.ph.jqtiplus.JqtiPlus;
 import uk.ac.ed.ph.jqtiplus.QtiConstants;
 import uk.ac.ed.ph.jqtiplus.attribute.Attribute;
 import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
+import uk.ac.ed.ph.jqtiplus.internal.util.ObjectUtilities;
 import uk.ac.ed.ph.jqtiplus.node.AssessmentObjectType;
 import uk.ac.ed.ph.jqtiplus.node.QtiNode;
 import uk.ac.ed.ph.jqtiplus.node.result.AbstractResult;
@@ -80,8 +82,12 @@ import uk.ac.ed.ph.jqtiplus.state.TestPlan;
 import uk.ac.ed.ph.jqtiplus.state.TestPlanNodeKey;
 import uk.ac.ed.ph.jqtiplus.state.TestProcessingMap;
 import uk.ac.ed.ph.jqtiplus.state.TestSessionState;
+import uk.ac.ed.ph.jqtiplus.state.marshalling.ItemSessionStateBinaryMarshaller;
 import uk.ac.ed.ph.jqtiplus.state.marshalling.ItemSessionStateXmlMarshaller;
+import uk.ac.ed.ph.jqtiplus.state.marshalling.TestSessionStateBinaryMarshaller;
 import uk.ac.ed.ph.jqtiplus.state.marshalling.TestSessionStateXmlMarshaller;
+import uk.ac.ed.ph.jqtiplus.value.BaseType;
+import uk.ac.ed.ph.jqtiplus.value.Cardinality;
 import uk.ac.ed.ph.jqtiplus.value.RecordValue;
 import uk.ac.ed.ph.jqtiplus.value.SingleValue;
 import uk.ac.ed.ph.jqtiplus.value.Value;
@@ -89,12 +95,22 @@ import uk.ac.ed.ph.jqtiplus.xmlutils.XmlSourceLocationInformation;
 import uk.ac.ed.ph.jqtiplus.xmlutils.xslt.XsltSerializationOptions;
 import uk.ac.ed.ph.jqtiplus.xmlutils.xslt.XsltStylesheetManager;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.annotation.Resource;
 import javax.xml.parsers.DocumentBuilder;
@@ -104,9 +120,14 @@ import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
 import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.w3c.dom.Document;
 
 /**
@@ -119,6 +140,11 @@ import org.w3c.dom.Document;
 @Transactional(propagation=Propagation.SUPPORTS)
 public class CandidateDataService {
 
+    private static final Logger logger = LoggerFactory.getLogger(CandidateDataService.class);
+
+    private static final String XML_STATE_FILE_EXTENSION = ".xml";
+    private static final String BINARY_STATE_FILE_EXTENSION = ".bin";
+
     @Resource
     private QtiWorksDeploymentSettings qtiWorksDeploymentSettings;
 
@@ -134,6 +160,15 @@ public class CandidateDataService {
     @Resource
     private AssessmentObjectManagementService assessmentObjectManagementService;
 
+    @Resource
+    private CandidateSessionStateCache candidateSessionStateCache;
+
+    @Resource
+    private CandidateSessionStateJournal candidateSessionStateJournal;
+
+    @Resource
+    private DeferredAssessmentResultTracker deferredAssessmentResultTracker;
+
     @Resource
     private CandidateSessionOutcomeDao candidateSessionOutcomeDao;
 
@@ -153,6 +188,25 @@ public class CandidateDataService {
     // Notification recording
 
     public CandidateEventNotification recordNotification(final CandidateEvent candidateEvent, final Notification notification) {
+        final CandidateEventNotification record = createNotification(candidateEvent, notification);
+        candidateEventNotificationDao.persist(record);
+        return record;
+    }
+
+    /**
+     * Records all of the given {@link Notification}s against the given {@link CandidateEvent}.
+     * The resulting entities are persisted together so that they can be inserted in a single batch.
+     */
+    public List<CandidateEventNotification> recordNotifications(final CandidateEvent candidateEvent, final List<Notification> notifications) {
+        final List<CandidateEventNotification> records = new ArrayList<CandidateEventNotification>(notifications.size());
+        for (final Notification notification : notifications) {
+            records.add(createNotification(candidateEvent, notification));
+        }
+        candidateEventNotificationDao.persistAll(records);
+        return records;
+    }
+
+    private CandidateEventNotification createNotification(final CandidateEvent candidateEvent, final Notification notification) {
         final CandidateEventNotification record = new CandidateEventNotification();
         record.setCandidateEvent(candidateEvent);
 
@@ -177,7 +231,6 @@ public class CandidateDataService {
         }
 
         candidateEvent.getNotifications().add(record);
-        candidateEventNotificationDao.persist(record);
         return record;
     }
 
@@ -204,6 +257,45 @@ public class CandidateDataService {
         }
     }
 
+    /**
+     * Computes and records the assessmentResult for the most recent state of the given
+     * {@link CandidateSession}. This does nothing if the session has not yet been entered.
+     */
+    public void recordAssessmentResult(final CandidateSession candidateSession) {
+        lockAndClearDirty(candidateSession);
+        final CandidateEvent mostRecentEvent = getMostRecentEvent(candidateSession);
+        if (mostRecentEvent==null) {
+            return;
+        }
+        final AssessmentResult assessmentResult = computeAssessmentResult(mostRecentEvent);
+        final AssessmentObjectType assessmentType = candidateSession.getDelivery().getAssessment().getAssessmentType();
+        switch (assessmentType) {
+            case ASSESSMENT_ITEM:
+                recordItemAssessmentResult(candidateSession, assessmentResult);
+                break;
+
+            case ASSESSMENT_TEST:
+                recordTestAssessmentResult(candidateSession, assessmentResult);
+                break;
+
+            default:
+                throw new QtiWorksLogicException("Unexpected switch case " + assessmentType);
+        }
+    }
+
+    /**
+     * Called before an assessmentResult is written synchronously. When results are being
+     * deferred, this holds the session's lock until the current transaction completes, so that
+     * the deferred writer can't then overwrite this result with one computed from state that
+     * predates it.
+     */
+    private void lockAndClearDirty(final CandidateSession candidateSession) {
+        if (deferredAssessmentResultTracker.isEnabled()) {
+            deferredAssessmentResultTracker.lockSessionUntilTransactionCompletes(candidateSession.getId().longValue());
+        }
+        deferredAssessmentResultTracker.clearDirty(candidateSession.getId().longValue());
+    }
+
     public void streamAssessmentResult(final CandidateSession candidateSession, final OutputStream outputStream) {
         /* Get most recent event */
         final CandidateEvent mostRecentEvent = getMostRecentEvent(candidateSession);
@@ -224,11 +316,31 @@ public class CandidateDataService {
     // Item methods
 
     public void storeItemSessionState(final CandidateEvent candidateEvent, final ItemSessionState itemSessionState) {
-        final Document stateDocument = ItemSessionStateXmlMarshaller.marshal(itemSessionState);
-        storeStateDocument(candidateEvent, stateDocument);
+        if (candidateSessionStateJournal.isEnabled()) {
+            candidateSessionStateJournal.appendItemSessionState(candidateEvent, itemSessionState);
+        }
+        else if (qtiWorksDeploymentSettings.isBinaryStateStorage()) {
+            storeBinaryState(candidateEvent, ItemSessionStateBinaryMarshaller.marshal(itemSessionState));
+        }
+        else {
+            storeStateDocument(candidateEvent, ItemSessionStateXmlMarshaller.marshal(itemSessionState));
+        }
+        candidateSessionStateCache.put(candidateEvent, itemSessionState);
     }
 
     public ItemSessionState loadItemSessionState(final CandidateEvent candidateEvent) {
+        final ItemSessionState cachedState = candidateSessionStateCache.get(candidateEvent, ItemSessionState.class);
+        if (cachedState!=null) {
+            return cachedState;
+        }
+        final ItemSessionState journalledState = candidateSessionStateJournal.loadItemSessionState(candidateEvent);
+        if (journalledState!=null) {
+            return journalledState;
+        }
+        final byte[] binaryState = loadBinaryState(candidateEvent);
+        if (binaryState!=null) {
+            return ItemSessionStateBinaryMarshaller.unmarshal(binaryState);
+        }
         final Document document = loadStateDocument(candidateEvent);
         return ItemSessionStateXmlMarshaller.unmarshal(document.getDocumentElement());
     }
@@ -255,9 +367,7 @@ public class CandidateDataService {
 
         /* Now store processing notifications */
         if (notificationRecorder!=null) {
-            for (final Notification notification : notificationRecorder.getNotifications()) {
-                recordNotification(event, notification);
-            }
+            recordNotifications(event, notificationRecorder.getNotifications());
         }
 
         return event;
@@ -288,6 +398,7 @@ public class CandidateDataService {
         final ItemSessionControllerSettings itemSessionControllerSettings = new ItemSessionControllerSettings();
         itemSessionControllerSettings.setTemplateProcessingLimit(computeTemplateProcessingLimit(itemDeliverySettings));
         itemSessionControllerSettings.setMaxAttempts(itemDeliverySettings.getMaxAttempts());
+        itemSessionControllerSettings.setCompiledProcessing(qtiWorksDeploymentSettings.isCompiledProcessing());
 
         /* Create controller and wire up notification recorder */
         final ItemSessionController result = new ItemSessionController(jqtiExtensionManager,
@@ -334,6 +445,7 @@ public class CandidateDataService {
         final ItemSessionControllerSettings itemSessionControllerSettings = new ItemSessionControllerSettings();
         itemSessionControllerSettings.setTemplateProcessingLimit(computeTemplateProcessingLimit(itemDeliverySettings));
         itemSessionControllerSettings.setMaxAttempts(itemDeliverySettings.getMaxAttempts());
+        itemSessionControllerSettings.setCompiledProcessing(qtiWorksDeploymentSettings.isCompiledProcessing());
 
         /* Create controller and wire up notification recorder (if passed) */
         final ItemSessionController result = new ItemSessionController(jqtiExtensionManager,
@@ -359,7 +471,22 @@ public class CandidateDataService {
         return requestedLimitIntValue > 0 ? requestedLimitIntValue : JqtiPlus.DEFAULT_TEMPLATE_PROCESSING_LIMIT;
     }
 
+    /**
+     * Brings the recorded assessmentResult for the given item {@link CandidateSession} up to date.
+     * If results are being deferred then the session is simply marked as dirty; otherwise the
+     * result is computed and recorded immediately.
+     */
+    public void updateItemAssessmentResult(final CandidateSession candidateSession, final ItemSessionController itemSessionController) {
+        if (deferredAssessmentResultTracker.isEnabled()) {
+            deferredAssessmentResultTracker.markDirty(candidateSession);
+        }
+        else {
+            computeAndRecordItemAssessmentResult(candidateSession, itemSessionController);
+        }
+    }
+
     public AssessmentResult computeAndRecordItemAssessmentResult(final CandidateSession candidateSession, final ItemSessionController itemSessionController) {
+        lockAndClearDirty(candidateSession);
         final AssessmentResult assessmentResult = computeItemAssessmentResult(candidateSession, itemSessionController);
         recordItemAssessmentResult(candidateSession, assessmentResult);
         return assessmentResult;
@@ -390,11 +517,31 @@ public class CandidateDataService {
     // Test methods
 
     public void storeTestSessionState(final CandidateEvent candidateEvent, final TestSessionState testSessionState) {
-        final Document stateDocument = TestSessionStateXmlMarshaller.marshal(testSessionState);
-        storeStateDocument(candidateEvent, stateDocument);
+        if (candidateSessionStateJournal.isEnabled()) {
+            candidateSessionStateJournal.appendTestSessionState(candidateEvent, testSessionState);
+        }
+        else if (qtiWorksDeploymentSettings.isBinaryStateStorage()) {
+            storeBinaryState(candidateEvent, TestSessionStateBinaryMarshaller.marshal(testSessionState));
+        }
+        else {
+            storeStateDocument(candidateEvent, TestSessionStateXmlMarshaller.marshal(testSessionState));
+        }
+        candidateSessionStateCache.put(candidateEvent, testSessionState);
     }
 
     public TestSessionState loadTestSessionState(final CandidateEvent candidateEvent) {
+        final TestSessionState cachedState = candidateSessionStateCache.get(candidateEvent, TestSessionState.class);
+        if (cachedState!=null) {
+            return cachedState;
+        }
+        final TestSessionState journalledState = candidateSessionStateJournal.loadTestSessionState(candidateEvent);
+        if (journalledState!=null) {
+            return journalledState;
+        }
+        final byte[] binaryState = loadBinaryState(candidateEvent);
+        if (binaryState!=null) {
+            return TestSessionStateBinaryMarshaller.unmarshal(binaryState);
+        }
         final Document document = loadStateDocument(candidateEvent);
         return TestSessionStateXmlMarshaller.unmarshal(document.getDocumentElement());
     }
@@ -430,6 +577,7 @@ public class CandidateDataService {
         final DeliverySettings testDeliverySettings = assessmentDataService.getEffectiveDeliverySettings(candidate, delivery);
         final TestSessionControllerSettings testSessionControllerSettings = new TestSessionControllerSettings();
         testSessionControllerSettings.setTemplateProcessingLimit(computeTemplateProcessingLimit(testDeliverySettings));
+        testSessionControllerSettings.setCompiledProcessing(qtiWorksDeploymentSettings.isCompiledProcessing());
 
         /* Create controller and wire up notification recorder */
         final TestSessionController result = new TestSessionController(jqtiExtensionManager,
@@ -475,6 +623,7 @@ public class CandidateDataService {
         final TestDeliverySettings testDeliverySettings = (TestDeliverySettings) assessmentDataService.getEffectiveDeliverySettings(candidate, delivery);
         final TestSessionControllerSettings testSessionControllerSettings = new TestSessionControllerSettings();
         testSessionControllerSettings.setTemplateProcessingLimit(computeTemplateProcessingLimit(testDeliverySettings));
+        testSessionControllerSettings.setCompiledProcessing(qtiWorksDeploymentSettings.isCompiledProcessing());
 
         /* Create controller and wire up notification recorder (if passed) */
         final TestSessionController result = new TestSessionController(jqtiExtensionManager,
@@ -531,9 +680,7 @@ public class CandidateDataService {
 
         /* Now store processing notifications */
         if (notificationRecorder!=null) {
-            for (final Notification notification : notificationRecorder.getNotifications()) {
-                recordNotification(event, notification);
-            }
+            recordNotifications(event, notificationRecorder.getNotifications());
         }
 
         return event;
@@ -545,7 +692,22 @@ public class CandidateDataService {
         return testSessionController.computeAssessmentResult(requestTimestampContext.getCurrentRequestTimestamp(), sessionIdentifier, sessionIdentifierSourceId);
     }
 
+    /**
+     * Brings the recorded assessmentResult for the given test {@link CandidateSession} up to date.
+     * If results are being deferred then the session is simply marked as dirty; otherwise the
+     * result is computed and recorded immediately.
+     */
+    public void updateTestAssessmentResult(final CandidateSession candidateSession, final TestSessionController testSessionController) {
+        if (deferredAssessmentResultTracker.isEnabled()) {
+            deferredAssessmentResultTracker.markDirty(candidateSession);
+        }
+        else {
+            computeAndRecordTestAssessmentResult(candidateSession, testSessionController);
+        }
+    }
+
     public AssessmentResult computeAndRecordTestAssessmentResult(final CandidateSession candidateSession, final TestSessionController testSessionController) {
+        lockAndClearDirty(candidateSession);
         final AssessmentResult assessmentResult = computeTestAssessmentResult(candidateSession, testSessionController);
         recordTestAssessmentResult(candidateSession, assessmentResult);
         return assessmentResult;
@@ -569,19 +731,40 @@ public class CandidateDataService {
     //----------------------------------------------------
     // State file management
 
+    /**
+     * Streams the state corresponding to the given {@link CandidateEvent} as XML, regardless
+     * of the format that was used to store it. (The XML is generated on demand if the state
+     * was stored in binary form.)
+     */
+    public void streamSessionStateXml(final CandidateEvent candidateEvent, final Date lastModifiedTime,
+            final OutputStreamer outputStreamer)
+            throws IOException {
+        Assert.notNull(candidateEvent, "candidateEvent");
+        Assert.notNull(outputStreamer, "outputStreamer");
+        final File xmlStateFile = getSessionStateFile(candidateEvent, XML_STATE_FILE_EXTENSION);
+        if (xmlStateFile.exists()) {
+            ServiceUtilities.streamFile(xmlStateFile, "application/xml", lastModifiedTime, outputStreamer);
+            return;
+        }
+        final Document stateDocument;
+        if (isItemSession(candidateEvent)) {
+            stateDocument = ItemSessionStateXmlMarshaller.marshal(loadItemSessionState(candidateEvent));
+        }
+        else {
+            stateDocument = TestSessionStateXmlMarshaller.marshal(loadTestSessionState(candidateEvent));
+        }
+        final ByteArrayOutputStream xmlOutputStream = new ByteArrayOutputStream();
+        serializeStateDocument(stateDocument, xmlOutputStream);
+        final byte[] xmlBytes = xmlOutputStream.toByteArray();
+        outputStreamer.stream("application/xml", xmlBytes.length, lastModifiedTime, new ByteArrayInputStream(xmlBytes));
+    }
+
     private void storeStateDocument(final CandidateEvent candidateEvent, final Document stateXml) {
-        final File sessionFile = getSessionStateFile(candidateEvent);
-        final XsltSerializationOptions xsltSerializationOptions = new XsltSerializationOptions();
-        xsltSerializationOptions.setIndenting(true);
-        xsltSerializationOptions.setIncludingXMLDeclaration(false);
-        final Transformer serializer = XsltStylesheetManager.createSerializer(xsltSerializationOptions);
+        final File sessionFile = getSessionStateFile(candidateEvent, XML_STATE_FILE_EXTENSION);
         FileOutputStream resultStream = null;
         try {
             resultStream = new FileOutputStream(sessionFile);
-            serializer.transform(new DOMSource(stateXml), new StreamResult(resultStream));
-        }
-        catch (final TransformerException e) {
-            throw new QtiWorksRuntimeException("Unexpected Exception serializing state DOM", e);
+            serializeStateDocument(stateXml, resultStream);
         }
         catch (final FileNotFoundException e) {
             throw QtiWorksRuntimeException.unexpectedException(e);
@@ -591,8 +774,24 @@ public class CandidateDataService {
         }
     }
 
+    private void serializeStateDocument(final Document stateXml, final OutputStream outputStream) {
+        final XsltSerializationOptions xsltSerializationOptions = new XsltSerializationOptions();
+        xsltSerializationOptions.setIndenting(true);
+        xsltSerializationOptions.setIncludingXMLDeclaration(false);
+        final Transformer serializer = XsltStylesheetManager.createSerializer(xsltSerializationOptions);
+        try {
+            serializer.transform(new DOMSource(stateXml), new StreamResult(outputStream));
+        }
+        catch (final TransformerException e) {
+            throw new QtiWorksRuntimeException("Unexpected Exception serializing state DOM", e);
+        }
+    }
+
     private Document loadStateDocument(final CandidateEvent candidateEvent) {
-        final File sessionFile = ensureSessionStateFile(candidateEvent);
+        final File sessionFile = getSessionStateFile(candidateEvent, XML_STATE_FILE_EXTENSION);
+        if (!sessionFile.exists()) {
+            throw new QtiWorksLogicException("Expectation failed: State file " + sessionFile + " does not exist");
+        }
         final DocumentBuilder documentBuilder = XmlUtilities.createNsAwareDocumentBuilder();
         try {
             return documentBuilder.parse(sessionFile);
@@ -602,20 +801,44 @@ public class CandidateDataService {
         }
     }
 
-    public File ensureSessionStateFile(final CandidateEvent candidateEvent) {
-        final File sessionStateFile = getSessionStateFile(candidateEvent);
-        if (!sessionStateFile.exists()) {
-            throw new QtiWorksLogicException("Expectation failed: State file " + sessionStateFile + " does not exist");
+    private void storeBinaryState(final CandidateEvent candidateEvent, final byte[] binaryState) {
+        final File sessionFile = getSessionStateFile(candidateEvent, BINARY_STATE_FILE_EXTENSION);
+        try {
+            FileUtils.writeByteArrayToFile(sessionFile, binaryState);
+        }
+        catch (final IOException e) {
+            throw QtiWorksRuntimeException.unexpectedException(e);
         }
-        return sessionStateFile;
     }
 
-    private File getSessionStateFile(final CandidateEvent candidateEvent) {
+    /**
+     * Reads the binary state for the given {@link CandidateEvent}, returning null if it
+     * was stored as XML. (This will happen if the deployment has been switched from XML
+     * to binary storage, or back.)
+     */
+    private byte[] loadBinaryState(final CandidateEvent candidateEvent) {
+        final File sessionFile = getSessionStateFile(candidateEvent, BINARY_STATE_FILE_EXTENSION);
+        if (!sessionFile.exists()) {
+            return null;
+        }
+        try {
+            return FileUtils.readFileToByteArray(sessionFile);
+        }
+        catch (final IOException e) {
+            throw QtiWorksRuntimeException.unexpectedException(e);
+        }
+    }
+
+    private boolean isItemSession(final CandidateEvent candidateEvent) {
         final CandidateSession candidateSession = candidateEvent.getCandidateSession();
-        final AssessmentObjectType assessmentType = candidateSession.getDelivery().getAssessment().getAssessmentType();
-        final String stateFileBaseName = assessmentType==AssessmentObjectType.ASSESSMENT_ITEM ? "itemSessionState" : "testSessionState";
+        return candidateSession.getDelivery().getAssessment().getAssessmentType()==AssessmentObjectType.ASSESSMENT_ITEM;
+    }
+
+    private File getSessionStateFile(final CandidateEvent candidateEvent, final String extension) {
+        final CandidateSession candidateSession = candidateEvent.getCandidateSession();
+        final String stateFileBaseName = isItemSession(candidateEvent) ? "itemSessionState" : "testSessionState";
         final File sessionFolder = filespaceManager.obtainCandidateSessionStateStore(candidateSession);
-        final String stateFileName = stateFileBaseName + candidateEvent.getId() + ".xml";
+        final String stateFileName = stateFileBaseName + candidateEvent.getId() + extension;
         return new File(sessionFolder, stateFileName);
     }
 
@@ -637,7 +860,58 @@ public class CandidateDataService {
         }
     }
 
+    /**
+     * Arranges for the files stored for the given {@link CandidateSession} to be put back as they
+     * are now if the current transaction rolls back. Any state files written since are removed,
+     * the state journal is chopped back to its current length, and the assessmentResult file is
+     * restored. This should be called before recording anything in bulk (e.g. when re-scoring),
+     * so that a failed transaction doesn't leave files that disagree with the database.
+     * <p>
+     * This does nothing if there is no current transaction.
+     */
+    public void restoreSessionFilesOnRollback(final CandidateSession candidateSession) {
+        Assert.notNull(candidateSession, "candidateSession");
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return;
+        }
+        final File sessionFolder = filespaceManager.obtainCandidateSessionStateStore(candidateSession);
+        final Set<String> existingFileNames = new HashSet<String>(Arrays.asList(sessionFolder.list()));
+        final long journalLength = candidateSessionStateJournal.getJournalLength(candidateSession);
+        final File resultFile = getAssessmentResultFile(candidateSession);
+        final byte[] resultData;
+        try {
+            resultData = resultFile.exists() ? FileUtils.readFileToByteArray(resultFile) : null;
+        }
+        catch (final IOException e) {
+            throw QtiWorksRuntimeException.unexpectedException(e);
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(final int status) {
+                if (status!=TransactionSynchronization.STATUS_ROLLED_BACK) {
+                    return;
+                }
+                logger.debug("Restoring files for CandidateSession #{} after rollback", candidateSession.getId());
+                candidateSessionStateJournal.truncate(candidateSession, journalLength);
+                for (final File file : sessionFolder.listFiles()) {
+                    if (!existingFileNames.contains(file.getName()) && !file.delete()) {
+                        logger.warn("Failed to delete {} after rollback", file);
+                    }
+                }
+                if (resultData!=null) {
+                    try {
+                        FileUtils.writeByteArrayToFile(resultFile, resultData);
+                    }
+                    catch (final IOException e) {
+                        logger.warn("Failed to restore " + resultFile + " after rollback", e);
+                    }
+                }
+            }
+        });
+    }
+
     public File ensureAssessmentResultFile(final CandidateSession candidateSession) {
+        ensureAssessmentResultUpToDate(candidateSession);
         final File resultFile = getAssessmentResultFile(candidateSession);
         if (!resultFile.exists()) {
             throw new QtiWorksLogicException("Expectation failed: assessmentResult file " + resultFile + " does not exist");
@@ -651,6 +925,7 @@ public class CandidateDataService {
     }
 
     public String readAssessmentResultFile(final CandidateSession candidateSession) {
+        ensureAssessmentResultUpToDate(candidateSession);
         final File resultFile = getAssessmentResultFile(candidateSession);
         if (!resultFile.exists()) {
             return null;
@@ -663,6 +938,17 @@ public class CandidateDataService {
             throw QtiWorksRuntimeException.unexpectedException(e);
         }
     }
+
+    /**
+     * Records the assessmentResult for the given {@link CandidateSession} now if it has been
+     * marked as dirty and has not yet been written out.
+     */
+    private void ensureAssessmentResultUpToDate(final CandidateSession candidateSession) {
+        if (deferredAssessmentResultTracker.clearDirty(candidateSession.getId().longValue())) {
+            recordAssessmentResult(candidateSession);
+        }
+    }
+
     //----------------------------------------------------
     // General helpers
 
@@ -675,20 +961,61 @@ public class CandidateDataService {
         return candidateEventDao.getNewestEventInSession(candidateSession);
     }
 
+    /**
+     * Records the values of the outcome variables (and duration) in the given result as
+     * {@link CandidateSessionOutcome}s, to make reporting easier.
+     * <p>
+     * This compares the new values with those already recorded for the session. Only new, changed
+     * or removed variables are written, so repeated recording where little has changed
+     * is cheap.
+     */
     private void recordOutcomeVariables(final CandidateSession candidateSession, final AbstractResult resultNode) {
-        candidateSessionOutcomeDao.deleteForCandidateSession(candidateSession);
+        /* Index existing outcomes, removing any unexpected duplicates */
+        final Map<String, CandidateSessionOutcome> existingOutcomeMap = new HashMap<String, CandidateSessionOutcome>();
+        for (final CandidateSessionOutcome existingOutcome : candidateSessionOutcomeDao.getForSession(candidateSession)) {
+            if (existingOutcomeMap.put(existingOutcome.getOutcomeIdentifier(), existingOutcome)!=null) {
+                candidateSessionOutcomeDao.remove(existingOutcome);
+            }
+        }
+
+        /* Update existing outcomes that have changed, and create new ones */
+        final List<CandidateSessionOutcome> newOutcomes = new ArrayList<CandidateSessionOutcome>();
         for (final ItemVariable itemVariable : resultNode.getItemVariables()) {
             if (itemVariable instanceof OutcomeVariable
                     || QtiConstants.VARIABLE_DURATION_IDENTIFIER.equals(itemVariable.getIdentifier())) {
-                final CandidateSessionOutcome outcome = new CandidateSessionOutcome();
-                outcome.setCandidateSession(candidateSession);
-                outcome.setOutcomeIdentifier(itemVariable.getIdentifier().toString());
-                outcome.setBaseType(itemVariable.getBaseType());
-                outcome.setCardinality(itemVariable.getCardinality());
-                outcome.setStringValue(stringifyQtiValue(itemVariable.getComputedValue()));
-                candidateSessionOutcomeDao.persist(outcome);
+                final String outcomeIdentifier = itemVariable.getIdentifier().toString();
+                final BaseType baseType = itemVariable.getBaseType();
+                final Cardinality cardinality = itemVariable.getCardinality();
+                final String stringValue = stringifyQtiValue(itemVariable.getComputedValue());
+
+                final CandidateSessionOutcome existingOutcome = existingOutcomeMap.remove(outcomeIdentifier);
+                if (existingOutcome!=null) {
+                    if (existingOutcome.getBaseType()!=baseType
+                            || existingOutcome.getCardinality()!=cardinality
+                            || !ObjectUtilities.nullSafeEquals(stringValue, existingOutcome.getStringValue())) {
+                        existingOutcome.setBaseType(baseType);
+                        existingOutcome.setCardinality(cardinality);
+                        existingOutcome.setStringValue(stringValue);
+                        candidateSessionOutcomeDao.update(existingOutcome);
+                    }
+                }
+                else {
+                    final CandidateSessionOutcome outcome = new CandidateSessionOutcome();
+                    outcome.setCandidateSession(candidateSession);
+                    outcome.setOutcomeIdentifier(outcomeIdentifier);
+                    outcome.setBaseType(baseType);
+                    outcome.setCardinality(cardinality);
+                    outcome.setStringValue(stringValue);
+                    newOutcomes.add(outcome);
+                }
             }
         }
+        candidateSessionOutcomeDao.persistAll(newOutcomes);
+
+        /* Remove outcomes that no longer exist (e.g. if the assessment has been replaced) */
+        for (final CandidateSessionOutcome staleOutcome : existingOutcomeMap.values()) {
+            candidateSessionOutcomeDao.remove(staleOutcome);
+        }
     }
 
     private String stringifyQtiValue(final Value value) {
@@ -0,0 +1,158 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.services;
+
+import uk.ac.ed.ph.qtiworks.domain.DomainEntityNotFoundException;
+import uk.ac.ed.ph.qtiworks.domain.entities.AssessmentPackage;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateEvent;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateItemEventType;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateSession;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateTestEventType;
+import uk.ac.ed.ph.qtiworks.domain.entities.Delivery;
+import uk.ac.ed.ph.qtiworks.services.dao.CandidateSessionDao;
+import uk.ac.ed.ph.qtiworks.services.dao.DeliveryDao;
+
+import uk.ac.ed.ph.jqtiplus.node.AssessmentObjectType;
+import uk.ac.ed.ph.jqtiplus.running.ItemSessionController;
+import uk.ac.ed.ph.jqtiplus.running.TestSessionController;
+
+import java.util.List;
+
+import javax.annotation.Resource;
+
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * This helper service re-scores batches of {@link CandidateSession}s, with each batch
+ * being done within a single transaction.
+ *
+ * @see DeliveryRescoringService
+ *
+ * @author David McKain
+ */
+@Service
+@Transactional(propagation=Propagation.REQUIRED)
+public class CandidateSessionRescorer {
+
+    @Resource
+    private AssessmentDataService assessmentDataService;
+
+    @Resource
+    private AssessmentObjectManagementService assessmentObjectManagementService;
+
+    @Resource
+    private CandidateDataService candidateDataService;
+
+    @Resource
+    private CandidateSessionDao candidateSessionDao;
+
+    @Resource
+    private DeliveryDao deliveryDao;
+
+    //-------------------------------------------------
+
+    /**
+     * Loads the processing map for the selected {@link AssessmentPackage} of the {@link Delivery}
+     * having the given ID, so that it is cached and shared by all of the subsequent re-scoring work.
+     *
+     * @return true if the assessment is runnable, false otherwise
+     */
+    public boolean prepareDelivery(final long did) throws DomainEntityNotFoundException {
+        final Delivery delivery = deliveryDao.requireFindById(did);
+        final AssessmentPackage assessmentPackage = assessmentDataService.ensureSelectedAssessmentPackage(delivery);
+        if (assessmentPackage.getAssessmentType()==AssessmentObjectType.ASSESSMENT_ITEM) {
+            return assessmentObjectManagementService.getItemProcessingMap(assessmentPackage)!=null;
+        }
+        return assessmentObjectManagementService.getTestProcessingMap(assessmentPackage)!=null;
+    }
+
+    /**
+     * Re-scores the {@link CandidateSession}s having the given IDs, recording the updated
+     * state, assessmentResult and outcomes of each.
+     *
+     * @return number of {@link CandidateSession}s actually re-scored. The others were skipped
+     *   as they have not been entered, are still open, have been exploded, or are for adaptive items.
+     */
+    public int rescoreCandidateSessions(final List<Long> xids) {
+        int rescoredCount = 0;
+        for (final Long xid : xids) {
+            final CandidateSession candidateSession = candidateSessionDao.findById(xid);
+            if (candidateSession!=null && rescoreCandidateSession(candidateSession)) {
+                ++rescoredCount;
+            }
+        }
+        return rescoredCount;
+    }
+
+    private boolean rescoreCandidateSession(final CandidateSession candidateSession) {
+        /* Leave sessions that candidates may still be working on */
+        if (candidateSession.isExploded() || (candidateSession.getFinishTime()==null && !candidateSession.isTerminated())) {
+            return false;
+        }
+        final CandidateEvent mostRecentEvent = candidateDataService.getMostRecentEvent(candidateSession);
+        if (mostRecentEvent==null) {
+            return false;
+        }
+
+        /* Re-score the most recent state, then record it against a new RESCORE event so that
+         * the original state is kept for auditing. The files written are put back if the batch
+         * fails, as the database changes will then be rolled back. */
+        final AssessmentObjectType assessmentType = candidateSession.getDelivery().getAssessment().getAssessmentType();
+        if (assessmentType==AssessmentObjectType.ASSESSMENT_ITEM) {
+            final ItemSessionController itemSessionController = candidateDataService.createItemSessionController(mostRecentEvent, null);
+            if (!itemSessionController.getItemSessionState().isEntered() || itemSessionController.getSubjectItem().getAdaptive()) {
+                return false;
+            }
+            candidateDataService.restoreSessionFilesOnRollback(candidateSession);
+            itemSessionController.rescoreResponses();
+            candidateDataService.recordCandidateItemEvent(candidateSession, CandidateItemEventType.RESCORE,
+                    itemSessionController.getItemSessionState());
+            candidateDataService.computeAndRecordItemAssessmentResult(candidateSession, itemSessionController);
+        }
+        else {
+            final TestSessionController testSessionController = candidateDataService.createTestSessionController(mostRecentEvent, null);
+            if (testSessionController==null || !testSessionController.getTestSessionState().isEntered()) {
+                return false;
+            }
+            candidateDataService.restoreSessionFilesOnRollback(candidateSession);
+            testSessionController.rescoreItems();
+            candidateDataService.recordCandidateTestEvent(candidateSession, CandidateTestEventType.RESCORE,
+                    testSessionController.getTestSessionState(), null);
+            candidateDataService.computeAndRecordTestAssessmentResult(candidateSession, testSessionController);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,220 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.services;
+
+import uk.ac.ed.ph.qtiworks.QtiWorksLogicException;
+import uk.ac.ed.ph.qtiworks.config.beans.QtiWorksDeploymentSettings;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateEvent;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateSession;
+
+import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
+import uk.ac.ed.ph.jqtiplus.internal.util.ObjectUtilities;
+import uk.ac.ed.ph.jqtiplus.state.ItemSessionState;
+import uk.ac.ed.ph.jqtiplus.state.TestSessionState;
+import uk.ac.ed.ph.jqtiplus.state.marshalling.ItemSessionStateBinaryMarshaller;
+import uk.ac.ed.ph.jqtiplus.state.marshalling.TestSessionStateBinaryMarshaller;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+/**
+ * Write-through cache of the most recent {@link ItemSessionState} or {@link TestSessionState}
+ * recorded for each {@link CandidateSession}. This lets us avoid re-reading and re-parsing the
+ * state XML file on each candidate request.
+ * <p>
+ * Each entry is keyed on {@link CandidateSession} ID and remembers the ID of the
+ * {@link CandidateEvent} it was recorded for, so a lookup only hits if the state was recorded
+ * for the exact event being asked for. (This keeps things correct if the state was changed
+ * elsewhere, e.g. on another node.)
+ * <p>
+ * Entries are held as snapshots in the compact binary state format rather than live Objects,
+ * so each lookup returns a fresh copy that the caller is free to mutate. The state files are still written as normal,
+ * and remain the canonical record of each event.
+ * <p>
+ * The size of this cache (in bytes) is controlled by {@link QtiWorksDeploymentSettings}.
+ * Setting this to zero disables the cache.
+ * <p>
+ * This is NO authorisation at this level.
+ *
+ * @author David McKain
+ */
+@Service
+public class CandidateSessionStateCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(CandidateSessionStateCache.class);
+
+    @Resource
+    private QtiWorksDeploymentSettings qtiWorksDeploymentSettings;
+
+    /** Cache of state snapshots, keyed on {@link CandidateSession} ID. Null if disabled */
+    private Cache<Long, StateSnapshot> cache;
+
+    private final AtomicLong cacheHitCount = new AtomicLong();
+    private final AtomicLong cacheMissCount = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        final long maxBytes = qtiWorksDeploymentSettings.getSessionStateCacheSizeKb() * 1024L;
+        if (maxBytes > 0) {
+            logger.info("Caching up to {} bytes of candidate session state", maxBytes);
+            this.cache = CacheBuilder.newBuilder()
+                    .maximumWeight(maxBytes)
+                    .weigher(new Weigher<Long, StateSnapshot>() {
+                        @Override
+                        public int weigh(final Long key, final StateSnapshot value) {
+                            return value.data.length;
+                        }
+                    })
+                    .build();
+        }
+        else {
+            logger.info("Candidate session state caching is disabled");
+            this.cache = null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return cache!=null;
+    }
+
+    /**
+     * Records the given {@link ItemSessionState} or {@link TestSessionState} as being the state
+     * for the given (persisted) {@link CandidateEvent}, replacing any state previously cached for
+     * its {@link CandidateSession}.
+     */
+    public void put(final CandidateEvent candidateEvent, final Serializable sessionState) {
+        Assert.notNull(candidateEvent, "candidateEvent");
+        Assert.notNull(sessionState, "sessionState");
+        if (cache==null) {
+            return;
+        }
+        final Long xsid = candidateEvent.getCandidateSession().getId();
+        cache.put(xsid, new StateSnapshot(candidateEvent.getId(), serialize(sessionState)));
+    }
+
+    /**
+     * Returns a fresh copy of the state recorded for the given {@link CandidateEvent}, or null
+     * if this state is not in the cache.
+     */
+    public <E extends Serializable> E get(final CandidateEvent candidateEvent, final Class<E> stateClass) {
+        Assert.notNull(candidateEvent, "candidateEvent");
+        if (cache==null) {
+            return null;
+        }
+        final Long xsid = candidateEvent.getCandidateSession().getId();
+        final StateSnapshot snapshot = cache.getIfPresent(xsid);
+        if (snapshot==null || !snapshot.xeid.equals(candidateEvent.getId())) {
+            logger.trace("Session state cache MISS for event #{}", candidateEvent.getId());
+            cacheMissCount.incrementAndGet();
+            return null;
+        }
+        logger.trace("Session state cache HIT for event #{}", candidateEvent.getId());
+        cacheHitCount.incrementAndGet();
+        return stateClass.cast(deserialize(snapshot.data, stateClass));
+    }
+
+    public void purge(final CandidateSession candidateSession) {
+        Assert.notNull(candidateSession, "candidateSession");
+        if (cache!=null) {
+            cache.invalidate(candidateSession.getId());
+        }
+    }
+
+    //--------------------------------------------------------------------------
+
+    private static byte[] serialize(final Serializable sessionState) {
+        if (sessionState instanceof ItemSessionState) {
+            return ItemSessionStateBinaryMarshaller.marshal((ItemSessionState) sessionState);
+        }
+        else if (sessionState instanceof TestSessionState) {
+            return TestSessionStateBinaryMarshaller.marshal((TestSessionState) sessionState);
+        }
+        throw new QtiWorksLogicException("Unexpected session state class " + sessionState.getClass());
+    }
+
+    private static Object deserialize(final byte[] data, final Class<?> stateClass) {
+        if (stateClass==ItemSessionState.class) {
+            return ItemSessionStateBinaryMarshaller.unmarshal(data);
+        }
+        else if (stateClass==TestSessionState.class) {
+            return TestSessionStateBinaryMarshaller.unmarshal(data);
+        }
+        throw new QtiWorksLogicException("Unexpected session state class " + stateClass);
+    }
+
+    private static final class StateSnapshot {
+
+        /** ID of the {@link CandidateEvent} this state was recorded for */
+        private final Long xeid;
+
+        /** State in binary form */
+        private final byte[] data;
+
+        public StateSnapshot(final Long xeid, final byte[] data) {
+            this.xeid = xeid;
+            this.data = data;
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // Reporting
+
+    public long getCacheUsage() {
+        return cache!=null ? cache.size() : 0L;
+    }
+
+    public long getCacheHitCount() {
+        return cacheHitCount.get();
+    }
+
+    public long getCacheMissCount() {
+        return cacheMissCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return ObjectUtilities.beanToString(this);
+    }
+}
@@ -0,0 +1,441 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.services;
+
+import uk.ac.ed.ph.qtiworks.QtiWorksLogicException;
+import uk.ac.ed.ph.qtiworks.QtiWorksRuntimeException;
+import uk.ac.ed.ph.qtiworks.config.beans.QtiWorksDeploymentSettings;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateEvent;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateSession;
+
+import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
+import uk.ac.ed.ph.jqtiplus.internal.util.ObjectUtilities;
+import uk.ac.ed.ph.jqtiplus.state.ItemSessionState;
+import uk.ac.ed.ph.jqtiplus.state.TestSessionState;
+import uk.ac.ed.ph.jqtiplus.state.marshalling.ItemSessionStateBinaryMarshaller;
+import uk.ac.ed.ph.jqtiplus.state.marshalling.TestSessionStateBinaryMarshaller;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.Striped;
+
+/**
+ * Append-only journal of the {@link ItemSessionState}s or {@link TestSessionState}s recorded
+ * for a {@link CandidateSession}. This is an alternative to storing a full state file for
+ * each {@link CandidateEvent}, and is enabled via {@link QtiWorksDeploymentSettings}.
+ * <p>
+ * Each {@link CandidateSession} has a single journal file consisting of a sequence of records.
+ * Each record holds the ID of the {@link CandidateEvent} it corresponds to, followed by either a
+ * full checkpoint of the state or a delta against the previous record. Checkpoints are written
+ * periodically (and whenever a delta can't be computed) so that rebuilding the state for any
+ * event only needs to replay a bounded number of deltas. States for items are small, so these
+ * are always written as checkpoints.
+ * <p>
+ * To avoid re-reading the journal on each append, we remember the tail of each recently
+ * used journal. This is re-read whenever the journal file has been changed elsewhere.
+ * <p>
+ * This is NO authorisation at this level.
+ *
+ * @author David McKain
+ */
+@Service
+public class CandidateSessionStateJournal {
+
+    private static final Logger logger = LoggerFactory.getLogger(CandidateSessionStateJournal.class);
+
+    private static final String JOURNAL_FILE_NAME = "sessionStateJournal.bin";
+
+    private static final byte RECORD_CHECKPOINT = 'C';
+    private static final byte RECORD_DELTA = 'D';
+
+    /** Size of each record header: event ID (long), record type (byte), payload length (int) */
+    private static final int RECORD_HEADER_LENGTH = 8 + 1 + 4;
+
+    @Resource
+    private QtiWorksDeploymentSettings qtiWorksDeploymentSettings;
+
+    @Resource
+    private FilespaceManager filespaceManager;
+
+    /** Most recently used journal tails, keyed on {@link CandidateSession} ID */
+    private Cache<Long, JournalTail> tailCache;
+
+    /** Locks used to serialize appends to each journal */
+    private final Striped<Lock> journalLocks = Striped.lock(64);
+
+    @PostConstruct
+    public void init() {
+        final int cacheSize = qtiWorksDeploymentSettings.getStateJournalTailCacheSize();
+        final int cacheTtlMinutes = qtiWorksDeploymentSettings.getStateJournalTailCacheTtlMinutes();
+        final CacheBuilder<Object, Object> cacheBuilder = CacheBuilder.newBuilder()
+                .maximumSize(cacheSize);
+        if (cacheTtlMinutes > 0) {
+            cacheBuilder.expireAfterAccess(cacheTtlMinutes, TimeUnit.MINUTES);
+        }
+        this.tailCache = cacheBuilder.build();
+    }
+
+    public boolean isEnabled() {
+        return qtiWorksDeploymentSettings.isStateJournalEnabled();
+    }
+
+    //--------------------------------------------------------------------------
+
+    public void appendItemSessionState(final CandidateEvent candidateEvent, final ItemSessionState itemSessionState) {
+        Assert.notNull(candidateEvent, "candidateEvent");
+        Assert.notNull(itemSessionState, "itemSessionState");
+        final CandidateSession candidateSession = candidateEvent.getCandidateSession();
+        final Lock lock = journalLocks.get(candidateSession.getId());
+        lock.lock();
+        try {
+            final File journalFile = getJournalFile(candidateSession);
+            /* Item states are always written as checkpoints so we don't need the tail here,
+             * but obtaining it ensures that any incomplete final record is chopped off first.
+             */
+            obtainTail(candidateSession, journalFile, ItemSessionState.class);
+            final byte[] stateData = ItemSessionStateBinaryMarshaller.marshal(itemSessionState);
+            appendRecord(journalFile, candidateEvent, RECORD_CHECKPOINT, stateData);
+            tailCache.put(candidateSession.getId(), new JournalTail(journalFile.length(), candidateEvent.getId(), stateData, 0));
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public void appendTestSessionState(final CandidateEvent candidateEvent, final TestSessionState testSessionState) {
+        Assert.notNull(candidateEvent, "candidateEvent");
+        Assert.notNull(testSessionState, "testSessionState");
+        final CandidateSession candidateSession = candidateEvent.getCandidateSession();
+        final Lock lock = journalLocks.get(candidateSession.getId());
+        lock.lock();
+        try {
+            final File journalFile = getJournalFile(candidateSession);
+            final JournalTail tail = obtainTail(candidateSession, journalFile, TestSessionState.class);
+            final byte[] stateData = TestSessionStateBinaryMarshaller.marshal(testSessionState);
+
+            /* Write a delta if we can, otherwise a checkpoint */
+            byte[] deltaData = null;
+            if (tail.latestStateData!=null
+                    && tail.recordsSinceCheckpoint + 1 < qtiWorksDeploymentSettings.getStateJournalCheckpointInterval()) {
+                final TestSessionState previousState = TestSessionStateBinaryMarshaller.unmarshal(tail.latestStateData);
+                deltaData = TestSessionStateBinaryMarshaller.marshalDelta(previousState, testSessionState);
+            }
+            if (deltaData!=null) {
+                appendRecord(journalFile, candidateEvent, RECORD_DELTA, deltaData);
+            }
+            else {
+                appendRecord(journalFile, candidateEvent, RECORD_CHECKPOINT, stateData);
+            }
+            final int recordsSinceCheckpoint = deltaData!=null ? tail.recordsSinceCheckpoint + 1 : 0;
+            tailCache.put(candidateSession.getId(), new JournalTail(journalFile.length(), candidateEvent.getId(), stateData, recordsSinceCheckpoint));
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Rebuilds the {@link ItemSessionState} recorded for the given {@link CandidateEvent},
+     * returning null if this event has not been recorded in the journal.
+     */
+    public ItemSessionState loadItemSessionState(final CandidateEvent candidateEvent) {
+        Assert.notNull(candidateEvent, "candidateEvent");
+        final byte[] stateData = loadStateData(candidateEvent, ItemSessionState.class);
+        return stateData!=null ? ItemSessionStateBinaryMarshaller.unmarshal(stateData) : null;
+    }
+
+    /**
+     * Rebuilds the {@link TestSessionState} recorded for the given {@link CandidateEvent},
+     * returning null if this event has not been recorded in the journal.
+     */
+    public TestSessionState loadTestSessionState(final CandidateEvent candidateEvent) {
+        Assert.notNull(candidateEvent, "candidateEvent");
+        final byte[] stateData = loadStateData(candidateEvent, TestSessionState.class);
+        return stateData!=null ? TestSessionStateBinaryMarshaller.unmarshal(stateData) : null;
+    }
+
+    /**
+     * Returns the current length of the journal for the given {@link CandidateSession}
+     * (0 if it has no journal), for passing to {@link #truncate(CandidateSession, long)}.
+     */
+    public long getJournalLength(final CandidateSession candidateSession) {
+        Assert.notNull(candidateSession, "candidateSession");
+        return getJournalFile(candidateSession).length();
+    }
+
+    /**
+     * Chops the journal for the given {@link CandidateSession} back to the given length, discarding
+     * any records appended since the length was obtained via {@link #getJournalLength(CandidateSession)}.
+     * (This is used to undo appends made within a transaction that has rolled back.)
+     */
+    public void truncate(final CandidateSession candidateSession, final long length) {
+        Assert.notNull(candidateSession, "candidateSession");
+        final Lock lock = journalLocks.get(candidateSession.getId());
+        lock.lock();
+        try {
+            final File journalFile = getJournalFile(candidateSession);
+            if (length==0L) {
+                if (journalFile.exists() && !journalFile.delete()) {
+                    logger.warn("Failed to delete journal {}", journalFile);
+                }
+            }
+            else if (journalFile.length() > length) {
+                truncateFile(journalFile, length);
+            }
+            tailCache.invalidate(candidateSession.getId());
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public void purge(final CandidateSession candidateSession) {
+        Assert.notNull(candidateSession, "candidateSession");
+        tailCache.invalidate(candidateSession.getId());
+    }
+
+    //--------------------------------------------------------------------------
+
+    private File getJournalFile(final CandidateSession candidateSession) {
+        final File sessionFolder = filespaceManager.obtainCandidateSessionStateStore(candidateSession);
+        return new File(sessionFolder, JOURNAL_FILE_NAME);
+    }
+
+    private byte[] loadStateData(final CandidateEvent candidateEvent, final Class<?> stateClass) {
+        final CandidateSession candidateSession = candidateEvent.getCandidateSession();
+        final File journalFile = getJournalFile(candidateSession);
+        if (!journalFile.exists()) {
+            return null;
+        }
+
+        /* Use the tail if this is the most recent event (which is the usual case) */
+        final JournalTail tail = tailCache.getIfPresent(candidateSession.getId());
+        if (tail!=null && candidateEvent.getId().equals(tail.lastXeid) && tail.fileLength==journalFile.length()) {
+            return tail.latestStateData;
+        }
+
+        /* Otherwise replay the journal up to the required event */
+        final JournalTail replayed = replayJournal(journalFile, candidateEvent.getId(), stateClass);
+        return replayed.latestStateData;
+    }
+
+    private JournalTail obtainTail(final CandidateSession candidateSession, final File journalFile, final Class<?> stateClass) {
+        JournalTail tail = tailCache.getIfPresent(candidateSession.getId());
+        if (tail==null || tail.fileLength!=journalFile.length()) {
+            if (!journalFile.exists()) {
+                tail = new JournalTail(0L, null, null, 0);
+            }
+            else {
+                tail = replayJournal(journalFile, null, stateClass);
+                if (tail.fileLength!=journalFile.length()) {
+                    /* Final record is incomplete (e.g. after a crash), so chop it off */
+                    logger.warn("Truncating incomplete final record in journal {}", journalFile);
+                    truncateFile(journalFile, tail.fileLength);
+                }
+            }
+            tailCache.put(candidateSession.getId(), tail);
+        }
+        return tail;
+    }
+
+    /**
+     * Replays the given journal file up to and including the record for the {@link CandidateEvent}
+     * having the given ID, or up to the end if this is null. The result will have a null state if
+     * the required event could not be found. Any incomplete final record is ignored, as is a final
+     * record having an impossible payload length or an unknown type, as this is what a partly
+     * written record can look like.
+     */
+    private JournalTail replayJournal(final File journalFile, final Long xeid, final Class<?> stateClass) {
+        final long actualFileLength = journalFile.length();
+        long fileLength = 0L;
+        Long lastXeid = null;
+        byte[] latestStateData = null;
+        int recordsSinceCheckpoint = 0;
+        TestSessionState testSessionState = null; /* (Used when replaying deltas) */
+        DataInputStream inputStream = null;
+        try {
+            inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+            while (true) {
+                final long recordXeid;
+                final byte recordType;
+                final byte[] payload;
+                try {
+                    recordXeid = inputStream.readLong();
+                    recordType = inputStream.readByte();
+                    final int payloadLength = inputStream.readInt();
+                    if (payloadLength < 0 || payloadLength > actualFileLength - fileLength - RECORD_HEADER_LENGTH) {
+                        /* Length can't be right, so treat as an incomplete final record */
+                        break;
+                    }
+                    payload = new byte[payloadLength];
+                    inputStream.readFully(payload);
+                }
+                catch (final EOFException e) {
+                    /* End of journal, or incomplete final record */
+                    break;
+                }
+                final long recordEnd = fileLength + RECORD_HEADER_LENGTH + payload.length;
+                if (recordType==RECORD_CHECKPOINT) {
+                    latestStateData = payload;
+                    recordsSinceCheckpoint = 0;
+                    testSessionState = null;
+                }
+                else if (recordType==RECORD_DELTA && stateClass==TestSessionState.class
+                        && (latestStateData!=null || testSessionState!=null)) {
+                    if (testSessionState==null) {
+                        testSessionState = TestSessionStateBinaryMarshaller.unmarshal(latestStateData);
+                    }
+                    TestSessionStateBinaryMarshaller.applyDelta(testSessionState, payload);
+                    latestStateData = null; /* (Will be regenerated below) */
+                    recordsSinceCheckpoint++;
+                }
+                else if (recordEnd==actualFileLength) {
+                    /* Unusable final record, so treat as incomplete */
+                    break;
+                }
+                else {
+                    throw new QtiWorksLogicException("Unexpected record type " + recordType + " in journal " + journalFile);
+                }
+                fileLength = recordEnd;
+                lastXeid = Long.valueOf(recordXeid);
+                if (xeid!=null && xeid.longValue()==recordXeid) {
+                    break;
+                }
+            }
+        }
+        catch (final IOException e) {
+            throw QtiWorksRuntimeException.unexpectedException(e);
+        }
+        finally {
+            ServiceUtilities.ensureClose(inputStream);
+        }
+        if (xeid!=null && !xeid.equals(lastXeid)) {
+            /* Required event is not in this journal */
+            return new JournalTail(fileLength, lastXeid, null, recordsSinceCheckpoint);
+        }
+        if (latestStateData==null && testSessionState!=null) {
+            latestStateData = TestSessionStateBinaryMarshaller.marshal(testSessionState);
+        }
+        return new JournalTail(fileLength, lastXeid, latestStateData, recordsSinceCheckpoint);
+    }
+
+    private void appendRecord(final File journalFile, final CandidateEvent candidateEvent,
+            final byte recordType, final byte[] payload) {
+        DataOutputStream outputStream = null;
+        try {
+            outputStream = new DataOutputStream(new FileOutputStream(journalFile, true));
+            outputStream.writeLong(candidateEvent.getId().longValue());
+            outputStream.writeByte(recordType);
+            outputStream.writeInt(payload.length);
+            outputStream.write(payload);
+        }
+        catch (final IOException e) {
+            throw QtiWorksRuntimeException.unexpectedException(e);
+        }
+        finally {
+            ServiceUtilities.ensureClose(outputStream);
+        }
+    }
+
+    private void truncateFile(final File file, final long length) {
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            randomAccessFile.setLength(length);
+        }
+        catch (final IOException e) {
+            throw QtiWorksRuntimeException.unexpectedException(e);
+        }
+        finally {
+            ServiceUtilities.ensureClose(randomAccessFile);
+        }
+    }
+
+    /**
+     * Remembers the end of a journal so that we can append to it without re-reading it.
+     * (This is immutable so that it can be read safely without locking.)
+     */
+    private static final class JournalTail {
+
+        /** Length of the (valid part of the) journal file */
+        private final long fileLength;
+
+        /** ID of the {@link CandidateEvent} for the last record, null if empty */
+        private final Long lastXeid;
+
+        /** Full binary state after the last record, null if empty */
+        private final byte[] latestStateData;
+
+        /** Number of delta records written since the last checkpoint */
+        private final int recordsSinceCheckpoint;
+
+        public JournalTail(final long fileLength, final Long lastXeid, final byte[] latestStateData, final int recordsSinceCheckpoint) {
+            this.fileLength = fileLength;
+            this.lastXeid = lastXeid;
+            this.latestStateData = latestStateData;
+            this.recordsSinceCheckpoint = recordsSinceCheckpoint;
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // Reporting
+
+    public long getTailCacheUsage() {
+        return tailCache.size();
+    }
+
+    @Override
+    public String toString() {
+        return ObjectUtilities.beanToString(this);
+    }
+}
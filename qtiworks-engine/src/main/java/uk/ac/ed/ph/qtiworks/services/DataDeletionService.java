@@ -43,6 +43,8 @@ import uk.ac.ed.ph.qtiworks.domain.entities.DeliveryType;
 import uk.ac.ed.ph.qtiworks.domain.entities.LtiResource;
 import uk.ac.ed.ph.qtiworks.domain.entities.LtiUser;
 import uk.ac.ed.ph.qtiworks.domain.entities.User;
+import uk.ac.ed.ph.qtiworks.rendering.AssessmentSourceCache;
+import uk.ac.ed.ph.qtiworks.rendering.RenderedOutputCache;
 import uk.ac.ed.ph.qtiworks.services.dao.AnonymousUserDao;
 import uk.ac.ed.ph.qtiworks.services.dao.AssessmentDao;
 import uk.ac.ed.ph.qtiworks.services.dao.AssessmentPackageDao;
@@ -95,9 +97,24 @@ public class DataDeletionService {
     @Resource
     private FilespaceManager filespaceManager;
 
+    @Resource
+    private AssessmentPackageFileService assessmentPackageFileService;
+
     @Resource
     private AssessmentObjectManagementService assessmentObjectManagementService;
 
+    @Resource
+    private AssessmentSourceCache assessmentSourceCache;
+
+    @Resource
+    private RenderedOutputCache renderedOutputCache;
+
+    @Resource
+    private CandidateSessionStateCache candidateSessionStateCache;
+
+    @Resource
+    private CandidateSessionStateJournal candidateSessionStateJournal;
+
     @Resource
     private CandidateSessionDao candidateSessionDao;
 
@@ -142,6 +159,8 @@ public class DataDeletionService {
         if (!filespaceManager.deleteCandidateSessionStore(candidateSession)) {
             logger.error("Failed to delete stored session data for CandiateSession {}", candidateSession.getId());
         }
+        candidateSessionStateCache.purge(candidateSession);
+        candidateSessionStateJournal.purge(candidateSession);
 
         /* Delete entities, taking advantage of cascading */
         candidateSessionDao.remove(candidateSession); /* (This will cascade) */
@@ -184,13 +203,15 @@ public class DataDeletionService {
 
         /* Delete package sandbox in filesystem (if appropriate) */
         if (assessmentPackage.getSandboxPath()!=null) {
-            if (!filespaceManager.deleteAssessmentPackageSandbox(assessmentPackage)) {
+            if (!assessmentPackageFileService.deleteAssessmentPackageSandbox(assessmentPackage)) {
                 logger.error("Failed to delete sandbox for AssessmentPackage {}", assessmentPackage.getId());
             }
         }
 
         /* Purge any cached data from this package */
         assessmentObjectManagementService.purge(assessmentPackage);
+        assessmentSourceCache.purge(assessmentPackage.getId());
+        renderedOutputCache.purge(assessmentPackage.getId());
 
         /* Delete entities, taking advantage of cascading */
         assessmentPackageDao.remove(assessmentPackage); /* (This will cascade) */
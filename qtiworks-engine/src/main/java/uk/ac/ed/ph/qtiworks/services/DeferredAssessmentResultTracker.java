@@ -0,0 +1,333 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.services;
+
+import uk.ac.ed.ph.qtiworks.config.QtiWorksProfiles;
+import uk.ac.ed.ph.qtiworks.config.beans.QtiWorksDeploymentSettings;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateSession;
+
+import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.locks.Lock;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.google.common.util.concurrent.Striped;
+
+/**
+ * Keeps track of the {@link CandidateSession}s whose assessmentResult file and
+ * reporting outcomes are out of date, when <code>qtiworks.results.deferred</code> is set.
+ * <p>
+ * Sessions are marked as dirty once the transaction that changed them has committed. Dirty
+ * sessions are handed out by {@link #takeDueSessions()} once they have been dirty for
+ * the configured delay, so that several quick interactions within the same session only
+ * result in a single write.
+ * <p>
+ * The ID of each newly dirty session is also appended to a log file, which is reloaded on
+ * startup so that results still owed when QTIWorks stopped (or crashed) get written. The
+ * log is rewritten by {@link #compactLog()} once its sessions have been dealt with.
+ * <p>
+ * Deferred results are only written by the webapp, so this is disabled elsewhere (e.g. in the
+ * engine manager). This stops other processes touching the webapp's log.
+ * <p>
+ * This also provides the per-session locks used to stop a deferred write overwriting the
+ * result written when a session is finished or terminated.
+ * See {@link #lockSessionUntilTransactionCompletes(long)}.
+ * <p>
+ * This is NO authorisation at this level.
+ *
+ * @see DeferredAssessmentResultWriter
+ * @see ScheduledService
+ *
+ * @author David McKain
+ */
+@Service
+public class DeferredAssessmentResultTracker {
+
+    private static final Logger logger = LoggerFactory.getLogger(DeferredAssessmentResultTracker.class);
+
+    @Resource
+    private QtiWorksDeploymentSettings qtiWorksDeploymentSettings;
+
+    @Resource
+    private RequestTimestampContext requestTimestampContext;
+
+    @Resource
+    private FilespaceManager filespaceManager;
+
+    @Resource
+    private Environment environment;
+
+    /** Whether results are actually being deferred (set during {@link #init()}) */
+    private boolean enabled;
+
+    /** Dirty sessions, keyed on session ID. (Guarded by this) */
+    private final Map<Long, DirtySession> dirtySessionMap = new HashMap<Long, DirtySession>();
+
+    /** Number of session IDs currently in the log file. (Guarded by this) */
+    private int loggedCount;
+
+    /** Locks used to serialize the writing of each session's assessmentResult */
+    private final Striped<Lock> sessionLocks = Striped.lock(64);
+
+    @PostConstruct
+    public void init() {
+        enabled = qtiWorksDeploymentSettings.isAssessmentResultsDeferred()
+                && environment.acceptsProfiles(QtiWorksProfiles.WEBAPP);
+        if (enabled) {
+            loadLog();
+        }
+    }
+
+    //-------------------------------------------------
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Marks the given {@link CandidateSession} as dirty, once the current transaction (if any)
+     * commits. The timestamp of the current request is remembered so that it can be used in the
+     * assessmentResult that is eventually written.
+     */
+    public void markDirty(final CandidateSession candidateSession) {
+        Assert.notNull(candidateSession, "candidateSession");
+        final Long xid = candidateSession.getId();
+        final Date resultTimestamp = requestTimestampContext.getCurrentRequestTimestamp();
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    doMarkDirty(xid, resultTimestamp);
+                }
+            });
+        }
+        else {
+            doMarkDirty(xid, resultTimestamp);
+        }
+    }
+
+    private synchronized void doMarkDirty(final Long xid, final Date resultTimestamp) {
+        final DirtySession dirtySession = dirtySessionMap.get(xid);
+        if (dirtySession==null) {
+            dirtySessionMap.put(xid, new DirtySession(System.currentTimeMillis(), resultTimestamp));
+            if (enabled) {
+                appendToLog(xid);
+            }
+        }
+        else {
+            /* Keep original marking time so that busy sessions still get written regularly */
+            dirtySession.resultTimestamp = resultTimestamp;
+        }
+    }
+
+    /**
+     * Clears the dirty status of the {@link CandidateSession} having the given ID.
+     * (The session stays in the log file until {@link #compactLog()} is next called.)
+     *
+     * @return true if the session was dirty, false otherwise
+     */
+    public synchronized boolean clearDirty(final long xid) {
+        return dirtySessionMap.remove(Long.valueOf(xid))!=null;
+    }
+
+    /**
+     * Removes and returns the sessions that have been dirty for at least the configured
+     * delay, keyed on session ID, with values being the timestamp to use in each
+     * session's assessmentResult. (This will be null for sessions reloaded from the log.)
+     */
+    public synchronized Map<Long, Date> takeDueSessions() {
+        final Map<Long, Date> result = new HashMap<Long, Date>();
+        if (dirtySessionMap.isEmpty()) {
+            return result;
+        }
+        final long markedThreshold = System.currentTimeMillis()
+                - qtiWorksDeploymentSettings.getAssessmentResultDeferralDelay() * ScheduledService.ONE_SECOND;
+        final Iterator<Entry<Long, DirtySession>> iterator = dirtySessionMap.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Entry<Long, DirtySession> entry = iterator.next();
+            final DirtySession dirtySession = entry.getValue();
+            if (dirtySession.markedTime <= markedThreshold) {
+                result.put(entry.getKey(), dirtySession.resultTimestamp);
+                iterator.remove();
+            }
+        }
+        return result;
+    }
+
+    //-------------------------------------------------
+
+    /**
+     * Obtains the lock used to serialize the writing of the assessmentResult for the
+     * {@link CandidateSession} having the given ID, holding it until the current transaction
+     * completes. This stops the deferred writer reading a session's state while a request that
+     * has just written its final result has yet to commit.
+     * <p>
+     * If there is no current transaction, this simply waits for any current holder of the
+     * lock to release it.
+     */
+    public void lockSessionUntilTransactionCompletes(final long xid) {
+        ServiceUtilities.lockUntilTransactionCompletes(sessionLocks.get(Long.valueOf(xid)));
+    }
+
+    //-------------------------------------------------
+
+    /**
+     * Rewrites the log file so that it only contains the sessions that are currently dirty.
+     * This should be called once the sessions returned by {@link #takeDueSessions()} have
+     * been written.
+     */
+    public synchronized void compactLog() {
+        if (!enabled || loggedCount==dirtySessionMap.size()) {
+            return;
+        }
+        final File logFile = filespaceManager.getDirtyCandidateSessionLogFile();
+        if (dirtySessionMap.isEmpty()) {
+            if (logFile.exists() && !logFile.delete()) {
+                logger.warn("Failed to delete {}", logFile);
+                return;
+            }
+            loggedCount = 0;
+            return;
+        }
+        final File tempFile = new File(logFile.getPath() + ".new");
+        DataOutputStream outputStream = null;
+        try {
+            outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            for (final Long xid : dirtySessionMap.keySet()) {
+                outputStream.writeLong(xid.longValue());
+            }
+        }
+        catch (final IOException e) {
+            logger.warn("Failed to write " + tempFile, e);
+            return;
+        }
+        finally {
+            ServiceUtilities.ensureClose(outputStream);
+        }
+        if (!tempFile.renameTo(logFile) && !(logFile.delete() && tempFile.renameTo(logFile))) {
+            logger.warn("Failed to rename {} to {}", tempFile, logFile);
+            return;
+        }
+        loggedCount = dirtySessionMap.size();
+    }
+
+    private void appendToLog(final Long xid) {
+        final File logFile = filespaceManager.getDirtyCandidateSessionLogFile();
+        DataOutputStream outputStream = null;
+        try {
+            outputStream = new DataOutputStream(new FileOutputStream(logFile, true));
+            outputStream.writeLong(xid.longValue());
+            loggedCount++;
+        }
+        catch (final IOException e) {
+            logger.warn("Failed to log dirty CandidateSession #" + xid + " to " + logFile, e);
+        }
+        finally {
+            ServiceUtilities.ensureClose(outputStream);
+        }
+    }
+
+    /**
+     * Marks all of the sessions in the log file as dirty and due immediately. (Any sessions
+     * whose results were actually up to date will simply be written again.)
+     */
+    synchronized void loadLog() {
+        final File logFile = filespaceManager.getDirtyCandidateSessionLogFile();
+        if (!logFile.isFile()) {
+            return;
+        }
+        DataInputStream inputStream = null;
+        try {
+            inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+            while (true) {
+                final Long xid;
+                try {
+                    xid = Long.valueOf(inputStream.readLong());
+                }
+                catch (final EOFException e) {
+                    /* (This includes a partial record left by a crash) */
+                    break;
+                }
+                loggedCount++;
+                if (!dirtySessionMap.containsKey(xid)) {
+                    dirtySessionMap.put(xid, new DirtySession(0L, null));
+                }
+            }
+        }
+        catch (final IOException e) {
+            logger.warn("Failed to read dirty CandidateSessions from " + logFile, e);
+        }
+        finally {
+            ServiceUtilities.ensureClose(inputStream);
+        }
+        logger.info("Reloaded {} CandidateSession(s) with deferred assessmentResults from {}",
+                dirtySessionMap.size(), logFile);
+    }
+
+    //-------------------------------------------------
+
+    private static final class DirtySession {
+
+        final long markedTime;
+        Date resultTimestamp;
+
+        DirtySession(final long markedTime, final Date resultTimestamp) {
+            this.markedTime = markedTime;
+            this.resultTimestamp = resultTimestamp;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.services;
+
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateSession;
+import uk.ac.ed.ph.qtiworks.services.dao.CandidateSessionDao;
+
+import java.util.Date;
+
+import javax.annotation.Resource;
+
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * This helper service writes out the assessmentResult and reporting outcomes of
+ * {@link CandidateSession}s that have been marked as dirty, with each session being done
+ * within its own transaction.
+ *
+ * @see DeferredAssessmentResultTracker
+ *
+ * @author David McKain
+ */
+@Service
+@Transactional(propagation=Propagation.REQUIRED)
+public class DeferredAssessmentResultWriter {
+
+    @Resource
+    private RequestTimestampContext requestTimestampContext;
+
+    @Resource
+    private DeferredAssessmentResultTracker deferredAssessmentResultTracker;
+
+    @Resource
+    private CandidateDataService candidateDataService;
+
+    @Resource
+    private CandidateSessionDao candidateSessionDao;
+
+    //-------------------------------------------------
+
+    /**
+     * Computes and records the assessmentResult for the most recent state of the
+     * {@link CandidateSession} having the given ID, using the given timestamp in the result.
+     * <p>
+     * Finished and terminated sessions are skipped, as their final result will already have been
+     * written. The session's lock is obtained before the session is looked up so that we wait
+     * for any request that is in the middle of writing that final result.
+     *
+     * @return true if the result was written, false if the session no longer exists, has
+     *   finished, or has been terminated or exploded
+     */
+    public boolean writeAssessmentResult(final long xid, final Date resultTimestamp) {
+        deferredAssessmentResultTracker.lockSessionUntilTransactionCompletes(xid);
+        final CandidateSession candidateSession = candidateSessionDao.findById(xid);
+        if (candidateSession==null || candidateSession.isExploded()
+                || candidateSession.isFinished() || candidateSession.isTerminated()) {
+            return false;
+        }
+        requestTimestampContext.setCurrentRequestTimestamp(resultTimestamp);
+        try {
+            candidateDataService.recordAssessmentResult(candidateSession);
+        }
+        finally {
+            requestTimestampContext.setCurrentRequestTimestamp(null);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,267 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.services;
+
+import uk.ac.ed.ph.qtiworks.config.beans.QtiWorksDeploymentSettings;
+import uk.ac.ed.ph.qtiworks.domain.DomainEntityNotFoundException;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateSession;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateSessionOutcome;
+import uk.ac.ed.ph.qtiworks.domain.entities.Delivery;
+import uk.ac.ed.ph.qtiworks.services.dao.CandidateSessionDao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Resource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Re-scores all of the {@link CandidateSession}s for a {@link Delivery}, re-running response
+ * and outcome processing on the final state of each session and recording the resulting
+ * {@link CandidateSessionOutcome}s and assessmentResult. This is useful after fixing mistakes
+ * in the responseProcessing of an assessment that has already been taken.
+ * <p>
+ * Sessions are re-scored in batches over a bounded pool of worker threads, with each batch
+ * done in a single transaction via {@link CandidateSessionRescorer}. If a batch fails then
+ * its sessions are retried individually so that one bad session can't hold up the others.
+ * Progress is logged after each batch as a checkpoint: every session before the checkpoint
+ * ID has been dealt with, so an interrupted run can be resumed from there.
+ * <p>
+ * This is intended to be run offline via the engine manager. LTI outcomes are NOT resent.
+ * <p>
+ * This is NO authorisation at this level.
+ *
+ * @author David McKain
+ */
+@Service
+public class DeliveryRescoringService {
+
+    private static final Logger logger = LoggerFactory.getLogger(DeliveryRescoringService.class);
+
+    @Resource
+    private QtiWorksDeploymentSettings qtiWorksDeploymentSettings;
+
+    @Resource
+    private RequestTimestampContext requestTimestampContext;
+
+    @Resource
+    private CandidateSessionRescorer candidateSessionRescorer;
+
+    @Resource
+    private CandidateSessionDao candidateSessionDao;
+
+    //-------------------------------------------------
+
+    /**
+     * Re-scores the {@link CandidateSession}s for the {@link Delivery} having the given ID,
+     * starting at the {@link CandidateSession} having the given ID (use 0 to do all of them).
+     *
+     * @return summary of what was done, which will not be null
+     *
+     * @throws DomainEntityNotFoundException if no {@link Delivery} has the given ID
+     */
+    public RescoringSummary rescoreDelivery(final long did, final long firstXid)
+            throws DomainEntityNotFoundException {
+        if (!candidateSessionRescorer.prepareDelivery(did)) {
+            logger.warn("Assessment for Delivery #{} is not runnable, so its sessions can't be re-scored", did);
+            return new RescoringSummary(0, 0, Collections.<Long>emptyList());
+        }
+        final List<Long> xids = candidateSessionDao.getIdsForDelivery(did, firstXid);
+        final List<List<Long>> batches = Lists.partition(xids, Math.max(1, qtiWorksDeploymentSettings.getRescoringBatchSize()));
+        final int threadCount = Math.max(1, qtiWorksDeploymentSettings.getRescoringThreadCount());
+        logger.info("Re-scoring {} CandidateSession(s) for Delivery #{} in {} batch(es) using {} thread(s)",
+                new Object[] { xids.size(), did, batches.size(), threadCount });
+
+        final RescoringRun rescoringRun = new RescoringRun(batches);
+        final ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+        try {
+            for (int i=0; i<batches.size(); i++) {
+                final int batchIndex = i;
+                executorService.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        rescoringRun.rescoreBatch(batchIndex);
+                    }
+                });
+            }
+            executorService.shutdown();
+            while (!executorService.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.info("Re-scoring still in progress: {}", rescoringRun.getSummary());
+            }
+        }
+        catch (final InterruptedException e) {
+            logger.warn("Re-scoring was interrupted. It can be resumed from CandidateSession #{}", rescoringRun.getCheckpointXid());
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            executorService.shutdownNow();
+        }
+        final RescoringSummary summary = rescoringRun.getSummary();
+        logger.info("Re-scoring of Delivery #{} finished: {}", did, summary);
+        return summary;
+    }
+
+    //-------------------------------------------------
+
+    /**
+     * Tracks the progress of a single call to {@link DeliveryRescoringService#rescoreDelivery(long, long)}.
+     */
+    private final class RescoringRun {
+
+        private final List<List<Long>> batches;
+        private final boolean[] batchDone;
+        private final AtomicInteger rescoredCount = new AtomicInteger();
+        private final AtomicInteger skippedCount = new AtomicInteger();
+        private final List<Long> failedXids = Collections.synchronizedList(new ArrayList<Long>());
+
+        /** Index of first batch that has not yet been done */
+        private int checkpointBatchIndex;
+
+        public RescoringRun(final List<List<Long>> batches) {
+            this.batches = batches;
+            this.batchDone = new boolean[batches.size()];
+        }
+
+        public void rescoreBatch(final int batchIndex) {
+            final List<Long> batch = batches.get(batchIndex);
+            requestTimestampContext.setCurrentRequestTimestamp(new Date());
+            try {
+                recordRescored(batch, candidateSessionRescorer.rescoreCandidateSessions(batch));
+            }
+            catch (final RuntimeException e) {
+                logger.warn("Failed to re-score batch starting at CandidateSession #{}, so retrying its sessions individually", batch.get(0));
+                for (final Long xid : batch) {
+                    try {
+                        recordRescored(Collections.singletonList(xid),
+                                candidateSessionRescorer.rescoreCandidateSessions(Collections.singletonList(xid)));
+                    }
+                    catch (final RuntimeException e2) {
+                        logger.warn("Failed to re-score CandidateSession #" + xid, e2);
+                        failedXids.add(xid);
+                    }
+                }
+            }
+            finally {
+                requestTimestampContext.setCurrentRequestTimestamp(null);
+            }
+            recordBatchDone(batchIndex);
+        }
+
+        private void recordRescored(final List<Long> xids, final int rescored) {
+            rescoredCount.addAndGet(rescored);
+            skippedCount.addAndGet(xids.size() - rescored);
+        }
+
+        private synchronized void recordBatchDone(final int batchIndex) {
+            batchDone[batchIndex] = true;
+            final int oldCheckpointBatchIndex = checkpointBatchIndex;
+            while (checkpointBatchIndex < batchDone.length && batchDone[checkpointBatchIndex]) {
+                checkpointBatchIndex++;
+            }
+            if (checkpointBatchIndex!=oldCheckpointBatchIndex) {
+                logger.info("Re-scoring checkpoint: {}/{} batch(es) done, resume from CandidateSession #{}",
+                        new Object[] { checkpointBatchIndex, batches.size(), getCheckpointXid() });
+            }
+        }
+
+        /**
+         * Returns the ID of the first {@link CandidateSession} that may not yet have been dealt with,
+         * or null if everything has been done.
+         */
+        public synchronized Long getCheckpointXid() {
+            return checkpointBatchIndex < batches.size() ? batches.get(checkpointBatchIndex).get(0) : null;
+        }
+
+        public RescoringSummary getSummary() {
+            final List<Long> failedXidsCopy;
+            synchronized (failedXids) {
+                failedXidsCopy = new ArrayList<Long>(failedXids);
+            }
+            return new RescoringSummary(rescoredCount.get(), skippedCount.get(), failedXidsCopy);
+        }
+    }
+
+    /**
+     * Immutable summary of a re-scoring run.
+     */
+    public static final class RescoringSummary {
+
+        private final int rescoredCount;
+        private final int skippedCount;
+        private final int failedCount;
+        private final List<Long> failedXids;
+
+        RescoringSummary(final int rescoredCount, final int skippedCount, final List<Long> failedXids) {
+            this.rescoredCount = rescoredCount;
+            this.skippedCount = skippedCount;
+            this.failedCount = failedXids.size();
+            this.failedXids = Collections.unmodifiableList(failedXids);
+        }
+
+        public int getRescoredCount() {
+            return rescoredCount;
+        }
+
+        public int getSkippedCount() {
+            return skippedCount;
+        }
+
+        public int getFailedCount() {
+            return failedCount;
+        }
+
+        public List<Long> getFailedXids() {
+            return failedXids;
+        }
+
+        @Override
+        public String toString() {
+            return "rescored=" + rescoredCount
+                    + ",skipped=" + skippedCount
+                    + ",failed=" + failedCount
+                    + ",failedXids=" + failedXids;
+        }
+    }
+}
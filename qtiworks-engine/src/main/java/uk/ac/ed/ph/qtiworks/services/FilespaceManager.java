@@ -111,12 +111,52 @@ public final class FilespaceManager {
         return recursivelyDeleteDirectory(new File(assessmentPackage.getSandboxPath()));
     }
 
+    /**
+     * Moves the given freshly-populated sandbox (as created by {@link #createAssessmentPackageSandbox(User)})
+     * into the shared content store, at a location determined by the given content hash.
+     * <p>
+     * Returns the new location of the sandbox, or the original location if something is already
+     * stored for this hash or the move could not be performed.
+     */
+    public File moveAssessmentPackageSandboxToContentStore(final File sandboxDirectory, final String contentHash) {
+        Assert.notNull(sandboxDirectory, "sandboxDirectory");
+        Assert.notNull(contentHash, "contentHash");
+        final String contentStoreUri = getAssessmentPackageContentStoreBaseUri()
+                + "/" + contentHash.substring(0, 2)
+                + "/" + contentHash;
+        final File contentStoreDirectory = fileUriToFile(contentStoreUri);
+        if (contentStoreDirectory.exists()) {
+            logger.debug("Content store already contains {}, so leaving sandbox at {}", contentHash, sandboxDirectory);
+            return sandboxDirectory;
+        }
+        ServiceUtilities.ensureDirectoryCreated(contentStoreDirectory.getParentFile());
+        if (!sandboxDirectory.renameTo(contentStoreDirectory)) {
+            logger.warn("Failed to move sandbox {} into content store at {}, so leaving it in place",
+                    sandboxDirectory, contentStoreDirectory);
+            return sandboxDirectory;
+        }
+        return contentStoreDirectory;
+    }
+
+    /**
+     * Returns whether the given {@link AssessmentPackage} sandbox lives within the shared content
+     * store, and may therefore be shared between packages.
+     */
+    public boolean isInContentStore(final File sandboxDirectory) {
+        Assert.notNull(sandboxDirectory, "sandboxDirectory");
+        /* (Content store sandboxes always live at <store>/<prefix>/<hash>) */
+        final File contentStoreDirectory = fileUriToFile(getAssessmentPackageContentStoreBaseUri());
+        final File prefixDirectory = sandboxDirectory.getAbsoluteFile().getParentFile();
+        return prefixDirectory!=null && contentStoreDirectory.equals(prefixDirectory.getParentFile());
+    }
+
     public boolean deleteAssessmentPackageSandboxes(final User owner) {
         return recursivelyDeleteDirectory(getAssessmentPackageSandboxBaseUri(owner));
     }
 
     public boolean deleteAllAssessmentPackages() {
-        return recursivelyDeleteDirectory(getAssessmentPackageSandboxBaseUri());
+        return recursivelyDeleteDirectory(getAssessmentPackageSandboxBaseUri())
+                & recursivelyDeleteDirectory(getAssessmentPackageContentStoreBaseUri());
     }
 
     private String getAssessmentPackageSandboxBaseUri(final User owner) {
@@ -129,6 +169,11 @@ public final class FilespaceManager {
                 + "/assessments";
     }
 
+    private String getAssessmentPackageContentStoreBaseUri() {
+        return filesystemBaseDirectory.toURI().toString()
+                + "/packages";
+    }
+
     //-------------------------------------------------
 
     public File createCandidateUploadFile(final CandidateSession candidateSession) {
@@ -221,6 +266,31 @@ public final class FilespaceManager {
 
     //-------------------------------------------------
 
+    /**
+     * Returns the file used to keep recently used LTI nonces between restarts.
+     * (This will not necessarily exist.)
+     */
+    public File getLtiNonceSnapshotFile() {
+        return new File(obtainStateFolder(), "ltiNonces.bin");
+    }
+
+    /**
+     * Returns the file used to log which candidate sessions have deferred assessmentResults
+     * still to be written, so that these can be written after a restart.
+     * (This will not necessarily exist.)
+     */
+    public File getDirtyCandidateSessionLogFile() {
+        return new File(obtainStateFolder(), "dirtyCandidateSessions.bin");
+    }
+
+    private File obtainStateFolder() {
+        final String stateFolderUri = filesystemBaseDirectory.toURI().toString()
+                + "/state";
+        return ensureCreateDirectory(stateFolderUri);
+    }
+
+    //-------------------------------------------------
+
     /**
      * Deletes all assignment and candidate data from the system.
      * <p>
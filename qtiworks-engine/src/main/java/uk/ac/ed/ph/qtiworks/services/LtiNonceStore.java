@@ -0,0 +1,338 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.services;
+
+import uk.ac.ed.ph.qtiworks.config.beans.QtiWorksDeploymentSettings;
+import uk.ac.ed.ph.qtiworks.domain.DomainConstants;
+import uk.ac.ed.ph.qtiworks.domain.entities.LtiNonce;
+import uk.ac.ed.ph.qtiworks.services.dao.LtiNonceDao;
+
+import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+/**
+ * Records the OAuth nonces used in LTI launches so that replayed messages can be rejected.
+ * <p>
+ * Nonces are held in memory, grouped into buckets by message timestamp. Once a bucket is older
+ * than {@link DomainConstants#OAUTH_TIMESTAMP_MAX_AGE} it is discarded, as any message in it would
+ * now fail the OAuth timestamp check anyway.
+ * <p>
+ * The nonces held in memory are written out on shutdown and read back in on startup, so that
+ * messages can't be replayed across a restart. (They will be lost if QTIWorks does not shut down
+ * cleanly, in which case messages from the last {@link DomainConstants#OAUTH_TIMESTAMP_MAX_AGE}
+ * could be replayed unless nonces are also being shared via the database, as described below.)
+ * <p>
+ * If QTIWorks is running on more than one node then nonces may also be shared via the database
+ * by setting <code>qtiworks.lti.nonces.shared</code>. In this case, each new nonce is also checked
+ * against the database, and new nonces are written back in batches by {@link #flushPendingNonces()}.
+ * (So a replay sent to a different node before the next flush will not be detected.)
+ * <p>
+ * This is NO authorisation at this level.
+ *
+ * @see LtiOauthValidationService
+ * @see ScheduledService
+ *
+ * @author David McKain
+ */
+@Service
+public class LtiNonceStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(LtiNonceStore.class);
+
+    /** Width of each bucket of nonces (in milliseconds) */
+    private static final long BUCKET_DURATION = 60 * 1000L;
+
+    @Resource
+    private QtiWorksDeploymentSettings qtiWorksDeploymentSettings;
+
+    @Resource
+    private LtiNonceDao ltiNonceDao;
+
+    @Resource
+    private FilespaceManager filespaceManager;
+
+    /** Maps nonce keys (see {@link #makeNonceKey(String, String)}) to the bucket they were recorded in */
+    private final ConcurrentMap<String, Long> bucketByNonceKeyMap = new ConcurrentHashMap<String, Long>();
+
+    /** Nonce keys recorded in each bucket */
+    private final ConcurrentMap<Long, Queue<String>> nonceKeysByBucketMap = new ConcurrentHashMap<Long, Queue<String>>();
+
+    /** New nonces still to be written to the database (if nonces are shared) */
+    private final Queue<LtiNonce> pendingNonces = new ConcurrentLinkedQueue<LtiNonce>();
+
+    /** Guards bucket eviction */
+    private final Object evictionLock = new Object();
+
+    /** Buckets up to and including this one have been evicted */
+    private volatile long lastEvictedBucket = Long.MIN_VALUE;
+
+    //-------------------------------------------------
+
+    @PostConstruct
+    public void init() {
+        loadSnapshot(System.currentTimeMillis());
+    }
+
+    @PreDestroy
+    public void destroy() {
+        try {
+            flushPendingNonces();
+        }
+        catch (final RuntimeException e) {
+            logger.warn("Failed to write pending LTI nonces on shutdown", e);
+        }
+        saveSnapshot(System.currentTimeMillis());
+    }
+
+    //-------------------------------------------------
+
+    /**
+     * Records the given nonce, returning true if it had not been seen before or false if it has
+     * already been used.
+     * <p>
+     * This must only be called after the message timestamp has been checked.
+     *
+     * @param consumerKey consumer key the nonce was sent with, which must not be null
+     * @param nonce nonce to check, which must not be null
+     * @param messageTimestamp timestamp of the OAuth message (in milliseconds)
+     * @param currentTimestamp current time (in milliseconds)
+     */
+    public boolean recordNonce(final String consumerKey, final String nonce, final long messageTimestamp,
+            final long currentTimestamp) {
+        Assert.notNull(consumerKey, "consumerKey");
+        Assert.notNull(nonce, "nonce");
+        evictExpiredBuckets(currentTimestamp);
+
+        final Long bucket = Long.valueOf(messageTimestamp / BUCKET_DURATION);
+        if (bucket.longValue() <= lastEvictedBucket) {
+            /* (The timestamp check should stop this happening) */
+            return false;
+        }
+        final String nonceKey = makeNonceKey(consumerKey, nonce);
+        if (bucketByNonceKeyMap.putIfAbsent(nonceKey, bucket)!=null) {
+            return false;
+        }
+        obtainBucket(bucket).add(nonceKey);
+
+        if (qtiWorksDeploymentSettings.isLtiNoncesShared()) {
+            /* Check whether another node has seen this nonce, then queue it up to be recorded */
+            if (ltiNonceDao.findByNonceAndConsumerKey(nonce, consumerKey)!=null) {
+                return false;
+            }
+            final LtiNonce ltiNonce = new LtiNonce();
+            ltiNonce.setNonce(nonce);
+            ltiNonce.setConsumerKey(consumerKey);
+            ltiNonce.setMessageTimestamp(new Date(messageTimestamp));
+            pendingNonces.add(ltiNonce);
+        }
+        return true;
+    }
+
+    /**
+     * Writes any new nonces to the database, if nonces are being shared.
+     *
+     * @return number of nonces written
+     */
+    public int flushPendingNonces() {
+        final List<LtiNonce> ltiNonces = new ArrayList<LtiNonce>();
+        LtiNonce ltiNonce;
+        while ((ltiNonce = pendingNonces.poll())!=null) {
+            ltiNonces.add(ltiNonce);
+        }
+        if (ltiNonces.isEmpty()) {
+            return 0;
+        }
+        try {
+            ltiNonceDao.persistAll(ltiNonces);
+            return ltiNonces.size();
+        }
+        catch (final RuntimeException e) {
+            /* Probably another node has recorded one of these, so fall back to doing them one at a time */
+            logger.debug("Batch write of {} LTI nonces failed, so writing individually", ltiNonces.size());
+            int persistedCount = 0;
+            for (final LtiNonce failedNonce : ltiNonces) {
+                failedNonce.setId(null);
+                try {
+                    ltiNonceDao.persist(failedNonce);
+                    persistedCount++;
+                }
+                catch (final RuntimeException e2) {
+                    logger.warn("Could not record {}, which may have been replayed to another node", failedNonce);
+                }
+            }
+            return persistedCount;
+        }
+    }
+
+    /** Returns the number of nonces currently held in memory */
+    public int getNonceCount() {
+        return bucketByNonceKeyMap.size();
+    }
+
+    //-------------------------------------------------
+
+    /**
+     * Writes the nonces currently held in memory to the snapshot file, so that they can be
+     * reloaded by {@link #loadSnapshot(long)} on the next startup.
+     */
+    void saveSnapshot(final long currentTimestamp) {
+        evictExpiredBuckets(currentTimestamp);
+        final File snapshotFile = filespaceManager.getLtiNonceSnapshotFile();
+        DataOutputStream outputStream = null;
+        int nonceCount = 0;
+        try {
+            outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(snapshotFile)));
+            for (final Entry<String, Long> entry : bucketByNonceKeyMap.entrySet()) {
+                outputStream.writeLong(entry.getValue().longValue());
+                outputStream.writeUTF(entry.getKey());
+                nonceCount++;
+            }
+        }
+        catch (final IOException e) {
+            logger.warn("Failed to save LTI nonces to " + snapshotFile, e);
+            return;
+        }
+        finally {
+            ServiceUtilities.ensureClose(outputStream);
+        }
+        logger.info("Saved {} LTI nonce(s) to {}", nonceCount, snapshotFile);
+    }
+
+    /**
+     * Reloads any unexpired nonces saved by {@link #saveSnapshot(long)}. The snapshot file is
+     * deleted afterwards so that it can't be reused after a subsequent crash.
+     */
+    void loadSnapshot(final long currentTimestamp) {
+        final File snapshotFile = filespaceManager.getLtiNonceSnapshotFile();
+        if (!snapshotFile.isFile()) {
+            return;
+        }
+        evictExpiredBuckets(currentTimestamp);
+        DataInputStream inputStream = null;
+        int nonceCount = 0;
+        try {
+            inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)));
+            while (true) {
+                final Long bucket;
+                final String nonceKey;
+                try {
+                    bucket = Long.valueOf(inputStream.readLong());
+                    nonceKey = inputStream.readUTF();
+                }
+                catch (final EOFException e) {
+                    break;
+                }
+                if (bucket.longValue() > lastEvictedBucket && bucketByNonceKeyMap.putIfAbsent(nonceKey, bucket)==null) {
+                    obtainBucket(bucket).add(nonceKey);
+                    nonceCount++;
+                }
+            }
+        }
+        catch (final IOException e) {
+            logger.warn("Failed to load LTI nonces from " + snapshotFile, e);
+        }
+        finally {
+            ServiceUtilities.ensureClose(inputStream);
+        }
+        if (!snapshotFile.delete()) {
+            logger.warn("Could not delete LTI nonce snapshot file {}", snapshotFile);
+        }
+        logger.info("Loaded {} unexpired LTI nonce(s) from {}", nonceCount, snapshotFile);
+    }
+
+    private static String makeNonceKey(final String consumerKey, final String nonce) {
+        return consumerKey.length() + ":" + consumerKey + nonce;
+    }
+
+    private Queue<String> obtainBucket(final Long bucket) {
+        Queue<String> result = nonceKeysByBucketMap.get(bucket);
+        if (result==null) {
+            final Queue<String> newBucket = new ConcurrentLinkedQueue<String>();
+            result = nonceKeysByBucketMap.putIfAbsent(bucket, newBucket);
+            if (result==null) {
+                result = newBucket;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Discards all buckets whose nonces are all older than {@link DomainConstants#OAUTH_TIMESTAMP_MAX_AGE}
+     */
+    private void evictExpiredBuckets(final long currentTimestamp) {
+        final long expiredBucket = (currentTimestamp - DomainConstants.OAUTH_TIMESTAMP_MAX_AGE) / BUCKET_DURATION - 1;
+        if (expiredBucket <= lastEvictedBucket) {
+            return;
+        }
+        synchronized (evictionLock) {
+            if (expiredBucket <= lastEvictedBucket) {
+                return;
+            }
+            lastEvictedBucket = expiredBucket;
+            for (final Long bucket : nonceKeysByBucketMap.keySet()) {
+                if (bucket.longValue() <= expiredBucket) {
+                    final Queue<String> nonceKeys = nonceKeysByBucketMap.remove(bucket);
+                    for (final String nonceKey : nonceKeys) {
+                        bucketByNonceKeyMap.remove(nonceKey, bucket);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -60,6 +60,7 @@ import net.oauth.ParameterStyle;
 import net.oauth.client.OAuthClient;
 import net.oauth.client.OAuthResponseMessage;
 import net.oauth.client.httpclient4.HttpClient4;
+import net.oauth.http.HttpClient;
 
 import org.apache.commons.codec.binary.Base64;
 import org.slf4j.Logger;
@@ -164,14 +165,31 @@ public final class LtiOauthUtilities {
      * @throws QtiWorksLogicException
      */
     public static boolean sendLisResultMessage(final OAuthMessage lisResultMessage) {
+        return sendLisResultMessage(lisResultMessage, new HttpClient4());
+    }
+
+    /**
+     * Attempts to send the given LIS result message
+     * (constructed by {@link #createLisResultMessage(String, String, String, String, double)}
+     * to the corresponding LIS outcome service, using the given {@link HttpClient}.
+     * <p>
+     * This is useful for sharing a single pooled {@link HttpClient} over many messages,
+     * so that connections to outcome services can be reused.
+     *
+     * @param lisResultMessage LIS result message to be send to the outcome service
+     * @param httpClient {@link HttpClient} to send with
+     *
+     * @throws QtiWorksLogicException
+     */
+    public static boolean sendLisResultMessage(final OAuthMessage lisResultMessage, final HttpClient httpClient) {
         Assert.notNull(lisResultMessage, "lisResultMessage");
+        Assert.notNull(httpClient, "httpClient");
 
         /* Send message to TC result service endpoint */
         final OAuthResponseMessage oauthResponseMessage;
         try {
             logger.debug("Attempting to send OAuth message {}", lisResultMessage);
-            final HttpClient4 httpClient4 = new HttpClient4();
-            final OAuthClient client = new OAuthClient(httpClient4);
+            final OAuthClient client = new OAuthClient(httpClient);
             oauthResponseMessage = client.access(lisResultMessage, ParameterStyle.AUTHORIZATION_HEADER);
         }
         catch (final IOException e) {
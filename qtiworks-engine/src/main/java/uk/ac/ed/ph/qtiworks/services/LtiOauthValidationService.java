@@ -34,8 +34,6 @@
 package uk.ac.ed.ph.qtiworks.services;
 
 import uk.ac.ed.ph.qtiworks.domain.DomainConstants;
-import uk.ac.ed.ph.qtiworks.domain.entities.LtiNonce;
-import uk.ac.ed.ph.qtiworks.services.dao.LtiNonceDao;
 
 import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
 
@@ -44,7 +42,6 @@ import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -85,7 +82,7 @@ import org.springframework.transaction.annotation.Transactional;
 public class LtiOauthValidationService {
 
     @Resource
-    private LtiNonceDao ltiNonceDao;
+    private LtiNonceStore ltiNonceStore;
 
     /**
      * Names of parameters that may not appear twice in a valid message.
@@ -130,24 +127,18 @@ public class LtiOauthValidationService {
         validateVersion(oauthMessage, 1.0, 1.0);
         validateSignature(oauthMessage, oauthAccessor);
         validateTimestamp(messageTimestampSecs, currentTimestampMillis, DomainConstants.OAUTH_TIMESTAMP_MAX_AGE);
-        validateNonce(oauthMessage, messageTimestampSecs);
+        validateNonce(oauthMessage, messageTimestampSecs, currentTimestampMillis);
     }
 
-    private void validateNonce(final OAuthMessage message, final long messageTimestampSecs) throws IOException, OAuthProblemException {
+    private void validateNonce(final OAuthMessage message, final long messageTimestampSecs, final long currentTimestampMillis)
+            throws IOException, OAuthProblemException {
         /* Make sure this (nonce, consumer_key) pair hasn't already been recorded */
+        message.requireParameters(OAuth.OAUTH_NONCE);
         final String nonce = message.getParameter(OAuth.OAUTH_NONCE);
         final String consumerKey = message.getConsumerKey();
-        final LtiNonce existingNonce = ltiNonceDao.findByNonceAndConsumerKey(nonce, consumerKey);
-        if (existingNonce!=null) {
+        if (!ltiNonceStore.recordNonce(consumerKey, nonce, 1000L * messageTimestampSecs, currentTimestampMillis)) {
             throw new OAuthProblemException(OAuth.Problems.NONCE_USED);
         }
-
-        /* Record new nonce */
-        final LtiNonce ltiNonce = new LtiNonce();
-        ltiNonce.setNonce(nonce);
-        ltiNonce.setConsumerKey(consumerKey);
-        ltiNonce.setMessageTimestamp(new Date(1000L * messageTimestampSecs));
-        ltiNonceDao.persist(ltiNonce);
     }
 
     /**
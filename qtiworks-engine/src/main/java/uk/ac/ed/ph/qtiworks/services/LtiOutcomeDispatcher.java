@@ -0,0 +1,628 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.services;
+
+import uk.ac.ed.ph.qtiworks.config.QtiWorksProfiles;
+import uk.ac.ed.ph.qtiworks.config.beans.QtiWorksDeploymentSettings;
+import uk.ac.ed.ph.qtiworks.domain.entities.QueuedLtiOutcome;
+import uk.ac.ed.ph.qtiworks.services.domain.PendingLtiOutcome;
+
+import uk.ac.ed.ph.jqtiplus.internal.util.Pair;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+
+import net.oauth.OAuthMessage;
+import net.oauth.client.httpclient4.HttpClient4;
+import net.oauth.client.httpclient4.HttpClientPool;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Service;
+
+/**
+ * Sends {@link QueuedLtiOutcome}s back to the relevant LIS outcome services.
+ * <p>
+ * The queue is read in pages. The outcomes in each page are sent concurrently over a fixed
+ * pool of threads, and the results for the whole page are then recorded in a single transaction.
+ * No transaction is held open while outcomes are being sent.
+ * <p>
+ * To stop a single slow or broken Tool Consumer from holding everyone else up:
+ * <ul>
+ *   <li>
+ *     the number of concurrent sends to each outcome service URL is limited, as is the rate
+ *     at which outcomes are sent to it. Outcomes that would exceed these limits are rescheduled
+ *     for a little later, rather than tying up a sending thread while they wait.
+ *   </li>
+ *   <li>
+ *     outcome services that fail repeatedly are backed off for exponentially increasing periods.
+ *     Outcomes for services being backed off are left in the queue (without counting as failures)
+ *     until the next run.
+ *   </li>
+ * </ul>
+ * Only one outcome for each candidate session is ever in flight at a time, so that an older
+ * outcome can never overwrite a newer one at the Tool Consumer.
+ * <p>
+ * HTTP connections are pooled and reused between outcomes. Simple queue depth and latency
+ * metrics are available via {@link #getDispatcherStatus()}.
+ * <p>
+ * This is NO authorisation at this level.
+ *
+ * @see LtiOutcomeService
+ * @see ScheduledService
+ *
+ * @author David McKain
+ */
+@Service
+@Profile({QtiWorksProfiles.WEBAPP, QtiWorksProfiles.MANAGER})
+public class LtiOutcomeDispatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(LtiOutcomeDispatcher.class);
+
+    /** Number of consecutive failures after which we start backing off an outcome service */
+    private static final int BACKOFF_FAILURE_THRESHOLD = 3;
+
+    /** Initial backoff period (in milliseconds), which doubles after each subsequent failure */
+    private static final long INITIAL_BACKOFF = 15 * 1000L;
+
+    /** Maximum backoff period (in milliseconds) */
+    private static final long MAX_BACKOFF = 30 * 60 * 1000L;
+
+    /** Delay (in milliseconds) before retrying an outcome whose outcome service is already fully busy */
+    private static final long BUSY_RETRY_DELAY = 100L;
+
+    @Resource
+    private QtiWorksDeploymentSettings qtiWorksDeploymentSettings;
+
+    @Resource
+    private LtiOutcomeService ltiOutcomeService;
+
+    /** Guards against overlapping runs (e.g. from the scheduler and the engine manager) */
+    private final Lock dispatchLock = new ReentrantLock();
+
+    /** State of each outcome service we've sent to, keyed on its URL */
+    private final ConcurrentMap<String, OutcomeServiceState> outcomeServiceStateMap = new ConcurrentHashMap<String, OutcomeServiceState>();
+
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong deferredCount = new AtomicLong();
+    private final AtomicLong totalSendTime = new AtomicLong();
+    private final AtomicLong maxSendTime = new AtomicLong();
+    private final AtomicLong totalQueueLatency = new AtomicLong();
+    private final AtomicLong maxQueueLatency = new AtomicLong();
+    private volatile Date lastDispatchTime;
+    private volatile long lastDispatchDuration;
+
+    private PoolingHttpClientConnectionManager connectionManager;
+    private CloseableHttpClient httpClient;
+    private HttpClient4 oauthHttpClient;
+    private ScheduledExecutorService executorService;
+
+    //-------------------------------------------------
+
+    @PostConstruct
+    public void init() {
+        final int threadCount = Math.max(1, qtiWorksDeploymentSettings.getLtiOutcomeThreadCount());
+        final int timeout = Math.max(1, qtiWorksDeploymentSettings.getLtiOutcomeTimeout()) * 1000;
+
+        /* Create a single pooled HttpClient to share between all sends */
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(threadCount);
+        connectionManager.setDefaultMaxPerRoute(Math.max(1, qtiWorksDeploymentSettings.getLtiOutcomeConsumerConcurrency()));
+        final RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(timeout)
+                .setConnectionRequestTimeout(timeout)
+                .setSocketTimeout(timeout)
+                .build();
+        httpClient = HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .build();
+        oauthHttpClient = new HttpClient4(new HttpClientPool() {
+            @Override
+            public HttpClient getHttpClient(final URL server) {
+                return httpClient;
+            }
+        });
+
+        executorService = Executors.newScheduledThreadPool(threadCount, new DispatcherThreadFactory());
+    }
+
+    @PreDestroy
+    public void destroy() {
+        executorService.shutdownNow();
+        ServiceUtilities.ensureClose(httpClient);
+    }
+
+    //-------------------------------------------------
+
+    /**
+     * Attempts to send {@link QueuedLtiOutcome}s to the relevant LIS outcome services.
+     * <p>
+     * This will send all new {@link QueuedLtiOutcome}s and any previously failed ones if the
+     * current timestamp is greater than their retry time. This behaviour can be overridden,
+     * forcing ALL {@link QueuedLtiOutcome}s to be sent by setting the ignoreRetryTimes argument
+     * to true. Only the most recent outcome for each candidate session is sent, and never more
+     * than one at a time.
+     * <p>
+     * If this is already running then this call does nothing.
+     *
+     * @param ignoreRetryTimes set to true to ignore any retry times set after previous failures.
+     * @return Pair of integers: (number of outcome send failures, total outcomes sent)
+     *
+     * @see ScheduledService#sendNextQueuedLtiOutcomes()
+     */
+    public Pair<Integer, Integer> dispatchQueuedLtiOutcomes(final boolean ignoreRetryTimes) {
+        if (!dispatchLock.tryLock()) {
+            logger.debug("LTI outcome dispatch is already in progress");
+            return new Pair<Integer, Integer>(Integer.valueOf(0), Integer.valueOf(0));
+        }
+        int totalSendCount = 0;
+        int failedSendCount = 0;
+        try {
+            final long startTimestamp = System.currentTimeMillis();
+            final Date timestamp = new Date(startTimestamp);
+            final int pageSize = Math.max(1, qtiWorksDeploymentSettings.getLtiOutcomePageSize());
+            long afterQoid = 0L;
+            while (!Thread.currentThread().isInterrupted()) {
+                /* (New outcomes may have been queued while we were sending the last page) */
+                ltiOutcomeService.removeSupersededQueuedLtiOutcomes();
+                final List<PendingLtiOutcome> page = ltiOutcomeService.getNextPendingLtiOutcomes(afterQoid, timestamp, ignoreRetryTimes, pageSize);
+                if (page.isEmpty()) {
+                    break;
+                }
+                afterQoid = page.get(page.size()-1).getQoid();
+
+                final Map<Long, Boolean> sendResults = sendPage(page);
+                for (final Boolean successful : sendResults.values()) {
+                    totalSendCount++;
+                    if (!successful.booleanValue()) {
+                        failedSendCount++;
+                    }
+                }
+                ltiOutcomeService.recordLtiOutcomeSendResults(sendResults);
+                if (page.size() < pageSize) {
+                    break;
+                }
+            }
+            lastDispatchTime = timestamp;
+            lastDispatchDuration = System.currentTimeMillis() - startTimestamp;
+        }
+        finally {
+            dispatchLock.unlock();
+        }
+        return new Pair<Integer, Integer>(Integer.valueOf(failedSendCount), Integer.valueOf(totalSendCount));
+    }
+
+    /**
+     * Sends the given page of outcomes concurrently, returning a Map of {@link QueuedLtiOutcome}
+     * ID to success/failure for each outcome actually sent. (Deferred outcomes are omitted.)
+     */
+    private Map<Long, Boolean> sendPage(final List<PendingLtiOutcome> page) {
+        /* Only send the most recent outcome for each session. (Any others here will have been
+         * queued since we last removed superseded outcomes, and will be removed next time.)
+         */
+        final Map<Long, PendingLtiOutcome> latestOutcomeMap = new HashMap<Long, PendingLtiOutcome>();
+        for (final PendingLtiOutcome pendingLtiOutcome : page) {
+            final Long xid = Long.valueOf(pendingLtiOutcome.getXid());
+            final PendingLtiOutcome latestOutcome = latestOutcomeMap.get(xid);
+            if (latestOutcome==null || pendingLtiOutcome.getQoid() > latestOutcome.getQoid()) {
+                latestOutcomeMap.put(xid, pendingLtiOutcome);
+            }
+        }
+        List<SendTask> tasks = new ArrayList<SendTask>(latestOutcomeMap.size());
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(latestOutcomeMap.size());
+        for (final PendingLtiOutcome pendingLtiOutcome : page) {
+            if (latestOutcomeMap.get(Long.valueOf(pendingLtiOutcome.getXid()))==pendingLtiOutcome) {
+                final SendTask task = new SendTask(pendingLtiOutcome);
+                tasks.add(task);
+                futures.add(executorService.submit(task));
+            }
+        }
+
+        /* Gather results, rescheduling any sends that were held back by their outcome service's
+         * limits until the page is done.
+         */
+        final Map<Long, Boolean> result = new LinkedHashMap<Long, Boolean>();
+        while (!tasks.isEmpty()) {
+            final List<SendTask> retryTasks = new ArrayList<SendTask>();
+            final List<Future<Boolean>> retryFutures = new ArrayList<Future<Boolean>>();
+            for (int i=0; i<tasks.size(); i++) {
+                final SendTask task = tasks.get(i);
+                Boolean successful;
+                try {
+                    successful = futures.get(i).get();
+                }
+                catch (final ExecutionException e) {
+                    logger.warn("Unexpected Exception sending " + task.pendingLtiOutcome, e.getCause());
+                    successful = Boolean.FALSE;
+                }
+                catch (final InterruptedException e) {
+                    /* Leave the remaining outcomes for the next run */
+                    Thread.currentThread().interrupt();
+                    for (int j=i; j<futures.size(); j++) {
+                        futures.get(j).cancel(true);
+                    }
+                    for (final Future<Boolean> retryFuture : retryFutures) {
+                        retryFuture.cancel(true);
+                    }
+                    return result;
+                }
+                if (successful!=null) {
+                    result.put(Long.valueOf(task.pendingLtiOutcome.getQoid()), successful);
+                }
+                else if (task.retryDelay > 0L) {
+                    retryTasks.add(task);
+                    retryFutures.add(executorService.schedule(task, task.retryDelay, TimeUnit.MILLISECONDS));
+                }
+            }
+            tasks = retryTasks;
+            futures = retryFutures;
+        }
+        return result;
+    }
+
+    /**
+     * Attempts to send a single outcome, respecting the limits for its outcome service. Returns
+     * true on success or false on failure. Returns null if the outcome was not sent. In this case,
+     * {@link #retryDelay} will be positive if the outcome should be tried again after that delay
+     * because its outcome service is busy, or zero if the outcome is being deferred until the
+     * next run because its outcome service is currently being backed off.
+     */
+    private final class SendTask implements Callable<Boolean> {
+
+        private final PendingLtiOutcome pendingLtiOutcome;
+        private long retryDelay;
+
+        public SendTask(final PendingLtiOutcome pendingLtiOutcome) {
+            this.pendingLtiOutcome = pendingLtiOutcome;
+        }
+
+        @Override
+        public Boolean call() {
+            retryDelay = 0L;
+            if (pendingLtiOutcome.getConsumerKey()==null) {
+                /* (LtiOutcomeService will already have logged this) */
+                failedCount.incrementAndGet();
+                return Boolean.FALSE;
+            }
+            final OutcomeServiceState outcomeServiceState = obtainOutcomeServiceState(pendingLtiOutcome.getLisOutcomeServiceUrl());
+            if (outcomeServiceState.isBackingOff()) {
+                deferredCount.incrementAndGet();
+                return null;
+            }
+            if (!outcomeServiceState.tryAcquire()) {
+                retryDelay = BUSY_RETRY_DELAY;
+                return null;
+            }
+            try {
+                final long rateLimitDelay = outcomeServiceState.reserveSendSlot();
+                if (rateLimitDelay > 0L) {
+                    retryDelay = rateLimitDelay;
+                    return null;
+                }
+                return Boolean.valueOf(send(outcomeServiceState));
+            }
+            finally {
+                outcomeServiceState.release();
+            }
+        }
+
+        private boolean send(final OutcomeServiceState outcomeServiceState) {
+            final OAuthMessage lisResultMessage;
+            try {
+                lisResultMessage = LtiOauthUtilities.createLisResultMessage(pendingLtiOutcome.getLisOutcomeServiceUrl(),
+                        pendingLtiOutcome.getLisResultSourcedid(),
+                        pendingLtiOutcome.getConsumerKey(), pendingLtiOutcome.getConsumerSecret(),
+                        pendingLtiOutcome.getScore());
+            }
+            catch (final IllegalArgumentException e) {
+                logger.warn("Could not create LIS result message for " + pendingLtiOutcome, e);
+                failedCount.incrementAndGet();
+                return false;
+            }
+
+            final long sendStartTimestamp = System.currentTimeMillis();
+            final boolean successful = LtiOauthUtilities.sendLisResultMessage(lisResultMessage, oauthHttpClient);
+            final long sendEndTimestamp = System.currentTimeMillis();
+            recordMaximum(totalSendTime, maxSendTime, sendEndTimestamp - sendStartTimestamp);
+            if (successful) {
+                outcomeServiceState.recordSuccess();
+                sentCount.incrementAndGet();
+                final Date queuedTime = pendingLtiOutcome.getQueuedTime();
+                if (queuedTime!=null) {
+                    recordMaximum(totalQueueLatency, maxQueueLatency, sendEndTimestamp - queuedTime.getTime());
+                }
+            }
+            else {
+                outcomeServiceState.recordFailure(pendingLtiOutcome.getLisOutcomeServiceUrl());
+                failedCount.incrementAndGet();
+            }
+            return successful;
+        }
+    }
+
+    private OutcomeServiceState obtainOutcomeServiceState(final String lisOutcomeServiceUrl) {
+        OutcomeServiceState result = outcomeServiceStateMap.get(lisOutcomeServiceUrl);
+        if (result==null) {
+            final int consumerRate = qtiWorksDeploymentSettings.getLtiOutcomeConsumerRate();
+            final OutcomeServiceState newState = new OutcomeServiceState(
+                    Math.max(1, qtiWorksDeploymentSettings.getLtiOutcomeConsumerConcurrency()),
+                    consumerRate > 0 ? 1000L / consumerRate : 0L);
+            result = outcomeServiceStateMap.putIfAbsent(lisOutcomeServiceUrl, newState);
+            if (result==null) {
+                result = newState;
+            }
+        }
+        return result;
+    }
+
+    private static void recordMaximum(final AtomicLong total, final AtomicLong maximum, final long value) {
+        total.addAndGet(value);
+        long current;
+        do {
+            current = maximum.get();
+        } while (value > current && !maximum.compareAndSet(current, value));
+    }
+
+    //-------------------------------------------------
+
+    /**
+     * Concurrency limit, rate limit and backoff state for a single outcome service URL.
+     */
+    private static final class OutcomeServiceState {
+
+        private final Semaphore permits;
+        private final long minSendInterval;
+
+        private long nextSendTimestamp;
+        private int consecutiveFailureCount;
+        private long backoffUntilTimestamp;
+
+        public OutcomeServiceState(final int maxConcurrentSends, final long minSendInterval) {
+            this.permits = new Semaphore(maxConcurrentSends);
+            this.minSendInterval = minSendInterval;
+        }
+
+        public boolean tryAcquire() {
+            return permits.tryAcquire();
+        }
+
+        public void release() {
+            permits.release();
+        }
+
+        public boolean isBackingOff() {
+            return isBackingOff(System.currentTimeMillis());
+        }
+
+        public synchronized boolean isBackingOff(final long timestamp) {
+            return timestamp < backoffUntilTimestamp;
+        }
+
+        /**
+         * Reserves the right to send to this service now if the rate limit allows it, returning 0.
+         * Otherwise returns the time (in milliseconds) until the next send will be allowed.
+         */
+        public synchronized long reserveSendSlot() {
+            final long now = System.currentTimeMillis();
+            if (now < nextSendTimestamp) {
+                return nextSendTimestamp - now;
+            }
+            nextSendTimestamp = now + minSendInterval;
+            return 0L;
+        }
+
+        public synchronized void recordSuccess() {
+            consecutiveFailureCount = 0;
+            backoffUntilTimestamp = 0L;
+        }
+
+        public synchronized void recordFailure(final String lisOutcomeServiceUrl) {
+            consecutiveFailureCount++;
+            if (consecutiveFailureCount >= BACKOFF_FAILURE_THRESHOLD) {
+                final int doublings = Math.min(consecutiveFailureCount - BACKOFF_FAILURE_THRESHOLD, 16);
+                final long backoff = Math.min(MAX_BACKOFF, INITIAL_BACKOFF << doublings);
+                backoffUntilTimestamp = System.currentTimeMillis() + backoff;
+                logger.warn("Backing off LIS outcome service at {} for {}ms after {} consecutive failure(s)",
+                        new Object[] { lisOutcomeServiceUrl, backoff, consecutiveFailureCount });
+            }
+        }
+    }
+
+    /**
+     * Creates daemon threads for sending outcomes.
+     */
+    private static final class DispatcherThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadCounter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "qtiworks-lti-outcomes-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    //-------------------------------------------------
+
+    /** Returns a snapshot of the current queue depth and dispatch metrics */
+    public DispatcherStatus getDispatcherStatus() {
+        final long now = System.currentTimeMillis();
+        int backingOffCount = 0;
+        for (final OutcomeServiceState outcomeServiceState : outcomeServiceStateMap.values()) {
+            if (outcomeServiceState.isBackingOff(now)) {
+                backingOffCount++;
+            }
+        }
+        final long sent = sentCount.get();
+        final long failed = failedCount.get();
+        return new DispatcherStatus(ltiOutcomeService.countQueuedLtiOutcomes(),
+                sent, failed, deferredCount.get(),
+                sent + failed > 0 ? totalSendTime.get() / (sent + failed) : 0L, maxSendTime.get(),
+                sent > 0 ? totalQueueLatency.get() / sent : 0L, maxQueueLatency.get(),
+                backingOffCount, lastDispatchTime, lastDispatchDuration);
+    }
+
+    /**
+     * Immutable snapshot of queue depth and dispatch metrics. Times are in milliseconds.
+     */
+    public static final class DispatcherStatus {
+
+        private final long queueDepth;
+        private final long sentCount;
+        private final long failedCount;
+        private final long deferredCount;
+        private final long meanSendTime;
+        private final long maxSendTime;
+        private final long meanQueueLatency;
+        private final long maxQueueLatency;
+        private final int backingOffCount;
+        private final Date lastDispatchTime;
+        private final long lastDispatchDuration;
+
+        DispatcherStatus(final long queueDepth, final long sentCount, final long failedCount, final long deferredCount,
+                final long meanSendTime, final long maxSendTime,
+                final long meanQueueLatency, final long maxQueueLatency,
+                final int backingOffCount, final Date lastDispatchTime, final long lastDispatchDuration) {
+            this.queueDepth = queueDepth;
+            this.sentCount = sentCount;
+            this.failedCount = failedCount;
+            this.deferredCount = deferredCount;
+            this.meanSendTime = meanSendTime;
+            this.maxSendTime = maxSendTime;
+            this.meanQueueLatency = meanQueueLatency;
+            this.maxQueueLatency = maxQueueLatency;
+            this.backingOffCount = backingOffCount;
+            this.lastDispatchTime = lastDispatchTime;
+            this.lastDispatchDuration = lastDispatchDuration;
+        }
+
+        /** Number of outcomes currently queued */
+        public long getQueueDepth() {
+            return queueDepth;
+        }
+
+        /** Number of outcomes successfully sent since startup */
+        public long getSentCount() {
+            return sentCount;
+        }
+
+        /** Number of failed sends since startup */
+        public long getFailedCount() {
+            return failedCount;
+        }
+
+        /** Number of sends deferred since startup as their outcome service was being backed off */
+        public long getDeferredCount() {
+            return deferredCount;
+        }
+
+        /** Mean time taken by each send */
+        public long getMeanSendTime() {
+            return meanSendTime;
+        }
+
+        public long getMaxSendTime() {
+            return maxSendTime;
+        }
+
+        /** Mean time between outcomes being queued and successfully sent */
+        public long getMeanQueueLatency() {
+            return meanQueueLatency;
+        }
+
+        public long getMaxQueueLatency() {
+            return maxQueueLatency;
+        }
+
+        /** Number of outcome services currently being backed off */
+        public int getBackingOffCount() {
+            return backingOffCount;
+        }
+
+        public Date getLastDispatchTime() {
+            return lastDispatchTime;
+        }
+
+        public long getLastDispatchDuration() {
+            return lastDispatchDuration;
+        }
+
+        @Override
+        public String toString() {
+            return "queueDepth=" + queueDepth
+                    + ",sent=" + sentCount
+                    + ",failed=" + failedCount
+                    + ",deferred=" + deferredCount
+                    + ",meanSendTime=" + meanSendTime
+                    + ",maxSendTime=" + maxSendTime
+                    + ",meanQueueLatency=" + meanQueueLatency
+                    + ",maxQueueLatency=" + maxQueueLatency
+                    + ",backingOff=" + backingOffCount
+                    + ",lastDispatchTime=" + lastDispatchTime
+                    + ",lastDispatchDuration=" + lastDispatchDuration;
+        }
+    }
+}
@@ -45,13 +45,15 @@ import uk.ac.ed.ph.qtiworks.domain.entities.User;
 import uk.ac.ed.ph.qtiworks.domain.entities.UserType;
 import uk.ac.ed.ph.qtiworks.services.dao.CandidateSessionDao;
 import uk.ac.ed.ph.qtiworks.services.dao.QueuedLtiOutcomeDao;
+import uk.ac.ed.ph.qtiworks.services.domain.PendingLtiOutcome;
 
 import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
-import uk.ac.ed.ph.jqtiplus.internal.util.Pair;
 
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 
 import javax.annotation.Resource;
 
@@ -65,12 +67,14 @@ import org.springframework.transaction.annotation.Transactional;
 /**
  * This service is responsible for sending outcome data back to LTI Tool Consumers.
  * <p>
- * The actual work of this service is performed asynchronously via {@link ScheduledService},
+ * The actual work of this service is performed asynchronously via {@link LtiOutcomeDispatcher},
  * with some basic durability provided by persisting the data to be sent within the entity model.
+ * This service handles the queue of {@link QueuedLtiOutcome}s; the dispatcher does the sending.
  * <p>
  * This is NO authorisation at this level.
  *
  * @See CandidateSessionFinisher
+ * @see LtiOutcomeDispatcher
  * @see ScheduledService
  *
  * @author David McKain
@@ -133,70 +137,83 @@ public class LtiOutcomeService {
     //-------------------------------------------------
 
     /**
-     * Attempts to send {@link QueuedLtiOutcome}s to the relevant LIS result services.
-     * <p>
-     * This will send all new {@link QueuedLtiOutcome}s and any previously failed ones if the
-     * current timestamp is greater than their retry time. This behaviour can be overridden,
-     * forcing ALL {@link QueuedLtiOutcome}s to be send by setting the ignoreRetryTimes argument
-     * to true.
-     * <p>
-     * The logic here will check for duplicate {@link QueuedLtiOutcome}s for a given
-     * {@link CandidateSession}, only sending the most recent outcomes back.
-     * <p>
-     * Usage note: This MUST be called serially.
-     * <p>
-     * @param ignoreRetryTimes set to true to ignore any retry times set after previous failures.
-     * @return Pair of integers: (number of outcome send failures, total outcomes sent)
+     * Removes any {@link QueuedLtiOutcome}s for which a later outcome has been queued up for the
+     * same {@link CandidateSession}, so that only the most recent outcomes are sent back.
+     * (Duplicate outcomes can happen when delivering items, which can sometimes be re-opened
+     * by candidates.)
+     *
+     * @return number of {@link QueuedLtiOutcome}s removed
      *
-     * @see ScheduledService#sendNextQueuedLtiOutcomes()
+     * @see LtiOutcomeDispatcher
      */
-    public Pair<Integer, Integer> sendQueuedLtiOutcomes(final boolean ignoreRetryTimes) {
-        /* Look up all unsent outcomes */
-        final List<QueuedLtiOutcome> pendingOutcomes = queuedLtiOutcomeDao.getAllQueuedOutcomes();
-
-        /* Eliminate any duplicate outcomes for the same CandidateSession, always taking the newest
-         * outcome over any earlier ones. (Duplicate outcomes can happen when delivering items,
-         * which can sometimes be re-opened by candidates.)
-         */
-        final LinkedHashMap<Long, QueuedLtiOutcome> outcomesBySessionMap = new LinkedHashMap<Long, QueuedLtiOutcome>();
-        for (final QueuedLtiOutcome queuedLtiOutcome : pendingOutcomes) {
-            final CandidateSession candidateSession = queuedLtiOutcome.getCandidateSession();
+    public int removeSupersededQueuedLtiOutcomes() {
+        final List<QueuedLtiOutcome> supersededOutcomes = queuedLtiOutcomeDao.getSupersededQueuedOutcomes();
+        for (final QueuedLtiOutcome supersededOutcome : supersededOutcomes) {
+            final CandidateSession candidateSession = supersededOutcome.getCandidateSession();
             final User candidate = candidateSession.getCandidate();
-            final Long candidateSessionId = candidateSession.getId();
-            final QueuedLtiOutcome earlierQueuedOutcomeForSession = outcomesBySessionMap.get(candidateSessionId);
-            if (earlierQueuedOutcomeForSession!=null) {
-                /* Earlier outcome is queued up, so remove this in preference for this later outcome */
-                candidateSession.setLisOutcomeReportingStatus(LisOutcomeReportingStatus.TC_RETURN_SCHEDULED);
-                candidateSessionDao.update(candidateSession);
-                queuedLtiOutcomeDao.remove(earlierQueuedOutcomeForSession);
-                auditLogger.recordEvent(candidate, "De-queued LTI outcome #" + earlierQueuedOutcomeForSession.getId()
-                        + " as a later one for the same CandidateSession is already queued up");
-                logger.info("De-queued LTI outcome #{} as a later one for the same CandidateSession is already queued up",
-                        earlierQueuedOutcomeForSession.getId());
-            }
-            outcomesBySessionMap.put(candidateSessionId, queuedLtiOutcome);
+            candidateSession.setLisOutcomeReportingStatus(LisOutcomeReportingStatus.TC_RETURN_SCHEDULED);
+            candidateSessionDao.update(candidateSession);
+            queuedLtiOutcomeDao.remove(supersededOutcome);
+            auditLogger.recordEvent(candidate, "De-queued LTI outcome #" + supersededOutcome.getId()
+                    + " as a later one for the same CandidateSession is already queued up");
+            logger.info("De-queued LTI outcome #{} as a later one for the same CandidateSession is already queued up",
+                    supersededOutcome.getId());
         }
+        return supersededOutcomes.size();
+    }
 
-        /* Now attempt to send remaining outcomes to relevant result services */
-        final int totalSendCount = outcomesBySessionMap.size();
-        int failedSendCount = 0;
-        final Date timestamp = new Date();
-        for (final QueuedLtiOutcome queuedLtiOutcome : outcomesBySessionMap.values()) {
-            final Date retryTime = queuedLtiOutcome.getRetryTime();
-            if (ignoreRetryTimes || retryTime==null || retryTime.before(timestamp)) {
-                final boolean successful = handleQueuedLtiOutcome(queuedLtiOutcome);
-                if (!successful) {
-                    failedSendCount++;
-                }
+    /**
+     * Returns the next page of {@link QueuedLtiOutcome}s that should be sent, detached as
+     * {@link PendingLtiOutcome}s. These are new outcomes plus previously failed ones whose
+     * retry time has passed, unless ignoreRetryTimes is true, in which case all outcomes are
+     * returned.
+     *
+     * @param afterQoid only return outcomes with IDs greater than this
+     * @param timestamp timestamp to compare retry times with
+     * @param ignoreRetryTimes set to true to ignore any retry times set after previous failures.
+     * @param maxResults maximum number of outcomes to return
+     *
+     * @see LtiOutcomeDispatcher
+     */
+    @Transactional(readOnly=true, propagation=Propagation.REQUIRED)
+    public List<PendingLtiOutcome> getNextPendingLtiOutcomes(final long afterQoid, final Date timestamp,
+            final boolean ignoreRetryTimes, final int maxResults) {
+        final List<QueuedLtiOutcome> queuedOutcomes = ignoreRetryTimes
+                ? queuedLtiOutcomeDao.getQueuedOutcomesAfter(afterQoid, maxResults)
+                : queuedLtiOutcomeDao.getDueQueuedOutcomes(afterQoid, timestamp, maxResults);
+        final List<PendingLtiOutcome> result = new ArrayList<PendingLtiOutcome>(queuedOutcomes.size());
+        for (final QueuedLtiOutcome queuedOutcome : queuedOutcomes) {
+            result.add(createPendingLtiOutcome(queuedOutcome));
+        }
+        return result;
+    }
+
+    @Transactional(readOnly=true, propagation=Propagation.SUPPORTS)
+    public long countQueuedLtiOutcomes() {
+        return queuedLtiOutcomeDao.countQueuedOutcomes();
+    }
+
+    /**
+     * Records the results of attempting to send a batch of {@link PendingLtiOutcome}s. Successfully
+     * sent outcomes are removed from the queue. Failed outcomes are rescheduled, or removed if they
+     * have failed too many times already.
+     *
+     * @param sendResults Map of {@link QueuedLtiOutcome} ID to success/failure of the send
+     *
+     * @see LtiOutcomeDispatcher
+     */
+    public void recordLtiOutcomeSendResults(final Map<Long, Boolean> sendResults) {
+        for (final Entry<Long, Boolean> sendResult : sendResults.entrySet()) {
+            final QueuedLtiOutcome queuedLtiOutcome = queuedLtiOutcomeDao.findById(sendResult.getKey());
+            if (queuedLtiOutcome!=null) {
+                recordLtiOutcomeSendResult(queuedLtiOutcome, sendResult.getValue().booleanValue());
             }
         }
-        return new Pair<Integer, Integer>(Integer.valueOf(failedSendCount), Integer.valueOf(totalSendCount));
     }
 
-    private boolean handleQueuedLtiOutcome(final QueuedLtiOutcome queuedLtiOutcome) {
+    private void recordLtiOutcomeSendResult(final QueuedLtiOutcome queuedLtiOutcome, final boolean successful) {
         final CandidateSession candidateSession = queuedLtiOutcome.getCandidateSession();
         final User candidate = candidateSession.getCandidate();
-        final boolean successful = trySendQueuedLtiOutcome(queuedLtiOutcome);
         if (successful) {
             /* Outcome sent successfully, so remove from queue */
             candidateSession.setLisOutcomeReportingStatus(LisOutcomeReportingStatus.TC_RETURN_SUCCESS);
@@ -235,14 +252,14 @@ public class LtiOutcomeService {
                         new Object[] { failureCount+1, queuedLtiOutcome.getId(), candidateSession.getLisOutcomeServiceUrl() });
             }
         }
-        return successful;
     }
 
     /**
-     * Attempts to send the given {@link QueuedLtiOutcome} back to the corresponding LIS
-     * result service. Returns true if the result was successfully returned, false otherwise.
+     * Extracts the information needed to send the given {@link QueuedLtiOutcome} back to the
+     * corresponding LIS result service. The OAuth credentials will be null if the candidate is
+     * not an LTI user, in which case the outcome can't be sent.
      */
-    private boolean trySendQueuedLtiOutcome(final QueuedLtiOutcome queuedLtiOutcome) {
+    private PendingLtiOutcome createPendingLtiOutcome(final QueuedLtiOutcome queuedLtiOutcome) {
         /* Extract the information we need to send */
         final double normalizedScore = queuedLtiOutcome.getScore();
         final CandidateSession candidateSession = queuedLtiOutcome.getCandidateSession();
@@ -250,8 +267,10 @@ public class LtiOutcomeService {
         final String lisOutcomeServiceUrl = candidateSession.getLisOutcomeServiceUrl();
         final User candidate = candidateSession.getCandidate();
         if (candidate.getUserType()!=UserType.LTI) {
-            logger.warn("Candidate must be an LTI user - ignoring {}", queuedLtiOutcome);
-            return false;
+            logger.warn("Candidate must be an LTI user - {} can't be sent", queuedLtiOutcome);
+            return new PendingLtiOutcome(queuedLtiOutcome.getId().longValue(), candidateSession.getId().longValue(),
+                    queuedLtiOutcome.getCreationTime(),
+                    lisOutcomeServiceUrl, lisResultSourcedid, null, null, normalizedScore);
         }
         final LtiUser ltiCandidate = (LtiUser) candidate;
         final String ltiConsumerKey, ltiConsumerSecret;
@@ -272,8 +291,8 @@ public class LtiOutcomeService {
                 throw new QtiWorksLogicException("Unexpected switch case " + ltiCandidate.getLtiLaunchType());
         }
 
-        /* Now send the result */
-        return LtiOauthUtilities.sendLisResult(lisOutcomeServiceUrl, lisResultSourcedid,
-                ltiConsumerKey, ltiConsumerSecret, normalizedScore);
+        return new PendingLtiOutcome(queuedLtiOutcome.getId().longValue(), candidateSession.getId().longValue(),
+                queuedLtiOutcome.getCreationTime(),
+                lisOutcomeServiceUrl, lisResultSourcedid, ltiConsumerKey, ltiConsumerSecret, normalizedScore);
     }
 }
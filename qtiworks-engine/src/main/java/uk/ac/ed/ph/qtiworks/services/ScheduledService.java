@@ -39,6 +39,8 @@ import uk.ac.ed.ph.qtiworks.domain.DomainConstants;
 import uk.ac.ed.ph.jqtiplus.internal.util.Pair;
 
 import java.util.Date;
+import java.util.Map;
+import java.util.Map.Entry;
 
 import javax.annotation.Resource;
 
@@ -79,7 +81,16 @@ public class ScheduledService {
     private DataDeletionService dataDeletionService;
 
     @Resource
-    private LtiOutcomeService ltiOutcomeService;
+    private LtiOutcomeDispatcher ltiOutcomeDispatcher;
+
+    @Resource
+    private LtiNonceStore ltiNonceStore;
+
+    @Resource
+    private DeferredAssessmentResultTracker deferredAssessmentResultTracker;
+
+    @Resource
+    private DeferredAssessmentResultWriter deferredAssessmentResultWriter;
 
     //-------------------------------------------------
 
@@ -112,6 +123,49 @@ public class ScheduledService {
         dataDeletionService.purgeOldNonces(nonceThreshold);
     }
 
+    /**
+     * Writes recently used LTI nonces to the database, when these are being shared between nodes.
+     */
+    @Scheduled(fixedDelay=5*ONE_SECOND, initialDelay=5*ONE_SECOND)
+    public void flushLtiNonces() {
+        final int flushCount = ltiNonceStore.flushPendingNonces();
+        if (flushCount>0) {
+            logger.debug("flushLtiNonces() wrote {} nonce(s)", flushCount);
+        }
+    }
+
+    //-------------------------------------------------
+
+    /**
+     * Writes out the assessmentResults of candidate sessions that have been marked as dirty,
+     * when these are being deferred. (This only happens within the webapp.)
+     */
+    @Scheduled(fixedDelay=ONE_SECOND, initialDelay=ONE_SECOND)
+    public void writeDeferredAssessmentResults() {
+        if (!deferredAssessmentResultTracker.isEnabled()) {
+            return;
+        }
+        final Map<Long, Date> dueSessionMap = deferredAssessmentResultTracker.takeDueSessions();
+        if (dueSessionMap.isEmpty()) {
+            return;
+        }
+        final long beforeTimestamp = System.currentTimeMillis();
+        int writeCount = 0;
+        for (final Entry<Long, Date> entry : dueSessionMap.entrySet()) {
+            try {
+                if (deferredAssessmentResultWriter.writeAssessmentResult(entry.getKey().longValue(), entry.getValue())) {
+                    ++writeCount;
+                }
+            }
+            catch (final RuntimeException e) {
+                logger.warn("Failed to write deferred assessmentResult for CandidateSession #" + entry.getKey(), e);
+            }
+        }
+        deferredAssessmentResultTracker.compactLog();
+        final long duration = System.currentTimeMillis() - beforeTimestamp;
+        logger.debug("writeDeferredAssessmentResults() wrote {} result(s) in {}ms", writeCount, duration);
+    }
+
     //-------------------------------------------------
 
     /**
@@ -122,7 +176,7 @@ public class ScheduledService {
         logger.trace("sendNextQueuedLtiOutcomes() invoked");
 
         final long beforeTimestamp = System.currentTimeMillis();
-        final Pair<Integer, Integer> result = ltiOutcomeService.sendQueuedLtiOutcomes(false);
+        final Pair<Integer, Integer> result = ltiOutcomeDispatcher.dispatchQueuedLtiOutcomes(false);
         final long afterTimestamp = System.currentTimeMillis();
         final long duration = afterTimestamp - beforeTimestamp;
 
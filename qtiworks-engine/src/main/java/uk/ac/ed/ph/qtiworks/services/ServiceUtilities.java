@@ -48,11 +48,16 @@ import java.nio.charset.Charset;
 import java.security.SecureRandom;
 import java.util.Date;
 import java.util.Random;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.ZipFile;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.web.multipart.MultipartFile;
 
+import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
 
 /**
@@ -124,6 +129,28 @@ public final class ServiceUtilities {
         return Hashing.sha1().hashString(string, Charset.forName("UTF-8")).toString();
     }
 
+    /**
+     * Computes a hex-encoded SHA-256 digest of the data within the given {@link MultipartFile}
+     */
+    public static String computeSha256Digest(final MultipartFile multipartFile) {
+        final Hasher hasher = Hashing.sha256().newHasher();
+        final InputStream inputStream = ensureInputSream(multipartFile);
+        try {
+            final byte[] buffer = new byte[8192];
+            int count;
+            while ((count = inputStream.read(buffer)) != -1) {
+                hasher.putBytes(buffer, 0, count);
+            }
+        }
+        catch (final IOException e) {
+            throw new QtiWorksRuntimeException("Unexpected Exception reading data from MultipartFile", e);
+        }
+        finally {
+            ensureClose(inputStream);
+        }
+        return hasher.hash().toString();
+    }
+
     public static String createSalt() {
         final char[] saltBuilder = new char[DomainConstants.USER_PASSWORD_SALT_LENGTH];
         final Random random = new Random(System.currentTimeMillis());
@@ -179,6 +206,21 @@ public final class ServiceUtilities {
         }
     }
 
+    /**
+     * Closes the given {@link ZipFile}, if not null. (These are not {@link Closeable}
+     * on our baseline Java version.)
+     */
+    public static void ensureClose(final ZipFile zipFile) {
+        if (zipFile!=null) {
+            try {
+                zipFile.close();
+            }
+            catch (final IOException e) {
+                throw new QtiWorksRuntimeException("Unexpected failure to close ZIP file", e);
+            }
+        }
+    }
+
     /**
      * Simple method to ensure that a given File exists. If the File
      * does not exist then it is created, along with all required parent
@@ -275,4 +317,29 @@ public final class ServiceUtilities {
             ensureClose(fileInputStream);
         }
     }
+
+    /**
+     * Acquires the given {@link Lock}, holding it until the current transaction completes
+     * (whether committed or rolled back). This is used to keep other threads out until data
+     * written by this transaction becomes visible to them.
+     * <p>
+     * If there is no current transaction, this simply waits for any current holder of the
+     * lock to release it.
+     */
+    public static void lockUntilTransactionCompletes(final Lock lock) {
+        Assert.notNull(lock, "lock");
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(final int status) {
+                    lock.unlock();
+                }
+            });
+            lock.lock();
+        }
+        else {
+            lock.lock();
+            lock.unlock();
+        }
+    }
 }
@@ -0,0 +1,192 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.services;
+
+import uk.ac.ed.ph.qtiworks.QtiWorksRuntimeException;
+
+import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * {@link OutputStream} that collects data in memory, spilling over to a temporary file
+ * (created via the {@link FilespaceManager}) only once a given threshold is exceeded.
+ * <p>
+ * This is used to hold rendered output before it gets streamed to the client, which
+ * lets us send a clean error response if rendering fails part way through, without
+ * having to go through the filesystem in the common case of small pages.
+ * <p>
+ * Usage: write data, call {@link #close()}, then read it back via {@link #openInputStream()}.
+ * Always call {@link #release()} afterwards to remove any temporary file.
+ * <p>
+ * This is NOT safe for use by multiple threads.
+ *
+ * @author David McKain
+ */
+public final class SpillableOutputBuffer extends OutputStream {
+
+    private final FilespaceManager filespaceManager;
+    private final int memoryThreshold;
+
+    /** Bytes held in memory, used until threshold is exceeded */
+    private byte[] memoryBuffer;
+    private int memoryCount;
+
+    /** Temporary file used once threshold has been exceeded, null otherwise */
+    private File spillFile;
+    private OutputStream spillOutputStream;
+
+    private long length;
+    private boolean closed;
+
+    /**
+     * @param filespaceManager used to create the temporary file when required
+     * @param memoryThreshold maximum number of bytes to hold in memory. A value of 0 means
+     *   data always goes straight to a temporary file.
+     */
+    public SpillableOutputBuffer(final FilespaceManager filespaceManager, final int memoryThreshold) {
+        Assert.notNull(filespaceManager, "filespaceManager");
+        if (memoryThreshold < 0) {
+            throw new IllegalArgumentException("memoryThreshold must be non-negative");
+        }
+        this.filespaceManager = filespaceManager;
+        this.memoryThreshold = memoryThreshold;
+        this.memoryBuffer = new byte[Math.min(memoryThreshold, 8192)];
+        this.memoryCount = 0;
+        this.length = 0L;
+        this.closed = false;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] bytes, final int offset, final int count) throws IOException {
+        if (closed) {
+            throw new IOException("Buffer has been closed");
+        }
+        if (spillFile==null && memoryCount + count > memoryThreshold) {
+            spill();
+        }
+        if (spillFile!=null) {
+            spillOutputStream.write(bytes, offset, count);
+        }
+        else {
+            if (memoryCount + count > memoryBuffer.length) {
+                final int newSize = Math.min(memoryThreshold, Math.max(memoryBuffer.length * 2, memoryCount + count));
+                memoryBuffer = Arrays.copyOf(memoryBuffer, newSize);
+            }
+            System.arraycopy(bytes, offset, memoryBuffer, memoryCount, count);
+            memoryCount += count;
+        }
+        length += count;
+    }
+
+    private void spill() throws IOException {
+        spillFile = filespaceManager.createTempFile();
+        spillOutputStream = new BufferedOutputStream(new FileOutputStream(spillFile));
+        spillOutputStream.write(memoryBuffer, 0, memoryCount);
+        memoryBuffer = null;
+        memoryCount = 0;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (spillOutputStream!=null) {
+            spillOutputStream.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            if (spillOutputStream!=null) {
+                spillOutputStream.close();
+            }
+        }
+    }
+
+    /** Returns the number of bytes written to this buffer */
+    public long getLength() {
+        return length;
+    }
+
+    /** Returns whether data has spilled over into a temporary file */
+    public boolean isSpilled() {
+        return spillFile!=null;
+    }
+
+    /**
+     * Opens an {@link InputStream} for reading back the data written to this buffer,
+     * which must have been closed first. The caller is responsible for closing the result.
+     */
+    public InputStream openInputStream() throws IOException {
+        if (!closed) {
+            throw new IllegalStateException("Buffer must be closed before it can be read");
+        }
+        if (spillFile!=null) {
+            return new FileInputStream(spillFile);
+        }
+        else if (memoryBuffer!=null) {
+            return new ByteArrayInputStream(memoryBuffer, 0, memoryCount);
+        }
+        throw new IllegalStateException("Buffer has been released");
+    }
+
+    /**
+     * Releases the resources held by this buffer, deleting any temporary file.
+     */
+    public void release() {
+        ServiceUtilities.ensureClose(this);
+        memoryBuffer = null;
+        memoryCount = 0;
+        if (spillFile!=null) {
+            if (spillFile.exists() && !spillFile.delete()) {
+                throw new QtiWorksRuntimeException("Could not delete spill file " + spillFile.getPath());
+            }
+            spillFile = null;
+        }
+    }
+}
@@ -62,9 +62,6 @@ public class StandaloneValidationService {
     @Resource
     private AssessmentPackageFileService assessmentPackageFileService;
 
-    @Resource
-    private FilespaceManager filespaceManager;
-
     public AssessmentObjectValidationResult<?> importAndValidate(final MultipartFile multipartFile)
             throws AssessmentPackageDataImportException {
         Assert.notNull(multipartFile, "multipartFile");
@@ -74,7 +71,7 @@ public class StandaloneValidationService {
             return assessmentPackageFileService.loadAndValidateAssessment(temporaryPackage);
         }
         finally {
-            filespaceManager.deleteAssessmentPackageSandbox(temporaryPackage);
+            assessmentPackageFileService.deleteAssessmentPackageSandbox(temporaryPackage);
         }
     }
 }
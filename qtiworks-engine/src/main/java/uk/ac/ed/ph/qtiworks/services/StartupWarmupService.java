@@ -0,0 +1,334 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.services;
+
+import uk.ac.ed.ph.qtiworks.config.QtiWorksProfiles;
+import uk.ac.ed.ph.qtiworks.config.beans.QtiWorksDeploymentSettings;
+import uk.ac.ed.ph.qtiworks.domain.entities.AssessmentPackage;
+import uk.ac.ed.ph.qtiworks.rendering.AssessmentRenderer;
+import uk.ac.ed.ph.qtiworks.services.dao.AssessmentPackageDao;
+
+import uk.ac.ed.ph.jqtiplus.node.AssessmentObjectType;
+import uk.ac.ed.ph.jqtiplus.reading.QtiXmlReader;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.annotation.Profile;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.stereotype.Service;
+
+/**
+ * Warms up the engine once the webapp has started. This runs in the background and:
+ * <ul>
+ *   <li>precompiles all of the XSLT stylesheets used for rendering</li>
+ *   <li>precompiles the QTI (and extension) schemas used for validation</li>
+ *   <li>
+ *     loads the {@link AssessmentPackage}s used by candidate sessions that are still open
+ *     or were started recently, so that their processing maps are ready in the
+ *     {@link AssessmentObjectManagementService} cache
+ *   </li>
+ * </ul>
+ * The current progress can be obtained via {@link #getWarmupStatus()}, which is useful
+ * for readiness checks.
+ * <p>
+ * This is NO authorisation at this level.
+ *
+ * @author David McKain
+ */
+@Service
+@Profile(QtiWorksProfiles.WEBAPP)
+public class StartupWarmupService implements ApplicationListener<ContextRefreshedEvent> {
+
+    private static final Logger logger = LoggerFactory.getLogger(StartupWarmupService.class);
+
+    /** One day (in milliseconds) */
+    private static final long ONE_DAY = 24 * 60 * 60 * 1000L;
+
+    /** Overall state of the warm-up process */
+    public static enum WarmupState {
+        PENDING,
+        RUNNING,
+        COMPLETE,
+        DISABLED,
+        ;
+
+        public boolean isReady() {
+            return this==COMPLETE || this==DISABLED;
+        }
+    }
+
+    @Resource
+    private QtiWorksDeploymentSettings qtiWorksDeploymentSettings;
+
+    @Resource
+    private AssessmentRenderer assessmentRenderer;
+
+    @Resource
+    private QtiXmlReader qtiXmlReader;
+
+    @Resource
+    private AssessmentPackageDao assessmentPackageDao;
+
+    @Resource
+    private AssessmentObjectManagementService assessmentObjectManagementService;
+
+    /** Guards against starting more than once (refresh events propagate up from the MVC contexts) */
+    private final AtomicBoolean started = new AtomicBoolean(false);
+
+    private final AtomicInteger taskCount = new AtomicInteger();
+    private final AtomicInteger completedTaskCount = new AtomicInteger();
+    private final AtomicInteger failedTaskCount = new AtomicInteger();
+
+    private volatile WarmupState warmupState = WarmupState.PENDING;
+    private volatile ExecutorService executorService;
+
+    //-------------------------------------------------
+
+    @Override
+    public void onApplicationEvent(final ContextRefreshedEvent event) {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+        final int threadCount = qtiWorksDeploymentSettings.getWarmupThreadCount();
+        if (threadCount <= 0) {
+            logger.info("Startup warm-up is disabled");
+            warmupState = WarmupState.DISABLED;
+            return;
+        }
+        executorService = Executors.newFixedThreadPool(threadCount, new WarmupThreadFactory());
+        warmupState = WarmupState.RUNNING;
+        final Thread coordinatorThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWarmup();
+            }
+        }, "qtiworks-warmup");
+        coordinatorThread.setDaemon(true);
+        coordinatorThread.start();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (executorService!=null) {
+            executorService.shutdownNow();
+        }
+    }
+
+    //-------------------------------------------------
+
+    /** Returns a snapshot of the current warm-up progress */
+    public WarmupStatus getWarmupStatus() {
+        return new WarmupStatus(warmupState, taskCount.get(), completedTaskCount.get(), failedTaskCount.get());
+    }
+
+    /**
+     * Immutable snapshot of warm-up progress.
+     */
+    public static final class WarmupStatus {
+
+        private final WarmupState state;
+        private final int taskCount;
+        private final int completedTaskCount;
+        private final int failedTaskCount;
+
+        WarmupStatus(final WarmupState state, final int taskCount, final int completedTaskCount, final int failedTaskCount) {
+            this.state = state;
+            this.taskCount = taskCount;
+            this.completedTaskCount = completedTaskCount;
+            this.failedTaskCount = failedTaskCount;
+        }
+
+        public WarmupState getState() {
+            return state;
+        }
+
+        public boolean isReady() {
+            return state.isReady();
+        }
+
+        public int getTaskCount() {
+            return taskCount;
+        }
+
+        public int getCompletedTaskCount() {
+            return completedTaskCount;
+        }
+
+        public int getFailedTaskCount() {
+            return failedTaskCount;
+        }
+
+        @Override
+        public String toString() {
+            return "state=" + state
+                    + ",tasks=" + taskCount
+                    + ",completed=" + completedTaskCount
+                    + ",failed=" + failedTaskCount;
+        }
+    }
+
+    //-------------------------------------------------
+
+    private void runWarmup() {
+        final long startTimestamp = System.currentTimeMillis();
+        logger.info("Startup warm-up starting");
+        try {
+            final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (final URI stylesheetUri : assessmentRenderer.getRenderingStylesheetUris()) {
+                tasks.add(new WarmupTask("stylesheet " + stylesheetUri) {
+                    @Override
+                    protected void doWork() {
+                        assessmentRenderer.precompileStylesheet(stylesheetUri);
+                    }
+                });
+            }
+            final Set<String> schemaUris = new HashSet<String>(qtiXmlReader.getRegisteredSchemaMap().values());
+            for (final String schemaUri : schemaUris) {
+                tasks.add(new WarmupTask("schema " + schemaUri) {
+                    @Override
+                    protected void doWork() {
+                        qtiXmlReader.precompileSchema(schemaUri);
+                    }
+                });
+            }
+            tasks.addAll(createAssessmentPackageTasks());
+
+            taskCount.set(tasks.size());
+            executorService.invokeAll(tasks);
+        }
+        catch (final InterruptedException e) {
+            logger.info("Startup warm-up was interrupted");
+            Thread.currentThread().interrupt();
+            return;
+        }
+        catch (final RuntimeException e) {
+            logger.warn("Unexpected Exception during startup warm-up", e);
+        }
+        finally {
+            executorService.shutdown();
+        }
+        warmupState = WarmupState.COMPLETE;
+        logger.info("Startup warm-up completed in {}ms ({})",
+                System.currentTimeMillis() - startTimestamp, getWarmupStatus());
+    }
+
+    private List<Callable<Void>> createAssessmentPackageTasks() {
+        final List<Callable<Void>> result = new ArrayList<Callable<Void>>();
+        final int maxPackageCount = qtiWorksDeploymentSettings.getWarmupPackageCount();
+        if (maxPackageCount <= 0) {
+            return result;
+        }
+        final Date creationTime = new Date(System.currentTimeMillis()
+                - qtiWorksDeploymentSettings.getWarmupPackageDays() * ONE_DAY);
+        final List<AssessmentPackage> assessmentPackages = assessmentPackageDao.getSelectedForRecentCandidateSessions(creationTime, maxPackageCount);
+        for (final AssessmentPackage assessmentPackage : assessmentPackages) {
+            result.add(new WarmupTask("assessment package #" + assessmentPackage.getId()) {
+                @Override
+                protected void doWork() {
+                    if (assessmentPackage.getAssessmentType()==AssessmentObjectType.ASSESSMENT_ITEM) {
+                        assessmentObjectManagementService.getItemProcessingMap(assessmentPackage);
+                    }
+                    else {
+                        assessmentObjectManagementService.getTestProcessingMap(assessmentPackage);
+                    }
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * Base for each warm-up task. Failures are logged and counted but otherwise ignored,
+     * as the work will simply be redone on demand later.
+     */
+    private abstract class WarmupTask implements Callable<Void> {
+
+        private final String description;
+
+        public WarmupTask(final String description) {
+            this.description = description;
+        }
+
+        protected abstract void doWork();
+
+        @Override
+        public Void call() {
+            final long startTimestamp = System.currentTimeMillis();
+            try {
+                doWork();
+                completedTaskCount.incrementAndGet();
+                logger.debug("Warmed up {} in {}ms", description, System.currentTimeMillis() - startTimestamp);
+            }
+            catch (final RuntimeException e) {
+                failedTaskCount.incrementAndGet();
+                logger.warn("Failed to warm up " + description, e);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Creates low priority daemon threads, so that warm-up doesn't hold up shutdown
+     * or compete too much with real requests.
+     */
+    private static final class WarmupThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadCounter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "qtiworks-warmup-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }
+    }
+}
@@ -152,13 +152,14 @@ public class CandidateItemDeliveryService extends CandidateServiceBase {
         final CandidateEvent candidateEvent = candidateDataService.recordCandidateItemEvent(candidateSession, CandidateItemEventType.ENTER, itemSessionState, notificationRecorder);
         candidateAuditLogger.logCandidateEvent(candidateEvent);
 
-        /* Record current result state */
-        final AssessmentResult assessmentResult = candidateDataService.computeAndRecordItemAssessmentResult(candidateSession, itemSessionController);
-
-        /* Handle immediate end of session */
+        /* Record current result state, handling immediate end of session */
         if (itemSessionState.isEnded()) {
+            final AssessmentResult assessmentResult = candidateDataService.computeAndRecordItemAssessmentResult(candidateSession, itemSessionController);
             candidateSessionFinisher.finishCandidateSession(candidateSession, assessmentResult);
         }
+        else {
+            candidateDataService.updateItemAssessmentResult(candidateSession, itemSessionController);
+        }
 
         return candidateSession;
     }
@@ -317,8 +318,8 @@ public class CandidateItemDeliveryService extends CandidateServiceBase {
         /* Link and persist CandidateResponse entities */
         for (final CandidateResponse candidateResponse : candidateResponseMap.values()) {
             candidateResponse.setCandidateEvent(candidateEvent);
-            candidateResponseDao.persist(candidateResponse);
         }
+        candidateResponseDao.persistAll(candidateResponseMap.values());
 
         /* Record current result state, or finish session */
         return updateSessionFinishedStatus(candidateSession, itemSessionController);
@@ -328,11 +329,12 @@ public class CandidateItemDeliveryService extends CandidateServiceBase {
             final ItemSessionController itemSessionController) {
         /* Record current result state and maybe close session */
         final ItemSessionState itemSessionState = itemSessionController.getItemSessionState();
-        final AssessmentResult assessmentResult = candidateDataService.computeAndRecordItemAssessmentResult(candidateSession, itemSessionController);
         if (itemSessionState.isEnded()) {
+            final AssessmentResult assessmentResult = candidateDataService.computeAndRecordItemAssessmentResult(candidateSession, itemSessionController);
             candidateSessionFinisher.finishCandidateSession(candidateSession, assessmentResult);
         }
         else {
+            candidateDataService.updateItemAssessmentResult(candidateSession, itemSessionController);
             if (candidateSession.isFinished()) {
                 /* (Session is being reopened) */
                 candidateSession.setFinishTime(null);
@@ -566,10 +568,13 @@ public class CandidateItemDeliveryService extends CandidateServiceBase {
         }
 
         /* Record current result state, and maybe close session */
-        final AssessmentResult assessmentResult = candidateDataService.computeAndRecordItemAssessmentResult(candidateSession, itemSessionController);
         if (isClosingSession) {
+            final AssessmentResult assessmentResult = candidateDataService.computeAndRecordItemAssessmentResult(candidateSession, itemSessionController);
             candidateSessionFinisher.finishCandidateSession(candidateSession, assessmentResult);
         }
+        else {
+            candidateDataService.updateItemAssessmentResult(candidateSession, itemSessionController);
+        }
 
         /* Record and log event */
         final CandidateEvent candidateEvent = candidateDataService.recordCandidateItemEvent(candidateSession, CandidateItemEventType.SOLUTION, itemSessionState);
@@ -34,7 +34,7 @@
 package uk.ac.ed.ph.qtiworks.services.candidate;
 
 import uk.ac.ed.ph.qtiworks.QtiWorksLogicException;
-import uk.ac.ed.ph.qtiworks.QtiWorksRuntimeException;
+import uk.ac.ed.ph.qtiworks.config.beans.QtiWorksDeploymentSettings;
 import uk.ac.ed.ph.qtiworks.domain.entities.AssessmentPackage;
 import uk.ac.ed.ph.qtiworks.domain.entities.CandidateEvent;
 import uk.ac.ed.ph.qtiworks.domain.entities.CandidateEventNotification;
@@ -60,6 +60,7 @@ import uk.ac.ed.ph.qtiworks.services.AssessmentDataService;
 import uk.ac.ed.ph.qtiworks.services.AssessmentPackageFileService;
 import uk.ac.ed.ph.qtiworks.services.FilespaceManager;
 import uk.ac.ed.ph.qtiworks.services.ServiceUtilities;
+import uk.ac.ed.ph.qtiworks.services.SpillableOutputBuffer;
 import uk.ac.ed.ph.qtiworks.services.dao.CandidateSessionDao;
 import uk.ac.ed.ph.qtiworks.services.domain.OutputStreamer;
 import uk.ac.ed.ph.qtiworks.web.candidate.CandidateSessionContext;
@@ -76,10 +77,8 @@ import uk.ac.ed.ph.jqtiplus.state.TestSessionState;
 import uk.ac.ed.ph.jqtiplus.validation.AssessmentObjectValidationResult;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.util.Date;
 import java.util.List;
@@ -106,6 +105,9 @@ public class CandidateRenderingService extends CandidateServiceBase {
     @Resource
     private AssessmentPackageFileService assessmentPackageFileService;
 
+    @Resource
+    private QtiWorksDeploymentSettings qtiWorksDeploymentSettings;
+
     @Resource
     private FilespaceManager filespaceManager;
 
@@ -141,30 +143,17 @@ public class CandidateRenderingService extends CandidateServiceBase {
         /* Make sure this session is for an item */
         assertSessionType(candidateSessionContext, AssessmentObjectType.ASSESSMENT_ITEM);
 
-        /* Create temporary file to hold the output before it gets streamed */
-        final File resultFile = filespaceManager.createTempFile();
+        /* Render into a buffer, so that nothing is sent to the caller if rendering fails */
+        final SpillableOutputBuffer resultBuffer = createRenderingResultBuffer();
         try {
-            /* Render to temp file */
-            FileOutputStream resultOutputStream = null;
-            try {
-                resultOutputStream = new FileOutputStream(resultFile);
-                final StreamResult streamResult = new StreamResult(resultOutputStream);
-                renderCurrentCandidateItemSessionState(candidateSessionContext, renderingOptions, streamResult);
-            }
-            catch (final IOException e) {
-                throw new QtiWorksRuntimeException("Unexpected IOException", e);
-            }
-            finally {
-                ServiceUtilities.ensureClose(resultOutputStream);
-            }
+            renderCurrentCandidateItemSessionState(candidateSessionContext, renderingOptions, new StreamResult(resultBuffer));
+            resultBuffer.close();
 
             /* Finally stream to caller */
-            streamRenderingResultFile(resultFile, outputStreamer, renderingOptions);
+            streamRenderingResult(resultBuffer, outputStreamer, renderingOptions);
         }
         finally {
-            if (!resultFile.delete()) {
-                throw new QtiWorksRuntimeException("Could not delete result file " + resultFile.getPath());
-            }
+            resultBuffer.release();
         }
     }
 
@@ -270,29 +259,17 @@ public class CandidateRenderingService extends CandidateServiceBase {
         /* Load the ItemSessionState */
         final ItemSessionState itemSessionState = candidateDataService.loadItemSessionState(latestEvent);
 
-        /* Create temporary file to hold the output before it gets streamed */
-        final File resultFile = filespaceManager.createTempFile();
+        /* Render into a buffer, so that nothing is sent to the caller if rendering fails */
+        final SpillableOutputBuffer resultBuffer = createRenderingResultBuffer();
         try {
-            /* Render to temp file */
-            FileOutputStream resultOutputStream = null;
-            try {
-                resultOutputStream = new FileOutputStream(resultFile);
-                renderItemEventAuthorView(candidateSessionContext, latestEvent, itemSessionState, renderingOptions, new StreamResult(resultOutputStream));
-            }
-            catch (final IOException e) {
-                throw new QtiWorksRuntimeException("Unexpected IOException", e);
-            }
-            finally {
-                ServiceUtilities.ensureClose(resultOutputStream);
-            }
+            renderItemEventAuthorView(candidateSessionContext, latestEvent, itemSessionState, renderingOptions, new StreamResult(resultBuffer));
+            resultBuffer.close();
 
             /* Finally stream to caller */
-            streamRenderingResultFile(resultFile, outputStreamer, renderingOptions);
+            streamRenderingResult(resultBuffer, outputStreamer, renderingOptions);
         }
         finally {
-            if (!resultFile.delete()) {
-                throw new QtiWorksRuntimeException("Could not delete result file " + resultFile.getPath());
-            }
+            resultBuffer.release();
         }
     }
 
@@ -328,30 +305,17 @@ public class CandidateRenderingService extends CandidateServiceBase {
         /* Make sure this session is for an item */
         assertSessionType(candidateSessionContext, AssessmentObjectType.ASSESSMENT_TEST);
 
-        /* Create temporary file to hold the output before it gets streamed */
-        final File resultFile = filespaceManager.createTempFile();
+        /* Render into a buffer, so that nothing is sent to the caller if rendering fails */
+        final SpillableOutputBuffer resultBuffer = createRenderingResultBuffer();
         try {
-            /* Render to temp file */
-            FileOutputStream resultOutputStream = null;
-            try {
-                resultOutputStream = new FileOutputStream(resultFile);
-                final StreamResult streamResult = new StreamResult(resultOutputStream);
-                renderCurrentCandidateTestSessionState(candidateSessionContext, renderingOptions, streamResult);
-            }
-            catch (final IOException e) {
-                throw new QtiWorksRuntimeException("Unexpected IOException", e);
-            }
-            finally {
-                ServiceUtilities.ensureClose(resultOutputStream);
-            }
+            renderCurrentCandidateTestSessionState(candidateSessionContext, renderingOptions, new StreamResult(resultBuffer));
+            resultBuffer.close();
 
             /* Finally stream to caller */
-            streamRenderingResultFile(resultFile, outputStreamer, renderingOptions);
+            streamRenderingResult(resultBuffer, outputStreamer, renderingOptions);
         }
         finally {
-            if (!resultFile.delete()) {
-                throw new QtiWorksRuntimeException("Could not delete result file " + resultFile.getPath());
-            }
+            resultBuffer.release();
         }
     }
 
@@ -454,29 +418,17 @@ public class CandidateRenderingService extends CandidateServiceBase {
         final TestSessionState testSessionState = candidateDataService.loadTestSessionState(latestEvent);
         final TestSessionController testSessionController = createTestSessionController(candidateSession, testSessionState);
 
-        /* Create temporary file to hold the output before it gets streamed */
-        final File resultFile = filespaceManager.createTempFile();
+        /* Render into a buffer, so that nothing is sent to the caller if rendering fails */
+        final SpillableOutputBuffer resultBuffer = createRenderingResultBuffer();
         try {
-            /* Render to temp file */
-            FileOutputStream resultOutputStream = null;
-            try {
-                resultOutputStream = new FileOutputStream(resultFile);
-                renderTestEventAuthorView(candidateSessionContext, latestEvent, testSessionController, renderingOptions, new StreamResult(resultOutputStream));
-            }
-            catch (final IOException e) {
-                throw new QtiWorksRuntimeException("Unexpected IOException", e);
-            }
-            finally {
-                ServiceUtilities.ensureClose(resultOutputStream);
-            }
+            renderTestEventAuthorView(candidateSessionContext, latestEvent, testSessionController, renderingOptions, new StreamResult(resultBuffer));
+            resultBuffer.close();
 
             /* Finally stream to caller */
-            streamRenderingResultFile(resultFile, outputStreamer, renderingOptions);
+            streamRenderingResult(resultBuffer, outputStreamer, renderingOptions);
         }
         finally {
-            if (!resultFile.delete()) {
-                throw new QtiWorksRuntimeException("Could not delete result file " + resultFile.getPath());
-            }
+            resultBuffer.release();
         }
     }
 
@@ -565,15 +517,12 @@ public class CandidateRenderingService extends CandidateServiceBase {
         /* Get most recent event */
         final CandidateEvent mostRecentEvent = assertSessionEntered(candidateSession);
 
-        /* Generate result Object from current state */
-        final File sessionStateFile = candidateDataService.ensureSessionStateFile(mostRecentEvent);
-
         /* Record action */
         candidateAuditLogger.logAction(candidateSession, "ACCESS_STATE");
 
-        /* Stream result file */
+        /* Stream current state as XML */
         final Date lastModifiedTime = mostRecentEvent.getTimestamp();
-        ServiceUtilities.streamFile(sessionStateFile, "application/xml", lastModifiedTime, outputStreamer);
+        candidateDataService.streamSessionStateXml(mostRecentEvent, lastModifiedTime, outputStreamer);
     }
 
     //----------------------------------------------------
@@ -654,6 +603,7 @@ public class CandidateRenderingService extends CandidateServiceBase {
         renderingRequest.setRenderingOptions(renderingOptions);
         renderingRequest.setAssessmentResourceLocator(assessmentPackageFileService.createResolvingResourceLocator(assessmentPackage));
         renderingRequest.setAssessmentResourceUri(assessmentPackageFileService.createAssessmentObjectUri(assessmentPackage));
+        renderingRequest.setAssessmentPackageId(assessmentPackage.getId());
         renderingRequest.setAuthorMode(candidateSession.isAuthorMode());
         renderingRequest.setValidated(assessmentPackage.isValidated());
         renderingRequest.setLaunchable(assessmentPackage.isLaunchable());
@@ -665,25 +615,22 @@ public class CandidateRenderingService extends CandidateServiceBase {
     //----------------------------------------------------
     // Result streaming
 
-    private void streamRenderingResultFile(final File resultFile, final OutputStreamer outputStreamer,
+    private SpillableOutputBuffer createRenderingResultBuffer() {
+        return new SpillableOutputBuffer(filespaceManager, qtiWorksDeploymentSettings.getRenderingBufferSizeKb() * 1024);
+    }
+
+    private void streamRenderingResult(final SpillableOutputBuffer resultBuffer, final OutputStreamer outputStreamer,
             final AbstractRenderingOptions renderingOptions)
             throws IOException {
         final String contentType = renderingOptions.getSerializationMethod().getContentType();
-        final long contentLength = resultFile.length();
-        FileInputStream resultInputStream = null;
+        final long contentLength = resultBuffer.getLength();
+        InputStream resultInputStream = null;
         try {
-            resultInputStream = new FileInputStream(resultFile);
+            resultInputStream = resultBuffer.openInputStream();
             outputStreamer.stream(contentType, contentLength,
                     requestTimestampContext.getCurrentRequestTimestamp(), /* Use request time, which is less accurate than it could be */
                     resultInputStream);
         }
-        catch (final FileNotFoundException e) {
-            throw new QtiWorksRuntimeException("Unexpected IOException", e);
-        }
-        catch (final IOException e) {
-            /* Streamer threw Exception */
-            throw e;
-        }
         finally {
             ServiceUtilities.ensureClose(resultInputStream);
         }
@@ -162,13 +162,14 @@ public class CandidateTestDeliveryService extends CandidateServiceBase {
                 CandidateTestEventType.ENTER_TEST, testSessionState, notificationRecorder);
         candidateAuditLogger.logCandidateEvent(candidateEvent);
 
-        /* Record current result state */
-        final AssessmentResult assessmentResult = candidateDataService.computeAndRecordTestAssessmentResult(candidateSession, testSessionController);
-
-        /* Handle immediate end of test session */
+        /* Record current result state, handling immediate end of test session */
         if (testSessionState.isEnded()) {
+            final AssessmentResult assessmentResult = candidateDataService.computeAndRecordTestAssessmentResult(candidateSession, testSessionController);
             candidateSessionFinisher.finishCandidateSession(candidateSession, assessmentResult);
         }
+        else {
+            candidateDataService.updateTestAssessmentResult(candidateSession, testSessionController);
+        }
 
         return candidateSession;
     }
@@ -306,11 +307,11 @@ public class CandidateTestDeliveryService extends CandidateServiceBase {
         /* Persist CandidateResponse entities */
         for (final CandidateResponse candidateResponse : candidateResponseMap.values()) {
             candidateResponse.setCandidateEvent(candidateEvent);
-            candidateResponseDao.persist(candidateResponse);
         }
+        candidateResponseDao.persistAll(candidateResponseMap.values());
 
         /* Record current result state */
-        candidateDataService.computeAndRecordTestAssessmentResult(candidateSession, testSessionController);
+        candidateDataService.updateTestAssessmentResult(candidateSession, testSessionController);
 
         /* Save any change to session state */
         candidateSessionDao.update(candidateSession);
@@ -347,7 +348,7 @@ public class CandidateTestDeliveryService extends CandidateServiceBase {
         }
 
         /* Record current result state */
-        candidateDataService.computeAndRecordTestAssessmentResult(candidateSession, testSessionController);
+        candidateDataService.updateTestAssessmentResult(candidateSession, testSessionController);
 
         /* Record and log event */
         final CandidateEvent candidateEvent = candidateDataService.recordCandidateTestEvent(candidateSession,
@@ -384,7 +385,7 @@ public class CandidateTestDeliveryService extends CandidateServiceBase {
         }
 
         /* Record current result state */
-        candidateDataService.computeAndRecordTestAssessmentResult(candidateSession, testSessionController);
+        candidateDataService.updateTestAssessmentResult(candidateSession, testSessionController);
 
         /* Record and log event */
         final CandidateEvent candidateTestEvent = candidateDataService.recordCandidateTestEvent(candidateSession,
@@ -426,13 +427,15 @@ public class CandidateTestDeliveryService extends CandidateServiceBase {
         final Date requestTimestamp = requestTimestampContext.getCurrentRequestTimestamp();
         final TestPlanNode nextItemNode = testSessionController.advanceItemLinear(requestTimestamp);
 
-        /* Record current result state */
-        final AssessmentResult assessmentResult = candidateDataService.computeAndRecordTestAssessmentResult(candidateSession, testSessionController);
-
-        /* If we ended the testPart and there are now no more available testParts, then finish the session now */
+        /* Record current result state. If we ended the testPart and there are now no more
+         * available testParts, then finish the session now */
         if (nextItemNode==null && testSessionController.findNextEnterableTestPart()==null) {
+            final AssessmentResult assessmentResult = candidateDataService.computeAndRecordTestAssessmentResult(candidateSession, testSessionController);
             candidateSessionFinisher.finishCandidateSession(candidateSession, assessmentResult);
         }
+        else {
+            candidateDataService.updateTestAssessmentResult(candidateSession, testSessionController);
+        }
 
         /* Record and log event */
         final CandidateTestEventType eventType = nextItemNode!=null ? CandidateTestEventType.FINISH_ITEM : CandidateTestEventType.FINISH_FINAL_ITEM;
@@ -475,13 +478,14 @@ public class CandidateTestDeliveryService extends CandidateServiceBase {
         final Date requestTimestamp = requestTimestampContext.getCurrentRequestTimestamp();
         testSessionController.endCurrentTestPart(requestTimestamp);
 
-        /* Record current result */
-        final AssessmentResult assessmentResult = candidateDataService.computeAndRecordTestAssessmentResult(candidateSession, testSessionController);
-
-        /* If there are now no more available testParts, finish the session now */
+        /* Record current result. If there are now no more available testParts, finish the session now */
         if (testSessionController.findNextEnterableTestPart()==null) {
+            final AssessmentResult assessmentResult = candidateDataService.computeAndRecordTestAssessmentResult(candidateSession, testSessionController);
             candidateSessionFinisher.finishCandidateSession(candidateSession, assessmentResult);
         }
+        else {
+            candidateDataService.updateTestAssessmentResult(candidateSession, testSessionController);
+        }
 
         /* Record and log event */
         final CandidateEvent candidateTestEvent = candidateDataService.recordCandidateTestEvent(candidateSession,
@@ -551,7 +555,7 @@ public class CandidateTestDeliveryService extends CandidateServiceBase {
         }
 
         /* Record current result state */
-        candidateDataService.computeAndRecordTestAssessmentResult(candidateSession, testSessionController);
+        candidateDataService.updateTestAssessmentResult(candidateSession, testSessionController);
 
         /* Record and log event */
         final CandidateEvent candidateTestEvent = candidateDataService.recordCandidateTestEvent(candidateSession,
@@ -594,7 +598,7 @@ public class CandidateTestDeliveryService extends CandidateServiceBase {
         }
 
         /* Record current result state */
-        candidateDataService.computeAndRecordTestAssessmentResult(candidateSession, testSessionController);
+        candidateDataService.updateTestAssessmentResult(candidateSession, testSessionController);
 
         /* Record and log event */
         final CandidateEvent candidateTestEvent = candidateDataService.recordCandidateTestEvent(candidateSession,
@@ -656,7 +660,7 @@ public class CandidateTestDeliveryService extends CandidateServiceBase {
         }
 
         /* Record current result state */
-        candidateDataService.computeAndRecordTestAssessmentResult(candidateSession, testSessionController);
+        candidateDataService.updateTestAssessmentResult(candidateSession, testSessionController);
 
         /* Record and log event */
         final CandidateEvent candidateTestEvent = candidateDataService.recordCandidateTestEvent(candidateSession,
@@ -36,6 +36,7 @@ package uk.ac.ed.ph.qtiworks.services.dao;
 import uk.ac.ed.ph.qtiworks.domain.entities.Assessment;
 import uk.ac.ed.ph.qtiworks.domain.entities.AssessmentPackage;
 
+import java.util.Date;
 import java.util.List;
 
 import javax.persistence.EntityManager;
@@ -73,6 +74,39 @@ public class AssessmentPackageDao extends GenericDao<AssessmentPackage> {
         return query.getResultList();
     }
 
+    /**
+     * Returns the currently selected {@link AssessmentPackage}s of Assessments having candidate
+     * sessions that are still open or were created on or after the given time, newest first.
+     */
+    public List<AssessmentPackage> getSelectedForRecentCandidateSessions(final Date creationTime, final int maxResults) {
+        final TypedQuery<AssessmentPackage> query = em.createNamedQuery("AssessmentPackage.getSelectedForRecentCandidateSessions", AssessmentPackage.class);
+        query.setParameter("creationTime", creationTime);
+        query.setMaxResults(maxResults);
+        return query.getResultList();
+    }
+
+    /**
+     * Returns all {@link AssessmentPackage}s created from uploaded data having the given
+     * content hash, newest first.
+     */
+    public List<AssessmentPackage> getForContentHash(final String contentHash) {
+        final TypedQuery<AssessmentPackage> query = em.createNamedQuery("AssessmentPackage.getForContentHash", AssessmentPackage.class);
+        query.setParameter("contentHash", contentHash);
+        return query.getResultList();
+    }
+
+    /**
+     * Counts the number of {@link AssessmentPackage}s other than the given one that use the same
+     * sandbox as it.
+     */
+    public long countOthersSharingSandbox(final AssessmentPackage assessmentPackage) {
+        final Long apid = assessmentPackage.getId();
+        final TypedQuery<Long> query = em.createNamedQuery("AssessmentPackage.countOthersSharingSandbox", Long.class);
+        query.setParameter("sandboxPath", assessmentPackage.getSandboxPath());
+        query.setParameter("apid", apid!=null ? apid : Long.valueOf(-1L));
+        return query.getSingleResult().longValue();
+    }
+
     public List<AssessmentPackage> getAll() {
         final TypedQuery<AssessmentPackage> query = em.createNamedQuery("AssessmentPackage.getAll", AssessmentPackage.class);
         return query.getResultList();
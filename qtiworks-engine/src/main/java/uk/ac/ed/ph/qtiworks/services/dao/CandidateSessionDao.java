@@ -119,6 +119,32 @@ public class CandidateSessionDao extends GenericDao<CandidateSession> {
         return query.getResultList();
     }
 
+    public List<Long> getIdsForDelivery(final long did, final long firstXid) {
+        final TypedQuery<Long> query = em.createNamedQuery("CandidateSession.getIdsForDelivery", Long.class);
+        query.setParameter("did", Long.valueOf(did));
+        query.setParameter("firstXid", Long.valueOf(firstXid));
+        return query.getResultList();
+    }
+
+    /**
+     * Returns a page of the raw data needed to summarise the {@link CandidateSession}s having
+     * recorded outcomes in the given {@link Delivery}, ordered by ID. This avoids loading
+     * entities into the persistence context, so is suitable for very large deliveries.
+     * <p>
+     * Each row is: xid, creationTime, candidate firstName, candidate lastName, candidate emailAddress,
+     * finishTime, terminationTime, exploded, lisOutcomeReportingStatus, lisScore.
+     *
+     * @param afterXid only sessions with ID greater than this are returned
+     * @param maxResults maximum number of rows to return
+     */
+    public List<Object[]> getSummaryDataForDelivery(final Delivery delivery, final long afterXid, final int maxResults) {
+        final TypedQuery<Object[]> query = em.createNamedQuery("CandidateSession.getSummaryDataForDelivery", Object[].class);
+        query.setParameter("delivery", delivery);
+        query.setParameter("afterXid", Long.valueOf(afterXid));
+        query.setMaxResults(maxResults);
+        return query.getResultList();
+    }
+
     public List<CandidateSession> getNonTerminatedForDeliveryAndCandidate(final Delivery delivery, final User candidate) {
         final TypedQuery<CandidateSession> query = em.createNamedQuery("CandidateSession.getNonTerminatedForDeliveryAndCandidate", CandidateSession.class);
         query.setParameter("delivery", delivery);
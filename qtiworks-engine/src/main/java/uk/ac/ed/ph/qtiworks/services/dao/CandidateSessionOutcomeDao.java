@@ -37,6 +37,7 @@ import uk.ac.ed.ph.qtiworks.domain.entities.CandidateSession;
 import uk.ac.ed.ph.qtiworks.domain.entities.CandidateSessionOutcome;
 import uk.ac.ed.ph.qtiworks.domain.entities.Delivery;
 
+import java.util.Collection;
 import java.util.List;
 
 import javax.persistence.EntityManager;
@@ -70,12 +71,32 @@ public class CandidateSessionOutcomeDao extends GenericDao<CandidateSessionOutco
         return query.getResultList();
     }
 
-    public List<CandidateSessionOutcome> getForDelivery(final Delivery delivery) {
-        final TypedQuery<CandidateSessionOutcome> query = em.createNamedQuery("CandidateSessionOutcome.getForDelivery", CandidateSessionOutcome.class);
+    /**
+     * Returns the distinct (outcomeIdentifier, baseType, cardinality) combinations recorded
+     * for the given {@link Delivery}, in the order they were first recorded.
+     * <p>
+     * Each row is: outcomeIdentifier, baseType, cardinality, first xoid.
+     */
+    public List<Object[]> getOutcomeTypesForDelivery(final Delivery delivery) {
+        final TypedQuery<Object[]> query = em.createNamedQuery("CandidateSessionOutcome.getOutcomeTypesForDelivery", Object[].class);
         query.setParameter("delivery", delivery);
         return query.getResultList();
     }
 
+    /**
+     * Returns the raw outcome values recorded for the {@link CandidateSession}s having the given
+     * IDs, ordered by session.
+     * <p>
+     * Each row is: xid, outcomeIdentifier, baseType, cardinality, stringValue.
+     *
+     * @param xids IDs of the required sessions, which must not be empty
+     */
+    public List<Object[]> getValuesForSessionIds(final Collection<Long> xids) {
+        final TypedQuery<Object[]> query = em.createNamedQuery("CandidateSessionOutcome.getValuesForSessionIds", Object[].class);
+        query.setParameter("xids", xids);
+        return query.getResultList();
+    }
+
     public int deleteForCandidateSession(final CandidateSession candidateSession) {
         final Query query = em.createNamedQuery("CandidateSessionOutcome.deleteForSession");
         query.setParameter("candidateSession", candidateSession);
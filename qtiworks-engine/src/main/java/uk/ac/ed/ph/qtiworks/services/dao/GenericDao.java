@@ -40,6 +40,7 @@ import uk.ac.ed.ph.qtiworks.services.RequestTimestampContext;
 
 import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
 
+import java.util.Collection;
 import java.util.List;
 
 import javax.annotation.Resource;
@@ -149,6 +150,17 @@ public abstract class GenericDao<E extends BaseEntity> {
         return entity;
     }
 
+    /**
+     * Persists all of the given new entities within the same transaction. Inserts are deferred
+     * until the transaction is flushed, allowing them to be sent to the database in JDBC batches.
+     */
+    @Transactional(readOnly=false, propagation=Propagation.REQUIRED)
+    public void persistAll(final Collection<? extends E> entities) {
+        for (final E entity : entities) {
+            persist(entity);
+        }
+    }
+
     @Transactional(readOnly=false, propagation=Propagation.REQUIRED)
     public void remove(final E entity) {
         try {
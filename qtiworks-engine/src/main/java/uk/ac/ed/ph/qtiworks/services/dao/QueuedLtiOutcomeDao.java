@@ -35,10 +35,12 @@ package uk.ac.ed.ph.qtiworks.services.dao;
 
 import uk.ac.ed.ph.qtiworks.domain.entities.QueuedLtiOutcome;
 
+import java.util.Date;
 import java.util.List;
 
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
 import javax.persistence.TypedQuery;
 
 import org.springframework.stereotype.Repository;
@@ -61,8 +63,28 @@ public class QueuedLtiOutcomeDao extends GenericDao<QueuedLtiOutcome> {
         super(QueuedLtiOutcome.class);
     }
 
-    public List<QueuedLtiOutcome> getAllQueuedOutcomes() {
-        final TypedQuery<QueuedLtiOutcome> query = em.createNamedQuery("QueuedLtiOutcome.getAllQueuedOutcomes", QueuedLtiOutcome.class);
+    public List<QueuedLtiOutcome> getDueQueuedOutcomes(final long afterQoid, final Date timestamp, final int maxResults) {
+        final TypedQuery<QueuedLtiOutcome> query = em.createNamedQuery("QueuedLtiOutcome.getDueQueuedOutcomes", QueuedLtiOutcome.class);
+        query.setParameter("afterQoid", Long.valueOf(afterQoid));
+        query.setParameter("timestamp", timestamp);
+        query.setMaxResults(maxResults);
         return query.getResultList();
     }
+
+    public List<QueuedLtiOutcome> getQueuedOutcomesAfter(final long afterQoid, final int maxResults) {
+        final TypedQuery<QueuedLtiOutcome> query = em.createNamedQuery("QueuedLtiOutcome.getQueuedOutcomesAfter", QueuedLtiOutcome.class);
+        query.setParameter("afterQoid", Long.valueOf(afterQoid));
+        query.setMaxResults(maxResults);
+        return query.getResultList();
+    }
+
+    public List<QueuedLtiOutcome> getSupersededQueuedOutcomes() {
+        final TypedQuery<QueuedLtiOutcome> query = em.createNamedQuery("QueuedLtiOutcome.getSupersededQueuedOutcomes", QueuedLtiOutcome.class);
+        return query.getResultList();
+    }
+
+    public long countQueuedOutcomes() {
+        final Query query = em.createNamedQuery("QueuedLtiOutcome.countQueuedOutcomes");
+        return extractCountResult(query);
+    }
 }
@@ -0,0 +1,119 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.services.domain;
+
+import uk.ac.ed.ph.qtiworks.domain.entities.QueuedLtiOutcome;
+
+import uk.ac.ed.ph.jqtiplus.internal.util.ObjectUtilities;
+
+import java.util.Date;
+
+/**
+ * Detached copy of the data required to send a {@link QueuedLtiOutcome} back to an LIS
+ * outcome service. This allows outcomes to be sent outside of any transaction.
+ *
+ * @author David McKain
+ */
+public final class PendingLtiOutcome {
+
+    private final long qoid;
+    private final long xid;
+    private final Date queuedTime;
+    private final String lisOutcomeServiceUrl;
+    private final String lisResultSourcedid;
+    private final String consumerKey;
+    private final String consumerSecret;
+    private final double score;
+
+    public PendingLtiOutcome(final long qoid, final long xid, final Date queuedTime,
+            final String lisOutcomeServiceUrl, final String lisResultSourcedid,
+            final String consumerKey, final String consumerSecret, final double score) {
+        this.qoid = qoid;
+        this.xid = xid;
+        this.queuedTime = ObjectUtilities.safeClone(queuedTime);
+        this.lisOutcomeServiceUrl = lisOutcomeServiceUrl;
+        this.lisResultSourcedid = lisResultSourcedid;
+        this.consumerKey = consumerKey;
+        this.consumerSecret = consumerSecret;
+        this.score = score;
+    }
+
+    public long getQoid() {
+        return qoid;
+    }
+
+    public long getXid() {
+        return xid;
+    }
+
+    public Date getQueuedTime() {
+        return ObjectUtilities.safeClone(queuedTime);
+    }
+
+    public String getLisOutcomeServiceUrl() {
+        return lisOutcomeServiceUrl;
+    }
+
+    public String getLisResultSourcedid() {
+        return lisResultSourcedid;
+    }
+
+    /** Returns the OAuth consumer key to use, or null if this outcome can't be sent */
+    public String getConsumerKey() {
+        return consumerKey;
+    }
+
+    /** Returns the OAuth consumer secret to use, or null if this outcome can't be sent */
+    public String getConsumerSecret() {
+        return consumerSecret;
+    }
+
+    public double getScore() {
+        return score;
+    }
+
+    @Override
+    public String toString() {
+        /* (Deliberately omits the consumer secret) */
+        return getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(this))
+                + "(qoid=" + qoid
+                + ",xid=" + xid
+                + ",queuedTime=" + queuedTime
+                + ",lisOutcomeServiceUrl=" + lisOutcomeServiceUrl
+                + ",lisResultSourcedid=" + lisResultSourcedid
+                + ",consumerKey=" + consumerKey
+                + ",score=" + score
+                + ")";
+    }
+}
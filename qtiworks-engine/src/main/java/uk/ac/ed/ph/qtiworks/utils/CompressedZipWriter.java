@@ -0,0 +1,387 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.utils;
+
+import uk.ac.ed.ph.qtiworks.QtiWorksLogicException;
+
+import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Minimal ZIP file writer that writes entries which have already been compressed, as
+ * {@link ZipOutputStream} insists on doing the compression itself.
+ * <p>
+ * This allows entries to be compressed in parallel (see {@link #compressEntry(String, byte[], long)})
+ * and then written out in order, or for data that is already held in compressed form to be written
+ * without compressing it again. ZIP64 records are written automatically when required.
+ * <p>
+ * Usage is: call {@link #writeEntry(CompressedEntry)} for each entry, then {@link #finish()}.
+ * <p>
+ * This class is NOT thread safe.
+ *
+ * @author David McKain
+ */
+public final class CompressedZipWriter {
+
+    private static final int LOCAL_FILE_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_FILE_HEADER_SIGNATURE = 0x02014b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+
+    /** General purpose flag indicating that names are encoded in UTF-8 */
+    private static final int UTF8_FLAG = 0x0800;
+
+    private static final int VERSION_DEFAULT = 20;
+    private static final int VERSION_ZIP64 = 45;
+
+    private static final long MAX_32 = 0xffffffffL;
+    private static final int MAX_16 = 0xffff;
+
+    private final OutputStream outputStream;
+    private final List<CentralRecord> centralRecords;
+    private long offset;
+    private boolean finished;
+
+    public CompressedZipWriter(final OutputStream outputStream) {
+        Assert.notNull(outputStream, "outputStream");
+        this.outputStream = outputStream;
+        this.centralRecords = new ArrayList<CentralRecord>();
+        this.offset = 0L;
+        this.finished = false;
+    }
+
+    //-------------------------------------------------
+
+    /**
+     * Compresses the given data for writing as a ZIP entry. This is safe to call concurrently.
+     * Data that does not compress will be stored as-is.
+     *
+     * @param name name of the ZIP entry, which must not be null
+     * @param data uncompressed data, which must not be null
+     * @param time modification time for the entry
+     */
+    public static CompressedEntry compressEntry(final String name, final byte[] data, final long time) {
+        Assert.notNull(name, "name");
+        Assert.notNull(data, "data");
+        final CRC32 crc32 = new CRC32();
+        crc32.update(data);
+
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        final ByteArrayOutputStream compressedStream = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            final byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                final int count = deflater.deflate(buffer);
+                compressedStream.write(buffer, 0, count);
+            }
+        }
+        finally {
+            deflater.end();
+        }
+        if (compressedStream.size() >= data.length) {
+            return new CompressedEntry(name, time, ZipEntry.STORED, crc32.getValue(), data.length, data);
+        }
+        return new CompressedEntry(name, time, ZipEntry.DEFLATED, crc32.getValue(), data.length, compressedStream.toByteArray());
+    }
+
+    /**
+     * Writes the given entry to the underlying stream.
+     */
+    public void writeEntry(final CompressedEntry entry) throws IOException {
+        Assert.notNull(entry, "entry");
+        if (finished) {
+            throw new IllegalStateException("ZIP has already been finished");
+        }
+        final byte[] nameBytes = entry.getNameBytes();
+        final int dosTime = toDosTime(entry.getTime());
+
+        /* Local file header. (Entry sizes always fit into 32 bits here, so ZIP64 is never needed) */
+        writeInt(LOCAL_FILE_HEADER_SIGNATURE);
+        writeShort(VERSION_DEFAULT);
+        writeShort(UTF8_FLAG);
+        writeShort(entry.getMethod());
+        writeInt(dosTime);
+        writeInt((int) entry.getCrc());
+        writeInt(entry.getCompressedData().length);
+        writeInt((int) entry.getSize());
+        writeShort(nameBytes.length);
+        writeShort(0);
+        writeBytes(nameBytes);
+
+        centralRecords.add(new CentralRecord(entry, dosTime, offset));
+        offset += 30 + nameBytes.length;
+
+        writeBytes(entry.getCompressedData());
+        offset += entry.getCompressedData().length;
+    }
+
+    /**
+     * Writes the ZIP central directory and flushes the underlying stream. This must be called
+     * once all entries have been written. The underlying stream is not closed.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        final long centralDirectoryOffset = offset;
+        for (final CentralRecord record : centralRecords) {
+            final CompressedEntry entry = record.entry;
+            final byte[] nameBytes = entry.getNameBytes();
+            final boolean zip64 = record.headerOffset >= MAX_32;
+            writeInt(CENTRAL_FILE_HEADER_SIGNATURE);
+            writeShort(zip64 ? VERSION_ZIP64 : VERSION_DEFAULT); /* (Version made by) */
+            writeShort(zip64 ? VERSION_ZIP64 : VERSION_DEFAULT); /* (Version needed) */
+            writeShort(UTF8_FLAG);
+            writeShort(entry.getMethod());
+            writeInt(record.dosTime);
+            writeInt((int) entry.getCrc());
+            writeInt(entry.getCompressedSize());
+            writeInt((int) entry.getSize());
+            writeShort(nameBytes.length);
+            writeShort(zip64 ? 12 : 0); /* (Extra field length) */
+            writeShort(0); /* (Comment length) */
+            writeShort(0); /* (Disk number) */
+            writeShort(0); /* (Internal attributes) */
+            writeInt(0); /* (External attributes) */
+            writeInt(zip64 ? (int) MAX_32 : (int) record.headerOffset);
+            writeBytes(nameBytes);
+            if (zip64) {
+                writeShort(0x0001);
+                writeShort(8);
+                writeLong(record.headerOffset);
+            }
+            offset += 46 + nameBytes.length + (zip64 ? 12 : 0);
+        }
+        final long centralDirectorySize = offset - centralDirectoryOffset;
+        final int entryCount = centralRecords.size();
+
+        if (entryCount >= MAX_16 || centralDirectoryOffset >= MAX_32 || centralDirectorySize >= MAX_32) {
+            final long zip64EndOffset = offset;
+            writeInt(ZIP64_END_SIGNATURE);
+            writeLong(44L);
+            writeShort(VERSION_ZIP64);
+            writeShort(VERSION_ZIP64);
+            writeInt(0);
+            writeInt(0);
+            writeLong(entryCount);
+            writeLong(entryCount);
+            writeLong(centralDirectorySize);
+            writeLong(centralDirectoryOffset);
+
+            writeInt(ZIP64_LOCATOR_SIGNATURE);
+            writeInt(0);
+            writeLong(zip64EndOffset);
+            writeInt(1);
+        }
+
+        writeInt(END_SIGNATURE);
+        writeShort(0);
+        writeShort(0);
+        writeShort(Math.min(entryCount, MAX_16));
+        writeShort(Math.min(entryCount, MAX_16));
+        writeInt((int) Math.min(centralDirectorySize, MAX_32));
+        writeInt((int) Math.min(centralDirectoryOffset, MAX_32));
+        writeShort(0);
+        outputStream.flush();
+    }
+
+    //-------------------------------------------------
+
+    private void writeShort(final int value) throws IOException {
+        outputStream.write(value & 0xff);
+        outputStream.write((value >>> 8) & 0xff);
+    }
+
+    private void writeInt(final int value) throws IOException {
+        writeShort(value & 0xffff);
+        writeShort((value >>> 16) & 0xffff);
+    }
+
+    private void writeLong(final long value) throws IOException {
+        writeInt((int) value);
+        writeInt((int) (value >>> 32));
+    }
+
+    private void writeBytes(final byte[] bytes) throws IOException {
+        outputStream.write(bytes);
+    }
+
+    private static int toDosTime(final long time) {
+        final Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        final int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25
+                | (calendar.get(Calendar.MONTH) + 1) << 21
+                | calendar.get(Calendar.DAY_OF_MONTH) << 16
+                | calendar.get(Calendar.HOUR_OF_DAY) << 11
+                | calendar.get(Calendar.MINUTE) << 5
+                | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    private static final class CentralRecord {
+
+        final CompressedEntry entry;
+        final int dosTime;
+        final long headerOffset;
+
+        CentralRecord(final CompressedEntry entry, final int dosTime, final long headerOffset) {
+            this.entry = entry.withoutData();
+            this.dosTime = dosTime;
+            this.headerOffset = headerOffset;
+        }
+    }
+
+    //-------------------------------------------------
+
+    /**
+     * Encapsulates a ZIP entry whose data has already been compressed.
+     */
+    public static final class CompressedEntry {
+
+        private final String name;
+        private final byte[] nameBytes;
+        private final long time;
+        private final int method;
+        private final long crc;
+        private final long size;
+        private final byte[] compressedData;
+        private final int compressedSize;
+
+        /**
+         * Creates a new entry from data that has already been compressed.
+         *
+         * @param name name of the entry, which must not be null
+         * @param time modification time of the entry
+         * @param method either {@link ZipEntry#DEFLATED} (with compressedData being raw deflate data)
+         *   or {@link ZipEntry#STORED}
+         * @param crc CRC-32 of the uncompressed data
+         * @param size size of the uncompressed data
+         * @param compressedData compressed data, which must not be null
+         */
+        public CompressedEntry(final String name, final long time, final int method, final long crc, final long size,
+                final byte[] compressedData) {
+            Assert.notNull(name, "name");
+            Assert.notNull(compressedData, "compressedData");
+            if (method!=ZipEntry.DEFLATED && method!=ZipEntry.STORED) {
+                throw new IllegalArgumentException("Unsupported ZIP method " + method);
+            }
+            if (size >= MAX_32) {
+                throw new IllegalArgumentException("ZIP entries of 4GB or more are not supported");
+            }
+            this.name = name;
+            this.nameBytes = encodeName(name);
+            this.time = time;
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.compressedData = compressedData;
+            this.compressedSize = compressedData.length;
+        }
+
+        private CompressedEntry(final CompressedEntry source) {
+            this.name = source.name;
+            this.nameBytes = source.nameBytes;
+            this.time = source.time;
+            this.method = source.method;
+            this.crc = source.crc;
+            this.size = source.size;
+            this.compressedData = null;
+            this.compressedSize = source.compressedSize;
+        }
+
+        /** Returns a copy of this entry without its data, for recording in the central directory */
+        CompressedEntry withoutData() {
+            return new CompressedEntry(this);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        byte[] getNameBytes() {
+            return nameBytes;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public int getMethod() {
+            return method;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        byte[] getCompressedData() {
+            return compressedData;
+        }
+
+        public int getCompressedSize() {
+            return compressedSize;
+        }
+
+        private static byte[] encodeName(final String name) {
+            try {
+                return name.getBytes("UTF-8");
+            }
+            catch (final UnsupportedEncodingException e) {
+                throw new QtiWorksLogicException("Unexpected Exception", e);
+            }
+        }
+    }
+}
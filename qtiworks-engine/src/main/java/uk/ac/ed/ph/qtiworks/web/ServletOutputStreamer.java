@@ -42,6 +42,7 @@ import java.io.InputStream;
 import java.util.Date;
 
 import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.io.IOUtils;
@@ -52,47 +53,244 @@ import org.apache.commons.io.IOUtils;
  * <p>
  * This supports optional caching for resources via entity tags where it is considered safe
  * or sensible to do so.
+ * <p>
+ * If created with the {@link HttpServletRequest} being answered, this will also respond to
+ * conditional requests (<code>If-None-Match</code> and <code>If-Modified-Since</code>) with
+ * a 304 response, and will honour requests for a single byte range (via <code>Range</code>
+ * and <code>If-Range</code>), which browsers use when playing audio and video. Resources can
+ * also be marked as being cacheable for a fixed period without revalidation, which is only
+ * appropriate for resources that will never change for a given URL.
  *
  * @author David McKain
  */
 public final class ServletOutputStreamer implements OutputStreamer {
 
+    /** Value of <code>maxAgeSeconds</code> indicating that clients must always revalidate */
+    public static final int MUST_REVALIDATE = -1;
+
+    private final HttpServletRequest httpServletRequest;
     private final HttpServletResponse httpServletResponse;
     private final String etag;
+    private final int maxAgeSeconds;
 
     public ServletOutputStreamer(final HttpServletResponse httpServletResponse, final String etag) {
+        this(null, httpServletResponse, etag, MUST_REVALIDATE);
+    }
+
+    /**
+     * Creates a streamer that handles conditional and range requests made by the given
+     * {@link HttpServletRequest}.
+     *
+     * @param httpServletRequest request being answered, which may be null to disable
+     *   conditional and range request handling
+     * @param httpServletResponse response to stream to, which must not be null
+     * @param etag entity tag for the resource, which may be null to disable caching
+     * @param maxAgeSeconds number of seconds clients may cache the resource for without
+     *   revalidating it, or {@link #MUST_REVALIDATE}. (Ignored if etag is null.)
+     */
+    public ServletOutputStreamer(final HttpServletRequest httpServletRequest,
+            final HttpServletResponse httpServletResponse, final String etag, final int maxAgeSeconds) {
         Assert.notNull(httpServletResponse, "httpServletResponse");
+        this.httpServletRequest = httpServletRequest;
         this.httpServletResponse = httpServletResponse;
         this.etag = etag;
+        this.maxAgeSeconds = maxAgeSeconds;
     }
 
     @Override
     public void stream(final String contentType, final long contentLength, final Date lastModifiedTime,
             final InputStream resultStream)
             throws IOException {
-        /* Set appropriate headers */
-        httpServletResponse.setContentType(contentType);
-        httpServletResponse.setContentLength((int) contentLength); /* Huge files aren't going to happen... */
+        /* Set validator and caching headers, which are also needed for 304 responses */
         if (lastModifiedTime!=null) {
             httpServletResponse.setHeader("Last-Modified", WebUtilities.formatHttpDate(lastModifiedTime));
         }
-
-        /* Set suitable caching headers based on presence of ETag */
         if (etag!=null) {
             httpServletResponse.setHeader("ETag", etag);
-            httpServletResponse.setHeader("Cache-Control", "private, must-revalidate");
+            if (maxAgeSeconds>=0) {
+                httpServletResponse.setHeader("Cache-Control", "private, max-age=" + maxAgeSeconds + ", immutable");
+            }
+            else {
+                httpServletResponse.setHeader("Cache-Control", "private, must-revalidate");
+            }
         }
         else {
             httpServletResponse.setHeader("Cache-Control", "private, no-cache, no-store, max-age=0, must-revalidate");
         }
 
+        /* Handle conditional & range requests (if enabled) */
+        long[] range = null;
+        if (httpServletRequest!=null) {
+            if (isNotModified(lastModifiedTime)) {
+                httpServletResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+            if (contentLength>=0) {
+                httpServletResponse.setHeader("Accept-Ranges", "bytes");
+                if (isRangeApplicable(lastModifiedTime)) {
+                    range = parseRange(httpServletRequest.getHeader("Range"), contentLength);
+                    if (range==UNSATISFIABLE_RANGE) {
+                        httpServletResponse.setHeader("Content-Range", "bytes */" + contentLength);
+                        httpServletResponse.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                        return;
+                    }
+                }
+            }
+        }
+
+        /* Set content headers */
+        httpServletResponse.setContentType(contentType);
+        if (range!=null) {
+            httpServletResponse.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            httpServletResponse.setHeader("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + contentLength);
+            httpServletResponse.setContentLength((int) (range[1] - range[0] + 1));
+        }
+        else {
+            httpServletResponse.setContentLength((int) contentLength); /* Huge files aren't going to happen... */
+        }
+
         /* Final stream data to ServletOutputStream */
         final ServletOutputStream servletOutputStream = httpServletResponse.getOutputStream();
         try {
-            IOUtils.copy(resultStream, servletOutputStream);
+            if (range!=null) {
+                IOUtils.copyLarge(resultStream, servletOutputStream, range[0], range[1] - range[0] + 1);
+            }
+            else {
+                IOUtils.copy(resultStream, servletOutputStream);
+            }
         }
         finally {
             servletOutputStream.flush();
         }
     }
+
+    //----------------------------------------------------
+    // Conditional requests
+
+    /**
+     * Decides whether the client already has the current version of the resource. As per
+     * RFC 7232, <code>If-Modified-Since</code> is ignored if <code>If-None-Match</code> is
+     * present, and entity tags are compared weakly here.
+     */
+    private boolean isNotModified(final Date lastModifiedTime) {
+        final String ifNoneMatch = httpServletRequest.getHeader("If-None-Match");
+        if (ifNoneMatch!=null) {
+            if ("*".equals(ifNoneMatch.trim())) {
+                return true;
+            }
+            if (etag==null) {
+                return false;
+            }
+            final String opaqueEtag = stripWeakness(etag);
+            for (final String requestEtag : ifNoneMatch.split(",")) {
+                if (opaqueEtag.equals(stripWeakness(requestEtag.trim()))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (lastModifiedTime!=null) {
+            final long ifModifiedSince = getDateHeader("If-Modified-Since");
+            return ifModifiedSince>=0 && lastModifiedTime.getTime() / 1000 <= ifModifiedSince / 1000;
+        }
+        return false;
+    }
+
+    /**
+     * Decides whether any <code>Range</code> should be honoured, which is the case unless an
+     * <code>If-Range</code> condition is present and fails. (Entity tags must be strong and match
+     * exactly here, while dates must exactly match the modification time.)
+     */
+    private boolean isRangeApplicable(final Date lastModifiedTime) {
+        final String ifRange = httpServletRequest.getHeader("If-Range");
+        if (ifRange==null) {
+            return true;
+        }
+        final String trimmedIfRange = ifRange.trim();
+        if (trimmedIfRange.startsWith("\"") || trimmedIfRange.startsWith("W/")) {
+            return etag!=null && !etag.startsWith("W/") && etag.equals(trimmedIfRange);
+        }
+        final long ifRangeDate = getDateHeader("If-Range");
+        return lastModifiedTime!=null && ifRangeDate>=0
+                && lastModifiedTime.getTime() / 1000 == ifRangeDate / 1000;
+    }
+
+    private long getDateHeader(final String name) {
+        try {
+            return httpServletRequest.getDateHeader(name);
+        }
+        catch (final IllegalArgumentException e) {
+            /* Unparseable date, so ignore */
+            return -1L;
+        }
+    }
+
+    private static String stripWeakness(final String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    //----------------------------------------------------
+    // Range requests
+
+    /** Marker returned by {@link #parseRange(String, long)} for unsatisfiable ranges */
+    private static final long[] UNSATISFIABLE_RANGE = new long[0];
+
+    /**
+     * Parses the given <code>Range</code> header, returning the first and last bytes requested,
+     * null if the whole resource should be sent, or {@link #UNSATISFIABLE_RANGE}.
+     * <p>
+     * Only single byte ranges are supported. As permitted by RFC 7233, requests for multiple
+     * ranges and malformed headers are ignored, so result in the whole resource being sent.
+     */
+    private static long[] parseRange(final String rangeHeader, final long contentLength) {
+        if (rangeHeader==null || !rangeHeader.startsWith("bytes=")) {
+            return null;
+        }
+        final String rangeSpec = rangeHeader.substring("bytes=".length()).trim();
+        final int dashIndex = rangeSpec.indexOf('-');
+        if (dashIndex<0 || rangeSpec.indexOf(',')>=0) {
+            return null;
+        }
+        final String firstString = rangeSpec.substring(0, dashIndex).trim();
+        final String lastString = rangeSpec.substring(dashIndex + 1).trim();
+        long first, last;
+        try {
+            if (firstString.isEmpty()) {
+                /* Suffix range "-n", giving the final n bytes */
+                if (lastString.isEmpty()) {
+                    return null;
+                }
+                final long suffixLength = Long.parseLong(lastString);
+                if (suffixLength<=0) {
+                    return UNSATISFIABLE_RANGE;
+                }
+                first = Math.max(0L, contentLength - suffixLength);
+                last = contentLength - 1;
+            }
+            else {
+                first = Long.parseLong(firstString);
+                if (lastString.isEmpty()) {
+                    last = contentLength - 1;
+                }
+                else {
+                    last = Long.parseLong(lastString);
+                    if (last<first) {
+                        return null;
+                    }
+                }
+                if (first<0) {
+                    return null;
+                }
+                /* (Ranges starting beyond the end are unsatisfiable, which is checked below) */
+                last = Math.min(last, contentLength - 1);
+            }
+        }
+        catch (final NumberFormatException e) {
+            return null;
+        }
+        if (first>=contentLength) {
+            return UNSATISFIABLE_RANGE;
+        }
+        return new long[] { first, last };
+    }
 }
@@ -0,0 +1,100 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.web;
+
+import uk.ac.ed.ph.qtiworks.services.StartupWarmupService;
+import uk.ac.ed.ph.qtiworks.services.StartupWarmupService.WarmupStatus;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationContext;
+import org.springframework.web.context.support.WebApplicationContextUtils;
+
+/**
+ * Trivial servlet reporting the progress of the {@link StartupWarmupService}, intended for use
+ * as a readiness check by load balancers and monitoring tools.
+ * <p>
+ * This returns a short plain text summary, with status 200 once warm-up has finished (or is
+ * disabled), and 503 while it is still in progress.
+ *
+ * @author David McKain
+ */
+public final class WarmupStatusServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 6185425346187092466L;
+
+    private static final Logger logger = LoggerFactory.getLogger(WarmupStatusServlet.class);
+
+    private transient StartupWarmupService startupWarmupService;
+
+    /** Ensures that the non-serializable properties of this servlet are created. */
+    private void requireBeans() throws ServletException {
+        if (startupWarmupService==null) {
+            try {
+                final ApplicationContext appContext = WebApplicationContextUtils.getRequiredWebApplicationContext(getServletConfig().getServletContext());
+                startupWarmupService = appContext.getBean(StartupWarmupService.class);
+            }
+            catch (final Exception e) {
+                logger.error("Bean access failed on " + this.getClass().getSimpleName(), e);
+                throw new ServletException(e);
+            }
+        }
+    }
+
+    @Override
+    protected void doGet(final HttpServletRequest request, final HttpServletResponse response)
+            throws ServletException, IOException {
+        requireBeans();
+
+        final WarmupStatus warmupStatus = startupWarmupService.getWarmupStatus();
+        response.setStatus(warmupStatus.isReady() ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setContentType("text/plain");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        final PrintWriter writer = response.getWriter();
+        writer.println(warmupStatus.getState());
+        writer.println("tasks=" + warmupStatus.getTaskCount());
+        writer.println("completed=" + warmupStatus.getCompletedTaskCount());
+        writer.println("failed=" + warmupStatus.getFailedTaskCount());
+        writer.flush();
+    }
+}
@@ -78,4 +78,14 @@ public final class WebUtilities {
         final String digest = ServiceUtilities.computeSha1Digest(fingerprint);
         return "W/\"" + digest + "\""; /* (We'll always use weak etags for now) */
     }
+
+    /**
+     * Computes a strong entity tag from the given fingerprint. Only use this for resources
+     * whose data never changes for a given fingerprint, as clients may then combine byte ranges
+     * requested at different times.
+     */
+    public static String computeStrongEtag(final String fingerprint) {
+        final String digest = ServiceUtilities.computeSha1Digest(fingerprint);
+        return "\"" + digest + "\"";
+    }
 }
\ No newline at end of file
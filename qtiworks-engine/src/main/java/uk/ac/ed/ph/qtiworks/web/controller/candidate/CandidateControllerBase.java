@@ -74,6 +74,9 @@ import org.springframework.web.multipart.MultipartHttpServletRequest;
  */
 public abstract class CandidateControllerBase {
 
+    /** Number of seconds that clients may cache package files without revalidating them */
+    private static final int PACKAGE_FILE_MAX_AGE_SECONDS = 24 * 60 * 60;
+
     @Resource
     protected IdentityService identityService;
 
@@ -159,16 +162,15 @@ public abstract class CandidateControllerBase {
             @RequestParam("href") final String fileHref,
             final HttpServletRequest request, final HttpServletResponse response)
             throws IOException, CandidateException {
+        /* Package files never change for a given session (and therefore URL), so clients may
+         * cache them without revalidating. (Conditional and range requests are handled by the
+         * ServletOutputStreamer once access to the file has been checked.)
+         */
         final String fingerprint = "session/" + xid + "/" + xsrfToken + "/file/" + fileHref;
-        final String resourceEtag = WebUtilities.computeEtag(fingerprint);
-        final String requestEtag = request.getHeader("If-None-Match");
-        if (resourceEtag.equals(requestEtag)) {
-            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
-        }
-        else {
-            final ServletOutputStreamer outputStreamer = new ServletOutputStreamer(response, resourceEtag);
-            candidateRenderingService.streamAssessmentPackageFile(getCandidateSessionContext(), fileHref, outputStreamer);
-        }
+        final String resourceEtag = WebUtilities.computeStrongEtag(fingerprint);
+        final ServletOutputStreamer outputStreamer = new ServletOutputStreamer(request, response, resourceEtag,
+                PACKAGE_FILE_MAX_AGE_SECONDS);
+        candidateRenderingService.streamAssessmentPackageFile(getCandidateSessionContext(), fileHref, outputStreamer);
     }
 
     //----------------------------------------------------
@@ -182,14 +184,9 @@ public abstract class CandidateControllerBase {
             throws IOException, CandidateException {
         final String fingerprint = "session/" + xid + "/" + xsrfToken + "/source";
         final String resourceEtag = WebUtilities.computeEtag(fingerprint);
-        final String requestEtag = request.getHeader("If-None-Match");
-        if (resourceEtag.equals(requestEtag)) {
-            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
-        }
-        else {
-            final ServletOutputStreamer outputStreamer = new ServletOutputStreamer(response, resourceEtag);
-            candidateRenderingService.streamAssessmentSource(getCandidateSessionContext(), outputStreamer);
-        }
+        final ServletOutputStreamer outputStreamer = new ServletOutputStreamer(request, response, resourceEtag,
+                ServletOutputStreamer.MUST_REVALIDATE);
+        candidateRenderingService.streamAssessmentSource(getCandidateSessionContext(), outputStreamer);
     }
 
     /**
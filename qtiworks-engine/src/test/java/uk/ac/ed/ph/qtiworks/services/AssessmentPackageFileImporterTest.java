@@ -119,6 +119,18 @@ public class AssessmentPackageFileImporterTest {
         Assert.assertEquals(AssessmentPackageImportType.CONTENT_PACKAGE, result.getImportType());
     }
 
+    @Test
+    public void importPackagedTestStoredAsZip() throws Exception {
+        final MultipartFile multipartFile = getThisUnitTestMultipartFile("uk/ac/ed/ph/qtiworks/services/WebDeveloperTest1.zip", "application/zip");
+
+        final AssessmentPackage result = assessmentPackageFileImporter.importAssessmentPackageData(importSandboxDirectory, multipartFile, true);
+        Assert.assertEquals(importSandboxDirectory.getPath(), result.getSandboxPath());
+        Assert.assertEquals(AssessmentObjectType.ASSESSMENT_TEST, result.getAssessmentType());
+        Assert.assertEquals(AssessmentPackageImportType.CONTENT_PACKAGE, result.getImportType());
+        Assert.assertTrue(result.isStoredAsZip());
+        Assert.assertArrayEquals(new String[] { AssessmentPackageFileImporter.STORED_ZIP_FILE_NAME }, importSandboxDirectory.list());
+    }
+
     //----------------------------------------------------------
 
     @Test
@@ -145,6 +157,18 @@ public class AssessmentPackageFileImporterTest {
         }
     }
 
+    @Test
+    public void badZipIncompleteStoredAsZip() throws Exception {
+        final MultipartFile multipartFile = getThisUnitTestMultipartFile("uk/ac/ed/ph/qtiworks/services/WebDeveloperTest1-incomplete.zip", "application/zip");
+        try {
+            assessmentPackageFileImporter.importAssessmentPackageData(importSandboxDirectory, multipartFile, true);
+            Assert.fail("Should have failed");
+        }
+        catch (final AssessmentPackageDataImportException e) {
+            Assert.assertEquals(ImportFailureReason.NOT_XML_OR_ZIP, e.getFailure().getReason());
+        }
+    }
+
     @Test
     public void notContentPackage() throws Exception {
         final MultipartFile multipartFile = getThisUnitTestMultipartFile("uk/ac/ed/ph/qtiworks/services/NotContentPackage.zip", "application/zip");
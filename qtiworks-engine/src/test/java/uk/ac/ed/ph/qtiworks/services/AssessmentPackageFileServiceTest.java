@@ -0,0 +1,253 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.services;
+
+import uk.ac.ed.ph.qtiworks.config.beans.QtiWorksDeploymentSettings;
+import uk.ac.ed.ph.qtiworks.domain.entities.AnonymousUser;
+import uk.ac.ed.ph.qtiworks.domain.entities.AssessmentPackage;
+import uk.ac.ed.ph.qtiworks.services.dao.AssessmentPackageDao;
+import uk.ac.ed.ph.qtiworks.testutils.ClassPathMultipartFile;
+import uk.ac.ed.ph.qtiworks.testutils.ServiceTestUtilities;
+
+import uk.ac.ed.ph.jqtiplus.reading.QtiXmlReader;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionSynchronizationUtils;
+
+import com.google.common.io.Files;
+
+/**
+ * Tests the sharing of sandboxes between {@link AssessmentPackage}s created from identical data
+ * within the {@link AssessmentPackageFileService}, using an in-memory stand-in for the
+ * {@link AssessmentPackageDao}. Transactions are simulated by driving Spring's transaction
+ * synchronization directly.
+ *
+ * @author David McKain
+ */
+public class AssessmentPackageFileServiceTest {
+
+    private static final String PACKAGE_PATH = "uk/ac/ed/ph/qtiworks/services/Aardvark-cannon.zip";
+
+    private File filesystemBase;
+    private StubAssessmentPackageDao assessmentPackageDao;
+    private AssessmentPackageZipCache assessmentPackageZipCache;
+    private AssessmentPackageFileService assessmentPackageFileService;
+
+    @Before
+    public void setup() {
+        filesystemBase = Files.createTempDir();
+        final QtiWorksDeploymentSettings qtiWorksDeploymentSettings = ServiceTestUtilities.createDeploymentSettings(filesystemBase);
+        ServiceTestUtilities.inject(qtiWorksDeploymentSettings, "assessmentPackageZipCacheSize", Integer.valueOf(10));
+        assessmentPackageDao = new StubAssessmentPackageDao();
+        assessmentPackageZipCache = new AssessmentPackageZipCache();
+        ServiceTestUtilities.inject(assessmentPackageZipCache, "qtiWorksDeploymentSettings", qtiWorksDeploymentSettings);
+        assessmentPackageZipCache.init();
+
+        assessmentPackageFileService = new AssessmentPackageFileService();
+        ServiceTestUtilities.inject(assessmentPackageFileService, "qtiWorksDeploymentSettings", qtiWorksDeploymentSettings);
+        ServiceTestUtilities.inject(assessmentPackageFileService, "assessmentPackageFileImporter", new AssessmentPackageFileImporter());
+        ServiceTestUtilities.inject(assessmentPackageFileService, "qtiXmlReader", new QtiXmlReader());
+        ServiceTestUtilities.inject(assessmentPackageFileService, "filespaceManager", ServiceTestUtilities.createFilespaceManager(qtiWorksDeploymentSettings));
+        ServiceTestUtilities.inject(assessmentPackageFileService, "assessmentPackageDao", assessmentPackageDao);
+        ServiceTestUtilities.inject(assessmentPackageFileService, "assessmentPackageZipCache", assessmentPackageZipCache);
+    }
+
+    @After
+    public void tearDown() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+        if (assessmentPackageZipCache!=null) {
+            assessmentPackageZipCache.destroy();
+        }
+        if (filesystemBase!=null) {
+            ServiceUtilities.recursivelyDelete(filesystemBase);
+        }
+    }
+
+    //----------------------------------------------------------
+
+    @Test
+    public void identicalDataShared() throws Exception {
+        final AssessmentPackage first = importAndPersist("user1");
+        final AssessmentPackage second = importAndPersist("user2");
+        Assert.assertEquals(first.getSandboxPath(), second.getSandboxPath());
+        Assert.assertEquals(first.getContentHash(), second.getContentHash());
+        Assert.assertEquals(first.getTitle(), second.getTitle());
+        Assert.assertEquals(first.getAssessmentHref(), second.getAssessmentHref());
+        Assert.assertEquals(first.getQtiFileHrefs(), second.getQtiFileHrefs());
+    }
+
+    @Test
+    public void sharedSandboxDeletedWithLastPackage() throws Exception {
+        final AssessmentPackage first = importAndPersist("user1");
+        final AssessmentPackage second = importAndPersist("user2");
+        final File sandboxDirectory = new File(first.getSandboxPath());
+
+        Assert.assertTrue(deleteInTransaction(first));
+        Assert.assertTrue(sandboxDirectory.isDirectory());
+
+        Assert.assertTrue(deleteInTransaction(second));
+        Assert.assertFalse(sandboxDirectory.exists());
+
+        /* Data is then unpacked afresh */
+        final AssessmentPackage third = importAndPersist("user3");
+        Assert.assertEquals(first.getSandboxPath(), third.getSandboxPath());
+        Assert.assertTrue(sandboxDirectory.isDirectory());
+    }
+
+    @Test
+    public void deletionWaitsForSharingImport() throws Exception {
+        final AssessmentPackage first = importAndPersist("user1");
+        final File sandboxDirectory = new File(first.getSandboxPath());
+
+        /* Start importing identical data, but don't commit yet */
+        TransactionSynchronizationManager.initSynchronization();
+        final AssessmentPackage second = assessmentPackageFileService.importAssessmentPackage(createUser("user2"),
+                new ClassPathMultipartFile(PACKAGE_PATH, "application/zip"), false);
+        Assert.assertEquals(first.getSandboxPath(), second.getSandboxPath());
+
+        /* Meanwhile, another thread deletes the first package */
+        final boolean[] result = new boolean[1];
+        final Thread deletionThread = new Thread() {
+            @Override
+            public void run() {
+                result[0] = deleteInTransaction(first);
+            }
+        };
+        deletionThread.start();
+        deletionThread.join(500L);
+        Assert.assertTrue(deletionThread.isAlive());
+
+        /* Commit the import */
+        assessmentPackageDao.persist(second);
+        TransactionSynchronizationUtils.triggerAfterCompletion(TransactionSynchronization.STATUS_COMMITTED);
+        TransactionSynchronizationManager.clearSynchronization();
+
+        /* Deletion should now see that the sandbox is still in use */
+        deletionThread.join(5000L);
+        Assert.assertFalse(deletionThread.isAlive());
+        Assert.assertTrue(result[0]);
+        Assert.assertTrue(sandboxDirectory.isDirectory());
+    }
+
+    //----------------------------------------------------------
+
+    private AssessmentPackage importAndPersist(final String userName) throws Exception {
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            final AssessmentPackage result = assessmentPackageFileService.importAssessmentPackage(createUser(userName),
+                    new ClassPathMultipartFile(PACKAGE_PATH, "application/zip"), false);
+            assessmentPackageDao.persist(result);
+            return result;
+        }
+        finally {
+            TransactionSynchronizationUtils.triggerAfterCompletion(TransactionSynchronization.STATUS_COMMITTED);
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    private boolean deleteInTransaction(final AssessmentPackage assessmentPackage) {
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            assessmentPackageDao.remove(assessmentPackage);
+            return assessmentPackageFileService.deleteAssessmentPackageSandbox(assessmentPackage);
+        }
+        finally {
+            TransactionSynchronizationUtils.triggerAfterCompletion(TransactionSynchronization.STATUS_COMMITTED);
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    private static AnonymousUser createUser(final String sessionId) {
+        final AnonymousUser result = new AnonymousUser();
+        result.setSessionId(sessionId);
+        return result;
+    }
+
+    /**
+     * In-memory stand-in for {@link AssessmentPackageDao}. Changes are seen immediately by all
+     * threads, so the tests above assume the worst about when other transactions can see them.
+     */
+    private static class StubAssessmentPackageDao extends AssessmentPackageDao {
+
+        private final List<AssessmentPackage> packages = new ArrayList<AssessmentPackage>();
+        private long nextId = 1L;
+
+        @Override
+        public synchronized AssessmentPackage persist(final AssessmentPackage assessmentPackage) {
+            assessmentPackage.setId(Long.valueOf(nextId++));
+            packages.add(assessmentPackage);
+            return assessmentPackage;
+        }
+
+        @Override
+        public synchronized void remove(final AssessmentPackage assessmentPackage) {
+            packages.remove(assessmentPackage);
+        }
+
+        @Override
+        public synchronized List<AssessmentPackage> getForContentHash(final String contentHash) {
+            final List<AssessmentPackage> result = new ArrayList<AssessmentPackage>();
+            for (final AssessmentPackage assessmentPackage : packages) {
+                if (contentHash.equals(assessmentPackage.getContentHash())) {
+                    result.add(assessmentPackage);
+                }
+            }
+            Collections.reverse(result);
+            return result;
+        }
+
+        @Override
+        public synchronized long countOthersSharingSandbox(final AssessmentPackage assessmentPackage) {
+            long result = 0;
+            for (final AssessmentPackage other : packages) {
+                if (other!=assessmentPackage && other.getSandboxPath().equals(assessmentPackage.getSandboxPath())) {
+                    result++;
+                }
+            }
+            return result;
+        }
+    }
+}
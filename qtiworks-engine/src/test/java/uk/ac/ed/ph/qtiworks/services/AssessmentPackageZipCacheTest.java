@@ -0,0 +1,208 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.services;
+
+import uk.ac.ed.ph.qtiworks.config.beans.QtiWorksDeploymentSettings;
+import uk.ac.ed.ph.qtiworks.services.AssessmentPackageZipCache.ZipFileHandle;
+import uk.ac.ed.ph.qtiworks.testutils.ServiceTestUtilities;
+
+import uk.ac.ed.ph.jqtiplus.utils.contentpackaging.QtiContentPackageExtractor;
+import uk.ac.ed.ph.jqtiplus.xmlutils.CustomUriScheme;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+/**
+ * Tests the {@link AssessmentPackageZipCache} and {@link CachedZipSandboxResourceLocator},
+ * checking that ZIP files are never closed while borrowed.
+ *
+ * @author David McKain
+ */
+public class AssessmentPackageZipCacheTest {
+
+    private static final CustomUriScheme PACKAGE_URI_SCHEME = QtiContentPackageExtractor.PACKAGE_URI_SCHEME;
+
+    private File tempDirectory;
+    private File zipA;
+    private File zipB;
+    private AssessmentPackageZipCache assessmentPackageZipCache;
+
+    @Before
+    public void setup() throws IOException {
+        tempDirectory = Files.createTempDir();
+        zipA = createZip("a.zip", "A");
+        zipB = createZip("b.zip", "B");
+        final QtiWorksDeploymentSettings qtiWorksDeploymentSettings = ServiceTestUtilities.createDeploymentSettings(tempDirectory);
+        ServiceTestUtilities.inject(qtiWorksDeploymentSettings, "assessmentPackageZipCacheSize", Integer.valueOf(1));
+        assessmentPackageZipCache = new AssessmentPackageZipCache();
+        ServiceTestUtilities.inject(assessmentPackageZipCache, "qtiWorksDeploymentSettings", qtiWorksDeploymentSettings);
+        assessmentPackageZipCache.init();
+    }
+
+    @After
+    public void tearDown() {
+        if (assessmentPackageZipCache!=null) {
+            assessmentPackageZipCache.destroy();
+        }
+        if (tempDirectory!=null) {
+            ServiceUtilities.recursivelyDelete(tempDirectory);
+        }
+    }
+
+    //----------------------------------------------------------
+
+    @Test
+    public void cachedWhileIdle() {
+        final ZipFileHandle first = assessmentPackageZipCache.borrow(zipA);
+        first.release();
+        final ZipFileHandle second = assessmentPackageZipCache.borrow(zipA);
+        Assert.assertSame(first, second);
+        second.release();
+        Assert.assertTrue(isOpen(second.getZipFile()));
+    }
+
+    @Test
+    public void evictedFileClosedOnlyWhenReleased() throws IOException {
+        final ZipFileHandle handleA = assessmentPackageZipCache.borrow(zipA);
+        final ZipFileHandle handleB = assessmentPackageZipCache.borrow(zipB); /* (Evicts A) */
+        Assert.assertEquals("A", readEntry(handleA.getZipFile()));
+
+        handleA.release();
+        Assert.assertFalse(isOpen(handleA.getZipFile()));
+        Assert.assertTrue(isOpen(handleB.getZipFile()));
+        handleB.release();
+
+        /* Borrowing A again reopens it */
+        final ZipFileHandle reopenedA = assessmentPackageZipCache.borrow(zipA);
+        Assert.assertNotSame(handleA, reopenedA);
+        Assert.assertEquals("A", readEntry(reopenedA.getZipFile()));
+        reopenedA.release();
+    }
+
+    @Test
+    public void purgedFileClosedOnlyWhenReleased() {
+        final ZipFileHandle first = assessmentPackageZipCache.borrow(zipA);
+        final ZipFileHandle second = assessmentPackageZipCache.borrow(zipA);
+        assessmentPackageZipCache.purge(zipA);
+        first.release();
+        Assert.assertTrue(isOpen(first.getZipFile()));
+        second.release();
+        Assert.assertFalse(isOpen(first.getZipFile()));
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void extraReleaseRejected() {
+        final ZipFileHandle handle = assessmentPackageZipCache.borrow(zipA);
+        handle.release();
+        handle.release();
+    }
+
+    @Test
+    public void locatorStreamHoldsFileOpen() throws IOException {
+        final ZipFileHandle handle = assessmentPackageZipCache.borrow(zipA);
+        handle.release();
+
+        final CachedZipSandboxResourceLocator locator = new CachedZipSandboxResourceLocator(assessmentPackageZipCache, PACKAGE_URI_SCHEME, zipA);
+        final InputStream entryStream = locator.findResource(PACKAGE_URI_SCHEME.decodedPathToUri("entry.txt"));
+        Assert.assertNotNull(entryStream);
+        assessmentPackageZipCache.purge(zipA);
+        Assert.assertEquals("A", new String(ByteStreams.toByteArray(entryStream), Charsets.UTF_8));
+
+        entryStream.close();
+        Assert.assertFalse(isOpen(handle.getZipFile()));
+        entryStream.close(); /* (Only releases once) */
+    }
+
+    @Test
+    public void locatorMissDoesNotHoldFile() {
+        final ZipFileHandle handle = assessmentPackageZipCache.borrow(zipA);
+        handle.release();
+
+        final CachedZipSandboxResourceLocator locator = new CachedZipSandboxResourceLocator(assessmentPackageZipCache, PACKAGE_URI_SCHEME, zipA);
+        Assert.assertNull(locator.findResource(PACKAGE_URI_SCHEME.decodedPathToUri("missing.txt")));
+        Assert.assertNull(locator.findResource(PACKAGE_URI_SCHEME.decodedPathToUri("../entry.txt")));
+        assessmentPackageZipCache.purge(zipA);
+        Assert.assertFalse(isOpen(handle.getZipFile()));
+    }
+
+    //----------------------------------------------------------
+
+    private File createZip(final String fileName, final String content) throws IOException {
+        final File result = new File(tempDirectory, fileName);
+        final ZipOutputStream zipOutputStream = new ZipOutputStream(new FileOutputStream(result));
+        try {
+            zipOutputStream.putNextEntry(new ZipEntry("entry.txt"));
+            zipOutputStream.write(content.getBytes(Charsets.UTF_8));
+            zipOutputStream.closeEntry();
+        }
+        finally {
+            zipOutputStream.close();
+        }
+        return result;
+    }
+
+    private static String readEntry(final ZipFile zipFile) throws IOException {
+        final InputStream entryStream = zipFile.getInputStream(zipFile.getEntry("entry.txt"));
+        try {
+            return new String(ByteStreams.toByteArray(entryStream), Charsets.UTF_8);
+        }
+        finally {
+            entryStream.close();
+        }
+    }
+
+    private static boolean isOpen(final ZipFile zipFile) {
+        try {
+            zipFile.size();
+            return true;
+        }
+        catch (final IllegalStateException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,325 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.services;
+
+import uk.ac.ed.ph.qtiworks.config.QtiWorksProfiles;
+import uk.ac.ed.ph.qtiworks.config.beans.QtiWorksDeploymentSettings;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateEvent;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateItemEventType;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateSession;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateSessionOutcome;
+import uk.ac.ed.ph.qtiworks.services.dao.CandidateEventDao;
+import uk.ac.ed.ph.qtiworks.services.dao.CandidateSessionDao;
+import uk.ac.ed.ph.qtiworks.services.dao.CandidateSessionOutcomeDao;
+import uk.ac.ed.ph.qtiworks.testutils.ServiceTestUtilities;
+
+import uk.ac.ed.ph.jqtiplus.JqtiExtensionManager;
+import uk.ac.ed.ph.jqtiplus.SimpleJqtiFacade;
+import uk.ac.ed.ph.jqtiplus.node.AssessmentObjectType;
+import uk.ac.ed.ph.jqtiplus.notification.NotificationRecorder;
+import uk.ac.ed.ph.jqtiplus.running.ItemSessionController;
+import uk.ac.ed.ph.jqtiplus.running.ItemSessionControllerSettings;
+import uk.ac.ed.ph.jqtiplus.serialization.QtiSerializer;
+import uk.ac.ed.ph.jqtiplus.state.ItemProcessingMap;
+import uk.ac.ed.ph.jqtiplus.state.ItemSessionState;
+import uk.ac.ed.ph.jqtiplus.types.Identifier;
+import uk.ac.ed.ph.jqtiplus.types.ResponseData;
+import uk.ac.ed.ph.jqtiplus.types.StringResponseData;
+import uk.ac.ed.ph.jqtiplus.xmlutils.locators.ClassPathResourceLocator;
+
+import java.io.File;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionSynchronizationUtils;
+
+import com.google.common.io.Files;
+
+/**
+ * Tests the {@link CandidateSessionRescorer}, checking in particular that the files written
+ * for a batch are put back if the batch fails and its transaction is rolled back.
+ * Transactions are simulated by driving Spring's transaction synchronization directly.
+ *
+ * @author David McKain
+ */
+public class CandidateSessionRescorerTest {
+
+    private static final Identifier RESPONSE = Identifier.assumedLegal("RESPONSE");
+
+    private File filesystemBase;
+    private FilespaceManager filespaceManager;
+    private RequestTimestampContext requestTimestampContext;
+    private ItemProcessingMap itemProcessingMap;
+    private CandidateSessionRescorer rescorer;
+    private Long failingXid;
+    private long nextXeid = 1L;
+
+    private final Map<Long, CandidateSession> candidateSessionMap = new HashMap<Long, CandidateSession>();
+    private final Map<Long, CandidateEvent> mostRecentEventMap = new HashMap<Long, CandidateEvent>();
+
+    @Before
+    public void setup() throws Exception {
+        filesystemBase = Files.createTempDir();
+        final QtiWorksDeploymentSettings qtiWorksDeploymentSettings = ServiceTestUtilities.createDeploymentSettings(filesystemBase);
+        ServiceTestUtilities.inject(qtiWorksDeploymentSettings, "baseUrl", "http://localhost/qtiworks");
+        ServiceTestUtilities.inject(qtiWorksDeploymentSettings, "stateJournalEnabled", Boolean.TRUE);
+        ServiceTestUtilities.inject(qtiWorksDeploymentSettings, "stateJournalCheckpointInterval", Integer.valueOf(4));
+        ServiceTestUtilities.inject(qtiWorksDeploymentSettings, "stateJournalTailCacheSize", Integer.valueOf(10));
+        filespaceManager = ServiceTestUtilities.createFilespaceManager(qtiWorksDeploymentSettings);
+        requestTimestampContext = new RequestTimestampContext();
+
+        final CandidateSessionStateJournal candidateSessionStateJournal = new CandidateSessionStateJournal();
+        ServiceTestUtilities.inject(candidateSessionStateJournal, "qtiWorksDeploymentSettings", qtiWorksDeploymentSettings);
+        ServiceTestUtilities.inject(candidateSessionStateJournal, "filespaceManager", filespaceManager);
+        candidateSessionStateJournal.init();
+
+        final CandidateSessionStateCache candidateSessionStateCache = new CandidateSessionStateCache();
+        ServiceTestUtilities.inject(candidateSessionStateCache, "qtiWorksDeploymentSettings", qtiWorksDeploymentSettings);
+        candidateSessionStateCache.init();
+
+        final DeferredAssessmentResultTracker deferredAssessmentResultTracker = new DeferredAssessmentResultTracker();
+        ServiceTestUtilities.inject(deferredAssessmentResultTracker, "qtiWorksDeploymentSettings", qtiWorksDeploymentSettings);
+        ServiceTestUtilities.inject(deferredAssessmentResultTracker, "environment", ServiceTestUtilities.createEnvironment(QtiWorksProfiles.MANAGER));
+        deferredAssessmentResultTracker.init();
+
+        final JqtiExtensionManager jqtiExtensionManager = new JqtiExtensionManager();
+        jqtiExtensionManager.init();
+
+        final CandidateDataService candidateDataService = new StubCandidateDataService();
+        ServiceTestUtilities.inject(candidateDataService, "qtiWorksDeploymentSettings", qtiWorksDeploymentSettings);
+        ServiceTestUtilities.inject(candidateDataService, "requestTimestampContext", requestTimestampContext);
+        ServiceTestUtilities.inject(candidateDataService, "filespaceManager", filespaceManager);
+        ServiceTestUtilities.inject(candidateDataService, "candidateSessionStateCache", candidateSessionStateCache);
+        ServiceTestUtilities.inject(candidateDataService, "candidateSessionStateJournal", candidateSessionStateJournal);
+        ServiceTestUtilities.inject(candidateDataService, "deferredAssessmentResultTracker", deferredAssessmentResultTracker);
+        ServiceTestUtilities.inject(candidateDataService, "candidateEventDao", new StubCandidateEventDao());
+        ServiceTestUtilities.inject(candidateDataService, "candidateSessionOutcomeDao", new StubCandidateSessionOutcomeDao());
+        ServiceTestUtilities.inject(candidateDataService, "qtiSerializer", new QtiSerializer(jqtiExtensionManager));
+
+        rescorer = new CandidateSessionRescorer();
+        ServiceTestUtilities.inject(rescorer, "candidateDataService", candidateDataService);
+        ServiceTestUtilities.inject(rescorer, "candidateSessionDao", new StubCandidateSessionDao());
+
+        /* Record a finished attempt at a simple choice item for 2 sessions */
+        final SimpleJqtiFacade simpleJqtiFacade = new SimpleJqtiFacade(jqtiExtensionManager);
+        itemProcessingMap = simpleJqtiFacade.buildItemProcessingMap(simpleJqtiFacade.loadResolveAndValidateItem(
+                new ClassPathResourceLocator(), URI.create("classpath:/uk/ac/ed/ph/qtiworks/samples/ims/choice.xml")));
+        requestTimestampContext.setCurrentRequestTimestamp(new Date(1000000L));
+        for (long xid=1L; xid<=2L; xid++) {
+            final CandidateSession candidateSession = ServiceTestUtilities.createCandidateSession(xid);
+            candidateSession.getDelivery().getAssessment().setAssessmentType(AssessmentObjectType.ASSESSMENT_ITEM);
+            candidateSession.setFinishTime(new Date());
+            candidateSessionMap.put(Long.valueOf(xid), candidateSession);
+
+            final ItemSessionController itemSessionController = newItemSessionController(new ItemSessionState());
+            final Date timestamp = requestTimestampContext.getCurrentRequestTimestamp();
+            itemSessionController.initialize(timestamp);
+            itemSessionController.performTemplateProcessing(timestamp);
+            itemSessionController.enterItem(timestamp);
+            final Map<Identifier, ResponseData> responseMap = new HashMap<Identifier, ResponseData>();
+            responseMap.put(RESPONSE, new StringResponseData("ChoiceA"));
+            itemSessionController.bindResponses(timestamp, responseMap);
+            itemSessionController.commitResponses(timestamp);
+            itemSessionController.performResponseProcessing(timestamp);
+            itemSessionController.endItem(timestamp);
+
+            candidateDataService.recordCandidateItemEvent(candidateSession, CandidateItemEventType.ATTEMPT_VALID,
+                    itemSessionController.getItemSessionState());
+            candidateDataService.computeAndRecordItemAssessmentResult(candidateSession, itemSessionController);
+        }
+
+        /* Re-scoring happens later */
+        requestTimestampContext.setCurrentRequestTimestamp(new Date(2000000L));
+    }
+
+    @After
+    public void tearDown() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+        if (filesystemBase!=null) {
+            ServiceUtilities.recursivelyDelete(filesystemBase);
+        }
+    }
+
+    //----------------------------------------------------------
+
+    @Test
+    public void committedBatchRecorded() throws Exception {
+        final Map<String, byte[]> session1Files = readSessionFiles(1L);
+        final Map<String, byte[]> session2Files = readSessionFiles(2L);
+
+        Assert.assertEquals(2, rescoreInTransaction(Arrays.asList(Long.valueOf(1L), Long.valueOf(2L))));
+
+        assertFilesChanged(session1Files, readSessionFiles(1L));
+        assertFilesChanged(session2Files, readSessionFiles(2L));
+    }
+
+    @Test
+    public void failedBatchRestored() throws Exception {
+        final Map<String, byte[]> session1Files = readSessionFiles(1L);
+        final Map<String, byte[]> session2Files = readSessionFiles(2L);
+
+        /* Session 1 gets all of its files written before session 2 fails */
+        failingXid = Long.valueOf(2L);
+        try {
+            rescoreInTransaction(Arrays.asList(Long.valueOf(1L), Long.valueOf(2L)));
+            Assert.fail("Expected batch to fail");
+        }
+        catch (final IllegalStateException e) {
+            /* Expected */
+        }
+        assertFilesEqual(session1Files, readSessionFiles(1L));
+        assertFilesEqual(session2Files, readSessionFiles(2L));
+
+        /* Session 1 can then be re-scored on its own */
+        Assert.assertEquals(1, rescoreInTransaction(Collections.singletonList(Long.valueOf(1L))));
+        assertFilesChanged(session1Files, readSessionFiles(1L));
+    }
+
+    //----------------------------------------------------------
+
+    private int rescoreInTransaction(final List<Long> xids) {
+        final Map<Long, CandidateEvent> committedEventMap = new HashMap<Long, CandidateEvent>(mostRecentEventMap);
+        TransactionSynchronizationManager.initSynchronization();
+        int status = TransactionSynchronization.STATUS_ROLLED_BACK;
+        try {
+            final int result = rescorer.rescoreCandidateSessions(xids);
+            status = TransactionSynchronization.STATUS_COMMITTED;
+            return result;
+        }
+        finally {
+            if (status==TransactionSynchronization.STATUS_COMMITTED) {
+                TransactionSynchronizationUtils.triggerAfterCommit();
+            }
+            else {
+                /* Roll back the stub database too */
+                mostRecentEventMap.clear();
+                mostRecentEventMap.putAll(committedEventMap);
+            }
+            TransactionSynchronizationUtils.triggerAfterCompletion(status);
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    private Map<String, byte[]> readSessionFiles(final long xid) throws Exception {
+        final File sessionFolder = filespaceManager.obtainCandidateSessionStateStore(candidateSessionMap.get(Long.valueOf(xid)));
+        final Map<String, byte[]> result = new HashMap<String, byte[]>();
+        for (final File file : sessionFolder.listFiles()) {
+            result.put(file.getName(), FileUtils.readFileToByteArray(file));
+        }
+        return result;
+    }
+
+    private static void assertFilesEqual(final Map<String, byte[]> expected, final Map<String, byte[]> actual) {
+        Assert.assertEquals(expected.keySet(), actual.keySet());
+        for (final String fileName : expected.keySet()) {
+            Assert.assertArrayEquals(fileName, expected.get(fileName), actual.get(fileName));
+        }
+    }
+
+    private static void assertFilesChanged(final Map<String, byte[]> before, final Map<String, byte[]> after) {
+        Assert.assertEquals(before.keySet(), after.keySet());
+        for (final String fileName : before.keySet()) {
+            Assert.assertFalse(fileName, Arrays.equals(before.get(fileName), after.get(fileName)));
+        }
+    }
+
+    private ItemSessionController newItemSessionController(final ItemSessionState itemSessionState) {
+        return new ItemSessionController(new JqtiExtensionManager(), new ItemSessionControllerSettings(),
+                itemProcessingMap, itemSessionState);
+    }
+
+    private class StubCandidateSessionDao extends CandidateSessionDao {
+
+        @Override
+        public CandidateSession findById(final Long id) {
+            return candidateSessionMap.get(id);
+        }
+    }
+
+    private class StubCandidateEventDao extends CandidateEventDao {
+
+        @Override
+        public CandidateEvent persist(final CandidateEvent candidateEvent) {
+            candidateEvent.setId(Long.valueOf(nextXeid++));
+            mostRecentEventMap.put(candidateEvent.getCandidateSession().getId(), candidateEvent);
+            return candidateEvent;
+        }
+    }
+
+    private class StubCandidateSessionOutcomeDao extends CandidateSessionOutcomeDao {
+
+        @Override
+        public List<CandidateSessionOutcome> getForSession(final CandidateSession candidateSession) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void persistAll(final Collection<? extends CandidateSessionOutcome> outcomes) {
+            for (final CandidateSessionOutcome outcome : outcomes) {
+                if (outcome.getCandidateSession().getId().equals(failingXid)) {
+                    throw new IllegalStateException("Simulated database failure");
+                }
+            }
+        }
+    }
+
+    private class StubCandidateDataService extends CandidateDataService {
+
+        @Override
+        public CandidateEvent getMostRecentEvent(final CandidateSession candidateSession) {
+            return mostRecentEventMap.get(candidateSession.getId());
+        }
+
+        @Override
+        public ItemSessionController createItemSessionController(final CandidateEvent candidateEvent,
+                final NotificationRecorder notificationRecorder) {
+            return newItemSessionController(loadItemSessionState(candidateEvent));
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.services;
+
+import uk.ac.ed.ph.qtiworks.QtiWorksLogicException;
+import uk.ac.ed.ph.qtiworks.config.beans.QtiWorksDeploymentSettings;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateEvent;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateSession;
+import uk.ac.ed.ph.qtiworks.testutils.ServiceTestUtilities;
+
+import uk.ac.ed.ph.jqtiplus.state.ItemSessionState;
+import uk.ac.ed.ph.jqtiplus.state.TestPlan;
+import uk.ac.ed.ph.jqtiplus.state.TestPlanNode;
+import uk.ac.ed.ph.jqtiplus.state.TestSessionState;
+import uk.ac.ed.ph.jqtiplus.types.Identifier;
+import uk.ac.ed.ph.jqtiplus.value.IntegerValue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+/**
+ * Tests the {@link CandidateSessionStateJournal}, including replay of deltas and recovery
+ * from an incomplete or garbled final record.
+ *
+ * @author David McKain
+ */
+public class CandidateSessionStateJournalTest {
+
+    private static final Identifier SCORE = Identifier.assumedLegal("SCORE");
+
+    private File filesystemBase;
+    private CandidateSessionStateJournal candidateSessionStateJournal;
+    private CandidateSession candidateSession;
+
+    @Before
+    public void setup() {
+        filesystemBase = Files.createTempDir();
+        final QtiWorksDeploymentSettings qtiWorksDeploymentSettings = ServiceTestUtilities.createDeploymentSettings(filesystemBase);
+        ServiceTestUtilities.inject(qtiWorksDeploymentSettings, "stateJournalEnabled", Boolean.TRUE);
+        ServiceTestUtilities.inject(qtiWorksDeploymentSettings, "stateJournalCheckpointInterval", Integer.valueOf(4));
+        ServiceTestUtilities.inject(qtiWorksDeploymentSettings, "stateJournalTailCacheSize", Integer.valueOf(10));
+        ServiceTestUtilities.inject(qtiWorksDeploymentSettings, "stateJournalTailCacheTtlMinutes", Integer.valueOf(0));
+
+        candidateSessionStateJournal = new CandidateSessionStateJournal();
+        ServiceTestUtilities.inject(candidateSessionStateJournal, "qtiWorksDeploymentSettings", qtiWorksDeploymentSettings);
+        ServiceTestUtilities.inject(candidateSessionStateJournal, "filespaceManager", ServiceTestUtilities.createFilespaceManager(qtiWorksDeploymentSettings));
+        candidateSessionStateJournal.init();
+
+        candidateSession = ServiceTestUtilities.createCandidateSession(1L);
+    }
+
+    @After
+    public void tearDown() {
+        if (filesystemBase!=null) {
+            ServiceUtilities.recursivelyDelete(filesystemBase);
+        }
+    }
+
+    //----------------------------------------------------------
+
+    @Test
+    public void itemStatesReplayed() {
+        appendItemStates(1, 3);
+
+        /* Latest state comes from the tail, earlier ones by replaying */
+        assertItemState(3, 3);
+        assertItemState(1, 1);
+        assertItemState(2, 2);
+
+        /* Same again after forgetting the tail */
+        candidateSessionStateJournal.purge(candidateSession);
+        assertItemState(3, 3);
+        assertItemState(1, 1);
+    }
+
+    @Test
+    public void unknownEvent() {
+        appendItemStates(1, 2);
+        Assert.assertNull(candidateSessionStateJournal.loadItemSessionState(createEvent(99)));
+    }
+
+    @Test
+    public void noJournal() {
+        Assert.assertNull(candidateSessionStateJournal.loadTestSessionState(createEvent(1)));
+    }
+
+    @Test
+    public void testStateDeltasReplayed() {
+        /* Checkpoint interval is 4, so this gives C D D D C D D */
+        for (int i=1; i<=7; i++) {
+            candidateSessionStateJournal.appendTestSessionState(createEvent(i), createTestState(i));
+        }
+        candidateSessionStateJournal.purge(candidateSession);
+        for (int i=1; i<=7; i++) {
+            assertTestState(i, i);
+        }
+    }
+
+    @Test
+    public void incompleteFinalRecordTruncated() throws Exception {
+        appendItemStates(1, 2);
+        final File journalFile = getJournalFile();
+        final long goodLength = journalFile.length();
+
+        /* Simulate a crash part way through writing the next record */
+        candidateSessionStateJournal.purge(candidateSession);
+        final FileOutputStream outputStream = new FileOutputStream(journalFile, true);
+        try {
+            outputStream.write(new byte[] { 0, 0, 0, 0, 0, 0, 0, 3, 'C', 0, 0 });
+        }
+        finally {
+            outputStream.close();
+        }
+
+        /* Incomplete record should be ignored when reading */
+        assertItemState(2, 2);
+        Assert.assertNull(candidateSessionStateJournal.loadItemSessionState(createEvent(3)));
+
+        /* ...and chopped off before the next append */
+        candidateSessionStateJournal.appendItemSessionState(createEvent(3), createItemState(3));
+        candidateSessionStateJournal.purge(candidateSession);
+        Assert.assertTrue(journalFile.length() > goodLength);
+        assertItemState(1, 1);
+        assertItemState(2, 2);
+        assertItemState(3, 3);
+    }
+
+    @Test
+    public void finalRecordWithBadLengthTruncated() throws Exception {
+        appendItemStates(1, 2);
+        final long goodLength = getJournalFile().length();
+
+        /* Complete header, but a payload length going past the end of the file */
+        candidateSessionStateJournal.purge(candidateSession);
+        appendRawBytes(new byte[] { 0, 0, 0, 0, 0, 0, 0, 3, 'C', 0x7f, 0, 0, 0, 1, 2, 3 });
+        assertItemState(2, 2);
+        Assert.assertNull(candidateSessionStateJournal.loadItemSessionState(createEvent(3)));
+
+        /* Negative lengths are also rejected */
+        truncateJournal(goodLength);
+        candidateSessionStateJournal.purge(candidateSession);
+        appendRawBytes(new byte[] { 0, 0, 0, 0, 0, 0, 0, 3, 'C', (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xf0 });
+        assertItemState(2, 2);
+
+        candidateSessionStateJournal.appendItemSessionState(createEvent(3), createItemState(3));
+        candidateSessionStateJournal.purge(candidateSession);
+        assertItemState(2, 2);
+        assertItemState(3, 3);
+    }
+
+    @Test
+    public void finalRecordWithUnknownTypeTruncated() throws Exception {
+        appendItemStates(1, 2);
+        final long goodLength = getJournalFile().length();
+
+        /* (Zeroed data is typical of a record whose blocks were never written) */
+        candidateSessionStateJournal.purge(candidateSession);
+        appendRawBytes(new byte[] { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 2, 0, 0 });
+        assertItemState(2, 2);
+
+        candidateSessionStateJournal.appendItemSessionState(createEvent(3), createItemState(3));
+        candidateSessionStateJournal.purge(candidateSession);
+        Assert.assertTrue(getJournalFile().length() > goodLength);
+        assertItemState(1, 1);
+        assertItemState(2, 2);
+        assertItemState(3, 3);
+    }
+
+    @Test(expected=QtiWorksLogicException.class)
+    public void unknownTypeBeforeFinalRecordRejected() throws Exception {
+        appendItemStates(1, 2);
+
+        /* Corrupt the type of the first record. This can't be explained by a partial write. */
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(getJournalFile(), "rw");
+        try {
+            randomAccessFile.seek(8);
+            randomAccessFile.writeByte('X');
+        }
+        finally {
+            randomAccessFile.close();
+        }
+        candidateSessionStateJournal.purge(candidateSession);
+        candidateSessionStateJournal.loadItemSessionState(createEvent(2));
+    }
+
+    //----------------------------------------------------------
+
+    private void appendRawBytes(final byte[] data) throws IOException {
+        final FileOutputStream outputStream = new FileOutputStream(getJournalFile(), true);
+        try {
+            outputStream.write(data);
+        }
+        finally {
+            outputStream.close();
+        }
+    }
+
+    private void truncateJournal(final long length) throws IOException {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(getJournalFile(), "rw");
+        try {
+            randomAccessFile.setLength(length);
+        }
+        finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private File getJournalFile() {
+        final File result = findJournalFile(filesystemBase);
+        Assert.assertNotNull(result);
+        return result;
+    }
+
+    private File findJournalFile(final File directory) {
+        for (final File file : directory.listFiles()) {
+            if (file.isDirectory()) {
+                final File result = findJournalFile(file);
+                if (result!=null) {
+                    return result;
+                }
+            }
+            else if (file.getName().equals("sessionStateJournal.bin")) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    private void appendItemStates(final int fromXeid, final int toXeid) {
+        for (int i=fromXeid; i<=toXeid; i++) {
+            candidateSessionStateJournal.appendItemSessionState(createEvent(i), createItemState(i));
+        }
+    }
+
+    private void assertItemState(final long xeid, final int expectedNumAttempts) {
+        final ItemSessionState itemSessionState = candidateSessionStateJournal.loadItemSessionState(createEvent(xeid));
+        Assert.assertNotNull(itemSessionState);
+        Assert.assertEquals(expectedNumAttempts, itemSessionState.getNumAttempts());
+    }
+
+    private void assertTestState(final long xeid, final int expectedScore) {
+        final TestSessionState testSessionState = candidateSessionStateJournal.loadTestSessionState(createEvent(xeid));
+        Assert.assertNotNull(testSessionState);
+        Assert.assertEquals(new IntegerValue(expectedScore), testSessionState.getOutcomeValue(SCORE));
+    }
+
+    private CandidateEvent createEvent(final long xeid) {
+        return ServiceTestUtilities.createCandidateEvent(candidateSession, xeid);
+    }
+
+    private static ItemSessionState createItemState(final int numAttempts) {
+        final ItemSessionState result = new ItemSessionState();
+        result.setNumAttempts(numAttempts);
+        return result;
+    }
+
+    private static TestSessionState createTestState(final int score) {
+        final TestSessionState result = new TestSessionState(new TestPlan(TestPlanNode.createRoot()));
+        result.setOutcomeValue(SCORE, new IntegerValue(score));
+        return result;
+    }
+}
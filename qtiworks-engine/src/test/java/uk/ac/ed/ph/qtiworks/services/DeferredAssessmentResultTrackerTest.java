@@ -0,0 +1,190 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.services;
+
+import uk.ac.ed.ph.qtiworks.config.QtiWorksProfiles;
+import uk.ac.ed.ph.qtiworks.config.beans.QtiWorksDeploymentSettings;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateSession;
+import uk.ac.ed.ph.qtiworks.testutils.ServiceTestUtilities;
+
+import java.io.File;
+import java.util.Date;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionSynchronizationUtils;
+
+import com.google.common.io.Files;
+
+/**
+ * Tests the {@link DeferredAssessmentResultTracker}
+ *
+ * @author David McKain
+ */
+public class DeferredAssessmentResultTrackerTest {
+
+    private File filesystemBase;
+    private QtiWorksDeploymentSettings qtiWorksDeploymentSettings;
+    private FilespaceManager filespaceManager;
+    private RequestTimestampContext requestTimestampContext;
+    private DeferredAssessmentResultTracker tracker;
+
+    @Before
+    public void setup() {
+        filesystemBase = Files.createTempDir();
+        qtiWorksDeploymentSettings = ServiceTestUtilities.createDeploymentSettings(filesystemBase);
+        ServiceTestUtilities.inject(qtiWorksDeploymentSettings, "assessmentResultsDeferred", Boolean.TRUE);
+        ServiceTestUtilities.inject(qtiWorksDeploymentSettings, "assessmentResultDeferralDelay", Integer.valueOf(0));
+        filespaceManager = ServiceTestUtilities.createFilespaceManager(qtiWorksDeploymentSettings);
+        requestTimestampContext = new RequestTimestampContext();
+        tracker = createTracker();
+    }
+
+    @After
+    public void tearDown() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+        if (filesystemBase!=null) {
+            ServiceUtilities.recursivelyDelete(filesystemBase);
+        }
+    }
+
+    //----------------------------------------------------------
+
+    @Test
+    public void repeatedMarksCoalesced() {
+        final CandidateSession candidateSession = ServiceTestUtilities.createCandidateSession(1L);
+        requestTimestampContext.setCurrentRequestTimestamp(new Date(1000L));
+        tracker.markDirty(candidateSession);
+        requestTimestampContext.setCurrentRequestTimestamp(new Date(2000L));
+        tracker.markDirty(candidateSession);
+        tracker.markDirty(ServiceTestUtilities.createCandidateSession(2L));
+
+        final Map<Long, Date> dueSessions = tracker.takeDueSessions();
+        Assert.assertEquals(2, dueSessions.size());
+        Assert.assertEquals(new Date(2000L), dueSessions.get(Long.valueOf(1L)));
+        Assert.assertTrue(tracker.takeDueSessions().isEmpty());
+    }
+
+    @Test
+    public void notDueBeforeDelay() {
+        ServiceTestUtilities.inject(qtiWorksDeploymentSettings, "assessmentResultDeferralDelay", Integer.valueOf(60));
+        tracker.markDirty(ServiceTestUtilities.createCandidateSession(1L));
+        Assert.assertTrue(tracker.takeDueSessions().isEmpty());
+
+        /* Writing the result synchronously (e.g. on finishing) means there's nothing left to do */
+        Assert.assertTrue(tracker.clearDirty(1L));
+        Assert.assertFalse(tracker.clearDirty(1L));
+        ServiceTestUtilities.inject(qtiWorksDeploymentSettings, "assessmentResultDeferralDelay", Integer.valueOf(0));
+        Assert.assertTrue(tracker.takeDueSessions().isEmpty());
+    }
+
+    @Test
+    public void markedOnlyAfterCommit() {
+        TransactionSynchronizationManager.initSynchronization();
+        tracker.markDirty(ServiceTestUtilities.createCandidateSession(1L));
+        Assert.assertTrue(tracker.takeDueSessions().isEmpty());
+
+        TransactionSynchronizationUtils.triggerAfterCommit();
+        TransactionSynchronizationManager.clearSynchronization();
+        Assert.assertEquals(1, tracker.takeDueSessions().size());
+    }
+
+    @Test
+    public void dirtySessionsSurviveRestart() {
+        tracker.markDirty(ServiceTestUtilities.createCandidateSession(1L));
+        tracker.markDirty(ServiceTestUtilities.createCandidateSession(1L));
+        tracker.markDirty(ServiceTestUtilities.createCandidateSession(2L));
+        Assert.assertTrue(filespaceManager.getDirtyCandidateSessionLogFile().isFile());
+
+        /* Results are then owed for both sessions, but the timestamps are lost */
+        final DeferredAssessmentResultTracker restartedTracker = createTracker();
+        ServiceTestUtilities.inject(qtiWorksDeploymentSettings, "assessmentResultDeferralDelay", Integer.valueOf(60));
+        final Map<Long, Date> dueSessions = restartedTracker.takeDueSessions();
+        Assert.assertEquals(2, dueSessions.size());
+        Assert.assertTrue(dueSessions.containsKey(Long.valueOf(1L)));
+        Assert.assertNull(dueSessions.get(Long.valueOf(2L)));
+    }
+
+    @Test
+    public void compactedLogKeepsOnlyDirtySessions() {
+        tracker.markDirty(ServiceTestUtilities.createCandidateSession(1L));
+        tracker.takeDueSessions();
+        tracker.markDirty(ServiceTestUtilities.createCandidateSession(2L));
+        tracker.compactLog();
+        Assert.assertEquals(1, createTracker().takeDueSessions().size());
+
+        tracker.takeDueSessions();
+        tracker.compactLog();
+        Assert.assertFalse(filespaceManager.getDirtyCandidateSessionLogFile().exists());
+        Assert.assertTrue(createTracker().takeDueSessions().isEmpty());
+    }
+
+    @Test
+    public void managerLeavesLogAlone() {
+        tracker.markDirty(ServiceTestUtilities.createCandidateSession(1L));
+        final File logFile = filespaceManager.getDirtyCandidateSessionLogFile();
+        final long logLength = logFile.length();
+
+        final DeferredAssessmentResultTracker managerTracker = createTracker(QtiWorksProfiles.MANAGER);
+        Assert.assertFalse(managerTracker.isEnabled());
+        Assert.assertTrue(managerTracker.takeDueSessions().isEmpty());
+        managerTracker.compactLog();
+        Assert.assertEquals(logLength, logFile.length());
+
+        /* Webapp still sees its log after the manager has run */
+        Assert.assertEquals(1, createTracker().takeDueSessions().size());
+    }
+
+    //----------------------------------------------------------
+
+    private DeferredAssessmentResultTracker createTracker() {
+        return createTracker(QtiWorksProfiles.WEBAPP);
+    }
+
+    private DeferredAssessmentResultTracker createTracker(final String profileName) {
+        final DeferredAssessmentResultTracker result = new DeferredAssessmentResultTracker();
+        ServiceTestUtilities.inject(result, "qtiWorksDeploymentSettings", qtiWorksDeploymentSettings);
+        ServiceTestUtilities.inject(result, "requestTimestampContext", requestTimestampContext);
+        ServiceTestUtilities.inject(result, "filespaceManager", filespaceManager);
+        ServiceTestUtilities.inject(result, "environment", ServiceTestUtilities.createEnvironment(profileName));
+        result.init();
+        return result;
+    }
+}
@@ -0,0 +1,181 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.services;
+
+import uk.ac.ed.ph.qtiworks.config.QtiWorksProfiles;
+import uk.ac.ed.ph.qtiworks.config.beans.QtiWorksDeploymentSettings;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateSession;
+import uk.ac.ed.ph.qtiworks.services.dao.CandidateSessionDao;
+import uk.ac.ed.ph.qtiworks.testutils.ServiceTestUtilities;
+
+import java.io.File;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionSynchronizationUtils;
+
+import com.google.common.io.Files;
+
+/**
+ * Tests the {@link DeferredAssessmentResultWriter}, checking that it never overwrites the
+ * result written when a session finishes. Transactions are simulated by driving Spring's
+ * transaction synchronization directly.
+ *
+ * @author David McKain
+ */
+public class DeferredAssessmentResultWriterTest {
+
+    private File filesystemBase;
+    private CandidateSession candidateSession;
+    private DeferredAssessmentResultTracker tracker;
+    private DeferredAssessmentResultWriter writer;
+    private final AtomicInteger recordCount = new AtomicInteger();
+
+    @Before
+    public void setup() {
+        filesystemBase = Files.createTempDir();
+        final QtiWorksDeploymentSettings qtiWorksDeploymentSettings = ServiceTestUtilities.createDeploymentSettings(filesystemBase);
+        ServiceTestUtilities.inject(qtiWorksDeploymentSettings, "assessmentResultsDeferred", Boolean.TRUE);
+        candidateSession = ServiceTestUtilities.createCandidateSession(1L);
+
+        tracker = new DeferredAssessmentResultTracker();
+        ServiceTestUtilities.inject(tracker, "qtiWorksDeploymentSettings", qtiWorksDeploymentSettings);
+        ServiceTestUtilities.inject(tracker, "requestTimestampContext", new RequestTimestampContext());
+        ServiceTestUtilities.inject(tracker, "filespaceManager", ServiceTestUtilities.createFilespaceManager(qtiWorksDeploymentSettings));
+        ServiceTestUtilities.inject(tracker, "environment", ServiceTestUtilities.createEnvironment(QtiWorksProfiles.WEBAPP));
+        tracker.init();
+
+        writer = new DeferredAssessmentResultWriter();
+        ServiceTestUtilities.inject(writer, "requestTimestampContext", new RequestTimestampContext());
+        ServiceTestUtilities.inject(writer, "deferredAssessmentResultTracker", tracker);
+        ServiceTestUtilities.inject(writer, "candidateSessionDao", new StubCandidateSessionDao());
+        ServiceTestUtilities.inject(writer, "candidateDataService", new StubCandidateDataService());
+    }
+
+    @After
+    public void tearDown() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+        if (filesystemBase!=null) {
+            ServiceUtilities.recursivelyDelete(filesystemBase);
+        }
+    }
+
+    //----------------------------------------------------------
+
+    @Test
+    public void openSessionWritten() {
+        Assert.assertTrue(writeInTransaction());
+        Assert.assertEquals(1, recordCount.get());
+    }
+
+    @Test
+    public void finishedSessionSkipped() {
+        candidateSession.setFinishTime(new Date());
+        Assert.assertFalse(writeInTransaction());
+        Assert.assertEquals(0, recordCount.get());
+    }
+
+    @Test
+    public void terminatedSessionSkipped() {
+        candidateSession.setTerminationTime(new Date());
+        Assert.assertFalse(writeInTransaction());
+        Assert.assertEquals(0, recordCount.get());
+    }
+
+    @Test
+    public void waitsForFinishingTransaction() throws Exception {
+        /* Simulate a request that has written the final result but not yet committed */
+        TransactionSynchronizationManager.initSynchronization();
+        tracker.lockSessionUntilTransactionCompletes(1L);
+
+        final boolean[] result = new boolean[1];
+        final Thread writerThread = new Thread() {
+            @Override
+            public void run() {
+                result[0] = writeInTransaction();
+            }
+        };
+        writerThread.start();
+        writerThread.join(500L);
+        Assert.assertTrue(writerThread.isAlive());
+        Assert.assertEquals(0, recordCount.get());
+
+        /* Commit the finished session */
+        candidateSession.setFinishTime(new Date());
+        TransactionSynchronizationUtils.triggerAfterCompletion(TransactionSynchronization.STATUS_COMMITTED);
+        TransactionSynchronizationManager.clearSynchronization();
+
+        writerThread.join(5000L);
+        Assert.assertFalse(writerThread.isAlive());
+        Assert.assertFalse(result[0]);
+        Assert.assertEquals(0, recordCount.get());
+    }
+
+    //----------------------------------------------------------
+
+    private boolean writeInTransaction() {
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            return writer.writeAssessmentResult(1L, new Date());
+        }
+        finally {
+            TransactionSynchronizationUtils.triggerAfterCompletion(TransactionSynchronization.STATUS_COMMITTED);
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    private class StubCandidateSessionDao extends CandidateSessionDao {
+
+        @Override
+        public CandidateSession findById(final long id) {
+            return id==candidateSession.getId().longValue() ? candidateSession : null;
+        }
+    }
+
+    private class StubCandidateDataService extends CandidateDataService {
+
+        @Override
+        public void recordAssessmentResult(final CandidateSession session) {
+            recordCount.incrementAndGet();
+        }
+    }
+}
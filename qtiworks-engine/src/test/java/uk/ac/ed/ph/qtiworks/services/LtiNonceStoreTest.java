@@ -0,0 +1,165 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.services;
+
+import uk.ac.ed.ph.qtiworks.config.beans.QtiWorksDeploymentSettings;
+import uk.ac.ed.ph.qtiworks.domain.DomainConstants;
+import uk.ac.ed.ph.qtiworks.testutils.ServiceTestUtilities;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+/**
+ * Tests the {@link LtiNonceStore}, using explicit timestamps in place of the current time.
+ *
+ * @author David McKain
+ */
+public class LtiNonceStoreTest {
+
+    private static final long MINUTE = 60 * 1000L;
+
+    private File filesystemBase;
+    private FilespaceManager filespaceManager;
+    private LtiNonceStore ltiNonceStore;
+
+    @Before
+    public void setup() {
+        filesystemBase = Files.createTempDir();
+        final QtiWorksDeploymentSettings qtiWorksDeploymentSettings = ServiceTestUtilities.createDeploymentSettings(filesystemBase);
+        filespaceManager = ServiceTestUtilities.createFilespaceManager(qtiWorksDeploymentSettings);
+        ltiNonceStore = createLtiNonceStore();
+    }
+
+    @After
+    public void tearDown() {
+        if (filesystemBase!=null) {
+            ServiceUtilities.recursivelyDelete(filesystemBase);
+        }
+    }
+
+    //----------------------------------------------------------
+
+    @Test
+    public void repeatedNonceRejected() {
+        final long now = 1000 * MINUTE;
+        Assert.assertTrue(ltiNonceStore.recordNonce("key1", "nonce1", now, now));
+        Assert.assertFalse(ltiNonceStore.recordNonce("key1", "nonce1", now, now));
+        Assert.assertFalse(ltiNonceStore.recordNonce("key1", "nonce1", now - 5 * MINUTE, now + MINUTE));
+
+        /* Nonces are per consumer key */
+        Assert.assertTrue(ltiNonceStore.recordNonce("key2", "nonce1", now, now));
+        Assert.assertTrue(ltiNonceStore.recordNonce("key1", "nonce2", now, now));
+        Assert.assertEquals(3, ltiNonceStore.getNonceCount());
+    }
+
+    @Test
+    public void consumerKeyAndNonceNotConfused() {
+        final long now = 1000 * MINUTE;
+        Assert.assertTrue(ltiNonceStore.recordNonce("ab", "c", now, now));
+        Assert.assertTrue(ltiNonceStore.recordNonce("a", "bc", now, now));
+    }
+
+    @Test
+    public void expiredBucketsEvicted() {
+        final long start = 1000 * MINUTE;
+        Assert.assertTrue(ltiNonceStore.recordNonce("key", "old", start, start));
+
+        /* Still remembered just before it could pass the timestamp check */
+        final long beforeExpiry = start + DomainConstants.OAUTH_TIMESTAMP_MAX_AGE;
+        Assert.assertTrue(ltiNonceStore.recordNonce("key", "new", beforeExpiry, beforeExpiry));
+        Assert.assertEquals(2, ltiNonceStore.getNonceCount());
+        Assert.assertFalse(ltiNonceStore.recordNonce("key", "old", start, beforeExpiry));
+
+        /* Evicted once it's well past that */
+        final long afterExpiry = start + DomainConstants.OAUTH_TIMESTAMP_MAX_AGE + 5 * MINUTE;
+        Assert.assertTrue(ltiNonceStore.recordNonce("key", "newer", afterExpiry, afterExpiry));
+        Assert.assertEquals(2, ltiNonceStore.getNonceCount());
+
+        /* (Messages this old are rejected anyway) */
+        Assert.assertFalse(ltiNonceStore.recordNonce("key", "old", start, afterExpiry));
+    }
+
+    @Test
+    public void noncesSurviveRestart() {
+        final long now = System.currentTimeMillis();
+        Assert.assertTrue(ltiNonceStore.recordNonce("key", "nonce", now, now));
+        ltiNonceStore.destroy();
+        Assert.assertTrue(filespaceManager.getLtiNonceSnapshotFile().isFile());
+
+        final LtiNonceStore restartedStore = createLtiNonceStore();
+        Assert.assertFalse(filespaceManager.getLtiNonceSnapshotFile().exists());
+        Assert.assertEquals(1, restartedStore.getNonceCount());
+        Assert.assertFalse(restartedStore.recordNonce("key", "nonce", now, now));
+        Assert.assertTrue(restartedStore.recordNonce("key", "other", now, now));
+    }
+
+    @Test
+    public void expiredNoncesNotReloaded() {
+        final long start = 1000 * MINUTE;
+        Assert.assertTrue(ltiNonceStore.recordNonce("key", "old", start, start));
+        Assert.assertTrue(ltiNonceStore.recordNonce("key", "new", start + 30 * MINUTE, start + 30 * MINUTE));
+        ltiNonceStore.saveSnapshot(start + 30 * MINUTE);
+
+        /* Restart once the first nonce has expired */
+        final LtiNonceStore restartedStore = new LtiNonceStore();
+        ServiceTestUtilities.inject(restartedStore, "qtiWorksDeploymentSettings", ServiceTestUtilities.createDeploymentSettings(filesystemBase));
+        ServiceTestUtilities.inject(restartedStore, "filespaceManager", filespaceManager);
+        final long restartTime = start + DomainConstants.OAUTH_TIMESTAMP_MAX_AGE + 5 * MINUTE;
+        restartedStore.loadSnapshot(restartTime);
+        Assert.assertEquals(1, restartedStore.getNonceCount());
+        Assert.assertFalse(restartedStore.recordNonce("key", "new", start + 30 * MINUTE, restartTime));
+    }
+
+    @Test
+    public void startupWithoutSnapshot() {
+        Assert.assertEquals(0, ltiNonceStore.getNonceCount());
+        Assert.assertFalse(filespaceManager.getLtiNonceSnapshotFile().exists());
+    }
+
+    //----------------------------------------------------------
+
+    private LtiNonceStore createLtiNonceStore() {
+        final LtiNonceStore result = new LtiNonceStore();
+        ServiceTestUtilities.inject(result, "qtiWorksDeploymentSettings", ServiceTestUtilities.createDeploymentSettings(filesystemBase));
+        ServiceTestUtilities.inject(result, "filespaceManager", filespaceManager);
+        result.init();
+        return result;
+    }
+}
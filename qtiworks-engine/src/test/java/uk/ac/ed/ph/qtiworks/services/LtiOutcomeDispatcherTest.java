@@ -0,0 +1,361 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.services;
+
+import uk.ac.ed.ph.qtiworks.config.beans.QtiWorksDeploymentSettings;
+import uk.ac.ed.ph.qtiworks.services.domain.PendingLtiOutcome;
+import uk.ac.ed.ph.qtiworks.testutils.ServiceTestUtilities;
+
+import uk.ac.ed.ph.jqtiplus.internal.util.Pair;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests the {@link LtiOutcomeDispatcher} against stub LIS outcome services running on a local
+ * HTTP server, checking the per-consumer concurrency and rate limits and the backoff behaviour.
+ *
+ * @author David McKain
+ */
+@SuppressWarnings("restriction")
+public class LtiOutcomeDispatcherTest {
+
+    private static final String POX_SUCCESS_RESPONSE = "<?xml version='1.0' encoding='UTF-8'?>"
+            + "<imsx_POXEnvelopeResponse xmlns='http://www.imsglobal.org/services/ltiv1p1/xsd/imsoms_v1p0'>"
+            + "<imsx_POXHeader><imsx_POXResponseHeaderInfo><imsx_version>V1.0</imsx_version>"
+            + "<imsx_messageIdentifier>1</imsx_messageIdentifier>"
+            + "<imsx_statusInfo><imsx_codeMajor>success</imsx_codeMajor><imsx_severity>status</imsx_severity></imsx_statusInfo>"
+            + "</imsx_POXResponseHeaderInfo></imsx_POXHeader>"
+            + "<imsx_POXBody><replaceResultResponse/></imsx_POXBody>"
+            + "</imsx_POXEnvelopeResponse>";
+
+    private HttpServer httpServer;
+    private ExecutorService httpServerExecutor;
+    private int port;
+    private QtiWorksDeploymentSettings qtiWorksDeploymentSettings;
+    private StubLtiOutcomeService ltiOutcomeService;
+    private LtiOutcomeDispatcher ltiOutcomeDispatcher;
+
+    @Before
+    public void setup() throws IOException {
+        httpServerExecutor = Executors.newCachedThreadPool();
+        httpServer = HttpServer.create(new InetSocketAddress(0), 0);
+        httpServer.setExecutor(httpServerExecutor);
+        httpServer.start();
+        port = httpServer.getAddress().getPort();
+        StubOutcomeService.maxTotalInFlightCount.set(0);
+
+        qtiWorksDeploymentSettings = ServiceTestUtilities.createDeploymentSettings(new File("."));
+        ServiceTestUtilities.inject(qtiWorksDeploymentSettings, "ltiOutcomeThreadCount", Integer.valueOf(8));
+        ServiceTestUtilities.inject(qtiWorksDeploymentSettings, "ltiOutcomePageSize", Integer.valueOf(100));
+        ServiceTestUtilities.inject(qtiWorksDeploymentSettings, "ltiOutcomeTimeout", Integer.valueOf(10));
+        ServiceTestUtilities.inject(qtiWorksDeploymentSettings, "ltiOutcomeConsumerConcurrency", Integer.valueOf(2));
+        ServiceTestUtilities.inject(qtiWorksDeploymentSettings, "ltiOutcomeConsumerRate", Integer.valueOf(0));
+        ltiOutcomeService = new StubLtiOutcomeService();
+    }
+
+    @After
+    public void tearDown() {
+        if (ltiOutcomeDispatcher!=null) {
+            ltiOutcomeDispatcher.destroy();
+        }
+        httpServer.stop(0);
+        httpServerExecutor.shutdownNow();
+    }
+
+    //----------------------------------------------------------
+
+    @Test
+    public void concurrencyLimitedPerConsumer() {
+        /* (Use different host names so that these appear as different HTTP routes) */
+        final StubOutcomeService consumer1 = createOutcomeService("127.0.0.1", "/consumer1", 200, true);
+        final StubOutcomeService consumer2 = createOutcomeService("localhost", "/consumer2", 200, true);
+        for (int i=1; i<=6; i++) {
+            queueOutcome(i, consumer1);
+            queueOutcome(100 + i, consumer2);
+        }
+        createDispatcher();
+
+        final Pair<Integer, Integer> result = ltiOutcomeDispatcher.dispatchQueuedLtiOutcomes(false);
+        Assert.assertEquals(Integer.valueOf(0), result.getFirst());
+        Assert.assertEquals(Integer.valueOf(12), result.getSecond());
+        Assert.assertEquals(12, ltiOutcomeService.successfulQoids().size());
+
+        /* Each consumer gets no more than 2 concurrent sends, but the two are served in parallel */
+        Assert.assertEquals(6, consumer1.requestCount.get());
+        Assert.assertEquals(6, consumer2.requestCount.get());
+        Assert.assertEquals(2, consumer1.maxInFlightCount.get());
+        Assert.assertEquals(2, consumer2.maxInFlightCount.get());
+        Assert.assertTrue(StubOutcomeService.maxTotalInFlightCount.get() > 2);
+    }
+
+    @Test
+    public void rateLimitedPerConsumer() {
+        ServiceTestUtilities.inject(qtiWorksDeploymentSettings, "ltiOutcomeConsumerRate", Integer.valueOf(5));
+        final StubOutcomeService consumer = createOutcomeService("/consumer", 0, true);
+        for (int i=1; i<=4; i++) {
+            queueOutcome(i, consumer);
+        }
+        createDispatcher();
+
+        final long startTimestamp = System.currentTimeMillis();
+        ltiOutcomeDispatcher.dispatchQueuedLtiOutcomes(false);
+        final long duration = System.currentTimeMillis() - startTimestamp;
+
+        /* 5 per second means sends are at least 200ms apart */
+        Assert.assertEquals(4, ltiOutcomeService.successfulQoids().size());
+        Assert.assertTrue("Took " + duration + "ms", duration >= 3 * 200 - 50);
+    }
+
+    @Test
+    public void failingConsumerBackedOff() {
+        ServiceTestUtilities.inject(qtiWorksDeploymentSettings, "ltiOutcomeConsumerConcurrency", Integer.valueOf(1));
+        final StubOutcomeService brokenConsumer = createOutcomeService("/broken", 0, false);
+        final StubOutcomeService workingConsumer = createOutcomeService("/working", 0, true);
+        for (int i=1; i<=5; i++) {
+            queueOutcome(i, brokenConsumer);
+        }
+        queueOutcome(10, workingConsumer);
+        createDispatcher();
+
+        final Pair<Integer, Integer> result = ltiOutcomeDispatcher.dispatchQueuedLtiOutcomes(false);
+
+        /* After 3 consecutive failures, the remaining outcomes are deferred without being sent */
+        Assert.assertEquals(3, brokenConsumer.requestCount.get());
+        Assert.assertEquals(Integer.valueOf(3), result.getFirst());
+        Assert.assertEquals(Integer.valueOf(4), result.getSecond());
+        Assert.assertEquals(Collections.singletonList(Long.valueOf(10)), ltiOutcomeService.successfulQoids());
+        final LtiOutcomeDispatcher.DispatcherStatus status = ltiOutcomeDispatcher.getDispatcherStatus();
+        Assert.assertEquals(1, status.getBackingOffCount());
+        Assert.assertEquals(2L, status.getDeferredCount());
+
+        /* Next run leaves the broken consumer alone entirely */
+        ltiOutcomeService.sendResults.clear();
+        ltiOutcomeDispatcher.dispatchQueuedLtiOutcomes(false);
+        Assert.assertEquals(3, brokenConsumer.requestCount.get());
+    }
+
+    @Test
+    public void onlyLatestOutcomeForSessionSent() {
+        final StubOutcomeService consumer = createOutcomeService("/consumer", 100, true);
+        ltiOutcomeService.queue.add(createPendingLtiOutcome(1L, 1L, consumer));
+        ltiOutcomeService.queue.add(createPendingLtiOutcome(2L, 2L, consumer));
+        ltiOutcomeService.queue.add(createPendingLtiOutcome(3L, 1L, consumer));
+        createDispatcher();
+
+        ltiOutcomeDispatcher.dispatchQueuedLtiOutcomes(false);
+
+        Assert.assertEquals(2, consumer.requestCount.get());
+        Assert.assertEquals(1, consumer.maxInFlightCountForSession(1L));
+        Assert.assertEquals(2, ltiOutcomeService.sendResults.size());
+        Assert.assertFalse(ltiOutcomeService.sendResults.containsKey(Long.valueOf(1L)));
+    }
+
+    //----------------------------------------------------------
+
+    private void createDispatcher() {
+        ltiOutcomeDispatcher = new LtiOutcomeDispatcher();
+        ServiceTestUtilities.inject(ltiOutcomeDispatcher, "qtiWorksDeploymentSettings", qtiWorksDeploymentSettings);
+        ServiceTestUtilities.inject(ltiOutcomeDispatcher, "ltiOutcomeService", ltiOutcomeService);
+        ltiOutcomeDispatcher.init();
+    }
+
+    private StubOutcomeService createOutcomeService(final String path, final long responseDelay, final boolean successful) {
+        return createOutcomeService("127.0.0.1", path, responseDelay, successful);
+    }
+
+    private StubOutcomeService createOutcomeService(final String host, final String path, final long responseDelay, final boolean successful) {
+        final StubOutcomeService result = new StubOutcomeService("http://" + host + ":" + port + path, responseDelay, successful);
+        httpServer.createContext(path, result);
+        return result;
+    }
+
+    private void queueOutcome(final long qoid, final StubOutcomeService outcomeService) {
+        ltiOutcomeService.queue.add(createPendingLtiOutcome(qoid, qoid, outcomeService));
+    }
+
+    private static PendingLtiOutcome createPendingLtiOutcome(final long qoid, final long xid, final StubOutcomeService outcomeService) {
+        return new PendingLtiOutcome(qoid, xid, new Date(), outcomeService.url, "sourcedid" + xid,
+                "key", "secret", 0.5);
+    }
+
+    //----------------------------------------------------------
+
+    /**
+     * Stub LIS outcome service, which records how many requests it is handling at once.
+     */
+    private static final class StubOutcomeService implements HttpHandler {
+
+        static final AtomicInteger totalInFlightCount = new AtomicInteger();
+        static final AtomicInteger maxTotalInFlightCount = new AtomicInteger();
+
+        final String url;
+        final long responseDelay;
+        final boolean successful;
+        final AtomicInteger requestCount = new AtomicInteger();
+        final AtomicInteger inFlightCount = new AtomicInteger();
+        final AtomicInteger maxInFlightCount = new AtomicInteger();
+        final Map<String, AtomicInteger> sessionInFlightCounts = new ConcurrentHashMap<String, AtomicInteger>();
+        final Map<String, AtomicInteger> maxSessionInFlightCounts = new ConcurrentHashMap<String, AtomicInteger>();
+
+        StubOutcomeService(final String url, final long responseDelay, final boolean successful) {
+            this.url = url;
+            this.responseDelay = responseDelay;
+            this.successful = successful;
+        }
+
+        int maxInFlightCountForSession(final long xid) {
+            final AtomicInteger result = maxSessionInFlightCounts.get("sourcedid" + xid);
+            return result!=null ? result.get() : 0;
+        }
+
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            requestCount.incrementAndGet();
+            final String body = new String(ByteStreams.toByteArray(exchange.getRequestBody()), "UTF-8");
+            final String sourcedid = body.replaceFirst("(?s).*<sourcedId>([^<]*)</sourcedId>.*", "$1");
+            recordMaximum(maxInFlightCount, inFlightCount.incrementAndGet());
+            recordMaximum(maxTotalInFlightCount, totalInFlightCount.incrementAndGet());
+            final AtomicInteger sessionInFlightCount = obtainCounter(sessionInFlightCounts, sourcedid);
+            recordMaximum(obtainCounter(maxSessionInFlightCounts, sourcedid), sessionInFlightCount.incrementAndGet());
+            try {
+                if (responseDelay > 0) {
+                    Thread.sleep(responseDelay);
+                }
+                final byte[] response = (successful ? POX_SUCCESS_RESPONSE : "Broken").getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", "application/xml");
+                exchange.sendResponseHeaders(successful ? 200 : 500, response.length);
+                final OutputStream outputStream = exchange.getResponseBody();
+                outputStream.write(response);
+                outputStream.close();
+            }
+            catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            finally {
+                sessionInFlightCount.decrementAndGet();
+                totalInFlightCount.decrementAndGet();
+                inFlightCount.decrementAndGet();
+                exchange.close();
+            }
+        }
+
+        private static synchronized AtomicInteger obtainCounter(final Map<String, AtomicInteger> counterMap, final String key) {
+            AtomicInteger result = counterMap.get(key);
+            if (result==null) {
+                result = new AtomicInteger();
+                counterMap.put(key, result);
+            }
+            return result;
+        }
+
+        private static void recordMaximum(final AtomicInteger maximum, final int value) {
+            int current;
+            do {
+                current = maximum.get();
+            } while (value > current && !maximum.compareAndSet(current, value));
+        }
+    }
+
+    /**
+     * Stub {@link LtiOutcomeService} holding its queue in memory.
+     */
+    private static final class StubLtiOutcomeService extends LtiOutcomeService {
+
+        final List<PendingLtiOutcome> queue = Collections.synchronizedList(new ArrayList<PendingLtiOutcome>());
+        final Map<Long, Boolean> sendResults = Collections.synchronizedMap(new LinkedHashMap<Long, Boolean>());
+
+        List<Long> successfulQoids() {
+            final List<Long> result = new ArrayList<Long>();
+            for (final Map.Entry<Long, Boolean> entry : sendResults.entrySet()) {
+                if (entry.getValue().booleanValue()) {
+                    result.add(entry.getKey());
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public int removeSupersededQueuedLtiOutcomes() {
+            return 0;
+        }
+
+        @Override
+        public List<PendingLtiOutcome> getNextPendingLtiOutcomes(final long afterQoid, final Date timestamp,
+                final boolean ignoreRetryTimes, final int maxResults) {
+            final List<PendingLtiOutcome> result = new ArrayList<PendingLtiOutcome>();
+            synchronized (queue) {
+                for (final PendingLtiOutcome pendingLtiOutcome : queue) {
+                    if (pendingLtiOutcome.getQoid() > afterQoid && result.size() < maxResults
+                            && !sendResults.containsKey(Long.valueOf(pendingLtiOutcome.getQoid()))) {
+                        result.add(pendingLtiOutcome);
+                    }
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public void recordLtiOutcomeSendResults(final Map<Long, Boolean> results) {
+            sendResults.putAll(results);
+        }
+
+        @Override
+        public long countQueuedLtiOutcomes() {
+            return queue.size() - sendResults.size();
+        }
+    }
+}
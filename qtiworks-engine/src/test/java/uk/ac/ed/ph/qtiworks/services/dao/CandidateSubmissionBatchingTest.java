@@ -0,0 +1,368 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.services.dao;
+
+import static org.junit.Assert.assertEquals;
+
+import uk.ac.ed.ph.qtiworks.config.JpaProductionConfiguration;
+import uk.ac.ed.ph.qtiworks.config.ServicesConfiguration;
+import uk.ac.ed.ph.qtiworks.config.beans.QtiWorksDeploymentSettings;
+import uk.ac.ed.ph.qtiworks.domain.entities.AnonymousUser;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateEvent;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateEventNotification;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateItemEventType;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateResponse;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateSession;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateSessionOutcome;
+import uk.ac.ed.ph.qtiworks.domain.entities.Delivery;
+import uk.ac.ed.ph.qtiworks.domain.entities.DeliveryType;
+import uk.ac.ed.ph.qtiworks.domain.entities.ResponseLegality;
+import uk.ac.ed.ph.qtiworks.services.RequestTimestampContext;
+import uk.ac.ed.ph.qtiworks.testutils.ServiceTestUtilities;
+
+import uk.ac.ed.ph.jqtiplus.notification.NotificationLevel;
+import uk.ac.ed.ph.jqtiplus.notification.NotificationType;
+import uk.ac.ed.ph.jqtiplus.types.ResponseData.ResponseDataType;
+import uk.ac.ed.ph.jqtiplus.value.BaseType;
+import uk.ac.ed.ph.jqtiplus.value.Cardinality;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+
+import org.hibernate.ejb.HibernatePersistence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.orm.jpa.JpaTransactionManager;
+import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
+import org.springframework.orm.jpa.SharedEntityManagerCreator;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.ReflectionUtils;
+
+/**
+ * Counts the JDBC statements sent when the entities created by a single candidate submission
+ * are written, using an in-memory H2 database configured with the same JPA properties as
+ * {@link ServicesConfiguration} and {@link JpaProductionConfiguration}.
+ *
+ * @author David McKain
+ */
+public class CandidateSubmissionBatchingTest {
+
+    private static final int JDBC_BATCH_SIZE = 25;
+
+    private LocalContainerEntityManagerFactoryBean entityManagerFactoryBean;
+    private TransactionTemplate transactionTemplate;
+    private InsertCountingDataSource dataSource;
+    private CandidateSession candidateSession;
+
+    private UserDao userDao;
+    private DeliveryDao deliveryDao;
+    private CandidateSessionDao candidateSessionDao;
+    private CandidateEventDao candidateEventDao;
+    private CandidateResponseDao candidateResponseDao;
+    private CandidateEventNotificationDao candidateEventNotificationDao;
+    private CandidateSessionOutcomeDao candidateSessionOutcomeDao;
+
+    @Before
+    public void setup() {
+        final QtiWorksDeploymentSettings qtiWorksDeploymentSettings = new QtiWorksDeploymentSettings();
+        ServiceTestUtilities.inject(qtiWorksDeploymentSettings, "hibernateDialect", "org.hibernate.dialect.H2Dialect");
+        ServiceTestUtilities.inject(qtiWorksDeploymentSettings, "jdbcBatchSize", Integer.valueOf(JDBC_BATCH_SIZE));
+
+        final Properties extraJpaProperties = new JpaProductionConfiguration().extraJpaProperties();
+        extraJpaProperties.put("hibernate.hbm2ddl.auto", "create-drop");
+        final ServicesConfiguration servicesConfiguration = new ServicesConfiguration();
+        ServiceTestUtilities.inject(servicesConfiguration, "qtiWorksDeploymentSettings", qtiWorksDeploymentSettings);
+        ServiceTestUtilities.inject(servicesConfiguration, "extraJpaProperties", extraJpaProperties);
+
+        final DriverManagerDataSource h2DataSource = new DriverManagerDataSource("jdbc:h2:mem:batching;DB_CLOSE_DELAY=-1", "sa", "");
+        h2DataSource.setDriverClassName("org.h2.Driver");
+        dataSource = new InsertCountingDataSource(h2DataSource);
+
+        entityManagerFactoryBean = new LocalContainerEntityManagerFactoryBean();
+        entityManagerFactoryBean.setPersistenceProviderClass(HibernatePersistence.class);
+        entityManagerFactoryBean.setDataSource(dataSource);
+        entityManagerFactoryBean.setJpaProperties(servicesConfiguration.jpaProperties());
+        entityManagerFactoryBean.setPackagesToScan("uk.ac.ed.ph.qtiworks.domain.entities");
+        entityManagerFactoryBean.afterPropertiesSet();
+        final EntityManagerFactory entityManagerFactory = entityManagerFactoryBean.getObject();
+        transactionTemplate = new TransactionTemplate(new JpaTransactionManager(entityManagerFactory));
+
+        final EntityManager entityManager = SharedEntityManagerCreator.createSharedEntityManager(entityManagerFactory);
+        final RequestTimestampContext requestTimestampContext = new RequestTimestampContext();
+        userDao = createDao(new UserDao(), entityManager, requestTimestampContext);
+        deliveryDao = createDao(new DeliveryDao(), entityManager, requestTimestampContext);
+        candidateSessionDao = createDao(new CandidateSessionDao(), entityManager, requestTimestampContext);
+        candidateEventDao = createDao(new CandidateEventDao(), entityManager, requestTimestampContext);
+        candidateResponseDao = createDao(new CandidateResponseDao(), entityManager, requestTimestampContext);
+        candidateEventNotificationDao = createDao(new CandidateEventNotificationDao(), entityManager, requestTimestampContext);
+        candidateSessionOutcomeDao = createDao(new CandidateSessionOutcomeDao(), entityManager, requestTimestampContext);
+
+        candidateSession = transactionTemplate.execute(new TransactionCallback<CandidateSession>() {
+            @Override
+            public CandidateSession doInTransaction(final TransactionStatus status) {
+                final AnonymousUser candidate = new AnonymousUser();
+                candidate.setSessionId("batching");
+                candidate.setFirstName("Batching");
+                candidate.setLastName("Test");
+                userDao.persist(candidate);
+
+                final Delivery delivery = new Delivery();
+                delivery.setDeliveryType(DeliveryType.SYSTEM_DEMO);
+                delivery.setTitle("Batching test");
+                deliveryDao.persist(delivery);
+
+                final CandidateSession result = new CandidateSession();
+                result.setDelivery(delivery);
+                result.setCandidate(candidate);
+                candidateSessionDao.persist(result);
+                return result;
+            }
+        });
+    }
+
+    @After
+    public void teardown() {
+        if (entityManagerFactoryBean!=null) {
+            entityManagerFactoryBean.destroy();
+        }
+    }
+
+    @Test
+    public void submissionWithinOneBatch() {
+        final int count = 10;
+        dataSource.reset();
+        recordSubmission(count);
+
+        /* 1 event, plus one batch each for responses, notifications and outcomes */
+        assertEquals(1 + 3*count, dataSource.getInsertRowCount());
+        assertEquals(4, dataSource.getInsertExecuteCount());
+    }
+
+    @Test
+    public void largeSubmission() {
+        final int count = 2*JDBC_BATCH_SIZE + 1;
+        dataSource.reset();
+        recordSubmission(count);
+
+        /* Each type now needs 3 batches, regardless of sequence pool refills in between */
+        assertEquals(1 + 3*count, dataSource.getInsertRowCount());
+        assertEquals(1 + 3*3, dataSource.getInsertExecuteCount());
+    }
+
+    @Test
+    public void repeatedSubmissions() {
+        final int count = 10;
+        for (int i=0; i<5; i++) {
+            dataSource.reset();
+            recordSubmission(count);
+            assertEquals(4, dataSource.getInsertExecuteCount());
+        }
+    }
+
+    @Test
+    public void eventIdsAreConsecutive() {
+        final CandidateEvent first = recordSubmission(1);
+        final CandidateEvent second = recordSubmission(1);
+        assertEquals(first.getId().longValue() + 1, second.getId().longValue());
+    }
+
+    //-------------------------------------------------
+
+    /**
+     * Writes the entities for one submission in the same way as the delivery services do: the
+     * event first, then its responses and notifications, then the session outcomes.
+     */
+    private CandidateEvent recordSubmission(final int count) {
+        return transactionTemplate.execute(new TransactionCallback<CandidateEvent>() {
+            @Override
+            public CandidateEvent doInTransaction(final TransactionStatus status) {
+                final CandidateEvent candidateEvent = new CandidateEvent();
+                candidateEvent.setCandidateSession(candidateSession);
+                candidateEvent.setItemEventType(CandidateItemEventType.ATTEMPT_VALID);
+                candidateEvent.setTimestamp(new Date());
+                candidateEventDao.persist(candidateEvent);
+
+                final List<CandidateResponse> responses = new ArrayList<CandidateResponse>();
+                final List<CandidateEventNotification> notifications = new ArrayList<CandidateEventNotification>();
+                final List<CandidateSessionOutcome> outcomes = new ArrayList<CandidateSessionOutcome>();
+                for (int i=0; i<count; i++) {
+                    final CandidateResponse response = new CandidateResponse();
+                    response.setCandidateEvent(candidateEvent);
+                    response.setResponseIdentifier("RESPONSE_" + i);
+                    response.setResponseDataType(ResponseDataType.FILE);
+                    response.setResponseLegality(ResponseLegality.VALID);
+                    responses.add(response);
+
+                    final CandidateEventNotification notification = new CandidateEventNotification();
+                    notification.setCandidateEvent(candidateEvent);
+                    notification.setNotificationType(NotificationType.RUNTIME);
+                    notification.setNotificationLevel(NotificationLevel.INFO);
+                    notification.setMessage("Notification " + i);
+                    notifications.add(notification);
+
+                    final CandidateSessionOutcome outcome = new CandidateSessionOutcome();
+                    outcome.setCandidateSession(candidateSession);
+                    outcome.setOutcomeIdentifier("OUTCOME_" + i);
+                    outcome.setBaseType(BaseType.FLOAT);
+                    outcome.setCardinality(Cardinality.SINGLE);
+                    outcome.setStringValue(Integer.toString(i));
+                    outcomes.add(outcome);
+                }
+                candidateResponseDao.persistAll(responses);
+                candidateEventNotificationDao.persistAll(notifications);
+                candidateSessionOutcomeDao.persistAll(outcomes);
+                return candidateEvent;
+            }
+        });
+    }
+
+    private static <D extends GenericDao<?>> D createDao(final D dao, final EntityManager entityManager,
+            final RequestTimestampContext requestTimestampContext) {
+        /* (Both GenericDao and its subclasses declare their own EntityManager fields) */
+        Class<?> daoClass = dao.getClass();
+        while (daoClass!=Object.class) {
+            for (final Field field : daoClass.getDeclaredFields()) {
+                if (field.getType()==EntityManager.class) {
+                    ReflectionUtils.makeAccessible(field);
+                    ReflectionUtils.setField(field, dao, entityManager);
+                }
+            }
+            daoClass = daoClass.getSuperclass();
+        }
+        ServiceTestUtilities.inject(dao, "requestTimestampContext", requestTimestampContext);
+        return dao;
+    }
+
+    /**
+     * Wraps a {@link DataSource} to count the rows sent by INSERT statements, and the number of
+     * times those statements are actually executed (i.e. the number of round trips).
+     */
+    static final class InsertCountingDataSource extends DelegatingDataSource {
+
+        private final AtomicInteger insertRowCount = new AtomicInteger();
+        private final AtomicInteger insertExecuteCount = new AtomicInteger();
+
+        public InsertCountingDataSource(final DataSource targetDataSource) {
+            super(targetDataSource);
+        }
+
+        public void reset() {
+            insertRowCount.set(0);
+            insertExecuteCount.set(0);
+        }
+
+        public int getInsertRowCount() {
+            return insertRowCount.get();
+        }
+
+        public int getInsertExecuteCount() {
+            return insertExecuteCount.get();
+        }
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            return wrapConnection(super.getConnection());
+        }
+
+        @Override
+        public Connection getConnection(final String username, final String password) throws SQLException {
+            return wrapConnection(super.getConnection(username, password));
+        }
+
+        private Connection wrapConnection(final Connection connection) {
+            return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class },
+                    new InvocationHandler() {
+                        @Override
+                        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                            final Object result = invokeTarget(connection, method, args);
+                            if ("prepareStatement".equals(method.getName())
+                                    && ((String) args[0]).trim().toLowerCase().startsWith("insert")) {
+                                return wrapInsertStatement((PreparedStatement) result);
+                            }
+                            return result;
+                        }
+                    });
+        }
+
+        private PreparedStatement wrapInsertStatement(final PreparedStatement statement) {
+            return (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { PreparedStatement.class },
+                    new InvocationHandler() {
+                        @Override
+                        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                            final String methodName = method.getName();
+                            if ("addBatch".equals(methodName)) {
+                                insertRowCount.incrementAndGet();
+                            }
+                            else if ("executeUpdate".equals(methodName) || "execute".equals(methodName)) {
+                                insertRowCount.incrementAndGet();
+                                insertExecuteCount.incrementAndGet();
+                            }
+                            else if ("executeBatch".equals(methodName)) {
+                                insertExecuteCount.incrementAndGet();
+                            }
+                            return invokeTarget(statement, method, args);
+                        }
+                    });
+        }
+
+        private static Object invokeTarget(final Object target, final Method method, final Object[] args) throws Throwable {
+            try {
+                return method.invoke(target, args);
+            }
+            catch (final InvocationTargetException e) {
+                throw e.getTargetException();
+            }
+        }
+    }
+}
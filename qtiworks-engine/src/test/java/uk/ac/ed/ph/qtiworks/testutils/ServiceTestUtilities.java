@@ -0,0 +1,129 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.testutils;
+
+import uk.ac.ed.ph.qtiworks.config.beans.QtiWorksDeploymentSettings;
+import uk.ac.ed.ph.qtiworks.domain.entities.AnonymousUser;
+import uk.ac.ed.ph.qtiworks.domain.entities.Assessment;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateEvent;
+import uk.ac.ed.ph.qtiworks.domain.entities.CandidateSession;
+import uk.ac.ed.ph.qtiworks.domain.entities.Delivery;
+import uk.ac.ed.ph.qtiworks.services.FilespaceManager;
+import uk.ac.ed.ph.qtiworks.services.RequestTimestampContext;
+
+import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
+
+import java.io.File;
+import java.lang.reflect.Field;
+
+import org.springframework.core.env.Environment;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.util.ReflectionUtils;
+
+/**
+ * Helpers for setting up services and entities in unit tests, without needing a Spring
+ * context or database.
+ *
+ * @author David McKain
+ */
+public final class ServiceTestUtilities {
+
+    /**
+     * Sets the (usually private and injected) field having the given name within the given
+     * target Object.
+     */
+    public static void inject(final Object target, final String fieldName, final Object value) {
+        Assert.notNull(target, "target");
+        final Field field = ReflectionUtils.findField(target.getClass(), fieldName);
+        if (field==null) {
+            throw new IllegalArgumentException("No field " + fieldName + " in " + target.getClass());
+        }
+        ReflectionUtils.makeAccessible(field);
+        ReflectionUtils.setField(field, target, value);
+    }
+
+    /**
+     * Creates {@link QtiWorksDeploymentSettings} using the given filesystem base. All other
+     * settings are left at their Java defaults, so should be set via
+     * {@link #inject(Object, String, Object)} as required.
+     */
+    public static QtiWorksDeploymentSettings createDeploymentSettings(final File filesystemBase) {
+        final QtiWorksDeploymentSettings result = new QtiWorksDeploymentSettings();
+        inject(result, "filesystemBase", filesystemBase.getAbsolutePath());
+        return result;
+    }
+
+    /** Creates an {@link Environment} having the given active Spring profile */
+    public static Environment createEnvironment(final String profileName) {
+        final StandardEnvironment result = new StandardEnvironment();
+        result.setActiveProfiles(profileName);
+        return result;
+    }
+
+    /** Creates a working {@link FilespaceManager} using the given settings */
+    public static FilespaceManager createFilespaceManager(final QtiWorksDeploymentSettings qtiWorksDeploymentSettings) {
+        final FilespaceManager result = new FilespaceManager();
+        inject(result, "qtiWorksDeploymentSettings", qtiWorksDeploymentSettings);
+        inject(result, "requestTimestampContext", new RequestTimestampContext());
+        result.init();
+        return result;
+    }
+
+    /**
+     * Creates an unpersisted {@link CandidateSession} having the given ID, together with enough
+     * of the related entities to allow its data to be stored in the filesystem.
+     */
+    public static CandidateSession createCandidateSession(final long xid) {
+        final Assessment assessment = new Assessment();
+        assessment.setId(Long.valueOf(1L));
+        final Delivery delivery = new Delivery();
+        delivery.setId(Long.valueOf(1L));
+        delivery.setAssessment(assessment);
+        final AnonymousUser candidate = new AnonymousUser();
+        candidate.setSessionId("session" + xid);
+        final CandidateSession result = new CandidateSession();
+        result.setId(Long.valueOf(xid));
+        result.setDelivery(delivery);
+        result.setCandidate(candidate);
+        return result;
+    }
+
+    /** Creates an unpersisted {@link CandidateEvent} having the given ID within the given session */
+    public static CandidateEvent createCandidateEvent(final CandidateSession candidateSession, final long xeid) {
+        final CandidateEvent result = new CandidateEvent();
+        result.setId(Long.valueOf(xeid));
+        result.setCandidateSession(candidateSession);
+        return result;
+    }
+}
@@ -0,0 +1,315 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.utils;
+
+import uk.ac.ed.ph.qtiworks.services.ServiceUtilities;
+import uk.ac.ed.ph.qtiworks.utils.CompressedZipWriter.CompressedEntry;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+/**
+ * Round-trip tests for {@link CompressedZipWriter}, reading back what it writes using both
+ * {@link ZipFile} (which uses the central directory) and {@link ZipInputStream} (which uses the
+ * local headers).
+ *
+ * @author David McKain
+ */
+public class CompressedZipWriterTest {
+
+    private static final long TIME = 1380000000000L;
+
+    private File tempDirectory;
+    private File zipFile;
+
+    @Before
+    public void setup() {
+        tempDirectory = Files.createTempDir();
+        zipFile = new File(tempDirectory, "test.zip");
+    }
+
+    @After
+    public void tearDown() {
+        if (tempDirectory!=null) {
+            ServiceUtilities.recursivelyDelete(tempDirectory);
+        }
+    }
+
+    //----------------------------------------------------------
+
+    @Test
+    public void storedAndDeflatedEntries() throws IOException {
+        final byte[] randomData = new byte[5000];
+        new Random(1L).nextBytes(randomData);
+        final Map<String, byte[]> entryMap = new LinkedHashMap<String, byte[]>();
+        entryMap.put("text.txt", repeat("Hello world. ", 1000).getBytes("UTF-8"));
+        entryMap.put("folder/random.bin", randomData);
+        entryMap.put("empty.txt", new byte[0]);
+
+        final CompressedEntry[] entries = new CompressedEntry[entryMap.size()];
+        int i = 0;
+        for (final Entry<String, byte[]> entry : entryMap.entrySet()) {
+            entries[i++] = CompressedZipWriter.compressEntry(entry.getKey(), entry.getValue(), TIME);
+        }
+        Assert.assertEquals(ZipEntry.DEFLATED, entries[0].getMethod());
+        Assert.assertEquals(ZipEntry.STORED, entries[1].getMethod());
+        Assert.assertEquals(ZipEntry.STORED, entries[2].getMethod());
+        writeZip(entries);
+
+        assertZipFileContents(entryMap);
+        assertZipInputStreamContents(entryMap);
+        final ZipFile zip = new ZipFile(zipFile);
+        try {
+            final ZipEntry textEntry = zip.getEntry("text.txt");
+            Assert.assertEquals(ZipEntry.DEFLATED, textEntry.getMethod());
+            Assert.assertTrue(textEntry.getCompressedSize() < textEntry.getSize());
+            Assert.assertEquals(ZipEntry.STORED, zip.getEntry("folder/random.bin").getMethod());
+            Assert.assertTrue(Math.abs(textEntry.getTime() - TIME) <= 2000L);
+        }
+        finally {
+            ServiceUtilities.ensureClose(zip);
+        }
+    }
+
+    @Test
+    public void precompressedEntry() throws IOException {
+        /* Data compressed elsewhere (e.g. taken from another ZIP) can be written as-is */
+        final byte[] data = repeat("abc", 500).getBytes("UTF-8");
+        final CompressedEntry compressed = CompressedZipWriter.compressEntry("x", data, TIME);
+        final CompressedEntry entry = new CompressedEntry("copy.txt", TIME, compressed.getMethod(),
+                compressed.getCrc(), compressed.getSize(), compressed.getCompressedData());
+        writeZip(entry);
+
+        final Map<String, byte[]> expected = new LinkedHashMap<String, byte[]>();
+        expected.put("copy.txt", data);
+        assertZipFileContents(expected);
+        assertZipInputStreamContents(expected);
+    }
+
+    @Test
+    public void utf8Names() throws IOException {
+        final Map<String, byte[]> entryMap = new LinkedHashMap<String, byte[]>();
+        entryMap.put("r\u00e9sum\u00e9.txt", "one".getBytes("UTF-8"));
+        entryMap.put("\u0444\u0430\u0439\u043b/\u6587\u4ef6.xml", "two".getBytes("UTF-8"));
+        entryMap.put("emoji-\ud83d\ude00.txt", "three".getBytes("UTF-8"));
+
+        final CompressedEntry[] entries = new CompressedEntry[entryMap.size()];
+        int i = 0;
+        for (final Entry<String, byte[]> entry : entryMap.entrySet()) {
+            entries[i++] = CompressedZipWriter.compressEntry(entry.getKey(), entry.getValue(), TIME);
+        }
+        writeZip(entries);
+
+        assertZipFileContents(entryMap);
+        assertZipInputStreamContents(entryMap);
+    }
+
+    @Test
+    public void zip64EntryCountBoundary() throws IOException {
+        /* 65535 entries is the first count that needs the ZIP64 end records */
+        doManyEntriesTest(65535);
+    }
+
+    @Test
+    public void zip64ManyEntries() throws IOException {
+        doManyEntriesTest(70000);
+    }
+
+    @Test
+    public void belowZip64EntryCount() throws IOException {
+        doManyEntriesTest(65534);
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void writeAfterFinish() throws IOException {
+        final OutputStream outputStream = new FileOutputStream(zipFile);
+        try {
+            final CompressedZipWriter zipWriter = new CompressedZipWriter(outputStream);
+            zipWriter.finish();
+            zipWriter.writeEntry(CompressedZipWriter.compressEntry("late.txt", new byte[1], TIME));
+        }
+        finally {
+            outputStream.close();
+        }
+    }
+
+    //----------------------------------------------------------
+
+    private void doManyEntriesTest(final int entryCount) throws IOException {
+        final OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(zipFile));
+        try {
+            final CompressedZipWriter zipWriter = new CompressedZipWriter(outputStream);
+            for (int i=0; i<entryCount; i++) {
+                final byte[] data = createManyEntryData(i);
+                zipWriter.writeEntry(new CompressedEntry(createManyEntryName(i), TIME, ZipEntry.STORED,
+                        computeCrc(data), data.length, data));
+            }
+            zipWriter.finish();
+        }
+        finally {
+            outputStream.close();
+        }
+
+        /* Check via central directory */
+        final ZipFile zip = new ZipFile(zipFile);
+        try {
+            Assert.assertEquals(entryCount, zip.size());
+            for (final int i : new int[] { 0, 1, 65533, entryCount - 1 }) {
+                final ZipEntry zipEntry = zip.getEntry(createManyEntryName(i));
+                Assert.assertNotNull(zipEntry);
+                Assert.assertArrayEquals(createManyEntryData(i), readFully(zip.getInputStream(zipEntry)));
+            }
+        }
+        finally {
+            ServiceUtilities.ensureClose(zip);
+        }
+
+        /* Check via local headers */
+        final ZipInputStream zipInputStream = new ZipInputStream(new FileInputStream(zipFile));
+        try {
+            int i = 0;
+            ZipEntry zipEntry;
+            while ((zipEntry = zipInputStream.getNextEntry())!=null) {
+                Assert.assertEquals(createManyEntryName(i), zipEntry.getName());
+                Assert.assertArrayEquals(createManyEntryData(i), ByteStreams.toByteArray(zipInputStream));
+                i++;
+            }
+            Assert.assertEquals(entryCount, i);
+        }
+        finally {
+            zipInputStream.close();
+        }
+    }
+
+    private static String createManyEntryName(final int i) {
+        return "entries/" + (i / 1000) + "/entry" + i + ".txt";
+    }
+
+    private static byte[] createManyEntryData(final int i) {
+        return Integer.toString(i).getBytes();
+    }
+
+    private void writeZip(final CompressedEntry... entries) throws IOException {
+        final OutputStream outputStream = new FileOutputStream(zipFile);
+        try {
+            final CompressedZipWriter zipWriter = new CompressedZipWriter(outputStream);
+            for (final CompressedEntry entry : entries) {
+                zipWriter.writeEntry(entry);
+            }
+            zipWriter.finish();
+        }
+        finally {
+            outputStream.close();
+        }
+    }
+
+    private void assertZipFileContents(final Map<String, byte[]> expected) throws IOException {
+        final ZipFile zip = new ZipFile(zipFile);
+        try {
+            Assert.assertEquals(expected.size(), zip.size());
+            final Enumeration<? extends ZipEntry> zipEntries = zip.entries();
+            for (final Entry<String, byte[]> entry : expected.entrySet()) {
+                final ZipEntry zipEntry = zipEntries.nextElement();
+                Assert.assertEquals(entry.getKey(), zipEntry.getName());
+                Assert.assertEquals(entry.getValue().length, zipEntry.getSize());
+                Assert.assertEquals(computeCrc(entry.getValue()), zipEntry.getCrc());
+                Assert.assertArrayEquals(entry.getValue(), readFully(zip.getInputStream(zipEntry)));
+            }
+        }
+        finally {
+            ServiceUtilities.ensureClose(zip);
+        }
+    }
+
+    private void assertZipInputStreamContents(final Map<String, byte[]> expected) throws IOException {
+        final ZipInputStream zipInputStream = new ZipInputStream(new FileInputStream(zipFile));
+        try {
+            for (final Entry<String, byte[]> entry : expected.entrySet()) {
+                final ZipEntry zipEntry = zipInputStream.getNextEntry();
+                Assert.assertNotNull(zipEntry);
+                Assert.assertEquals(entry.getKey(), zipEntry.getName());
+                Assert.assertArrayEquals(entry.getValue(), ByteStreams.toByteArray(zipInputStream));
+            }
+            Assert.assertNull(zipInputStream.getNextEntry());
+        }
+        finally {
+            zipInputStream.close();
+        }
+    }
+
+    private static byte[] readFully(final InputStream inputStream) throws IOException {
+        try {
+            return ByteStreams.toByteArray(inputStream);
+        }
+        finally {
+            inputStream.close();
+        }
+    }
+
+    private static long computeCrc(final byte[] data) {
+        final CRC32 crc32 = new CRC32();
+        crc32.update(data);
+        return crc32.getValue();
+    }
+
+    private static String repeat(final String string, final int count) {
+        final StringBuilder result = new StringBuilder(string.length() * count);
+        for (int i=0; i<count; i++) {
+            result.append(string);
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,405 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.qtiworks.web;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Tests the conditional and range request handling in {@link ServletOutputStreamer}, using
+ * minimal stand-ins for the servlet request and response.
+ *
+ * @author David McKain
+ */
+public class ServletOutputStreamerTest {
+
+    private static final String CONTENT = "0123456789";
+    private static final String ETAG = "\"abc\"";
+    private static final Date LAST_MODIFIED = new Date(1381996800000L);
+
+    private Map<String, String> requestHeaders;
+    private StubResponse stubResponse;
+
+    @Before
+    public void setup() {
+        requestHeaders = new HashMap<String, String>();
+        stubResponse = new StubResponse();
+    }
+
+    //----------------------------------------------------------
+    // Plain requests
+
+    @Test
+    public void wholeResourceSent() throws IOException {
+        stream(ETAG);
+        assertWholeResourceSent();
+        Assert.assertEquals("bytes", stubResponse.headers.get("Accept-Ranges"));
+        Assert.assertEquals(ETAG, stubResponse.headers.get("ETag"));
+        Assert.assertEquals(WebUtilities.formatHttpDate(LAST_MODIFIED), stubResponse.headers.get("Last-Modified"));
+        Assert.assertEquals("text/plain", stubResponse.contentType);
+    }
+
+    @Test
+    public void requestHeadersIgnoredWithoutRequest() throws IOException {
+        requestHeaders.put("If-None-Match", ETAG);
+        requestHeaders.put("Range", "bytes=2-5");
+        new ServletOutputStreamer(stubResponse.proxy(), ETAG).stream("text/plain", CONTENT.length(), LAST_MODIFIED,
+                new ByteArrayInputStream(CONTENT.getBytes(Charsets.US_ASCII)));
+        assertWholeResourceSent();
+        Assert.assertNull(stubResponse.headers.get("Accept-Ranges"));
+    }
+
+    //----------------------------------------------------------
+    // Conditional requests
+
+    @Test
+    public void matchingEtagNotModified() throws IOException {
+        requestHeaders.put("If-None-Match", ETAG);
+        stream(ETAG);
+        assertNotModified();
+        Assert.assertEquals(ETAG, stubResponse.headers.get("ETag"));
+    }
+
+    @Test
+    public void etagsComparedWeakly() throws IOException {
+        requestHeaders.put("If-None-Match", "\"other\", W/\"abc\"");
+        stream(ETAG);
+        assertNotModified();
+    }
+
+    @Test
+    public void wildcardEtagNotModified() throws IOException {
+        requestHeaders.put("If-None-Match", "*");
+        stream(null);
+        assertNotModified();
+    }
+
+    @Test
+    public void differentEtagSent() throws IOException {
+        requestHeaders.put("If-None-Match", "\"other\"");
+        stream(ETAG);
+        assertWholeResourceSent();
+    }
+
+    @Test
+    public void unmodifiedSinceNotModified() throws IOException {
+        requestHeaders.put("If-Modified-Since", WebUtilities.formatHttpDate(LAST_MODIFIED));
+        stream(ETAG);
+        assertNotModified();
+    }
+
+    @Test
+    public void modifiedSinceSent() throws IOException {
+        requestHeaders.put("If-Modified-Since", WebUtilities.formatHttpDate(new Date(LAST_MODIFIED.getTime() - 1000L)));
+        stream(ETAG);
+        assertWholeResourceSent();
+    }
+
+    @Test
+    public void ifNoneMatchOverridesIfModifiedSince() throws IOException {
+        requestHeaders.put("If-None-Match", "\"other\"");
+        requestHeaders.put("If-Modified-Since", WebUtilities.formatHttpDate(LAST_MODIFIED));
+        stream(ETAG);
+        assertWholeResourceSent();
+    }
+
+    @Test
+    public void malformedIfModifiedSinceIgnored() throws IOException {
+        requestHeaders.put("If-Modified-Since", "yesterday");
+        stream(ETAG);
+        assertWholeResourceSent();
+    }
+
+    //----------------------------------------------------------
+    // Range requests
+
+    @Test
+    public void singleRange() throws IOException {
+        requestHeaders.put("Range", "bytes=2-5");
+        stream(ETAG);
+        assertPartialContent(2, 5);
+    }
+
+    @Test
+    public void openEndedRange() throws IOException {
+        requestHeaders.put("Range", "bytes=7-");
+        stream(ETAG);
+        assertPartialContent(7, 9);
+    }
+
+    @Test
+    public void rangeBeyondEndTruncated() throws IOException {
+        requestHeaders.put("Range", "bytes=8-100");
+        stream(ETAG);
+        assertPartialContent(8, 9);
+    }
+
+    @Test
+    public void suffixRange() throws IOException {
+        requestHeaders.put("Range", "bytes=-3");
+        stream(ETAG);
+        assertPartialContent(7, 9);
+    }
+
+    @Test
+    public void suffixRangeLongerThanContent() throws IOException {
+        requestHeaders.put("Range", "bytes=-20");
+        stream(ETAG);
+        assertPartialContent(0, 9);
+    }
+
+    @Test
+    public void rangeStartingAfterEndUnsatisfiable() throws IOException {
+        for (final String range : new String[] { "bytes=10-", "bytes=10-20" }) {
+            setup();
+            requestHeaders.put("Range", range);
+            stream(ETAG);
+            assertUnsatisfiable();
+        }
+    }
+
+    @Test
+    public void emptySuffixRangeUnsatisfiable() throws IOException {
+        requestHeaders.put("Range", "bytes=-0");
+        stream(ETAG);
+        assertUnsatisfiable();
+    }
+
+    @Test
+    public void multipleRangesIgnored() throws IOException {
+        requestHeaders.put("Range", "bytes=0-1,4-5");
+        stream(ETAG);
+        assertWholeResourceSent();
+    }
+
+    @Test
+    public void malformedRangesIgnored() throws IOException {
+        for (final String range : new String[] { "bytes=abc-", "bytes=5-2", "bytes=-", "bytes=3", "items=0-1" }) {
+            setup();
+            requestHeaders.put("Range", range);
+            stream(ETAG);
+            assertWholeResourceSent();
+        }
+    }
+
+    @Test
+    public void unknownLengthIgnoresRange() throws IOException {
+        requestHeaders.put("Range", "bytes=2-5");
+        new ServletOutputStreamer(createRequest(), stubResponse.proxy(), ETAG, ServletOutputStreamer.MUST_REVALIDATE)
+            .stream("text/plain", -1L, LAST_MODIFIED, new ByteArrayInputStream(CONTENT.getBytes(Charsets.US_ASCII)));
+        Assert.assertEquals(HttpServletResponse.SC_OK, stubResponse.status);
+        Assert.assertEquals(CONTENT, stubResponse.getBody());
+        Assert.assertNull(stubResponse.headers.get("Accept-Ranges"));
+    }
+
+    @Test
+    public void ifRangeWithMatchingEtag() throws IOException {
+        requestHeaders.put("Range", "bytes=2-5");
+        requestHeaders.put("If-Range", ETAG);
+        stream(ETAG);
+        assertPartialContent(2, 5);
+    }
+
+    @Test
+    public void ifRangeWithDifferentEtag() throws IOException {
+        requestHeaders.put("Range", "bytes=2-5");
+        requestHeaders.put("If-Range", "\"other\"");
+        stream(ETAG);
+        assertWholeResourceSent();
+    }
+
+    @Test
+    public void ifRangeWithWeakEtag() throws IOException {
+        requestHeaders.put("Range", "bytes=2-5");
+        requestHeaders.put("If-Range", "W/\"abc\"");
+        stream("W/\"abc\"");
+        assertWholeResourceSent();
+    }
+
+    @Test
+    public void ifRangeWithDate() throws IOException {
+        requestHeaders.put("Range", "bytes=2-5");
+        requestHeaders.put("If-Range", WebUtilities.formatHttpDate(LAST_MODIFIED));
+        stream(ETAG);
+        assertPartialContent(2, 5);
+
+        setup();
+        requestHeaders.put("Range", "bytes=2-5");
+        requestHeaders.put("If-Range", WebUtilities.formatHttpDate(new Date(LAST_MODIFIED.getTime() - 1000L)));
+        stream(ETAG);
+        assertWholeResourceSent();
+    }
+
+    //----------------------------------------------------------
+
+    private void stream(final String etag) throws IOException {
+        final ServletOutputStreamer streamer = new ServletOutputStreamer(createRequest(), stubResponse.proxy(),
+                etag, ServletOutputStreamer.MUST_REVALIDATE);
+        streamer.stream("text/plain", CONTENT.length(), LAST_MODIFIED, new ByteArrayInputStream(CONTENT.getBytes(Charsets.US_ASCII)));
+    }
+
+    private void assertWholeResourceSent() {
+        Assert.assertEquals(HttpServletResponse.SC_OK, stubResponse.status);
+        Assert.assertEquals(CONTENT.length(), stubResponse.contentLength);
+        Assert.assertEquals(CONTENT, stubResponse.getBody());
+        Assert.assertNull(stubResponse.headers.get("Content-Range"));
+    }
+
+    private void assertNotModified() {
+        Assert.assertEquals(HttpServletResponse.SC_NOT_MODIFIED, stubResponse.status);
+        Assert.assertEquals("", stubResponse.getBody());
+    }
+
+    private void assertPartialContent(final int first, final int last) {
+        Assert.assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, stubResponse.status);
+        Assert.assertEquals("bytes " + first + "-" + last + "/" + CONTENT.length(), stubResponse.headers.get("Content-Range"));
+        Assert.assertEquals(last - first + 1, stubResponse.contentLength);
+        Assert.assertEquals(CONTENT.substring(first, last + 1), stubResponse.getBody());
+    }
+
+    private void assertUnsatisfiable() {
+        Assert.assertEquals(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE, stubResponse.status);
+        Assert.assertEquals("bytes */" + CONTENT.length(), stubResponse.headers.get("Content-Range"));
+        Assert.assertEquals("", stubResponse.getBody());
+    }
+
+    /**
+     * Creates a stand-in {@link HttpServletRequest} that only supports reading the headers
+     * set up in {@link #requestHeaders}.
+     */
+    private HttpServletRequest createRequest() {
+        return (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        final String methodName = method.getName();
+                        if ("getHeader".equals(methodName)) {
+                            return requestHeaders.get(args[0]);
+                        }
+                        else if ("getDateHeader".equals(methodName)) {
+                            return Long.valueOf(parseDateHeader(requestHeaders.get(args[0])));
+                        }
+                        throw new UnsupportedOperationException(methodName);
+                    }
+                });
+    }
+
+    /** Behaves like {@link HttpServletRequest#getDateHeader(String)} */
+    private static long parseDateHeader(final String value) {
+        if (value==null) {
+            return -1L;
+        }
+        final DateFormat httpDateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        httpDateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return httpDateFormat.parse(value).getTime();
+        }
+        catch (final ParseException e) {
+            throw new IllegalArgumentException("Cannot parse date " + value);
+        }
+    }
+
+    /**
+     * Stand-in {@link HttpServletResponse} that records the status, headers and body set by
+     * the {@link ServletOutputStreamer}.
+     */
+    private static final class StubResponse implements InvocationHandler {
+
+        int status = HttpServletResponse.SC_OK;
+        int contentLength = -1;
+        String contentType;
+        final Map<String, String> headers = new HashMap<String, String>();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        HttpServletResponse proxy() {
+            return (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] { HttpServletResponse.class }, this);
+        }
+
+        String getBody() {
+            return new String(body.toByteArray(), Charsets.US_ASCII);
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) {
+            final String methodName = method.getName();
+            if ("setHeader".equals(methodName)) {
+                headers.put((String) args[0], (String) args[1]);
+            }
+            else if ("setStatus".equals(methodName) || "sendError".equals(methodName)) {
+                status = ((Integer) args[0]).intValue();
+            }
+            else if ("setContentType".equals(methodName)) {
+                contentType = (String) args[0];
+            }
+            else if ("setContentLength".equals(methodName)) {
+                contentLength = ((Integer) args[0]).intValue();
+            }
+            else if ("getOutputStream".equals(methodName)) {
+                return new ServletOutputStream() {
+                    @Override
+                    public void write(final int b) {
+                        body.write(b);
+                    }
+                };
+            }
+            else {
+                throw new UnsupportedOperationException(methodName);
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+-- Schema migration script for upgrading from 1.0-beta6 to 1.0-beta7
+--
+-- NB: This has been written to work with PostgreSQL and will probably need
+-- tweaked slightly to work with other databases.
+BEGIN WORK;
+
+-- Increase the allocation sizes of the sequences used by entities written
+-- in bulk during candidate sessions so that their inserts can be batched. We
+-- need to keep sequence settings in sync with Java @SequenceGenerator annotations.
+-- (NB: candidate_event_sequence must stay at INCREMENT BY 1, as event IDs
+-- determine the order of events. See dev25-to-dev26.sql.)
+-- (On MySQL, these sequences are tables, so instead do:
+--   UPDATE candidate_response_sequence SET next_val = next_val + 50;
+-- and likewise for the other 2.)
+ALTER SEQUENCE candidate_event_notification_sequence INCREMENT BY 50;
+ALTER SEQUENCE candidate_response_sequence INCREMENT BY 50;
+ALTER SEQUENCE candidate_session_outcome_sequence INCREMENT BY 50;
+
+-- Record the SHA-256 hash of the data uploaded to create each AssessmentPackage,
+-- so that identical uploads can share the same stored files. Existing packages
+-- are left with a NULL hash and keep their own private sandboxes.
+ALTER TABLE assessment_packages ADD content_hash VARCHAR(64);
+CREATE INDEX assessment_packages_content_hash_idx ON assessment_packages(content_hash);
+
+-- Record whether each AssessmentPackage is stored as its original ZIP file
+-- rather than having been unpacked into its sandbox.
+ALTER TABLE assessment_packages ADD stored_as_zip BOOLEAN NOT NULL DEFAULT FALSE;
+
+COMMIT WORK;
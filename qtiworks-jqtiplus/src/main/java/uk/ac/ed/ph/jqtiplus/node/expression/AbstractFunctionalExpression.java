@@ -60,6 +60,22 @@ public abstract class AbstractFunctionalExpression extends AbstractExpression {
         return evaluateValidSelf(context, childValues, depth);
     }
 
+    /**
+     * Evaluates this expression using child values that have already been calculated
+     * by the caller. This skips the validity checks and logging performed by
+     * {@link #evaluate(ProcessingContext)}, so must only be used on expressions within a
+     * valid subject.
+     * <p>
+     * (This is used by the compiled form of processing.)
+     *
+     * @param context context to evaluate in
+     * @param childValues calculated values of the children of this expression, in document order
+     * @return result of evaluation, which will not be null
+     */
+    public final Value evaluateWithChildValues(final ProcessingContext context, final Value[] childValues) {
+        return evaluateValidSelf(context, childValues, 0);
+    }
+
     /**
      * Evaluates this expression, using the given calculated child values
      *
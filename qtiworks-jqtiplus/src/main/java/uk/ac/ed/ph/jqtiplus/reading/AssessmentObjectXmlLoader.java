@@ -38,18 +38,27 @@ import uk.ac.ed.ph.jqtiplus.node.test.AssessmentTest;
 import uk.ac.ed.ph.jqtiplus.resolution.AssessmentObjectResolver;
 import uk.ac.ed.ph.jqtiplus.resolution.ResolvedAssessmentItem;
 import uk.ac.ed.ph.jqtiplus.resolution.ResolvedAssessmentTest;
+import uk.ac.ed.ph.jqtiplus.resolution.SharedRootNodeCache;
 import uk.ac.ed.ph.jqtiplus.validation.AssessmentObjectValidator;
 import uk.ac.ed.ph.jqtiplus.validation.ItemValidationResult;
 import uk.ac.ed.ph.jqtiplus.validation.TestValidationResult;
 import uk.ac.ed.ph.jqtiplus.xmlutils.locators.ResourceLocator;
 
 import java.net.URI;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Convenient facade for loading, resolving and validating {@link AssessmentItem}s
  * and {@link AssessmentTest}s from XML using a {@link QtiXmlReader} for the low
  * level XML parsing and a {@link ResourceLocator} for locating and finding the
  * required XML resources.
+ * <p>
+ * An optional {@link ExecutorService} may be provided, in which case the items referenced by
+ * an {@link AssessmentTest} are read, resolved and validated in parallel. (The {@link ResourceLocator}
+ * must then be safe for concurrent use.)
+ * <p>
+ * An optional {@link SharedRootNodeCache} may also be provided to share commonly used
+ * resources with other loaders.
  *
  * @see QtiXmlReader
  * @see ResourceLocator
@@ -60,10 +69,24 @@ public final class AssessmentObjectXmlLoader {
 
     private final QtiXmlReader qtiXmlReader;
     private final ResourceLocator inputResourceLocator;
+    private final ExecutorService executorService;
+    private final SharedRootNodeCache sharedRootNodeCache;
 
     public AssessmentObjectXmlLoader(final QtiXmlReader qtiXmlReader, final ResourceLocator inputResourceLocator) {
+        this(qtiXmlReader, inputResourceLocator, null, null);
+    }
+
+    public AssessmentObjectXmlLoader(final QtiXmlReader qtiXmlReader, final ResourceLocator inputResourceLocator,
+            final ExecutorService executorService) {
+        this(qtiXmlReader, inputResourceLocator, executorService, null);
+    }
+
+    public AssessmentObjectXmlLoader(final QtiXmlReader qtiXmlReader, final ResourceLocator inputResourceLocator,
+            final ExecutorService executorService, final SharedRootNodeCache sharedRootNodeCache) {
         this.qtiXmlReader = qtiXmlReader;
         this.inputResourceLocator = inputResourceLocator;
+        this.executorService = executorService;
+        this.sharedRootNodeCache = sharedRootNodeCache;
     }
 
     public QtiXmlReader getQtiXmlReader() {
@@ -74,18 +97,26 @@ public final class AssessmentObjectXmlLoader {
         return inputResourceLocator;
     }
 
+    public ExecutorService getExecutorService() {
+        return executorService;
+    }
+
+    public SharedRootNodeCache getSharedRootNodeCache() {
+        return sharedRootNodeCache;
+    }
+
     //-------------------------------------------------------------------
     // AssessmentItem resolution & validation
 
     public ResolvedAssessmentItem loadAndResolveAssessmentItem(final URI systemId) {
         final QtiObjectReader qtiObjectReader = qtiXmlReader.createQtiObjectReader(inputResourceLocator, false);
-        final AssessmentObjectResolver assessmentObjectResolver = new AssessmentObjectResolver(qtiObjectReader);
+        final AssessmentObjectResolver assessmentObjectResolver = new AssessmentObjectResolver(qtiObjectReader, null, sharedRootNodeCache);
         return assessmentObjectResolver.resolveAssessmentItem(systemId);
     }
 
     public ItemValidationResult loadResolveAndValidateItem(final URI systemId) {
         final QtiObjectReader qtiObjectReader = qtiXmlReader.createQtiObjectReader(inputResourceLocator, true);
-        final ResolvedAssessmentItem resolvedAssessmentItem = new AssessmentObjectResolver(qtiObjectReader).resolveAssessmentItem(systemId);
+        final ResolvedAssessmentItem resolvedAssessmentItem = new AssessmentObjectResolver(qtiObjectReader, null, sharedRootNodeCache).resolveAssessmentItem(systemId);
         final AssessmentObjectValidator assessmentObjectValidator = new AssessmentObjectValidator(qtiObjectReader.getJqtiExtensionManager());
         return assessmentObjectValidator.validateItem(resolvedAssessmentItem);
     }
@@ -95,14 +126,14 @@ public final class AssessmentObjectXmlLoader {
 
     public ResolvedAssessmentTest loadAndResolveAssessmentTest(final URI systemId) {
         final QtiObjectReader qtiObjectReader = qtiXmlReader.createQtiObjectReader(inputResourceLocator, false);
-        final AssessmentObjectResolver assessmentObjectResolver = new AssessmentObjectResolver(qtiObjectReader);
+        final AssessmentObjectResolver assessmentObjectResolver = new AssessmentObjectResolver(qtiObjectReader, executorService, sharedRootNodeCache);
         return assessmentObjectResolver.resolveAssessmentTest(systemId);
     }
 
     public TestValidationResult loadResolveAndValidateTest(final URI systemId) {
         final QtiObjectReader qtiObjectReader = qtiXmlReader.createQtiObjectReader(inputResourceLocator, true);
-        final ResolvedAssessmentTest resolvedAssessmentTest = new AssessmentObjectResolver(qtiObjectReader).resolveAssessmentTest(systemId);
-        final AssessmentObjectValidator assessmentObjectValidator = new AssessmentObjectValidator(qtiObjectReader.getJqtiExtensionManager());
+        final ResolvedAssessmentTest resolvedAssessmentTest = new AssessmentObjectResolver(qtiObjectReader, executorService, sharedRootNodeCache).resolveAssessmentTest(systemId);
+        final AssessmentObjectValidator assessmentObjectValidator = new AssessmentObjectValidator(qtiObjectReader.getJqtiExtensionManager(), executorService);
         return assessmentObjectValidator.validateTest(resolvedAssessmentTest);
     }
 
@@ -113,6 +144,8 @@ public final class AssessmentObjectXmlLoader {
         return getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(this))
                 + "(qtiXmlReader=" + qtiXmlReader
                 + ",inputResourceLocator=" + inputResourceLocator
+                + ",executorService=" + executorService
+                + ",sharedRootNodeCache=" + sharedRootNodeCache
                 + ")";
     }
 }
@@ -122,6 +122,22 @@ public final class QtiXmlReader {
         return xmlResourceReader.getSchemaCache();
     }
 
+    /**
+     * Returns the schemas registered with this reader, keyed on namespace URI.
+     */
+    public Map<String, String> getRegisteredSchemaMap() {
+        return xmlResourceReader.getRegisteredSchemaMap();
+    }
+
+    /**
+     * Compiles and caches the schema having the given URI.
+     *
+     * @see XmlResourceReader#precompileSchema(String)
+     */
+    public void precompileSchema(final String schemaUri) {
+        xmlResourceReader.precompileSchema(schemaUri);
+    }
+
     //--------------------------------------------------
 
     /**
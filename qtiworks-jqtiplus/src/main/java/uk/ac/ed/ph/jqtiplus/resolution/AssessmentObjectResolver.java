@@ -33,6 +33,7 @@
  */
 package uk.ac.ed.ph.jqtiplus.resolution;
 
+import uk.ac.ed.ph.jqtiplus.internal.util.ConcurrencyUtilities;
 import uk.ac.ed.ph.jqtiplus.node.RootNode;
 import uk.ac.ed.ph.jqtiplus.node.item.AssessmentItem;
 import uk.ac.ed.ph.jqtiplus.node.item.response.processing.ResponseProcessing;
@@ -46,6 +47,10 @@ import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -57,6 +62,13 @@ import org.slf4j.LoggerFactory;
  * <p>
  * This provides a rich {@link ResolvedAssessmentItem} or {@link ResolvedAssessmentTest}
  * which is useful for the running/delivery of assessments.
+ * <p>
+ * If an {@link ExecutorService} is provided then the items referenced by an {@link AssessmentTest}
+ * are resolved in parallel using it. (The {@link RootNodeProvider} must then be safe for
+ * concurrent use.) The result is the same as for sequential resolution.
+ * <p>
+ * If a {@link SharedRootNodeCache} is provided then commonly used resources (such as the
+ * standard response processing templates) are shared with other resolvers using the same cache.
  *
  * @author David McKain
  */
@@ -65,16 +77,50 @@ public final class AssessmentObjectResolver {
     private static final Logger logger = LoggerFactory.getLogger(AssessmentObjectResolver.class);
 
     private final RootNodeProvider rootNodeProvider;
+    private final ExecutorService executorService;
+    private final SharedRootNodeCache sharedRootNodeCache;
 
     public AssessmentObjectResolver(final RootNodeProvider rootNodeProvider) {
+        this(rootNodeProvider, null, null);
+    }
+
+    /**
+     * Creates a resolver that uses the given {@link ExecutorService} to resolve test items
+     * in parallel. Pass null to resolve sequentially.
+     */
+    public AssessmentObjectResolver(final RootNodeProvider rootNodeProvider, final ExecutorService executorService) {
+        this(rootNodeProvider, executorService, null);
+    }
+
+    /**
+     * Creates a resolver that uses the given {@link ExecutorService} to resolve test items
+     * in parallel, and shares resources using the given {@link SharedRootNodeCache}. Either
+     * of these may be null.
+     */
+    public AssessmentObjectResolver(final RootNodeProvider rootNodeProvider, final ExecutorService executorService,
+            final SharedRootNodeCache sharedRootNodeCache) {
         this.rootNodeProvider = rootNodeProvider;
+        this.executorService = executorService;
+        this.sharedRootNodeCache = sharedRootNodeCache;
+    }
+
+    public ExecutorService getExecutorService() {
+        return executorService;
+    }
+
+    public SharedRootNodeCache getSharedRootNodeCache() {
+        return sharedRootNodeCache;
+    }
+
+    private CachedResourceProvider createCachedResourceProvider() {
+        return new CachedResourceProvider(rootNodeProvider, sharedRootNodeCache);
     }
 
     //-------------------------------------------------------------------
     // AssessmentItem resolution
 
     public ResolvedAssessmentItem resolveAssessmentItem(final URI systemId) {
-        return resolveAssessmentItem(systemId, new CachedResourceProvider(rootNodeProvider));
+        return resolveAssessmentItem(systemId, createCachedResourceProvider());
     }
 
     private ResolvedAssessmentItem resolveAssessmentItem(final URI systemId, final CachedResourceProvider cachedResourceProvider) {
@@ -84,7 +130,7 @@ public final class AssessmentObjectResolver {
 
     public ResolvedAssessmentItem resolveAssessmentItem(final AssessmentItem assessmentItem) {
         final RootNodeLookup<AssessmentItem> itemWrapper = new RootNodeLookup<AssessmentItem>(assessmentItem);
-        return initResolvedAssessmentItem(itemWrapper, new CachedResourceProvider(rootNodeProvider));
+        return initResolvedAssessmentItem(itemWrapper, createCachedResourceProvider());
     }
 
     private ResolvedAssessmentItem initResolvedAssessmentItem(final RootNodeLookup<AssessmentItem> itemLookup, final CachedResourceProvider cachedResourceProvider) {
@@ -135,7 +181,7 @@ public final class AssessmentObjectResolver {
     // AssessmentTest resolution
 
     public ResolvedAssessmentTest resolveAssessmentTest(final URI systemId) {
-        return resolveAssessmentTest(systemId, new CachedResourceProvider(rootNodeProvider));
+        return resolveAssessmentTest(systemId, createCachedResourceProvider());
     }
 
     private ResolvedAssessmentTest resolveAssessmentTest(final URI systemId, final CachedResourceProvider cachedResourceProvider) {
@@ -145,7 +191,7 @@ public final class AssessmentObjectResolver {
 
     public ResolvedAssessmentTest resolveAssessmentTest(final AssessmentTest assessmentTest) {
         final RootNodeLookup<AssessmentTest> testWrapper = new RootNodeLookup<AssessmentTest>(assessmentTest);
-        return initResolvedAssessmentTest(testWrapper, new CachedResourceProvider(rootNodeProvider));
+        return initResolvedAssessmentTest(testWrapper, createCachedResourceProvider());
     }
 
     private ResolvedAssessmentTest initResolvedAssessmentTest(final RootNodeLookup<AssessmentTest> testLookup, final CachedResourceProvider cachedResourceProvider) {
@@ -175,14 +221,49 @@ public final class AssessmentObjectResolver {
             }
 
             /* Resolve each unique item */
-            for (final URI itemSystemId : itemRefsBySystemIdMap.keySet()) {
-                resolvedAssessmentItemMap.put(itemSystemId, resolveAssessmentItem(itemSystemId, cachedResourceProvider));
+            if (executorService!=null && itemRefsBySystemIdMap.size() > 1) {
+                resolveAssessmentItemsInParallel(itemRefsBySystemIdMap.keySet(), resolvedAssessmentItemMap, cachedResourceProvider);
+            }
+            else {
+                for (final URI itemSystemId : itemRefsBySystemIdMap.keySet()) {
+                    resolvedAssessmentItemMap.put(itemSystemId, resolveAssessmentItem(itemSystemId, cachedResourceProvider));
+                }
             }
         }
         return new ResolvedAssessmentTest(testLookup, assessmentItemRefs,
                 systemIdByItemRefMap, itemRefsBySystemIdMap, resolvedAssessmentItemMap);
     }
 
+    /**
+     * Resolves the items having the given System IDs using the {@link #executorService}, adding
+     * them to the given Map in the same order as the System IDs so that the results are the same
+     * as if they were resolved sequentially.
+     */
+    private void resolveAssessmentItemsInParallel(final Iterable<URI> itemSystemIds,
+            final Map<URI, ResolvedAssessmentItem> resolvedAssessmentItemMap,
+            final CachedResourceProvider cachedResourceProvider) {
+        final Map<URI, Future<ResolvedAssessmentItem>> futureMap = new LinkedHashMap<URI, Future<ResolvedAssessmentItem>>();
+        for (final URI itemSystemId : itemSystemIds) {
+            futureMap.put(itemSystemId, executorService.submit(new Callable<ResolvedAssessmentItem>() {
+                @Override
+                public ResolvedAssessmentItem call() {
+                    return resolveAssessmentItem(itemSystemId, cachedResourceProvider);
+                }
+            }));
+        }
+        try {
+            for (final Entry<URI, Future<ResolvedAssessmentItem>> entry : futureMap.entrySet()) {
+                resolvedAssessmentItemMap.put(entry.getKey(), ConcurrencyUtilities.getResult(entry.getValue()));
+            }
+        }
+        finally {
+            /* Cancel anything still outstanding if we failed part way through */
+            for (final Future<ResolvedAssessmentItem> future : futureMap.values()) {
+                future.cancel(true);
+            }
+        }
+    }
+
     //-------------------------------------------------------------------
 
     private URI resolveUri(final RootNode baseObject, final URI href) {
@@ -197,6 +278,8 @@ public final class AssessmentObjectResolver {
     public String toString() {
         return getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(this))
                 + "(rootNodeProvider=" + rootNodeProvider
+                + ",executorService=" + executorService
+                + ",sharedRootNodeCache=" + sharedRootNodeCache
                 + ")";
     }
 }
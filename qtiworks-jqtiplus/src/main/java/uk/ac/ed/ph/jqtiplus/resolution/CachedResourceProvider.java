@@ -42,8 +42,9 @@ import uk.ac.ed.ph.jqtiplus.provision.RootNodeHolder;
 import uk.ac.ed.ph.jqtiplus.provision.RootNodeProvider;
 
 import java.net.URI;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -51,6 +52,12 @@ import org.slf4j.LoggerFactory;
 /**
  * Helper class that caches the results of calls to {@link AssessmentObjectResolver} during
  * resolution so that we only need to build once.
+ * <p>
+ * This is safe for use by multiple threads, provided that the underlying {@link RootNodeProvider}
+ * is. Each resource is only ever looked up once, even when requested concurrently.
+ * <p>
+ * If a {@link SharedRootNodeCache} is provided then this is consulted (and filled) for
+ * resources that it allows to be shared.
  *
  * @author David McKain
  */
@@ -59,17 +66,31 @@ final class CachedResourceProvider {
     private static final Logger logger = LoggerFactory.getLogger(CachedResourceProvider.class);
 
     private final RootNodeProvider rootNodeProvider;
-    private final Map<URI, RootNodeLookup<?>> cacheData;
+    private final SharedRootNodeCache sharedRootNodeCache;
+    private final ConcurrentMap<URI, RootNodeLookup<?>> cacheData;
+
+    /** Locks used to ensure that each resource is only looked up once */
+    private final ConcurrentMap<URI, Object> lookupLockMap;
 
     public CachedResourceProvider(final RootNodeProvider rootNodeProvider) {
+        this(rootNodeProvider, null);
+    }
+
+    public CachedResourceProvider(final RootNodeProvider rootNodeProvider, final SharedRootNodeCache sharedRootNodeCache) {
         this.rootNodeProvider = rootNodeProvider;
-        this.cacheData = new HashMap<URI, RootNodeLookup<?>>();
+        this.sharedRootNodeCache = sharedRootNodeCache;
+        this.cacheData = new ConcurrentHashMap<URI, RootNodeLookup<?>>();
+        this.lookupLockMap = new ConcurrentHashMap<URI, Object>();
     }
 
     public RootNodeProvider getRootNodeProvider() {
         return rootNodeProvider;
     }
 
+    public SharedRootNodeCache getSharedRootNodeCache() {
+        return sharedRootNodeCache;
+    }
+
     @ObjectDumperOptions(DumpMode.DEEP)
     public Map<URI, RootNodeLookup<?>> getCacheData() {
         return cacheData;
@@ -81,29 +102,60 @@ final class CachedResourceProvider {
         if (frozenResult!=null) {
             /* Cache hit */
             logger.debug("Resource cache hit for key {} yielded {}", systemId, frozenResult);
+            return frozenResult;
         }
-        else {
-            /* Cache miss */
-            try {
-                final RootNodeHolder<E> result = rootNodeProvider.lookupRootNode(systemId, resultClass);
-                frozenResult = new RootNodeLookup<E>(systemId, result);
-            }
-            catch (final BadResourceException e) {
-                frozenResult = new RootNodeLookup<E>(systemId, resultClass, e);
-            }
-            catch (final ResourceNotFoundException e) {
-                frozenResult = new RootNodeLookup<E>(systemId, resultClass, e);
+
+        /* Cache miss, so look up resource while holding its lock, checking again in case
+         * another thread has just done this */
+        synchronized (getLookupLock(systemId)) {
+            frozenResult = (RootNodeLookup<E>) cacheData.get(systemId);
+            if (frozenResult==null) {
+                final String sharingKey = sharedRootNodeCache!=null
+                        ? sharedRootNodeCache.getSharingKey(rootNodeProvider, systemId, resultClass)
+                        : null;
+                if (sharingKey!=null) {
+                    frozenResult = (RootNodeLookup<E>) sharedRootNodeCache.get(sharingKey);
+                    if (frozenResult!=null) {
+                        logger.debug("Shared resource cache hit for key {} yielded {}", sharingKey, frozenResult);
+                    }
+                    else {
+                        frozenResult = (RootNodeLookup<E>) sharedRootNodeCache.put(sharingKey, lookupRootNode(systemId, resultClass));
+                    }
+                }
+                else {
+                    frozenResult = lookupRootNode(systemId, resultClass);
+                }
+                cacheData.put(systemId, frozenResult);
+                logger.debug("Resource cache miss for key {} stored {}", systemId, frozenResult);
             }
-            cacheData.put(systemId, frozenResult);
-            logger.debug("Resource cache miss for key {} stored {}", systemId, frozenResult);
         }
         return frozenResult;
     }
 
+    private <E extends RootNode> RootNodeLookup<E> lookupRootNode(final URI systemId, final Class<E> resultClass) {
+        try {
+            final RootNodeHolder<E> result = rootNodeProvider.lookupRootNode(systemId, resultClass);
+            return new RootNodeLookup<E>(systemId, result);
+        }
+        catch (final BadResourceException e) {
+            return new RootNodeLookup<E>(systemId, resultClass, e);
+        }
+        catch (final ResourceNotFoundException e) {
+            return new RootNodeLookup<E>(systemId, resultClass, e);
+        }
+    }
+
+    private Object getLookupLock(final URI systemId) {
+        final Object newLock = new Object();
+        final Object existingLock = lookupLockMap.putIfAbsent(systemId, newLock);
+        return existingLock!=null ? existingLock : newLock;
+    }
+
     @Override
     public String toString() {
         return getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(this))
                 + "(rootNodeProvider=" + rootNodeProvider
+                + ",sharedRootNodeCache=" + sharedRootNodeCache
                 + ",cacheData=" + cacheData
                 + ")";
     }
@@ -0,0 +1,272 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.resolution;
+
+import uk.ac.ed.ph.jqtiplus.exception.QtiLogicException;
+import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
+import uk.ac.ed.ph.jqtiplus.node.RootNode;
+import uk.ac.ed.ph.jqtiplus.provision.RootNodeProvider;
+import uk.ac.ed.ph.jqtiplus.reading.QtiObjectReader;
+import uk.ac.ed.ph.jqtiplus.reading.QtiXmlReader;
+import uk.ac.ed.ph.jqtiplus.xmlutils.locators.ResourceLocator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process-wide cache of {@link RootNodeLookup}s that may be shared by many
+ * {@link AssessmentObjectResolver}s, so that commonly used resources only need to be read and
+ * built once.
+ * <p>
+ * Two kinds of resource are shared:
+ * <ul>
+ *   <li>
+ *     Resources hosted in the ClassPath and located via {@link QtiXmlReader#JQTIPLUS_PARSER_RESOURCE_LOCATOR},
+ *     such as the standard response processing templates. These are always the same, whatever
+ *     input {@link ResourceLocator} is being used.
+ *   </li>
+ *   <li>
+ *     Resources having one of the configured URI schemes, which are identified by their System ID
+ *     together with a SHA-256 hash of their content. (So the same item within two different
+ *     content packages is only built once, provided that it lives at the same path in each.)
+ *     Note that the hash covers only the resource itself, so this should not be used for resources
+ *     pulling in other resources during XML parsing (e.g. via external entities).
+ *   </li>
+ * </ul>
+ * Only lookups performed by a {@link QtiObjectReader} created from the {@link QtiXmlReader} passed
+ * to the constructor are shared, and lookups with and without schema validation are kept apart.
+ * Sharing is only safe because resolved {@link RootNode}s are never modified once built.
+ * <p>
+ * The number of cached lookups is bounded, with the least recently used ones being discarded first.
+ * <p>
+ * An instance of this class may safely be used by multiple threads.
+ *
+ * @see AssessmentObjectResolver
+ *
+ * @author David McKain
+ */
+public final class SharedRootNodeCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(SharedRootNodeCache.class);
+
+    private static final String CONTENT_HASH_ALGORITHM = "SHA-256";
+
+    private final QtiXmlReader qtiXmlReader;
+    private final int maxSize;
+    private final Set<String> contentHashedSchemeNames;
+
+    /** Least recently used lookups, keyed on sharing key. (Guarded by itself) */
+    private final Map<String, RootNodeLookup<?>> lookupMap;
+
+    /** System IDs known to be hosted in the ClassPath */
+    private final Set<URI> classPathHostedSystemIds;
+
+    public SharedRootNodeCache(final QtiXmlReader qtiXmlReader, final int maxSize) {
+        this(qtiXmlReader, maxSize, Collections.<String>emptySet());
+    }
+
+    public SharedRootNodeCache(final QtiXmlReader qtiXmlReader, final int maxSize, final Collection<String> contentHashedSchemeNames) {
+        Assert.notNull(qtiXmlReader, "qtiXmlReader");
+        Assert.notNull(contentHashedSchemeNames, "contentHashedSchemeNames");
+        this.qtiXmlReader = qtiXmlReader;
+        this.maxSize = maxSize;
+        this.contentHashedSchemeNames = Collections.unmodifiableSet(new HashSet<String>(contentHashedSchemeNames));
+        this.lookupMap = new LinkedHashMap<String, RootNodeLookup<?>>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = -6064862186937473437L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, RootNodeLookup<?>> eldest) {
+                return size() > SharedRootNodeCache.this.maxSize;
+            }
+        };
+        this.classPathHostedSystemIds = Collections.newSetFromMap(new ConcurrentHashMap<URI, Boolean>());
+    }
+
+    public QtiXmlReader getQtiXmlReader() {
+        return qtiXmlReader;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public Set<String> getContentHashedSchemeNames() {
+        return contentHashedSchemeNames;
+    }
+
+    public int size() {
+        synchronized (lookupMap) {
+            return lookupMap.size();
+        }
+    }
+
+    public void clear() {
+        synchronized (lookupMap) {
+            lookupMap.clear();
+        }
+    }
+
+    //-------------------------------------------------------------------
+
+    /**
+     * Returns the key under which the lookup of the given System ID by the given
+     * {@link RootNodeProvider} may be shared, or null if it must not be shared.
+     */
+    String getSharingKey(final RootNodeProvider rootNodeProvider, final URI systemId, final Class<? extends RootNode> resultClass) {
+        if (!(rootNodeProvider instanceof QtiObjectReader)) {
+            return null;
+        }
+        final QtiObjectReader qtiObjectReader = (QtiObjectReader) rootNodeProvider;
+        if (qtiObjectReader.getQtiXmlReader()!=qtiXmlReader) {
+            return null;
+        }
+        final StringBuilder keyBuilder = new StringBuilder(resultClass.getName())
+            .append(qtiObjectReader.isSchemaValidating() ? ":validated:" : ":unvalidated:");
+        if (isClassPathHosted(systemId)) {
+            keyBuilder.append("classpath:");
+        }
+        else if (contentHashedSchemeNames.contains(systemId.getScheme())) {
+            final String contentHash = computeContentHash(qtiObjectReader.getInputResourceLocator(), systemId);
+            if (contentHash==null) {
+                return null;
+            }
+            keyBuilder.append(contentHash).append(':');
+        }
+        else {
+            return null;
+        }
+        return keyBuilder.append(systemId).toString();
+    }
+
+    RootNodeLookup<?> get(final String sharingKey) {
+        synchronized (lookupMap) {
+            return lookupMap.get(sharingKey);
+        }
+    }
+
+    /**
+     * Stores the given lookup, unless another thread has already done so, returning
+     * the lookup that ended up being stored.
+     */
+    RootNodeLookup<?> put(final String sharingKey, final RootNodeLookup<?> lookup) {
+        synchronized (lookupMap) {
+            final RootNodeLookup<?> existing = lookupMap.get(sharingKey);
+            if (existing!=null) {
+                return existing;
+            }
+            lookupMap.put(sharingKey, lookup);
+            return lookup;
+        }
+    }
+
+    private boolean isClassPathHosted(final URI systemId) {
+        if (classPathHostedSystemIds.contains(systemId)) {
+            return true;
+        }
+        final InputStream resourceStream = QtiXmlReader.JQTIPLUS_PARSER_RESOURCE_LOCATOR.findResource(systemId);
+        if (resourceStream==null) {
+            return false;
+        }
+        close(resourceStream);
+        classPathHostedSystemIds.add(systemId);
+        return true;
+    }
+
+    private String computeContentHash(final ResourceLocator inputResourceLocator, final URI systemId) {
+        final InputStream resourceStream = inputResourceLocator.findResource(systemId);
+        if (resourceStream==null) {
+            return null;
+        }
+        try {
+            final MessageDigest digest = MessageDigest.getInstance(CONTENT_HASH_ALGORITHM);
+            final byte[] buffer = new byte[8192];
+            int count;
+            while ((count = resourceStream.read(buffer)) != -1) {
+                digest.update(buffer, 0, count);
+            }
+            final StringBuilder hashBuilder = new StringBuilder();
+            for (final byte b : digest.digest()) {
+                hashBuilder.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+            }
+            return hashBuilder.toString();
+        }
+        catch (final NoSuchAlgorithmException e) {
+            throw new QtiLogicException("Expected " + CONTENT_HASH_ALGORITHM + " to be available", e);
+        }
+        catch (final IOException e) {
+            /* Let the normal lookup deal with this */
+            logger.debug("Failed to compute content hash for {}", systemId, e);
+            return null;
+        }
+        finally {
+            close(resourceStream);
+        }
+    }
+
+    private static void close(final InputStream inputStream) {
+        try {
+            inputStream.close();
+        }
+        catch (final IOException e) {
+            logger.warn("Failed to close resource stream", e);
+        }
+    }
+
+    //-------------------------------------------------------------------
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(this))
+                + "(qtiXmlReader=" + qtiXmlReader
+                + ",maxSize=" + maxSize
+                + ",contentHashedSchemeNames=" + contentHashedSchemeNames
+                + ",size=" + size()
+                + ")";
+    }
+}
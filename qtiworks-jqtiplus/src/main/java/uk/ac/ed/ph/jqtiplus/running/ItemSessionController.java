@@ -39,6 +39,7 @@ import uk.ac.ed.ph.jqtiplus.JqtiLifecycleEventType;
 import uk.ac.ed.ph.jqtiplus.QtiConstants;
 import uk.ac.ed.ph.jqtiplus.exception.QtiCandidateStateException;
 import uk.ac.ed.ph.jqtiplus.exception.QtiLogicException;
+import uk.ac.ed.ph.jqtiplus.exception.QtiProcessingInterrupt;
 import uk.ac.ed.ph.jqtiplus.exception.ResponseBindingException;
 import uk.ac.ed.ph.jqtiplus.exception.TemplateProcessingInterrupt;
 import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
@@ -68,6 +69,8 @@ import uk.ac.ed.ph.jqtiplus.node.shared.VariableType;
 import uk.ac.ed.ph.jqtiplus.node.shared.declaration.DefaultValue;
 import uk.ac.ed.ph.jqtiplus.node.test.TemplateDefault;
 import uk.ac.ed.ph.jqtiplus.resolution.RootNodeLookup;
+import uk.ac.ed.ph.jqtiplus.running.compiled.CompiledProcessing;
+import uk.ac.ed.ph.jqtiplus.running.compiled.ProcessingCompiler;
 import uk.ac.ed.ph.jqtiplus.state.ItemProcessingMap;
 import uk.ac.ed.ph.jqtiplus.state.ItemSessionState;
 import uk.ac.ed.ph.jqtiplus.types.Identifier;
@@ -361,8 +364,13 @@ public final class ItemSessionController extends ItemProcessingController implem
         if (templateProcessing != null) {
             logger.trace("Evaluating template processing rules");
             try {
-                for (final TemplateProcessingRule templateProcessingRule : templateProcessing.getTemplateProcessingRules()) {
-                    templateProcessingRule.evaluate(this);
+                if (isUsingCompiledProcessing()) {
+                    getCompiledTemplateProcessing(templateProcessing).execute(this);
+                }
+                else {
+                    for (final TemplateProcessingRule templateProcessingRule : templateProcessing.getTemplateProcessingRules()) {
+                        templateProcessingRule.evaluate(this);
+                    }
                 }
             }
             catch (final TemplateProcessingInterrupt e) {
@@ -381,10 +389,47 @@ public final class ItemSessionController extends ItemProcessingController implem
                         break;
                 }
             }
+            catch (final QtiProcessingInterrupt e) {
+                throw new QtiLogicException("Unexpected interrupt during templateProcessing", e);
+            }
         }
         return true;
     }
 
+    //-------------------------------------------------------------------
+    // Compiled processing
+
+    private boolean isUsingCompiledProcessing() {
+        return itemSessionControllerSettings.isCompiledProcessing() && isSubjectValid();
+    }
+
+    /**
+     * Gets the compiled form of this item's templateProcessing, compiling it first if required.
+     * The result is cached in the {@link ItemProcessingMap}, so will be shared with other sessions.
+     */
+    private CompiledProcessing getCompiledTemplateProcessing(final TemplateProcessing templateProcessing) {
+        CompiledProcessing result = itemProcessingMap.getCompiledTemplateProcessing();
+        if (result==null) {
+            result = new ProcessingCompiler(this).compileTemplateProcessing(templateProcessing);
+            itemProcessingMap.setCompiledTemplateProcessing(result);
+        }
+        return result;
+    }
+
+    /**
+     * Gets the compiled form of the given responseProcessing (which will either be the item's own
+     * or its resolved template), compiling it first if required.
+     * The result is cached in the {@link ItemProcessingMap}, so will be shared with other sessions.
+     */
+    private CompiledProcessing getCompiledResponseProcessing(final ResponseProcessing responseProcessing) {
+        CompiledProcessing result = itemProcessingMap.getCompiledResponseProcessing();
+        if (result==null) {
+            result = new ProcessingCompiler(this).compileResponseProcessing(responseProcessing);
+            itemProcessingMap.setCompiledResponseProcessing(result);
+        }
+        return result;
+    }
+
 
     //-------------------------------------------------------------------
     // Entry, Update, Reset and Exit
@@ -833,29 +878,8 @@ public final class ItemSessionController extends ItemProcessingController implem
                 initOutcomeVariables();
             }
 
-            /* Work out which RP logic to perform */
-            ResponseProcessing responseProcessing = null;
-            final RootNodeLookup<ResponseProcessing> resolvedResponseProcessingTemplateLookup = resolvedAssessmentItem.getResolvedResponseProcessingTemplateLookup();
-            if (resolvedResponseProcessingTemplateLookup!=null) {
-                /* Template specified, so try to use that */
-                responseProcessing = resolvedResponseProcessingTemplateLookup.extractIfSuccessful();
-                if (responseProcessing==null) {
-                    fireRuntimeWarning(item.getResponseProcessing(), "responseProcessing template could not be loaded, so no responseProcessing will not be performed");
-                }
-            }
-            else {
-                /* Use RP specified within the item (if available) */
-                responseProcessing = item.getResponseProcessing();
-            }
-
             /* Invoke response processing */
-            if (responseProcessing!=null) {
-                responseProcessing.evaluate(this);
-            }
-            else {
-                fireRuntimeWarning(item, "There is no responseProcessing to be performed here");
-                logger.debug("No responseProcessing rules or responseProcessing template exists, so no response processing will be performed");
-            }
+            invokeResponseProcessing();
 
             /* Update final state */
             itemSessionState.setSessionStatus(SessionStatus.FINAL);
@@ -870,6 +894,75 @@ public final class ItemSessionController extends ItemProcessingController implem
         }
     }
 
+    /**
+     * Re-runs response processing on the <em>currently committed</em> responses of an item
+     * session that has already had response processing performed on it, without treating
+     * this as a new attempt. This is intended for offline re-scoring of existing sessions
+     * (e.g. after the item's responseProcessing has been corrected) so may be called on item
+     * sessions that have been ended or exited.
+     * <p>
+     * Precondition: item session must have been entered, and the item must not be adaptive.
+     * <p>
+     * Postconditions: Outcome Variables will be recomputed. The built-in variables,
+     * the <code>numAttempts</code> variable and the {@link SessionStatus} are left unchanged.
+     * Nothing happens if no responses have yet been processed.
+     */
+    public void rescoreResponses() {
+        assertItemEntered();
+        if (item.getAdaptive()) {
+            throw new QtiCandidateStateException("Adaptive items cannot be re-scored as their outcomes depend on previous attempts");
+        }
+        if (itemSessionState.getSessionStatus()!=SessionStatus.FINAL) {
+            return;
+        }
+        logger.debug("Re-scoring responses on item {}", item.getSystemId());
+
+        fireJqtiLifecycleEvent(JqtiLifecycleEventType.ITEM_RESPONSE_PROCESSING_STARTING);
+        try {
+            initOutcomeVariables();
+            invokeResponseProcessing();
+        }
+        finally {
+            fireJqtiLifecycleEvent(JqtiLifecycleEventType.ITEM_RESPONSE_PROCESSING_FINISHED);
+        }
+    }
+
+    private void invokeResponseProcessing() {
+        /* Work out which RP logic to perform */
+        ResponseProcessing responseProcessing = null;
+        final RootNodeLookup<ResponseProcessing> resolvedResponseProcessingTemplateLookup = resolvedAssessmentItem.getResolvedResponseProcessingTemplateLookup();
+        if (resolvedResponseProcessingTemplateLookup!=null) {
+            /* Template specified, so try to use that */
+            responseProcessing = resolvedResponseProcessingTemplateLookup.extractIfSuccessful();
+            if (responseProcessing==null) {
+                fireRuntimeWarning(item.getResponseProcessing(), "responseProcessing template could not be loaded, so no responseProcessing will not be performed");
+            }
+        }
+        else {
+            /* Use RP specified within the item (if available) */
+            responseProcessing = item.getResponseProcessing();
+        }
+
+        /* Invoke response processing */
+        if (responseProcessing!=null) {
+            if (isUsingCompiledProcessing()) {
+                try {
+                    getCompiledResponseProcessing(responseProcessing).execute(this);
+                }
+                catch (final QtiProcessingInterrupt interrupt) {
+                    /* Do nothing */
+                }
+            }
+            else {
+                responseProcessing.evaluate(this);
+            }
+        }
+        else {
+            fireRuntimeWarning(item, "There is no responseProcessing to be performed here");
+            logger.debug("No responseProcessing rules or responseProcessing template exists, so no response processing will be performed");
+        }
+    }
+
     /**
      * Resets all responses
      * <p>
@@ -61,15 +61,23 @@ public class ItemSessionControllerSettings implements Serializable {
      */
     private int maxAttempts;
 
+    /**
+     * Whether to use compiled forms of template and response processing, rather
+     * than interpreting them. (This only applies to valid items.)
+     */
+    private boolean compiledProcessing;
+
     public ItemSessionControllerSettings() {
         this.templateProcessingLimit = JqtiPlus.DEFAULT_TEMPLATE_PROCESSING_LIMIT;
         this.maxAttempts = 0;
+        this.compiledProcessing = false;
     }
 
     /** (Copy constructor) */
     public ItemSessionControllerSettings(final ItemSessionControllerSettings template) {
         this.templateProcessingLimit = template.templateProcessingLimit;
         this.maxAttempts = template.maxAttempts;
+        this.compiledProcessing = template.compiledProcessing;
     }
 
 
@@ -92,6 +100,15 @@ public class ItemSessionControllerSettings implements Serializable {
     }
 
 
+    public boolean isCompiledProcessing() {
+        return compiledProcessing;
+    }
+
+    public void setCompiledProcessing(final boolean compiledProcessing) {
+        this.compiledProcessing = compiledProcessing;
+    }
+
+
     @Override
     public String toString() {
         return ObjectUtilities.beanToString(this);
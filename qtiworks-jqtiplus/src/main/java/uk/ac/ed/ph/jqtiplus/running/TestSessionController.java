@@ -38,6 +38,7 @@ import uk.ac.ed.ph.jqtiplus.JqtiExtensionPackage;
 import uk.ac.ed.ph.jqtiplus.JqtiLifecycleEventType;
 import uk.ac.ed.ph.jqtiplus.exception.QtiCandidateStateException;
 import uk.ac.ed.ph.jqtiplus.exception.QtiLogicException;
+import uk.ac.ed.ph.jqtiplus.exception.QtiProcessingInterrupt;
 import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
 import uk.ac.ed.ph.jqtiplus.node.outcome.declaration.OutcomeDeclaration;
 import uk.ac.ed.ph.jqtiplus.node.result.AssessmentResult;
@@ -60,6 +61,8 @@ import uk.ac.ed.ph.jqtiplus.node.test.SubmissionMode;
 import uk.ac.ed.ph.jqtiplus.node.test.TemplateDefault;
 import uk.ac.ed.ph.jqtiplus.node.test.TestPart;
 import uk.ac.ed.ph.jqtiplus.node.test.outcome.processing.OutcomeProcessing;
+import uk.ac.ed.ph.jqtiplus.running.compiled.CompiledProcessing;
+import uk.ac.ed.ph.jqtiplus.running.compiled.ProcessingCompiler;
 import uk.ac.ed.ph.jqtiplus.state.AssessmentSectionSessionState;
 import uk.ac.ed.ph.jqtiplus.state.ControlObjectSessionState;
 import uk.ac.ed.ph.jqtiplus.state.EffectiveItemSessionControl;
@@ -1541,6 +1544,41 @@ public final class TestSessionController extends TestProcessingController {
                 && effectiveItemSessionControl.isShowSolution();
     }
 
+    //-------------------------------------------------------------------
+    // Re-scoring
+
+    /**
+     * Re-scores an existing test session by re-running response processing on the committed
+     * responses of each item in the test (as per {@link ItemSessionController#rescoreResponses()})
+     * and then re-running outcome processing. This does not change the navigation state, durations
+     * or numbers of attempts, so may be used on sessions that have already been ended or exited.
+     * <p>
+     * Adaptive items and items that have not been presented are skipped, so keep their existing
+     * outcomes.
+     * <p>
+     * Precondition: the test must have been entered.
+     * <p>
+     * Postcondition: Item and test outcome variables will be recomputed.
+     *
+     * @throws QtiCandidateStateException if the test has not been entered.
+     */
+    public void rescoreItems() {
+        assertTestEntered();
+        logger.debug("Re-scoring items in test {}", getSubject().getSystemId());
+        for (final TestPlanNode testPlanNode : testSessionState.getTestPlan().getTestPlanNodeList()) {
+            if (testPlanNode.getTestNodeType()==TestNodeType.ASSESSMENT_ITEM_REF) {
+                final ItemSessionState itemSessionState = expectItemRefState(testPlanNode);
+                if (itemSessionState.isEntered()) {
+                    final ItemSessionController itemSessionController = getItemSessionController(testPlanNode);
+                    if (!itemSessionController.getSubjectItem().getAdaptive()) {
+                        itemSessionController.rescoreResponses();
+                    }
+                }
+            }
+        }
+        performOutcomeProcessing();
+    }
+
     //-------------------------------------------------------------------
     // Outcome processing
 
@@ -1552,7 +1590,17 @@ public final class TestSessionController extends TestProcessingController {
 
             final OutcomeProcessing outcomeProcessing = getSubjectTest().getOutcomeProcessing();
             if (outcomeProcessing != null) {
-                outcomeProcessing.evaluate(this);
+                if (testSessionControllerSettings.isCompiledProcessing() && isSubjectValid()) {
+                    try {
+                        getCompiledOutcomeProcessing(outcomeProcessing).execute(this);
+                    }
+                    catch (final QtiProcessingInterrupt interrupt) {
+                        /* Do nothing */
+                    }
+                }
+                else {
+                    outcomeProcessing.evaluate(this);
+                }
             }
         }
         finally {
@@ -1561,6 +1609,19 @@ public final class TestSessionController extends TestProcessingController {
         }
     }
 
+    /**
+     * Gets the compiled form of this test's outcomeProcessing, compiling it first if required.
+     * The result is cached in the {@link TestProcessingMap}, so will be shared with other sessions.
+     */
+    private CompiledProcessing getCompiledOutcomeProcessing(final OutcomeProcessing outcomeProcessing) {
+        CompiledProcessing result = testProcessingMap.getCompiledOutcomeProcessing();
+        if (result==null) {
+            result = new ProcessingCompiler(this).compileOutcomeProcessing(outcomeProcessing);
+            testProcessingMap.setCompiledOutcomeProcessing(result);
+        }
+        return result;
+    }
+
     private void resetOutcomeVariables() {
         for (final OutcomeDeclaration outcomeDeclaration : testProcessingMap.getValidOutcomeDeclarationMap().values()) {
             testSessionState.setOutcomeValue(outcomeDeclaration, computeInitialValue(outcomeDeclaration));
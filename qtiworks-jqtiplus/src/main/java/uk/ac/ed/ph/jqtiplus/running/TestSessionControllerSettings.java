@@ -53,13 +53,22 @@ public class TestSessionControllerSettings implements Serializable {
      */
     private int templateProcessingLimit;
 
+    /**
+     * Whether to use compiled forms of outcome processing (and template and response
+     * processing on each item), rather than interpreting them. (This only applies to
+     * valid tests and items.)
+     */
+    private boolean compiledProcessing;
+
     public TestSessionControllerSettings() {
         this.templateProcessingLimit = JqtiPlus.DEFAULT_TEMPLATE_PROCESSING_LIMIT;
+        this.compiledProcessing = false;
     }
 
     /** (Copy constructor) */
     public TestSessionControllerSettings(final TestSessionControllerSettings template) {
         this.templateProcessingLimit = template.templateProcessingLimit;
+        this.compiledProcessing = template.compiledProcessing;
     }
 
 
@@ -73,6 +82,15 @@ public class TestSessionControllerSettings implements Serializable {
     }
 
 
+    public boolean isCompiledProcessing() {
+        return compiledProcessing;
+    }
+
+    public void setCompiledProcessing(final boolean compiledProcessing) {
+        this.compiledProcessing = compiledProcessing;
+    }
+
+
     @Override
     public String toString() {
         return ObjectUtilities.beanToString(this);
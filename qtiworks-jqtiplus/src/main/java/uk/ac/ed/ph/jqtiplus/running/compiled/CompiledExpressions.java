@@ -0,0 +1,480 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.running.compiled;
+
+import uk.ac.ed.ph.jqtiplus.exception.QtiLogicException;
+import uk.ac.ed.ph.jqtiplus.node.expression.AbstractFunctionalExpression;
+import uk.ac.ed.ph.jqtiplus.node.expression.Expression;
+import uk.ac.ed.ph.jqtiplus.node.shared.VariableType;
+import uk.ac.ed.ph.jqtiplus.running.ProcessingContext;
+import uk.ac.ed.ph.jqtiplus.types.Identifier;
+import uk.ac.ed.ph.jqtiplus.value.BooleanValue;
+import uk.ac.ed.ph.jqtiplus.value.FloatValue;
+import uk.ac.ed.ph.jqtiplus.value.IntegerValue;
+import uk.ac.ed.ph.jqtiplus.value.ListValue;
+import uk.ac.ed.ph.jqtiplus.value.NullValue;
+import uk.ac.ed.ph.jqtiplus.value.NumberValue;
+import uk.ac.ed.ph.jqtiplus.value.Value;
+
+/**
+ * The various types of {@link CompiledExpression} generated by {@link ProcessingCompiler}.
+ * <p>
+ * Each of the native implementations here must return exactly the same results as
+ * the {@link Expression} it replaces. The only liberty taken is that the evaluation
+ * of children may be skipped once the result is known, provided that the skipped
+ * children are pure.
+ *
+ * @author David McKain
+ */
+final class CompiledExpressions {
+
+    private CompiledExpressions() {
+        /* No instances */
+    }
+
+    static boolean areAllPure(final CompiledExpression[] expressions) {
+        for (final CompiledExpression expression : expressions) {
+            if (!expression.isPure()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Works out whether all children after each index are pure, which tells us
+     * whether evaluation can stop once the result is known.
+     */
+    static boolean[] computeRestPure(final CompiledExpression[] children) {
+        final boolean[] result = new boolean[children.length];
+        boolean restPure = true;
+        for (int i=children.length-1; i>=0; i--) {
+            result[i] = restPure;
+            restPure = restPure && children[i].isPure();
+        }
+        return result;
+    }
+
+    //-------------------------------------------------------------------
+
+    /** Expression whose value was computed at compile time */
+    static final class Constant extends CompiledExpression {
+
+        private final Value value;
+
+        Constant(final Value value) {
+            this.value = value;
+        }
+
+        @Override
+        Value evaluate(final ProcessingContext context) {
+            return value;
+        }
+
+        @Override
+        boolean isPure() {
+            return true;
+        }
+
+        @Override
+        Value getConstantValue() {
+            return value;
+        }
+    }
+
+    /**
+     * Lookup of an item variable from within the item, with the type of variable
+     * resolved at compile time.
+     */
+    static final class ItemVariable extends CompiledExpression {
+
+        private final Identifier identifier;
+        private final VariableType variableType;
+
+        ItemVariable(final Identifier identifier, final VariableType variableType) {
+            this.identifier = identifier;
+            this.variableType = variableType;
+        }
+
+        @Override
+        Value evaluate(final ProcessingContext context) {
+            return context.evaluateVariableValue(identifier, variableType);
+        }
+
+        @Override
+        boolean isPure() {
+            return true;
+        }
+    }
+
+    /**
+     * Fallback for any {@link AbstractFunctionalExpression} that has no native
+     * implementation. This evaluates the compiled children, then hands their values
+     * to the original expression.
+     */
+    static final class Functional extends CompiledExpression {
+
+        private final AbstractFunctionalExpression expression;
+        private final CompiledExpression[] children;
+        private final boolean pure;
+
+        Functional(final AbstractFunctionalExpression expression, final CompiledExpression[] children,
+                final boolean pure) {
+            this.expression = expression;
+            this.children = children;
+            this.pure = pure;
+        }
+
+        @Override
+        Value evaluate(final ProcessingContext context) {
+            final Value[] childValues = new Value[children.length];
+            for (int i=0; i<children.length; i++) {
+                childValues[i] = children[i].evaluate(context);
+            }
+            return expression.evaluateWithChildValues(context, childValues);
+        }
+
+        @Override
+        boolean isPure() {
+            return pure;
+        }
+    }
+
+    /**
+     * Fallback for expressions that can't be compiled at all (e.g. <tt>repeat</tt>),
+     * which are simply interpreted as normal.
+     */
+    static final class Interpreted extends CompiledExpression {
+
+        private final Expression expression;
+
+        Interpreted(final Expression expression) {
+            this.expression = expression;
+        }
+
+        @Override
+        Value evaluate(final ProcessingContext context) {
+            return expression.evaluate(context);
+        }
+    }
+
+    //-------------------------------------------------------------------
+
+    static final class And extends CompiledExpression {
+
+        private final CompiledExpression[] children;
+        private final boolean[] restPure;
+
+        And(final CompiledExpression[] children) {
+            this.children = children;
+            this.restPure = computeRestPure(children);
+        }
+
+        @Override
+        Value evaluate(final ProcessingContext context) {
+            Value result = null;
+            for (int i=0; i<children.length; i++) {
+                final Value childValue = children[i].evaluate(context);
+                if (result==null) {
+                    if (childValue.isNull()) {
+                        result = NullValue.INSTANCE;
+                    }
+                    else if (!((BooleanValue) childValue).booleanValue()) {
+                        result = BooleanValue.FALSE;
+                    }
+                    if (result!=null && restPure[i]) {
+                        return result;
+                    }
+                }
+            }
+            return result!=null ? result : BooleanValue.TRUE;
+        }
+
+        @Override
+        boolean isPure() {
+            return areAllPure(children);
+        }
+    }
+
+    static final class Or extends CompiledExpression {
+
+        private final CompiledExpression[] children;
+        private final boolean[] restPure;
+
+        Or(final CompiledExpression[] children) {
+            this.children = children;
+            this.restPure = computeRestPure(children);
+        }
+
+        @Override
+        Value evaluate(final ProcessingContext context) {
+            Value result = null;
+            for (int i=0; i<children.length; i++) {
+                final Value childValue = children[i].evaluate(context);
+                if (result==null) {
+                    if (childValue.isNull()) {
+                        result = NullValue.INSTANCE;
+                    }
+                    else if (((BooleanValue) childValue).booleanValue()) {
+                        result = BooleanValue.TRUE;
+                    }
+                    if (result!=null && restPure[i]) {
+                        return result;
+                    }
+                }
+            }
+            return result!=null ? result : BooleanValue.FALSE;
+        }
+
+        @Override
+        boolean isPure() {
+            return areAllPure(children);
+        }
+    }
+
+    static final class Not extends CompiledExpression {
+
+        private final CompiledExpression child;
+
+        Not(final CompiledExpression child) {
+            this.child = child;
+        }
+
+        @Override
+        Value evaluate(final ProcessingContext context) {
+            final Value childValue = child.evaluate(context);
+            if (childValue.isNull()) {
+                return NullValue.INSTANCE;
+            }
+            return BooleanValue.valueOf(!((BooleanValue) childValue).booleanValue());
+        }
+
+        @Override
+        boolean isPure() {
+            return child.isPure();
+        }
+    }
+
+    static final class IsNull extends CompiledExpression {
+
+        private final CompiledExpression child;
+
+        IsNull(final CompiledExpression child) {
+            this.child = child;
+        }
+
+        @Override
+        Value evaluate(final ProcessingContext context) {
+            return BooleanValue.valueOf(child.evaluate(context).isNull());
+        }
+
+        @Override
+        boolean isPure() {
+            return child.isPure();
+        }
+    }
+
+    static final class Match extends CompiledExpression {
+
+        private final CompiledExpression first;
+        private final CompiledExpression second;
+
+        Match(final CompiledExpression first, final CompiledExpression second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        Value evaluate(final ProcessingContext context) {
+            final Value firstValue = first.evaluate(context);
+            final Value secondValue = second.evaluate(context);
+            if (firstValue.isNull() || secondValue.isNull()) {
+                return NullValue.INSTANCE;
+            }
+            return BooleanValue.valueOf(firstValue.qtiEquals(secondValue));
+        }
+
+        @Override
+        boolean isPure() {
+            return first.isPure() && second.isPure();
+        }
+    }
+
+    //-------------------------------------------------------------------
+
+    /** Native form of <tt>sum</tt> and <tt>product</tt> */
+    static final class SumOrProduct extends CompiledExpression {
+
+        private final boolean isProduct;
+        private final CompiledExpression[] children;
+        private final boolean[] restPure;
+
+        SumOrProduct(final boolean isProduct, final CompiledExpression[] children) {
+            this.isProduct = isProduct;
+            this.children = children;
+            this.restPure = computeRestPure(children);
+        }
+
+        @Override
+        Value evaluate(final ProcessingContext context) {
+            boolean isInteger = true;
+            boolean sawNull = false;
+            double running = isProduct ? 1.0 : 0.0;
+            for (int i=0; i<children.length; i++) {
+                final Value childValue = children[i].evaluate(context);
+                if (sawNull) {
+                    continue;
+                }
+                if (childValue.isNull()) {
+                    if (restPure[i]) {
+                        return NullValue.INSTANCE;
+                    }
+                    sawNull = true;
+                    continue;
+                }
+                if (!childValue.getBaseType().isInteger()) {
+                    isInteger = false;
+                }
+                if (childValue.getCardinality().isSingle()) {
+                    running = fold(running, ((NumberValue) childValue).doubleValue());
+                }
+                else {
+                    final ListValue container = (ListValue) childValue;
+                    for (int j=0; j<container.size(); j++) {
+                        running = fold(running, ((NumberValue) container.get(j)).doubleValue());
+                    }
+                }
+            }
+            if (sawNull) {
+                return NullValue.INSTANCE;
+            }
+            return isInteger ? new IntegerValue((int) running) : new FloatValue(running);
+        }
+
+        private double fold(final double running, final double value) {
+            return isProduct ? running * value : running + value;
+        }
+
+        @Override
+        boolean isPure() {
+            return areAllPure(children);
+        }
+    }
+
+    static final class Subtract extends CompiledExpression {
+
+        private final CompiledExpression first;
+        private final CompiledExpression second;
+
+        Subtract(final CompiledExpression first, final CompiledExpression second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        Value evaluate(final ProcessingContext context) {
+            final Value firstValue = first.evaluate(context);
+            final Value secondValue = second.evaluate(context);
+            if (firstValue.isNull() || secondValue.isNull()) {
+                return NullValue.INSTANCE;
+            }
+            final NumberValue firstNumber = (NumberValue) firstValue;
+            final NumberValue secondNumber = (NumberValue) secondValue;
+            if (firstNumber.getBaseType().isInteger() && secondNumber.getBaseType().isInteger()) {
+                return new IntegerValue(firstNumber.intValue() - secondNumber.intValue());
+            }
+            return new FloatValue(firstNumber.doubleValue() - secondNumber.doubleValue());
+        }
+
+        @Override
+        boolean isPure() {
+            return first.isPure() && second.isPure();
+        }
+    }
+
+    /** The numeric comparison operators */
+    static enum ComparisonType {
+        GT,
+        GTE,
+        LT,
+        LTE,
+        ;
+    }
+
+    /** Native form of <tt>gt</tt>, <tt>gte</tt>, <tt>lt</tt> and <tt>lte</tt> */
+    static final class Comparison extends CompiledExpression {
+
+        private final ComparisonType comparisonType;
+        private final CompiledExpression first;
+        private final CompiledExpression second;
+
+        Comparison(final ComparisonType comparisonType, final CompiledExpression first, final CompiledExpression second) {
+            this.comparisonType = comparisonType;
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        Value evaluate(final ProcessingContext context) {
+            final Value firstValue = first.evaluate(context);
+            final Value secondValue = second.evaluate(context);
+            if (firstValue.isNull() || secondValue.isNull()) {
+                return NullValue.INSTANCE;
+            }
+            final double firstNumber = ((NumberValue) firstValue).doubleValue();
+            final double secondNumber = ((NumberValue) secondValue).doubleValue();
+            switch (comparisonType) {
+                case GT:
+                    return BooleanValue.valueOf(firstNumber > secondNumber);
+
+                case GTE:
+                    return BooleanValue.valueOf(firstNumber >= secondNumber);
+
+                case LT:
+                    return BooleanValue.valueOf(firstNumber < secondNumber);
+
+                case LTE:
+                    return BooleanValue.valueOf(firstNumber <= secondNumber);
+
+                default:
+                    throw new QtiLogicException("Unexpected switch case: " + comparisonType);
+            }
+        }
+
+        @Override
+        boolean isPure() {
+            return first.isPure() && second.isPure();
+        }
+    }
+}
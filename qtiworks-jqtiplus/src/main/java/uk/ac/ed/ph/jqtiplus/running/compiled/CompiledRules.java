@@ -0,0 +1,241 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.running.compiled;
+
+import uk.ac.ed.ph.jqtiplus.exception.QtiProcessingInterrupt;
+import uk.ac.ed.ph.jqtiplus.exception.TemplateProcessingInterrupt;
+import uk.ac.ed.ph.jqtiplus.exception.TemplateProcessingInterrupt.InterruptType;
+import uk.ac.ed.ph.jqtiplus.node.item.response.processing.ResponseRule;
+import uk.ac.ed.ph.jqtiplus.node.item.template.processing.TemplateProcessingRule;
+import uk.ac.ed.ph.jqtiplus.node.outcome.declaration.OutcomeDeclaration;
+import uk.ac.ed.ph.jqtiplus.node.shared.VariableDeclaration;
+import uk.ac.ed.ph.jqtiplus.node.test.outcome.processing.OutcomeRule;
+import uk.ac.ed.ph.jqtiplus.running.ItemProcessingContext;
+import uk.ac.ed.ph.jqtiplus.running.ProcessingContext;
+import uk.ac.ed.ph.jqtiplus.running.TestProcessingContext;
+import uk.ac.ed.ph.jqtiplus.value.BooleanValue;
+import uk.ac.ed.ph.jqtiplus.value.Value;
+
+/**
+ * The various types of {@link CompiledRule} generated by {@link ProcessingCompiler}.
+ * <p>
+ * These only handle rules that were found to be valid at compile time, so don't
+ * need to recheck validity each time they are executed.
+ *
+ * @author David McKain
+ */
+final class CompiledRules {
+
+    private CompiledRules() {
+        /* No instances */
+    }
+
+    static void executeAll(final CompiledRule[] rules, final ProcessingContext context)
+            throws QtiProcessingInterrupt {
+        for (final CompiledRule rule : rules) {
+            rule.execute(context);
+        }
+    }
+
+    /** Tests whether a condition value counts as true, using the same logic as the interpreter */
+    static boolean isTrue(final Value value) {
+        return value!=null && !value.isNull() && ((BooleanValue) value).booleanValue();
+    }
+
+    //-------------------------------------------------------------------
+
+    /** Compiled form of <tt>responseProcessingFragment</tt> and <tt>outcomeProcessingFragment</tt> */
+    static final class Sequence extends CompiledRule {
+
+        private final CompiledRule[] rules;
+
+        Sequence(final CompiledRule[] rules) {
+            this.rules = rules;
+        }
+
+        @Override
+        void execute(final ProcessingContext context) throws QtiProcessingInterrupt {
+            executeAll(rules, context);
+        }
+    }
+
+    /**
+     * Compiled form of <tt>responseCondition</tt>, <tt>outcomeCondition</tt> and
+     * <tt>templateCondition</tt>. The final branch has a null condition if there
+     * is an ELSE.
+     */
+    static final class Condition extends CompiledRule {
+
+        private final CompiledExpression[] conditions;
+        private final CompiledRule[][] branches;
+
+        Condition(final CompiledExpression[] conditions, final CompiledRule[][] branches) {
+            this.conditions = conditions;
+            this.branches = branches;
+        }
+
+        @Override
+        void execute(final ProcessingContext context) throws QtiProcessingInterrupt {
+            for (int i=0; i<conditions.length; i++) {
+                final CompiledExpression condition = conditions[i];
+                if (condition==null || isTrue(condition.evaluate(context))) {
+                    executeAll(branches[i], context);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Compiled form of <tt>setOutcomeValue</tt> and <tt>setTemplateValue</tt> within
+     * an item, with the target variable resolved at compile time.
+     */
+    static final class SetItemVariableValue extends CompiledRule {
+
+        private final VariableDeclaration variableDeclaration;
+        private final CompiledExpression expression;
+
+        SetItemVariableValue(final VariableDeclaration variableDeclaration, final CompiledExpression expression) {
+            this.variableDeclaration = variableDeclaration;
+            this.expression = expression;
+        }
+
+        @Override
+        void execute(final ProcessingContext context) {
+            final Value value = expression.evaluate(context);
+            ((ItemProcessingContext) context).setVariableValue(variableDeclaration, value);
+        }
+    }
+
+    /**
+     * Compiled form of <tt>setOutcomeValue</tt> within a test, with the target
+     * variable resolved at compile time.
+     */
+    static final class SetTestOutcomeValue extends CompiledRule {
+
+        private final OutcomeDeclaration outcomeDeclaration;
+        private final CompiledExpression expression;
+
+        SetTestOutcomeValue(final OutcomeDeclaration outcomeDeclaration, final CompiledExpression expression) {
+            this.outcomeDeclaration = outcomeDeclaration;
+            this.expression = expression;
+        }
+
+        @Override
+        void execute(final ProcessingContext context) {
+            final Value value = expression.evaluate(context);
+            ((TestProcessingContext) context).getTestSessionState().setOutcomeValue(outcomeDeclaration, value);
+        }
+    }
+
+    /** Compiled form of <tt>exitResponse</tt> and <tt>exitTest</tt> */
+    static final class Exit extends CompiledRule {
+
+        @Override
+        void execute(final ProcessingContext context) throws QtiProcessingInterrupt {
+            throw new QtiProcessingInterrupt();
+        }
+    }
+
+    /** Compiled form of <tt>exitTemplate</tt> */
+    static final class ExitTemplate extends CompiledRule {
+
+        @Override
+        void execute(final ProcessingContext context) throws TemplateProcessingInterrupt {
+            throw new TemplateProcessingInterrupt(InterruptType.EXIT_TEMPLATE);
+        }
+    }
+
+    /** Compiled form of <tt>templateConstraint</tt> */
+    static final class TemplateConstraint extends CompiledRule {
+
+        private final CompiledExpression expression;
+
+        TemplateConstraint(final CompiledExpression expression) {
+            this.expression = expression;
+        }
+
+        @Override
+        void execute(final ProcessingContext context) throws TemplateProcessingInterrupt {
+            if (!isTrue(expression.evaluate(context))) {
+                throw new TemplateProcessingInterrupt(InterruptType.TEMPLATE_CONSTRAINT_FAILURE);
+            }
+        }
+    }
+
+    //-------------------------------------------------------------------
+    // Fallbacks for rules that are not compiled
+
+    static final class InterpretedResponseRule extends CompiledRule {
+
+        private final ResponseRule responseRule;
+
+        InterpretedResponseRule(final ResponseRule responseRule) {
+            this.responseRule = responseRule;
+        }
+
+        @Override
+        void execute(final ProcessingContext context) throws QtiProcessingInterrupt {
+            responseRule.evaluate((ItemProcessingContext) context);
+        }
+    }
+
+    static final class InterpretedTemplateProcessingRule extends CompiledRule {
+
+        private final TemplateProcessingRule templateProcessingRule;
+
+        InterpretedTemplateProcessingRule(final TemplateProcessingRule templateProcessingRule) {
+            this.templateProcessingRule = templateProcessingRule;
+        }
+
+        @Override
+        void execute(final ProcessingContext context) throws TemplateProcessingInterrupt {
+            templateProcessingRule.evaluate((ItemProcessingContext) context);
+        }
+    }
+
+    static final class InterpretedOutcomeRule extends CompiledRule {
+
+        private final OutcomeRule outcomeRule;
+
+        InterpretedOutcomeRule(final OutcomeRule outcomeRule) {
+            this.outcomeRule = outcomeRule;
+        }
+
+        @Override
+        void execute(final ProcessingContext context) throws QtiProcessingInterrupt {
+            outcomeRule.evaluate((TestProcessingContext) context);
+        }
+    }
+}
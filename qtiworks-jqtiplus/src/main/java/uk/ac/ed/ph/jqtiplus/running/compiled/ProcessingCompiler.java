@@ -0,0 +1,427 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.running.compiled;
+
+import uk.ac.ed.ph.jqtiplus.QtiConstants;
+import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
+import uk.ac.ed.ph.jqtiplus.node.expression.AbstractFunctionalExpression;
+import uk.ac.ed.ph.jqtiplus.node.expression.AbstractSimpleFunctionalExpression;
+import uk.ac.ed.ph.jqtiplus.node.expression.Expression;
+import uk.ac.ed.ph.jqtiplus.node.expression.general.LookupExpression;
+import uk.ac.ed.ph.jqtiplus.node.expression.general.Variable;
+import uk.ac.ed.ph.jqtiplus.node.expression.operator.And;
+import uk.ac.ed.ph.jqtiplus.node.expression.operator.Gt;
+import uk.ac.ed.ph.jqtiplus.node.expression.operator.Gte;
+import uk.ac.ed.ph.jqtiplus.node.expression.operator.IsNull;
+import uk.ac.ed.ph.jqtiplus.node.expression.operator.Lt;
+import uk.ac.ed.ph.jqtiplus.node.expression.operator.Lte;
+import uk.ac.ed.ph.jqtiplus.node.expression.operator.Match;
+import uk.ac.ed.ph.jqtiplus.node.expression.operator.Not;
+import uk.ac.ed.ph.jqtiplus.node.expression.operator.Or;
+import uk.ac.ed.ph.jqtiplus.node.expression.operator.Product;
+import uk.ac.ed.ph.jqtiplus.node.expression.operator.Subtract;
+import uk.ac.ed.ph.jqtiplus.node.expression.operator.Sum;
+import uk.ac.ed.ph.jqtiplus.node.item.response.processing.ExitResponse;
+import uk.ac.ed.ph.jqtiplus.node.item.response.processing.ResponseCondition;
+import uk.ac.ed.ph.jqtiplus.node.item.response.processing.ResponseConditionChild;
+import uk.ac.ed.ph.jqtiplus.node.item.response.processing.ResponseConditionExpressionChild;
+import uk.ac.ed.ph.jqtiplus.node.item.response.processing.ResponseProcessing;
+import uk.ac.ed.ph.jqtiplus.node.item.response.processing.ResponseProcessingFragment;
+import uk.ac.ed.ph.jqtiplus.node.item.response.processing.ResponseRule;
+import uk.ac.ed.ph.jqtiplus.node.item.template.processing.ExitTemplate;
+import uk.ac.ed.ph.jqtiplus.node.item.template.processing.SetTemplateValue;
+import uk.ac.ed.ph.jqtiplus.node.item.template.processing.TemplateCondition;
+import uk.ac.ed.ph.jqtiplus.node.item.template.processing.TemplateConditionChild;
+import uk.ac.ed.ph.jqtiplus.node.item.template.processing.TemplateConditionExpressionChild;
+import uk.ac.ed.ph.jqtiplus.node.item.template.processing.TemplateConstraint;
+import uk.ac.ed.ph.jqtiplus.node.item.template.processing.TemplateProcessing;
+import uk.ac.ed.ph.jqtiplus.node.item.template.processing.TemplateProcessingRule;
+import uk.ac.ed.ph.jqtiplus.node.item.template.processing.TemplateRule;
+import uk.ac.ed.ph.jqtiplus.node.outcome.declaration.OutcomeDeclaration;
+import uk.ac.ed.ph.jqtiplus.node.shared.VariableDeclaration;
+import uk.ac.ed.ph.jqtiplus.node.shared.VariableType;
+import uk.ac.ed.ph.jqtiplus.node.test.outcome.processing.ExitTest;
+import uk.ac.ed.ph.jqtiplus.node.test.outcome.processing.OutcomeCondition;
+import uk.ac.ed.ph.jqtiplus.node.test.outcome.processing.OutcomeConditionChild;
+import uk.ac.ed.ph.jqtiplus.node.test.outcome.processing.OutcomeConditionExpressionChild;
+import uk.ac.ed.ph.jqtiplus.node.test.outcome.processing.OutcomeProcessing;
+import uk.ac.ed.ph.jqtiplus.node.test.outcome.processing.OutcomeProcessingFragment;
+import uk.ac.ed.ph.jqtiplus.node.test.outcome.processing.OutcomeRule;
+import uk.ac.ed.ph.jqtiplus.running.ProcessingContext;
+import uk.ac.ed.ph.jqtiplus.types.Identifier;
+import uk.ac.ed.ph.jqtiplus.value.NullValue;
+import uk.ac.ed.ph.jqtiplus.value.SingleValue;
+import uk.ac.ed.ph.jqtiplus.value.Value;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compiles the rules within <tt>responseProcessing</tt>, <tt>templateProcessing</tt>
+ * and <tt>outcomeProcessing</tt> into trees of {@link CompiledRule}s and
+ * {@link CompiledExpression}s, which can then be executed repeatedly without the
+ * per-node overheads of the interpreter.
+ * <p>
+ * Compilation does the following:
+ * <ul>
+ *   <li>
+ *     Rule validity is checked once here, rather than each time a rule is run. Rules
+ *     that turn out not to be valid are left to the interpreter, which will warn about
+ *     them at runtime as before.
+ *   </li>
+ *   <li>
+ *     Variables targeted by rules are resolved here, as are the types of item
+ *     variables read by <tt>variable</tt>.
+ *   </li>
+ *   <li>
+ *     The most common operators are evaluated natively. Other functional expressions are
+ *     evaluated by passing compiled child values back to the original expression, and
+ *     anything else (e.g. <tt>repeat</tt>) is simply interpreted.
+ *   </li>
+ *   <li>
+ *     Pure expressions whose children are all constant are folded into constants.
+ *   </li>
+ *   <li>
+ *     <tt>and</tt> and <tt>or</tt> stop evaluating children once their result is known,
+ *     provided the remaining children are pure.
+ *   </li>
+ * </ul>
+ * The results must be identical to those of the interpreter, so this can only be used
+ * on valid subjects.
+ * <p>
+ * Usage: create a new instance for each compilation. The resulting {@link CompiledProcessing}
+ * may be shared between Threads.
+ *
+ * @author David McKain
+ */
+public final class ProcessingCompiler {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProcessingCompiler.class);
+
+    private final ProcessingContext context;
+    private final boolean isItem;
+
+    /**
+     * Creates a compiler that will use the given context to check the validity of
+     * rules and resolve variables. The subject of the context must be valid.
+     */
+    public ProcessingCompiler(final ProcessingContext context) {
+        Assert.notNull(context, "context");
+        if (!context.isSubjectValid()) {
+            throw new IllegalArgumentException("Processing can only be compiled for valid subjects");
+        }
+        this.context = context;
+        this.isItem = context.isSubjectItem();
+    }
+
+    //-------------------------------------------------------------------
+
+    public CompiledProcessing compileResponseProcessing(final ResponseProcessing responseProcessing) {
+        Assert.notNull(responseProcessing, "responseProcessing");
+        final CompiledProcessing result = new CompiledProcessing(compileResponseRules(responseProcessing.getResponseRules()));
+        logger.debug("Compiled responseProcessing {} to {}", responseProcessing, result);
+        return result;
+    }
+
+    public CompiledProcessing compileTemplateProcessing(final TemplateProcessing templateProcessing) {
+        Assert.notNull(templateProcessing, "templateProcessing");
+        final List<TemplateProcessingRule> templateProcessingRules = templateProcessing.getTemplateProcessingRules();
+        final CompiledRule[] rules = new CompiledRule[templateProcessingRules.size()];
+        for (int i=0; i<rules.length; i++) {
+            rules[i] = compileTemplateProcessingRule(templateProcessingRules.get(i));
+        }
+        final CompiledProcessing result = new CompiledProcessing(rules);
+        logger.debug("Compiled templateProcessing {} to {}", templateProcessing, result);
+        return result;
+    }
+
+    public CompiledProcessing compileOutcomeProcessing(final OutcomeProcessing outcomeProcessing) {
+        Assert.notNull(outcomeProcessing, "outcomeProcessing");
+        final CompiledProcessing result = new CompiledProcessing(compileOutcomeRules(outcomeProcessing.getOutcomeRules()));
+        logger.debug("Compiled outcomeProcessing {} to {}", outcomeProcessing, result);
+        return result;
+    }
+
+    //-------------------------------------------------------------------
+    // responseProcessing
+
+    private CompiledRule[] compileResponseRules(final List<ResponseRule> responseRules) {
+        final CompiledRule[] result = new CompiledRule[responseRules.size()];
+        for (int i=0; i<result.length; i++) {
+            result[i] = compileResponseRule(responseRules.get(i));
+        }
+        return result;
+    }
+
+    private CompiledRule compileResponseRule(final ResponseRule responseRule) {
+        if (responseRule instanceof ResponseCondition) {
+            final ResponseCondition responseCondition = (ResponseCondition) responseRule;
+            final List<ResponseConditionChild> children = new ArrayList<ResponseConditionChild>();
+            children.add(responseCondition.getResponseIf());
+            children.addAll(responseCondition.getResponseElseIfs());
+            if (responseCondition.getResponseElse()!=null) {
+                children.add(responseCondition.getResponseElse());
+            }
+            final CompiledExpression[] conditions = new CompiledExpression[children.size()];
+            final CompiledRule[][] branches = new CompiledRule[children.size()][];
+            for (int i=0; i<conditions.length; i++) {
+                final ResponseConditionChild child = children.get(i);
+                if (child instanceof ResponseConditionExpressionChild) {
+                    conditions[i] = compileExpression(((ResponseConditionExpressionChild) child).getExpression());
+                }
+                branches[i] = compileResponseRules(child.getResponseRules());
+            }
+            return new CompiledRules.Condition(conditions, branches);
+        }
+        else if (responseRule instanceof ResponseProcessingFragment) {
+            return new CompiledRules.Sequence(compileResponseRules(((ResponseProcessingFragment) responseRule).getResponseRules()));
+        }
+        else if (responseRule instanceof ExitResponse) {
+            return new CompiledRules.Exit();
+        }
+        else if (responseRule instanceof uk.ac.ed.ph.jqtiplus.node.item.response.processing.SetOutcomeValue
+                && responseRule.isThisRuleValid(context)) {
+            final uk.ac.ed.ph.jqtiplus.node.item.response.processing.SetOutcomeValue setOutcomeValue = (uk.ac.ed.ph.jqtiplus.node.item.response.processing.SetOutcomeValue) responseRule;
+            final VariableDeclaration outcomeDeclaration = context.ensureVariableDeclaration(setOutcomeValue.getIdentifier(), VariableType.OUTCOME);
+            return new CompiledRules.SetItemVariableValue(outcomeDeclaration, compileExpression(setOutcomeValue.getExpression()));
+        }
+        return new CompiledRules.InterpretedResponseRule(responseRule);
+    }
+
+    //-------------------------------------------------------------------
+    // templateProcessing
+
+    private CompiledRule[] compileTemplateRules(final List<TemplateRule> templateRules) {
+        final CompiledRule[] result = new CompiledRule[templateRules.size()];
+        for (int i=0; i<result.length; i++) {
+            result[i] = compileTemplateProcessingRule(templateRules.get(i));
+        }
+        return result;
+    }
+
+    private CompiledRule compileTemplateProcessingRule(final TemplateProcessingRule templateProcessingRule) {
+        if (templateProcessingRule instanceof TemplateCondition) {
+            final TemplateCondition templateCondition = (TemplateCondition) templateProcessingRule;
+            final List<TemplateConditionChild> children = new ArrayList<TemplateConditionChild>();
+            children.add(templateCondition.getTemplateIf());
+            children.addAll(templateCondition.getTemplateElseIfs());
+            if (templateCondition.getTemplateElse()!=null) {
+                children.add(templateCondition.getTemplateElse());
+            }
+            final CompiledExpression[] conditions = new CompiledExpression[children.size()];
+            final CompiledRule[][] branches = new CompiledRule[children.size()][];
+            for (int i=0; i<conditions.length; i++) {
+                final TemplateConditionChild child = children.get(i);
+                if (child instanceof TemplateConditionExpressionChild) {
+                    conditions[i] = compileExpression(((TemplateConditionExpressionChild) child).getExpression());
+                }
+                branches[i] = compileTemplateRules(child.getTemplateRules());
+            }
+            return new CompiledRules.Condition(conditions, branches);
+        }
+        else if (templateProcessingRule instanceof ExitTemplate) {
+            return new CompiledRules.ExitTemplate();
+        }
+        else if (templateProcessingRule instanceof TemplateConstraint) {
+            return new CompiledRules.TemplateConstraint(compileExpression(((TemplateConstraint) templateProcessingRule).getExpression()));
+        }
+        else if (templateProcessingRule instanceof SetTemplateValue && templateProcessingRule.isThisRuleValid(context)) {
+            final SetTemplateValue setTemplateValue = (SetTemplateValue) templateProcessingRule;
+            final VariableDeclaration templateDeclaration = context.ensureVariableDeclaration(setTemplateValue.getIdentifier(), VariableType.TEMPLATE);
+            return new CompiledRules.SetItemVariableValue(templateDeclaration, compileExpression(setTemplateValue.getExpression()));
+        }
+        return new CompiledRules.InterpretedTemplateProcessingRule(templateProcessingRule);
+    }
+
+    //-------------------------------------------------------------------
+    // outcomeProcessing
+
+    private CompiledRule[] compileOutcomeRules(final List<OutcomeRule> outcomeRules) {
+        final CompiledRule[] result = new CompiledRule[outcomeRules.size()];
+        for (int i=0; i<result.length; i++) {
+            result[i] = compileOutcomeRule(outcomeRules.get(i));
+        }
+        return result;
+    }
+
+    private CompiledRule compileOutcomeRule(final OutcomeRule outcomeRule) {
+        if (outcomeRule instanceof OutcomeCondition) {
+            final OutcomeCondition outcomeCondition = (OutcomeCondition) outcomeRule;
+            final List<OutcomeConditionChild> children = new ArrayList<OutcomeConditionChild>();
+            children.add(outcomeCondition.getOutcomeIf());
+            children.addAll(outcomeCondition.getOutcomeElseIfs());
+            if (outcomeCondition.getOutcomeElse()!=null) {
+                children.add(outcomeCondition.getOutcomeElse());
+            }
+            final CompiledExpression[] conditions = new CompiledExpression[children.size()];
+            final CompiledRule[][] branches = new CompiledRule[children.size()][];
+            for (int i=0; i<conditions.length; i++) {
+                final OutcomeConditionChild child = children.get(i);
+                if (child instanceof OutcomeConditionExpressionChild) {
+                    conditions[i] = compileExpression(((OutcomeConditionExpressionChild) child).getExpression());
+                }
+                branches[i] = compileOutcomeRules(child.getOutcomeRules());
+            }
+            return new CompiledRules.Condition(conditions, branches);
+        }
+        else if (outcomeRule instanceof OutcomeProcessingFragment) {
+            return new CompiledRules.Sequence(compileOutcomeRules(((OutcomeProcessingFragment) outcomeRule).getOutcomeRules()));
+        }
+        else if (outcomeRule instanceof ExitTest) {
+            return new CompiledRules.Exit();
+        }
+        else if (outcomeRule instanceof uk.ac.ed.ph.jqtiplus.node.test.outcome.processing.SetOutcomeValue
+                && outcomeRule.isThisRuleValid(context)) {
+            final uk.ac.ed.ph.jqtiplus.node.test.outcome.processing.SetOutcomeValue setOutcomeValue = (uk.ac.ed.ph.jqtiplus.node.test.outcome.processing.SetOutcomeValue) outcomeRule;
+            final OutcomeDeclaration outcomeDeclaration = (OutcomeDeclaration) context.ensureVariableDeclaration(setOutcomeValue.getIdentifier(), VariableType.OUTCOME);
+            return new CompiledRules.SetTestOutcomeValue(outcomeDeclaration, compileExpression(setOutcomeValue.getExpression()));
+        }
+        return new CompiledRules.InterpretedOutcomeRule(outcomeRule);
+    }
+
+    //-------------------------------------------------------------------
+    // Expressions
+
+    CompiledExpression compileExpression(final Expression expression) {
+        if (!(expression instanceof AbstractFunctionalExpression)) {
+            return new CompiledExpressions.Interpreted(expression);
+        }
+        final List<Expression> childExpressions = expression.getExpressions();
+        final CompiledExpression[] children = new CompiledExpression[childExpressions.size()];
+        boolean allChildrenConstant = true;
+        for (int i=0; i<children.length; i++) {
+            children[i] = compileExpression(childExpressions.get(i));
+            allChildrenConstant = allChildrenConstant && children[i].getConstantValue()!=null;
+        }
+        final CompiledExpression result = compileFunctionalExpression((AbstractFunctionalExpression) expression, children);
+
+        /* Fold pure expressions with constant children. (We only fold to immutable values here) */
+        if (allChildrenConstant && expression instanceof AbstractSimpleFunctionalExpression) {
+            try {
+                final Value constantValue = result.evaluate(context);
+                if (constantValue instanceof SingleValue || constantValue instanceof NullValue) {
+                    return new CompiledExpressions.Constant(constantValue);
+                }
+            }
+            catch (final RuntimeException e) {
+                /* Leave evaluation (and any failure) until runtime */
+                logger.debug("Constant folding of {} failed; will evaluate at runtime", expression);
+            }
+        }
+        return result;
+    }
+
+    private CompiledExpression compileFunctionalExpression(final AbstractFunctionalExpression expression,
+            final CompiledExpression[] children) {
+        if (expression instanceof Variable && isItem) {
+            final CompiledExpression result = compileItemVariable((Variable) expression);
+            if (result!=null) {
+                return result;
+            }
+        }
+        else if (expression instanceof And) {
+            return new CompiledExpressions.And(children);
+        }
+        else if (expression instanceof Or) {
+            return new CompiledExpressions.Or(children);
+        }
+        else if (expression instanceof Not && children.length==1) {
+            return new CompiledExpressions.Not(children[0]);
+        }
+        else if (expression instanceof IsNull && children.length==1) {
+            return new CompiledExpressions.IsNull(children[0]);
+        }
+        else if (expression instanceof Match && children.length==2) {
+            return new CompiledExpressions.Match(children[0], children[1]);
+        }
+        else if (expression instanceof Sum) {
+            return new CompiledExpressions.SumOrProduct(false, children);
+        }
+        else if (expression instanceof Product) {
+            return new CompiledExpressions.SumOrProduct(true, children);
+        }
+        else if (expression instanceof Subtract && children.length==2) {
+            return new CompiledExpressions.Subtract(children[0], children[1]);
+        }
+        else if (children.length==2) {
+            if (expression instanceof Gt) {
+                return new CompiledExpressions.Comparison(CompiledExpressions.ComparisonType.GT, children[0], children[1]);
+            }
+            else if (expression instanceof Gte) {
+                return new CompiledExpressions.Comparison(CompiledExpressions.ComparisonType.GTE, children[0], children[1]);
+            }
+            else if (expression instanceof Lt) {
+                return new CompiledExpressions.Comparison(CompiledExpressions.ComparisonType.LT, children[0], children[1]);
+            }
+            else if (expression instanceof Lte) {
+                return new CompiledExpressions.Comparison(CompiledExpressions.ComparisonType.LTE, children[0], children[1]);
+            }
+        }
+
+        /* Generic fallback. Simple functional expressions depend only on their children,
+         * and lookups within an item only read the state of the current session */
+        final boolean pure = (expression instanceof AbstractSimpleFunctionalExpression
+                || (expression instanceof LookupExpression && isItem))
+                && CompiledExpressions.areAllPure(children);
+        return new CompiledExpressions.Functional(expression, children, pure);
+    }
+
+    /**
+     * Resolves the type of item variable looked up by a <tt>variable</tt> within an item,
+     * matching the order in which the interpreter would search for it.
+     * Returns null if this can't be done.
+     */
+    private CompiledExpression compileItemVariable(final Variable variable) {
+        final Identifier identifier = Identifier.assumedLegal(variable.getIdentifier().toString());
+        VariableType variableType;
+        if (identifier.equals(QtiConstants.VARIABLE_DURATION_IDENTIFIER)
+                || identifier.equals(QtiConstants.VARIABLE_NUMBER_OF_ATTEMPTS_IDENTIFIER)) {
+            variableType = VariableType.RESPONSE;
+        }
+        else if (identifier.equals(QtiConstants.VARIABLE_COMPLETION_STATUS_IDENTIFIER)) {
+            variableType = VariableType.OUTCOME;
+        }
+        else {
+            final VariableDeclaration declaration = context.isValidLocalVariableReference(identifier);
+            if (declaration==null) {
+                return null;
+            }
+            variableType = declaration.getVariableType();
+        }
+        return new CompiledExpressions.ItemVariable(identifier, variableType);
+    }
+}
@@ -41,6 +41,7 @@ import uk.ac.ed.ph.jqtiplus.node.item.template.declaration.TemplateDeclaration;
 import uk.ac.ed.ph.jqtiplus.node.outcome.declaration.OutcomeDeclaration;
 import uk.ac.ed.ph.jqtiplus.resolution.ResolvedAssessmentItem;
 import uk.ac.ed.ph.jqtiplus.running.ItemProcessingInitializer;
+import uk.ac.ed.ph.jqtiplus.running.compiled.CompiledProcessing;
 import uk.ac.ed.ph.jqtiplus.types.Identifier;
 
 import java.io.Serializable;
@@ -75,6 +76,15 @@ public final class ItemProcessingMap implements Serializable {
     private final Map<Identifier, ResponseDeclaration> validResponseDeclarationMap;
     private final Map<Identifier, OutcomeDeclaration> validOutcomeDeclarationMap;
 
+    /**
+     * Compiled forms of this item's templateProcessing and responseProcessing, which are
+     * created on demand by the {@link uk.ac.ed.ph.jqtiplus.running.ItemSessionController}
+     * if asked to. These are cached here so that they can be shared by all sessions on
+     * this item. (Not serialized, so will be recreated after deserialization.)
+     */
+    private transient volatile CompiledProcessing compiledTemplateProcessing;
+    private transient volatile CompiledProcessing compiledResponseProcessing;
+
     public ItemProcessingMap(final ResolvedAssessmentItem resolvedAssessmentItem, final boolean isValid,
             final List<Interaction> interactionsBuilder,
             final LinkedHashMap<Identifier, TemplateDeclaration> validTemplateDeclarationMapBuilder,
@@ -140,6 +150,23 @@ public final class ItemProcessingMap implements Serializable {
         return interactionByResponseIdentifierMap;
     }
 
+    public CompiledProcessing getCompiledTemplateProcessing() {
+        return compiledTemplateProcessing;
+    }
+
+    public void setCompiledTemplateProcessing(final CompiledProcessing compiledTemplateProcessing) {
+        this.compiledTemplateProcessing = compiledTemplateProcessing;
+    }
+
+
+    public CompiledProcessing getCompiledResponseProcessing() {
+        return compiledResponseProcessing;
+    }
+
+    public void setCompiledResponseProcessing(final CompiledProcessing compiledResponseProcessing) {
+        this.compiledResponseProcessing = compiledResponseProcessing;
+    }
+
     @Override
     public String toString() {
         return ObjectUtilities.beanToString(this);
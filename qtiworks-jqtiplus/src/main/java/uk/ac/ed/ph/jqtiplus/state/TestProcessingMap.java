@@ -35,19 +35,23 @@ package uk.ac.ed.ph.jqtiplus.state;
 
 import uk.ac.ed.ph.jqtiplus.QtiConstants;
 import uk.ac.ed.ph.jqtiplus.internal.util.ObjectUtilities;
+import uk.ac.ed.ph.jqtiplus.node.QtiNode;
 import uk.ac.ed.ph.jqtiplus.node.item.AssessmentItem;
 import uk.ac.ed.ph.jqtiplus.node.item.response.declaration.ResponseDeclaration;
 import uk.ac.ed.ph.jqtiplus.node.outcome.declaration.OutcomeDeclaration;
 import uk.ac.ed.ph.jqtiplus.node.test.AbstractPart;
 import uk.ac.ed.ph.jqtiplus.node.test.AssessmentItemRef;
+import uk.ac.ed.ph.jqtiplus.node.test.AssessmentSection;
 import uk.ac.ed.ph.jqtiplus.node.test.AssessmentTest;
 import uk.ac.ed.ph.jqtiplus.resolution.ResolvedAssessmentTest;
 import uk.ac.ed.ph.jqtiplus.running.TestProcessingInitializer;
+import uk.ac.ed.ph.jqtiplus.running.compiled.CompiledProcessing;
 import uk.ac.ed.ph.jqtiplus.state.TestPlanNode.TestNodeType;
 import uk.ac.ed.ph.jqtiplus.types.Identifier;
 
 import java.io.Serializable;
 import java.net.URI;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -74,6 +78,16 @@ public final class TestProcessingMap implements Serializable {
     private final List<AbstractPart> abstractPartList;
     private final Map<AbstractPart, Integer> abstractPartToGlobalIndexMap;
 
+    /**
+     * Indexes used to compute item subsets quickly. These are {@link BitSet}s over the global
+     * indexes of the {@link AssessmentItemRef}s in {@link #abstractPartList}, covering all
+     * assessmentItemRefs, those below each section identifier (in the ORIGINAL test structure)
+     * and those having each category.
+     */
+    private final BitSet assessmentItemRefIndexes;
+    private final Map<Identifier, BitSet> assessmentItemRefIndexesBySectionIdentifier;
+    private final Map<String, BitSet> assessmentItemRefIndexesByCategory;
+
     private final Map<AbstractPart, EffectiveItemSessionControl> effectiveItemSessionControlMap;
 
     private final Map<Identifier, OutcomeDeclaration> validOutcomeDeclarationMap;
@@ -86,6 +100,13 @@ public final class TestProcessingMap implements Serializable {
      */
     private final Map<URI, ItemProcessingMap> itemProcessingMapMap;
 
+    /**
+     * Compiled form of this test's outcomeProcessing, created on demand by the
+     * {@link uk.ac.ed.ph.jqtiplus.running.TestSessionController} if asked to.
+     * (Not serialized, so will be recreated after deserialization.)
+     */
+    private transient volatile CompiledProcessing compiledOutcomeProcessing;
+
     public TestProcessingMap(final ResolvedAssessmentTest resolvedAssessmentTest, final boolean isValid,
             final List<AbstractPart> abstractPartListBuilder,
             final Map<AbstractPart, EffectiveItemSessionControl> effectiveItemSessionControlMap,
@@ -103,6 +124,29 @@ public final class TestProcessingMap implements Serializable {
             abstractPartToGlobalIndexMap.put(abstractPartListBuilder.get(i), Integer.valueOf(i));
         }
 
+        /* Build item subset indexes */
+        this.assessmentItemRefIndexes = new BitSet(abstractPartListBuilder.size());
+        this.assessmentItemRefIndexesBySectionIdentifier = new HashMap<Identifier, BitSet>();
+        this.assessmentItemRefIndexesByCategory = new HashMap<String, BitSet>();
+        for (int i=0; i<abstractPartListBuilder.size(); i++) {
+            final AbstractPart abstractPart = abstractPartListBuilder.get(i);
+            if (abstractPart instanceof AssessmentItemRef) {
+                final AssessmentItemRef assessmentItemRef = (AssessmentItemRef) abstractPart;
+                assessmentItemRefIndexes.set(i);
+                for (QtiNode ancestor = assessmentItemRef.getParent(); ancestor!=null; ancestor = ancestor.getParent()) {
+                    if (ancestor instanceof AssessmentSection) {
+                        ensureBitSet(assessmentItemRefIndexesBySectionIdentifier, ((AssessmentSection) ancestor).getIdentifier()).set(i);
+                    }
+                }
+                final List<String> categories = assessmentItemRef.getCategories();
+                if (categories!=null) {
+                    for (final String category : categories) {
+                        ensureBitSet(assessmentItemRefIndexesByCategory, category).set(i);
+                    }
+                }
+            }
+        }
+
         /* Record the EffectiveItemSessionControl for each Node */
         this.effectiveItemSessionControlMap = Collections.unmodifiableMap(effectiveItemSessionControlMap);
 
@@ -131,6 +175,52 @@ public final class TestProcessingMap implements Serializable {
     }
 
 
+    /**
+     * Computes the global indexes of the {@link AssessmentItemRef}s matching the given criteria,
+     * as used by expressions that operate on subsets of items in the test.
+     *
+     * @param sectionIdentifier if not null, only assessmentItemRefs below the assessmentSection(s)
+     *   having this identifier in the original test structure will be included
+     * @param includeCategories if not null, only assessmentItemRefs having at least one of these
+     *   categories will be included
+     * @param excludeCategories if not null, assessmentItemRefs having any of these categories
+     *   will be excluded
+     * @return fresh {@link BitSet} of global indexes of matching assessmentItemRefs
+     */
+    public BitSet computeItemSubsetIndexes(final Identifier sectionIdentifier, final List<String> includeCategories,
+            final List<String> excludeCategories) {
+        final BitSet result;
+        if (sectionIdentifier!=null) {
+            final BitSet sectionIndexes = assessmentItemRefIndexesBySectionIdentifier.get(sectionIdentifier);
+            if (sectionIndexes==null) {
+                return new BitSet();
+            }
+            result = (BitSet) sectionIndexes.clone();
+        }
+        else {
+            result = (BitSet) assessmentItemRefIndexes.clone();
+        }
+        if (includeCategories!=null) {
+            final BitSet includeIndexes = new BitSet();
+            for (final String includeCategory : includeCategories) {
+                final BitSet categoryIndexes = assessmentItemRefIndexesByCategory.get(includeCategory);
+                if (categoryIndexes!=null) {
+                    includeIndexes.or(categoryIndexes);
+                }
+            }
+            result.and(includeIndexes);
+        }
+        if (excludeCategories!=null) {
+            for (final String excludeCategory : excludeCategories) {
+                final BitSet categoryIndexes = assessmentItemRefIndexesByCategory.get(excludeCategory);
+                if (categoryIndexes!=null) {
+                    result.andNot(categoryIndexes);
+                }
+            }
+        }
+        return result;
+    }
+
     public Map<AbstractPart, EffectiveItemSessionControl> getEffectiveItemSessionControlMap() {
         return effectiveItemSessionControlMap;
     }
@@ -152,6 +242,14 @@ public final class TestProcessingMap implements Serializable {
         return itemProcessingMapMap;
     }
 
+    public CompiledProcessing getCompiledOutcomeProcessing() {
+        return compiledOutcomeProcessing;
+    }
+
+    public void setCompiledOutcomeProcessing(final CompiledProcessing compiledOutcomeProcessing) {
+        this.compiledOutcomeProcessing = compiledOutcomeProcessing;
+    }
+
     public AbstractPart resolveAbstractPart(final TestPlanNode testPlanNode) {
         if (testPlanNode.getTestNodeType()==TestNodeType.ROOT) {
             throw new IllegalArgumentException("This method should not be called for " + testPlanNode.getTestNodeType());
@@ -193,6 +291,15 @@ public final class TestProcessingMap implements Serializable {
         return itemProcessingMap;
     }
 
+    private static <K> BitSet ensureBitSet(final Map<K, BitSet> map, final K key) {
+        BitSet result = map.get(key);
+        if (result==null) {
+            result = new BitSet();
+            map.put(key, result);
+        }
+        return result;
+    }
+
     @Override
     public String toString() {
         return ObjectUtilities.beanToString(this);
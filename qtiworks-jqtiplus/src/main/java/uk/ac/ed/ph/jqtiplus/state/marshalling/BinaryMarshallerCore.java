@@ -0,0 +1,466 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.state.marshalling;
+
+import uk.ac.ed.ph.jqtiplus.exception.QtiLogicException;
+import uk.ac.ed.ph.jqtiplus.state.AbstractPartSessionState;
+import uk.ac.ed.ph.jqtiplus.state.ControlObjectSessionState;
+import uk.ac.ed.ph.jqtiplus.state.TestPlanNodeKey;
+import uk.ac.ed.ph.jqtiplus.types.FileResponseData;
+import uk.ac.ed.ph.jqtiplus.types.Identifier;
+import uk.ac.ed.ph.jqtiplus.types.ResponseData;
+import uk.ac.ed.ph.jqtiplus.types.StringResponseData;
+import uk.ac.ed.ph.jqtiplus.value.BaseType;
+import uk.ac.ed.ph.jqtiplus.value.BooleanValue;
+import uk.ac.ed.ph.jqtiplus.value.DirectedPairValue;
+import uk.ac.ed.ph.jqtiplus.value.DurationValue;
+import uk.ac.ed.ph.jqtiplus.value.FileValue;
+import uk.ac.ed.ph.jqtiplus.value.FloatValue;
+import uk.ac.ed.ph.jqtiplus.value.IdentifierValue;
+import uk.ac.ed.ph.jqtiplus.value.IntegerValue;
+import uk.ac.ed.ph.jqtiplus.value.ListValue;
+import uk.ac.ed.ph.jqtiplus.value.MultipleValue;
+import uk.ac.ed.ph.jqtiplus.value.NullValue;
+import uk.ac.ed.ph.jqtiplus.value.OrderedValue;
+import uk.ac.ed.ph.jqtiplus.value.PairValue;
+import uk.ac.ed.ph.jqtiplus.value.PointValue;
+import uk.ac.ed.ph.jqtiplus.value.RecordValue;
+import uk.ac.ed.ph.jqtiplus.value.SingleValue;
+import uk.ac.ed.ph.jqtiplus.value.StringValue;
+import uk.ac.ed.ph.jqtiplus.value.UriValue;
+import uk.ac.ed.ph.jqtiplus.value.Value;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Core for the compact binary marshalling of JQTI+ state Objects. This is intended as a much
+ * faster and smaller alternative to the XML marshalling provided by {@link XmlMarshallerCore}
+ * for applications that need to store state frequently, such as the QTIWorks Engine.
+ * <p>
+ * Each marshalled Object starts with a short header containing a magic number, a format
+ * version and a code indicating the type of Object that follows. The version must be
+ * bumped whenever the format changes in an incompatible way (including reordering any of
+ * the enumerations written out by ordinal here).
+ *
+ * @see ItemSessionStateBinaryMarshaller
+ * @see TestSessionStateBinaryMarshaller
+ * @see TestPlanBinaryMarshaller
+ *
+ * @author David McKain
+ */
+public final class BinaryMarshallerCore {
+
+    static final byte[] MAGIC = { 'Q', 'W', 'S', 'S' };
+
+    /** Current version of the binary format */
+    public static final int FORMAT_VERSION = 1;
+
+    static final byte CONTENT_ITEM_SESSION_STATE = 'I';
+    static final byte CONTENT_TEST_SESSION_STATE = 'T';
+    static final byte CONTENT_TEST_PLAN = 'P';
+    static final byte CONTENT_TEST_SESSION_STATE_DELTA = 'D';
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /* Codes used to indicate the cardinality of a Value. (0 indicates a NULL value) */
+    private static final int VALUE_NULL = 0;
+    private static final int VALUE_SINGLE = 1;
+    private static final int VALUE_MULTIPLE = 2;
+    private static final int VALUE_ORDERED = 3;
+    private static final int VALUE_RECORD = 4;
+
+    /**
+     * Returns true if the given data starts with the header written by the binary marshallers.
+     * This is useful for applications that need to cope with state stored in either format.
+     */
+    public static boolean isBinaryState(final byte[] data) {
+        if (data.length < MAGIC.length) {
+            return false;
+        }
+        for (int i=0; i<MAGIC.length; i++) {
+            if (data[i]!=MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //----------------------------------------------
+    // Marshalling
+
+    static void writeControlObjectSessionState(final BinaryStateOutput output, final ControlObjectSessionState controlObjectState)
+            throws IOException {
+        output.writeNullableDate(controlObjectState.getEntryTime());
+        output.writeNullableDate(controlObjectState.getEndTime());
+        output.writeNullableDate(controlObjectState.getExitTime());
+        output.writeNullableDate(controlObjectState.getDurationIntervalStartTime());
+        output.writeLong(controlObjectState.getDurationAccumulated());
+    }
+
+    static void writeAbstractPartSessionState(final BinaryStateOutput output, final AbstractPartSessionState abstractPartSessionState)
+            throws IOException {
+        writeControlObjectSessionState(output, abstractPartSessionState);
+        output.writeBoolean(abstractPartSessionState.isPreConditionFailed());
+        output.writeBoolean(abstractPartSessionState.isJumpedByBranchRule());
+        output.writeNullableString(abstractPartSessionState.getBranchRuleTarget());
+    }
+
+    static void writeTestPlanNodeKey(final BinaryStateOutput output, final TestPlanNodeKey key) throws IOException {
+        output.writeIdentifier(key.getIdentifier());
+        output.writeVarInt(key.getAbstractPartGlobalIndex());
+        output.writeVarInt(key.getInstanceNumber());
+    }
+
+    static void writeNullableTestPlanNodeKey(final BinaryStateOutput output, final TestPlanNodeKey key) throws IOException {
+        output.writeBoolean(key!=null);
+        if (key!=null) {
+            writeTestPlanNodeKey(output, key);
+        }
+    }
+
+    static void writeValues(final BinaryStateOutput output, final Map<Identifier, Value> valueMap) throws IOException {
+        output.writeVarInt(valueMap.size());
+        for (final Entry<Identifier, Value> entry : valueMap.entrySet()) {
+            output.writeIdentifier(entry.getKey());
+            writeValue(output, entry.getValue());
+        }
+    }
+
+    static void writeValue(final BinaryStateOutput output, final Value value) throws IOException {
+        if (value.isNull()) {
+            /* (Consistent with the XML marshalling, all NULL values are treated the same) */
+            output.writeByte(VALUE_NULL);
+            return;
+        }
+        switch (value.getCardinality()) {
+            case SINGLE:
+                output.writeByte(VALUE_SINGLE);
+                writeBaseType(output, value.getBaseType());
+                writeSingleValue(output, (SingleValue) value);
+                break;
+
+            case MULTIPLE:
+            case ORDERED:
+                final ListValue listValue = (ListValue) value;
+                output.writeByte(listValue.isOrdered() ? VALUE_ORDERED : VALUE_MULTIPLE);
+                writeBaseType(output, listValue.getBaseType());
+                output.writeVarInt(listValue.size());
+                for (final SingleValue listItem : listValue) {
+                    writeSingleValue(output, listItem);
+                }
+                break;
+
+            case RECORD:
+                final RecordValue recordValue = (RecordValue) value;
+                output.writeByte(VALUE_RECORD);
+                output.writeVarInt(recordValue.size());
+                for (final Entry<Identifier, SingleValue> entry : recordValue.entrySet()) {
+                    final SingleValue fieldValue = entry.getValue();
+                    output.writeIdentifier(entry.getKey());
+                    writeBaseType(output, fieldValue.getBaseType());
+                    writeSingleValue(output, fieldValue);
+                }
+                break;
+
+            default:
+                throw new QtiLogicException("Unexpected logic branch: " + value.getCardinality());
+        }
+    }
+
+    private static void writeBaseType(final BinaryStateOutput output, final BaseType baseType) throws IOException {
+        output.writeByte(baseType.ordinal());
+    }
+
+    private static void writeSingleValue(final BinaryStateOutput output, final SingleValue value) throws IOException {
+        switch (value.getBaseType()) {
+            case IDENTIFIER:
+                output.writeIdentifier(((IdentifierValue) value).identifierValue());
+                break;
+
+            case BOOLEAN:
+                output.writeBoolean(((BooleanValue) value).booleanValue());
+                break;
+
+            case INTEGER:
+                output.writeSignedVarInt(((IntegerValue) value).intValue());
+                break;
+
+            case FLOAT:
+                output.writeDouble(((FloatValue) value).doubleValue());
+                break;
+
+            case DURATION:
+                output.writeDouble(((DurationValue) value).doubleValue());
+                break;
+
+            case STRING:
+                output.writeString(((StringValue) value).stringValue());
+                break;
+
+            case POINT:
+                final PointValue pointValue = (PointValue) value;
+                output.writeSignedVarInt(pointValue.horizontalValue());
+                output.writeSignedVarInt(pointValue.verticalValue());
+                break;
+
+            case PAIR:
+                final PairValue pairValue = (PairValue) value;
+                output.writeIdentifier(pairValue.sourceValue());
+                output.writeIdentifier(pairValue.destValue());
+                break;
+
+            case DIRECTED_PAIR:
+                final DirectedPairValue directedPairValue = (DirectedPairValue) value;
+                output.writeIdentifier(directedPairValue.sourceValue());
+                output.writeIdentifier(directedPairValue.destValue());
+                break;
+
+            case FILE:
+                final FileValue fileValue = (FileValue) value;
+                output.writeString(fileValue.getFile().getAbsolutePath());
+                output.writeString(fileValue.getContentType());
+                output.writeString(fileValue.getFileName());
+                break;
+
+            case URI:
+                output.writeString(((UriValue) value).uriValue().toString());
+                break;
+
+            default:
+                throw new QtiLogicException("Unexpected logic branch: " + value.getBaseType());
+        }
+    }
+
+    static void writeResponseData(final BinaryStateOutput output, final ResponseData responseData) throws IOException {
+        output.writeByte(responseData.getType().ordinal());
+        switch (responseData.getType()) {
+            case STRING:
+                final List<String> strings = ((StringResponseData) responseData).getResponseData();
+                output.writeVarInt(strings.size());
+                for (final String string : strings) {
+                    output.writeNullableString(string);
+                }
+                break;
+
+            case FILE:
+                final FileResponseData fileResponseData = (FileResponseData) responseData;
+                output.writeString(fileResponseData.getFile().getAbsolutePath());
+                output.writeString(fileResponseData.getContentType());
+                output.writeString(fileResponseData.getFileName());
+                break;
+
+            default:
+                throw new QtiLogicException("Unexpected switch case " + responseData.getType());
+        }
+    }
+
+    //----------------------------------------------
+    // Unmarshalling
+
+    static void readControlObjectSessionState(final BinaryStateInput input, final ControlObjectSessionState target)
+            throws IOException {
+        target.setEntryTime(input.readNullableDate());
+        target.setEndTime(input.readNullableDate());
+        target.setExitTime(input.readNullableDate());
+        target.setDurationIntervalStartTime(input.readNullableDate());
+        target.setDurationAccumulated(input.readLong());
+    }
+
+    static void readAbstractPartSessionState(final BinaryStateInput input, final AbstractPartSessionState target)
+            throws IOException {
+        readControlObjectSessionState(input, target);
+        target.setPreConditionFailed(input.readBoolean());
+        target.setJumpedByBranchRule(input.readBoolean());
+        target.setBranchRuleTarget(input.readNullableString());
+    }
+
+    static TestPlanNodeKey readTestPlanNodeKey(final BinaryStateInput input) throws IOException {
+        final Identifier identifier = input.readIdentifier();
+        final int abstractPartGlobalIndex = input.readVarInt();
+        final int instanceNumber = input.readVarInt();
+        return new TestPlanNodeKey(identifier, abstractPartGlobalIndex, instanceNumber);
+    }
+
+    static TestPlanNodeKey readNullableTestPlanNodeKey(final BinaryStateInput input) throws IOException {
+        return input.readBoolean() ? readTestPlanNodeKey(input) : null;
+    }
+
+    static Map<Identifier, Value> readValues(final BinaryStateInput input) throws IOException {
+        final int size = input.readVarInt();
+        final Map<Identifier, Value> result = new HashMap<Identifier, Value>(size * 2);
+        for (int i=0; i<size; i++) {
+            final Identifier identifier = input.readIdentifier();
+            result.put(identifier, readValue(input));
+        }
+        return result;
+    }
+
+    static Value readValue(final BinaryStateInput input) throws IOException {
+        final int cardinalityCode = input.readUnsignedByte();
+        switch (cardinalityCode) {
+            case VALUE_NULL:
+                return NullValue.INSTANCE;
+
+            case VALUE_SINGLE:
+                return readSingleValue(input, readBaseType(input));
+
+            case VALUE_MULTIPLE:
+                return MultipleValue.createMultipleValue(readListItems(input));
+
+            case VALUE_ORDERED:
+                return OrderedValue.createOrderedValue(readListItems(input));
+
+            case VALUE_RECORD:
+                final int size = input.readVarInt();
+                final Map<Identifier, SingleValue> recordBuilder = new HashMap<Identifier, SingleValue>(size * 2);
+                for (int i=0; i<size; i++) {
+                    final Identifier fieldIdentifier = input.readIdentifier();
+                    recordBuilder.put(fieldIdentifier, readSingleValue(input, readBaseType(input)));
+                }
+                return RecordValue.createRecordValue(recordBuilder);
+
+            default:
+                throw new BinaryUnmarshallingException("Unexpected Value cardinality code " + cardinalityCode);
+        }
+    }
+
+    private static List<SingleValue> readListItems(final BinaryStateInput input) throws IOException {
+        final BaseType baseType = readBaseType(input);
+        final int size = input.readVarInt();
+        final List<SingleValue> result = new ArrayList<SingleValue>(size);
+        for (int i=0; i<size; i++) {
+            result.add(readSingleValue(input, baseType));
+        }
+        return result;
+    }
+
+    private static BaseType readBaseType(final BinaryStateInput input) throws IOException {
+        return readEnum(input, BaseType.values());
+    }
+
+    private static SingleValue readSingleValue(final BinaryStateInput input, final BaseType baseType) throws IOException {
+        switch (baseType) {
+            case IDENTIFIER:
+                return new IdentifierValue(input.readIdentifier());
+
+            case BOOLEAN:
+                return BooleanValue.valueOf(input.readBoolean());
+
+            case INTEGER:
+                return new IntegerValue(input.readSignedVarInt());
+
+            case FLOAT:
+                return new FloatValue(input.readDouble());
+
+            case DURATION:
+                return new DurationValue(input.readDouble());
+
+            case STRING:
+                return new StringValue(input.readString());
+
+            case POINT:
+                final int horizontalValue = input.readSignedVarInt();
+                final int verticalValue = input.readSignedVarInt();
+                return new PointValue(horizontalValue, verticalValue);
+
+            case PAIR:
+                final Identifier pairSource = input.readIdentifier();
+                final Identifier pairDest = input.readIdentifier();
+                return new PairValue(pairSource, pairDest);
+
+            case DIRECTED_PAIR:
+                final Identifier directedPairSource = input.readIdentifier();
+                final Identifier directedPairDest = input.readIdentifier();
+                return new DirectedPairValue(directedPairSource, directedPairDest);
+
+            case FILE:
+                final File file = new File(input.readString());
+                final String contentType = input.readString();
+                final String fileName = input.readString();
+                return new FileValue(file, contentType, fileName);
+
+            case URI:
+                final String uriString = input.readString();
+                try {
+                    return new UriValue(new URI(uriString));
+                }
+                catch (final URISyntaxException e) {
+                    throw new BinaryUnmarshallingException("Could not parse URI value " + uriString, e);
+                }
+
+            default:
+                throw new QtiLogicException("Unexpected logic branch: " + baseType);
+        }
+    }
+
+    static ResponseData readResponseData(final BinaryStateInput input) throws IOException {
+        final ResponseData.ResponseDataType type = readEnum(input, ResponseData.ResponseDataType.values());
+        switch (type) {
+            case STRING:
+                final int size = input.readVarInt();
+                final List<String> strings = new ArrayList<String>(size);
+                for (int i=0; i<size; i++) {
+                    strings.add(input.readNullableString());
+                }
+                return new StringResponseData(strings);
+
+            case FILE:
+                final File file = new File(input.readString());
+                final String contentType = input.readString();
+                final String fileName = input.readString();
+                return new FileResponseData(file, contentType, fileName);
+
+            default:
+                throw new QtiLogicException("Unexpected switch case " + type);
+        }
+    }
+
+    static <E extends Enum<E>> E readEnum(final BinaryStateInput input, final E[] values) throws IOException {
+        final int ordinal = input.readUnsignedByte();
+        if (ordinal >= values.length) {
+            throw new BinaryUnmarshallingException("Unexpected ordinal " + ordinal
+                    + " for " + values.getClass().getComponentType().getSimpleName());
+        }
+        return values[ordinal];
+    }
+}
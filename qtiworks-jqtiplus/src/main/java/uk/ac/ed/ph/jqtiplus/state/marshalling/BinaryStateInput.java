@@ -0,0 +1,168 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.state.marshalling;
+
+import uk.ac.ed.ph.jqtiplus.exception.QtiParseException;
+import uk.ac.ed.ph.jqtiplus.types.Identifier;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Low level reader used by the binary state unmarshallers.
+ * <p>
+ * Instances of this class are not thread safe.
+ *
+ * @see BinaryStateOutput
+ *
+ * @author David McKain
+ */
+final class BinaryStateInput {
+
+    private final DataInputStream dataInputStream;
+    private final List<Identifier> identifierTable;
+
+    BinaryStateInput(final InputStream inputStream) {
+        this.dataInputStream = new DataInputStream(inputStream);
+        this.identifierTable = new ArrayList<Identifier>();
+    }
+
+    void readHeader(final byte expectedContentType) throws IOException {
+        final byte[] magic = new byte[BinaryMarshallerCore.MAGIC.length];
+        dataInputStream.readFully(magic);
+        if (!Arrays.equals(magic, BinaryMarshallerCore.MAGIC)) {
+            throw new BinaryUnmarshallingException("Data does not start with the expected header");
+        }
+        final int version = dataInputStream.readUnsignedByte();
+        if (version!=BinaryMarshallerCore.FORMAT_VERSION) {
+            throw new BinaryUnmarshallingException("Unsupported binary state format version " + version);
+        }
+        final byte contentType = dataInputStream.readByte();
+        if (contentType!=expectedContentType) {
+            throw new BinaryUnmarshallingException("Expected content type " + (char) expectedContentType
+                    + " but got " + (char) contentType);
+        }
+    }
+
+    int readUnsignedByte() throws IOException {
+        return dataInputStream.readUnsignedByte();
+    }
+
+    boolean readBoolean() throws IOException {
+        return dataInputStream.readBoolean();
+    }
+
+    double readDouble() throws IOException {
+        return dataInputStream.readDouble();
+    }
+
+    int readVarInt() throws IOException {
+        final int result = readRawVarInt();
+        if (result < 0) {
+            throw new BinaryUnmarshallingException("Unexpected negative int " + result);
+        }
+        return result;
+    }
+
+    int readSignedVarInt() throws IOException {
+        final int raw = readRawVarInt();
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+
+    private int readRawVarInt() throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            final int b = dataInputStream.readUnsignedByte();
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80)==0) {
+                return result;
+            }
+        }
+        throw new BinaryUnmarshallingException("Malformed variable length integer");
+    }
+
+    long readLong() throws IOException {
+        return dataInputStream.readLong();
+    }
+
+    String readString() throws IOException {
+        final int length = readVarInt();
+        final byte[] bytes = new byte[length];
+        dataInputStream.readFully(bytes);
+        return new String(bytes, BinaryMarshallerCore.UTF8);
+    }
+
+    String readNullableString() throws IOException {
+        return dataInputStream.readBoolean() ? readString() : null;
+    }
+
+    Date readNullableDate() throws IOException {
+        return dataInputStream.readBoolean() ? new Date(dataInputStream.readLong()) : null;
+    }
+
+    Identifier readIdentifier() throws IOException {
+        final int reference = readVarInt();
+        if (reference==0) {
+            final String identifierString = readString();
+            final Identifier identifier;
+            try {
+                identifier = Identifier.parseString(identifierString);
+            }
+            catch (final QtiParseException e) {
+                throw new BinaryUnmarshallingException("Value " + identifierString + " is not a valid QTI Identifier");
+            }
+            identifierTable.add(identifier);
+            return identifier;
+        }
+        final int index = reference - 1;
+        if (index >= identifierTable.size()) {
+            throw new BinaryUnmarshallingException("Bad Identifier back reference " + reference);
+        }
+        return identifierTable.get(index);
+    }
+
+    List<Identifier> readIdentifiers() throws IOException {
+        final int size = readVarInt();
+        final List<Identifier> result = new ArrayList<Identifier>(size);
+        for (int i=0; i<size; i++) {
+            result.add(readIdentifier());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,165 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.state.marshalling;
+
+import uk.ac.ed.ph.jqtiplus.exception.QtiLogicException;
+import uk.ac.ed.ph.jqtiplus.types.Identifier;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Low level writer used by the binary state marshallers.
+ * <p>
+ * Integers are written as variable length quantities, and each distinct {@link Identifier}
+ * is written out in full only the first time it is encountered. (Later occurrences are written
+ * as a back reference.) This makes the output very compact for things like test plans, where
+ * the same identifiers occur many times.
+ * <p>
+ * Instances of this class are not thread safe.
+ *
+ * @see BinaryStateInput
+ *
+ * @author David McKain
+ */
+final class BinaryStateOutput {
+
+    private final DataOutputStream dataOutputStream;
+    private final Map<Identifier, Integer> identifierTable;
+
+    BinaryStateOutput(final OutputStream outputStream) {
+        this.dataOutputStream = new DataOutputStream(outputStream);
+        this.identifierTable = new HashMap<Identifier, Integer>();
+    }
+
+    void writeHeader(final byte contentType) throws IOException {
+        dataOutputStream.write(BinaryMarshallerCore.MAGIC);
+        dataOutputStream.writeByte(BinaryMarshallerCore.FORMAT_VERSION);
+        dataOutputStream.writeByte(contentType);
+    }
+
+    void writeByte(final int value) throws IOException {
+        dataOutputStream.writeByte(value);
+    }
+
+    void writeBoolean(final boolean value) throws IOException {
+        dataOutputStream.writeBoolean(value);
+    }
+
+    void writeDouble(final double value) throws IOException {
+        dataOutputStream.writeDouble(value);
+    }
+
+    /** Writes an unsigned int as a variable length quantity (7 bits per byte) */
+    void writeVarInt(final int value) throws IOException {
+        if (value < 0) {
+            throw new QtiLogicException("Expected non-negative int, got " + value);
+        }
+        writeRawVarInt(value);
+    }
+
+    /** Writes a signed int, using zig-zag encoding so that small negative numbers stay small */
+    void writeSignedVarInt(final int value) throws IOException {
+        writeRawVarInt((value << 1) ^ (value >> 31));
+    }
+
+    /** Writes the 32 bits of the given int as a variable length quantity (up to 5 bytes) */
+    private void writeRawVarInt(final int value) throws IOException {
+        int remaining = value;
+        while ((remaining & ~0x7F) != 0) {
+            dataOutputStream.writeByte((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        dataOutputStream.writeByte(remaining);
+    }
+
+    void writeLong(final long value) throws IOException {
+        dataOutputStream.writeLong(value);
+    }
+
+    void writeString(final String value) throws IOException {
+        final byte[] bytes = value.getBytes(BinaryMarshallerCore.UTF8);
+        writeVarInt(bytes.length);
+        dataOutputStream.write(bytes);
+    }
+
+    void writeNullableString(final String value) throws IOException {
+        if (value==null) {
+            dataOutputStream.writeBoolean(false);
+        }
+        else {
+            dataOutputStream.writeBoolean(true);
+            writeString(value);
+        }
+    }
+
+    void writeNullableDate(final Date date) throws IOException {
+        if (date==null) {
+            dataOutputStream.writeBoolean(false);
+        }
+        else {
+            dataOutputStream.writeBoolean(true);
+            dataOutputStream.writeLong(date.getTime());
+        }
+    }
+
+    void writeIdentifier(final Identifier identifier) throws IOException {
+        final Integer index = identifierTable.get(identifier);
+        if (index!=null) {
+            writeVarInt(index.intValue() + 1);
+        }
+        else {
+            /* 0 indicates a new identifier, which is then given the next available index */
+            writeVarInt(0);
+            writeString(identifier.toString());
+            identifierTable.put(identifier, Integer.valueOf(identifierTable.size()));
+        }
+    }
+
+    void writeIdentifiers(final Collection<Identifier> identifiers) throws IOException {
+        writeVarInt(identifiers.size());
+        for (final Identifier identifier : identifiers) {
+            writeIdentifier(identifier);
+        }
+    }
+
+    void flush() throws IOException {
+        dataOutputStream.flush();
+    }
+}
@@ -0,0 +1,214 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.state.marshalling;
+
+import uk.ac.ed.ph.jqtiplus.exception.QtiLogicException;
+import uk.ac.ed.ph.jqtiplus.node.result.SessionStatus;
+import uk.ac.ed.ph.jqtiplus.state.ItemSessionState;
+import uk.ac.ed.ph.jqtiplus.types.Identifier;
+import uk.ac.ed.ph.jqtiplus.types.ResponseData;
+import uk.ac.ed.ph.jqtiplus.value.Value;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Marshals an {@link ItemSessionState} to/from the compact binary format described in
+ * {@link BinaryMarshallerCore}.
+ *
+ * @see ItemSessionStateXmlMarshaller
+ *
+ * @author David McKain
+ */
+public final class ItemSessionStateBinaryMarshaller {
+
+    public static byte[] marshal(final ItemSessionState itemSessionState) {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try {
+            marshal(itemSessionState, outputStream);
+        }
+        catch (final IOException e) {
+            throw new QtiLogicException("Unexpected IOException writing to byte array", e);
+        }
+        return outputStream.toByteArray();
+    }
+
+    public static void marshal(final ItemSessionState itemSessionState, final OutputStream outputStream)
+            throws IOException {
+        final BinaryStateOutput output = new BinaryStateOutput(outputStream);
+        output.writeHeader(BinaryMarshallerCore.CONTENT_ITEM_SESSION_STATE);
+        writeItemSessionState(output, itemSessionState);
+        output.flush();
+    }
+
+    static void writeItemSessionState(final BinaryStateOutput output, final ItemSessionState itemSessionState)
+            throws IOException {
+        BinaryMarshallerCore.writeAbstractPartSessionState(output, itemSessionState);
+        output.writeBoolean(itemSessionState.isInitialized());
+        output.writeBoolean(itemSessionState.isResponded());
+        output.writeNullableDate(itemSessionState.getSuspendTime());
+        final SessionStatus sessionStatus = itemSessionState.getSessionStatus();
+        output.writeByte(sessionStatus!=null ? sessionStatus.ordinal() + 1 : 0);
+
+        /* Implicit variables */
+        output.writeNullableString(itemSessionState.getCompletionStatus());
+        output.writeVarInt(itemSessionState.getNumAttempts());
+
+        /* Unbound and/or invalid responses */
+        output.writeIdentifiers(itemSessionState.getUnboundResponseIdentifiers());
+        output.writeIdentifiers(itemSessionState.getInvalidResponseIdentifiers());
+
+        /* Shuffled choice orders */
+        final Map<Identifier, List<Identifier>> shuffledInteractionChoiceOrders = itemSessionState.getShuffledInteractionChoiceOrders();
+        output.writeVarInt(shuffledInteractionChoiceOrders.size());
+        for (final Entry<Identifier, List<Identifier>> entry : shuffledInteractionChoiceOrders.entrySet()) {
+            output.writeIdentifier(entry.getKey());
+            output.writeIdentifiers(entry.getValue());
+        }
+
+        /* Raw responses */
+        final Map<Identifier, ResponseData> rawResponseDataMap = itemSessionState.getRawResponseDataMap();
+        output.writeVarInt(rawResponseDataMap.size());
+        for (final Entry<Identifier, ResponseData> entry : rawResponseDataMap.entrySet()) {
+            output.writeIdentifier(entry.getKey());
+            BinaryMarshallerCore.writeResponseData(output, entry.getValue());
+        }
+
+        /* Candidate comment */
+        output.writeNullableString(itemSessionState.getCandidateComment());
+
+        /* Various values */
+        BinaryMarshallerCore.writeValues(output, itemSessionState.getUncommittedResponseValues());
+        BinaryMarshallerCore.writeValues(output, itemSessionState.getTemplateValues());
+        BinaryMarshallerCore.writeValues(output, itemSessionState.getResponseValues());
+        BinaryMarshallerCore.writeValues(output, itemSessionState.getOutcomeValues());
+        BinaryMarshallerCore.writeValues(output, itemSessionState.getOverriddenTemplateDefaultValues());
+        BinaryMarshallerCore.writeValues(output, itemSessionState.getOverriddenResponseDefaultValues());
+        BinaryMarshallerCore.writeValues(output, itemSessionState.getOverriddenOutcomeDefaultValues());
+        BinaryMarshallerCore.writeValues(output, itemSessionState.getOverriddenCorrectResponseValues());
+    }
+
+    //----------------------------------------------
+
+    public static ItemSessionState unmarshal(final byte[] data) {
+        try {
+            return unmarshal(new ByteArrayInputStream(data));
+        }
+        catch (final IOException e) {
+            throw new BinaryUnmarshallingException("Binary state data ended unexpectedly", e);
+        }
+    }
+
+    public static ItemSessionState unmarshal(final InputStream inputStream) throws IOException {
+        final BinaryStateInput input = new BinaryStateInput(inputStream);
+        input.readHeader(BinaryMarshallerCore.CONTENT_ITEM_SESSION_STATE);
+        return readItemSessionState(input);
+    }
+
+    static ItemSessionState readItemSessionState(final BinaryStateInput input) throws IOException {
+        final ItemSessionState result = new ItemSessionState();
+        BinaryMarshallerCore.readAbstractPartSessionState(input, result);
+        result.setInitialized(input.readBoolean());
+        result.setResponded(input.readBoolean());
+        result.setSuspendTime(input.readNullableDate());
+        final int sessionStatusCode = input.readUnsignedByte();
+        if (sessionStatusCode!=0) {
+            final SessionStatus[] sessionStatuses = SessionStatus.values();
+            if (sessionStatusCode > sessionStatuses.length) {
+                throw new BinaryUnmarshallingException("Unexpected sessionStatus code " + sessionStatusCode);
+            }
+            result.setSessionStatus(sessionStatuses[sessionStatusCode - 1]);
+        }
+
+        final String completionStatus = input.readNullableString();
+        if (completionStatus!=null) {
+            try {
+                result.setCompletionStatus(completionStatus);
+            }
+            catch (final IllegalArgumentException e) {
+                throw new BinaryUnmarshallingException("Unexpected value for completionStatus: " + completionStatus);
+            }
+        }
+        result.setNumAttempts(input.readVarInt());
+
+        result.setUnboundResponseIdentifiers(input.readIdentifiers());
+        result.setInvalidResponseIdentifiers(input.readIdentifiers());
+
+        final int shuffledCount = input.readVarInt();
+        for (int i=0; i<shuffledCount; i++) {
+            final Identifier responseIdentifier = input.readIdentifier();
+            result.setShuffledInteractionChoiceOrder(responseIdentifier, input.readIdentifiers());
+        }
+
+        final int rawResponseCount = input.readVarInt();
+        for (int i=0; i<rawResponseCount; i++) {
+            final Identifier responseIdentifier = input.readIdentifier();
+            result.setRawResponseData(responseIdentifier, BinaryMarshallerCore.readResponseData(input));
+        }
+
+        result.setCandidateComment(input.readNullableString());
+
+        for (final Entry<Identifier, Value> entry : BinaryMarshallerCore.readValues(input).entrySet()) {
+            result.setUncommittedResponseValue(entry.getKey(), entry.getValue());
+        }
+        for (final Entry<Identifier, Value> entry : BinaryMarshallerCore.readValues(input).entrySet()) {
+            result.setTemplateValue(entry.getKey(), entry.getValue());
+        }
+        for (final Entry<Identifier, Value> entry : BinaryMarshallerCore.readValues(input).entrySet()) {
+            result.setResponseValue(entry.getKey(), entry.getValue());
+        }
+        for (final Entry<Identifier, Value> entry : BinaryMarshallerCore.readValues(input).entrySet()) {
+            result.setOutcomeValue(entry.getKey(), entry.getValue());
+        }
+        for (final Entry<Identifier, Value> entry : BinaryMarshallerCore.readValues(input).entrySet()) {
+            result.setOverriddenTemplateDefaultValue(entry.getKey(), entry.getValue());
+        }
+        for (final Entry<Identifier, Value> entry : BinaryMarshallerCore.readValues(input).entrySet()) {
+            result.setOverriddenResponseDefaultValue(entry.getKey(), entry.getValue());
+        }
+        for (final Entry<Identifier, Value> entry : BinaryMarshallerCore.readValues(input).entrySet()) {
+            result.setOverriddenOutcomeDefaultValue(entry.getKey(), entry.getValue());
+        }
+        for (final Entry<Identifier, Value> entry : BinaryMarshallerCore.readValues(input).entrySet()) {
+            result.setOverriddenCorrectResponseValue(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+}
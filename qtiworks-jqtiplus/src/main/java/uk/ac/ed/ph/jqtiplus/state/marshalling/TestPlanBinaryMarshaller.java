@@ -0,0 +1,173 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.state.marshalling;
+
+import uk.ac.ed.ph.jqtiplus.exception.QtiLogicException;
+import uk.ac.ed.ph.jqtiplus.state.EffectiveItemSessionControl;
+import uk.ac.ed.ph.jqtiplus.state.TestPlan;
+import uk.ac.ed.ph.jqtiplus.state.TestPlanNode;
+import uk.ac.ed.ph.jqtiplus.state.TestPlanNode.TestNodeType;
+import uk.ac.ed.ph.jqtiplus.state.TestPlanNodeKey;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.List;
+
+/**
+ * Marshals a {@link TestPlan} to/from the compact binary format described in
+ * {@link BinaryMarshallerCore}.
+ *
+ * @see TestPlanXmlMarshaller
+ *
+ * @author David McKain
+ */
+public final class TestPlanBinaryMarshaller {
+
+    public static byte[] marshal(final TestPlan testPlan) {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try {
+            marshal(testPlan, outputStream);
+        }
+        catch (final IOException e) {
+            throw new QtiLogicException("Unexpected IOException writing to byte array", e);
+        }
+        return outputStream.toByteArray();
+    }
+
+    public static void marshal(final TestPlan testPlan, final OutputStream outputStream) throws IOException {
+        final BinaryStateOutput output = new BinaryStateOutput(outputStream);
+        output.writeHeader(BinaryMarshallerCore.CONTENT_TEST_PLAN);
+        writeTestPlan(output, testPlan);
+        output.flush();
+    }
+
+    static void writeTestPlan(final BinaryStateOutput output, final TestPlan testPlan) throws IOException {
+        writeChildren(output, testPlan.getTestPlanRootNode());
+    }
+
+    private static void writeChildren(final BinaryStateOutput output, final TestPlanNode testPlanNode) throws IOException {
+        final List<TestPlanNode> children = testPlanNode.getChildren();
+        output.writeVarInt(children.size());
+        for (final TestPlanNode childNode : children) {
+            writeTestPlanNode(output, childNode);
+        }
+    }
+
+    private static void writeTestPlanNode(final BinaryStateOutput output, final TestPlanNode testPlanNode) throws IOException {
+        output.writeByte(testPlanNode.getTestNodeType().ordinal());
+        BinaryMarshallerCore.writeTestPlanNodeKey(output, testPlanNode.getKey());
+        final EffectiveItemSessionControl effectiveItemSessionControl = testPlanNode.getEffectiveItemSessionControl();
+        output.writeBoolean(effectiveItemSessionControl!=null);
+        if (effectiveItemSessionControl!=null) {
+            output.writeSignedVarInt(effectiveItemSessionControl.getMaxAttempts());
+            output.writeBoolean(effectiveItemSessionControl.isShowFeedback());
+            output.writeBoolean(effectiveItemSessionControl.isAllowReview());
+            output.writeBoolean(effectiveItemSessionControl.isShowSolution());
+            output.writeBoolean(effectiveItemSessionControl.isAllowComment());
+            output.writeBoolean(effectiveItemSessionControl.isAllowSkipping());
+            output.writeBoolean(effectiveItemSessionControl.isValidateResponses());
+        }
+        output.writeNullableString(testPlanNode.getSectionPartTitle());
+        final URI itemSystemId = testPlanNode.getItemSystemId();
+        output.writeNullableString(itemSystemId!=null ? itemSystemId.toString() : null);
+
+        /* Descend into children */
+        writeChildren(output, testPlanNode);
+    }
+
+    //----------------------------------------------
+
+    public static TestPlan unmarshal(final byte[] data) {
+        try {
+            return unmarshal(new ByteArrayInputStream(data));
+        }
+        catch (final IOException e) {
+            throw new BinaryUnmarshallingException("Binary state data ended unexpectedly", e);
+        }
+    }
+
+    public static TestPlan unmarshal(final InputStream inputStream) throws IOException {
+        final BinaryStateInput input = new BinaryStateInput(inputStream);
+        input.readHeader(BinaryMarshallerCore.CONTENT_TEST_PLAN);
+        return readTestPlan(input);
+    }
+
+    static TestPlan readTestPlan(final BinaryStateInput input) throws IOException {
+        final TestPlanNode rootNode = TestPlanNode.createRoot();
+        readChildren(input, rootNode);
+        return new TestPlan(rootNode);
+    }
+
+    private static void readChildren(final BinaryStateInput input, final TestPlanNode targetOwner) throws IOException {
+        final int childCount = input.readVarInt();
+        for (int i=0; i<childCount; i++) {
+            final TestNodeType type = BinaryMarshallerCore.readEnum(input, TestNodeType.values());
+            final TestPlanNodeKey key = BinaryMarshallerCore.readTestPlanNodeKey(input);
+            EffectiveItemSessionControl effectiveItemSessionControl = null;
+            if (input.readBoolean()) {
+                final int maxAttempts = input.readSignedVarInt();
+                final boolean showFeedback = input.readBoolean();
+                final boolean allowReview = input.readBoolean();
+                final boolean showSolution = input.readBoolean();
+                final boolean allowComment = input.readBoolean();
+                final boolean allowSkipping = input.readBoolean();
+                final boolean validateResponses = input.readBoolean();
+                effectiveItemSessionControl = new EffectiveItemSessionControl(maxAttempts, showFeedback, allowReview, showSolution, allowComment, allowSkipping, validateResponses);
+            }
+            final String sectionPartTitle = input.readNullableString();
+            final URI itemSystemId = parseOptionalUri(input.readNullableString());
+
+            final TestPlanNode childTestPlanNode = new TestPlanNode(type, key, effectiveItemSessionControl, sectionPartTitle, itemSystemId);
+            targetOwner.addChild(childTestPlanNode);
+            readChildren(input, childTestPlanNode);
+        }
+    }
+
+    private static URI parseOptionalUri(final String uriString) {
+        if (uriString==null) {
+            return null;
+        }
+        try {
+            return new URI(uriString);
+        }
+        catch (final URISyntaxException e) {
+            throw new BinaryUnmarshallingException("Could not parse itemSystemId " + uriString, e);
+        }
+    }
+}
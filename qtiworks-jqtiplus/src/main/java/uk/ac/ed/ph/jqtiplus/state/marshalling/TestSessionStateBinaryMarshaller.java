@@ -0,0 +1,288 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.state.marshalling;
+
+import uk.ac.ed.ph.jqtiplus.exception.QtiLogicException;
+import uk.ac.ed.ph.jqtiplus.state.AssessmentSectionSessionState;
+import uk.ac.ed.ph.jqtiplus.state.ItemSessionState;
+import uk.ac.ed.ph.jqtiplus.state.TestPartSessionState;
+import uk.ac.ed.ph.jqtiplus.state.TestPlan;
+import uk.ac.ed.ph.jqtiplus.state.TestPlanNodeKey;
+import uk.ac.ed.ph.jqtiplus.state.TestSessionState;
+import uk.ac.ed.ph.jqtiplus.types.Identifier;
+import uk.ac.ed.ph.jqtiplus.value.Value;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Marshals a {@link TestSessionState} to/from the compact binary format described in
+ * {@link BinaryMarshallerCore}.
+ *
+ * @see TestSessionStateXmlMarshaller
+ *
+ * @author David McKain
+ */
+public final class TestSessionStateBinaryMarshaller {
+
+    public static byte[] marshal(final TestSessionState testSessionState) {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try {
+            marshal(testSessionState, outputStream);
+        }
+        catch (final IOException e) {
+            throw new QtiLogicException("Unexpected IOException writing to byte array", e);
+        }
+        return outputStream.toByteArray();
+    }
+
+    public static void marshal(final TestSessionState testSessionState, final OutputStream outputStream)
+            throws IOException {
+        final BinaryStateOutput output = new BinaryStateOutput(outputStream);
+        output.writeHeader(BinaryMarshallerCore.CONTENT_TEST_SESSION_STATE);
+        writeTestSessionState(output, testSessionState);
+        output.flush();
+    }
+
+    static void writeTestSessionState(final BinaryStateOutput output, final TestSessionState testSessionState)
+            throws IOException {
+        /* Do test plan first, as it's required to construct the resulting TestSessionState */
+        TestPlanBinaryMarshaller.writeTestPlan(output, testSessionState.getTestPlan());
+
+        BinaryMarshallerCore.writeControlObjectSessionState(output, testSessionState);
+        output.writeBoolean(testSessionState.isInitialized());
+        BinaryMarshallerCore.writeNullableTestPlanNodeKey(output, testSessionState.getCurrentTestPartKey());
+        BinaryMarshallerCore.writeNullableTestPlanNodeKey(output, testSessionState.getCurrentItemKey());
+
+        /* Do outcome variables */
+        BinaryMarshallerCore.writeValues(output, testSessionState.getOutcomeValues());
+
+        /* Do states for each TestPart */
+        final Map<TestPlanNodeKey, TestPartSessionState> testPartSessionStates = testSessionState.getTestPartSessionStates();
+        output.writeVarInt(testPartSessionStates.size());
+        for (final Entry<TestPlanNodeKey, TestPartSessionState> entry : testPartSessionStates.entrySet()) {
+            BinaryMarshallerCore.writeTestPlanNodeKey(output, entry.getKey());
+            BinaryMarshallerCore.writeAbstractPartSessionState(output, entry.getValue());
+        }
+
+        /* Do states for each AssessmentSection */
+        final Map<TestPlanNodeKey, AssessmentSectionSessionState> assessmentSectionSessionStates = testSessionState.getAssessmentSectionSessionStates();
+        output.writeVarInt(assessmentSectionSessionStates.size());
+        for (final Entry<TestPlanNodeKey, AssessmentSectionSessionState> entry : assessmentSectionSessionStates.entrySet()) {
+            BinaryMarshallerCore.writeTestPlanNodeKey(output, entry.getKey());
+            BinaryMarshallerCore.writeAbstractPartSessionState(output, entry.getValue());
+        }
+
+        /* Do states for each item */
+        final Map<TestPlanNodeKey, ItemSessionState> itemSessionStates = testSessionState.getItemSessionStates();
+        output.writeVarInt(itemSessionStates.size());
+        for (final Entry<TestPlanNodeKey, ItemSessionState> entry : itemSessionStates.entrySet()) {
+            BinaryMarshallerCore.writeTestPlanNodeKey(output, entry.getKey());
+            ItemSessionStateBinaryMarshaller.writeItemSessionState(output, entry.getValue());
+        }
+    }
+
+    //----------------------------------------------
+    // Deltas
+
+    /**
+     * Marshals the changes required to turn the <code>previous</code> {@link TestSessionState}
+     * into the <code>current</code> one. This is much smaller than a full marshal for the usual
+     * case where only a few items have changed.
+     * <p>
+     * The {@link TestPlan} is not included in a delta, and deltas can only record additions and
+     * changes (not removals). This method therefore returns null if the two states have
+     * different {@link TestPlan}s, or if anything has been removed (e.g. after a reset),
+     * indicating that a full marshal should be used instead.
+     *
+     * @see #applyDelta(TestSessionState, byte[])
+     */
+    public static byte[] marshalDelta(final TestSessionState previous, final TestSessionState current) {
+        if (!previous.getTestPlan().equals(current.getTestPlan())
+                || !current.getOutcomeValues().keySet().containsAll(previous.getOutcomeValues().keySet())
+                || !current.getTestPartSessionStates().keySet().containsAll(previous.getTestPartSessionStates().keySet())
+                || !current.getAssessmentSectionSessionStates().keySet().containsAll(previous.getAssessmentSectionSessionStates().keySet())
+                || !current.getItemSessionStates().keySet().containsAll(previous.getItemSessionStates().keySet())) {
+            return null;
+        }
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try {
+            final BinaryStateOutput output = new BinaryStateOutput(outputStream);
+            output.writeHeader(BinaryMarshallerCore.CONTENT_TEST_SESSION_STATE_DELTA);
+            BinaryMarshallerCore.writeControlObjectSessionState(output, current);
+            output.writeBoolean(current.isInitialized());
+            BinaryMarshallerCore.writeNullableTestPlanNodeKey(output, current.getCurrentTestPartKey());
+            BinaryMarshallerCore.writeNullableTestPlanNodeKey(output, current.getCurrentItemKey());
+
+            /* Do changed outcome variables */
+            final Map<Identifier, Value> changedOutcomeValues = new LinkedHashMap<Identifier, Value>();
+            for (final Entry<Identifier, Value> entry : current.getOutcomeValues().entrySet()) {
+                if (!entry.getValue().equals(previous.getOutcomeValue(entry.getKey()))) {
+                    changedOutcomeValues.put(entry.getKey(), entry.getValue());
+                }
+            }
+            BinaryMarshallerCore.writeValues(output, changedOutcomeValues);
+
+            /* Do changed states for each TestPart */
+            final Map<TestPlanNodeKey, TestPartSessionState> changedTestPartSessionStates
+                = findChangedEntries(previous.getTestPartSessionStates(), current.getTestPartSessionStates());
+            output.writeVarInt(changedTestPartSessionStates.size());
+            for (final Entry<TestPlanNodeKey, TestPartSessionState> entry : changedTestPartSessionStates.entrySet()) {
+                BinaryMarshallerCore.writeTestPlanNodeKey(output, entry.getKey());
+                BinaryMarshallerCore.writeAbstractPartSessionState(output, entry.getValue());
+            }
+
+            /* Do changed states for each AssessmentSection */
+            final Map<TestPlanNodeKey, AssessmentSectionSessionState> changedAssessmentSectionSessionStates
+                = findChangedEntries(previous.getAssessmentSectionSessionStates(), current.getAssessmentSectionSessionStates());
+            output.writeVarInt(changedAssessmentSectionSessionStates.size());
+            for (final Entry<TestPlanNodeKey, AssessmentSectionSessionState> entry : changedAssessmentSectionSessionStates.entrySet()) {
+                BinaryMarshallerCore.writeTestPlanNodeKey(output, entry.getKey());
+                BinaryMarshallerCore.writeAbstractPartSessionState(output, entry.getValue());
+            }
+
+            /* Do changed states for each item */
+            final Map<TestPlanNodeKey, ItemSessionState> changedItemSessionStates
+                = findChangedEntries(previous.getItemSessionStates(), current.getItemSessionStates());
+            output.writeVarInt(changedItemSessionStates.size());
+            for (final Entry<TestPlanNodeKey, ItemSessionState> entry : changedItemSessionStates.entrySet()) {
+                BinaryMarshallerCore.writeTestPlanNodeKey(output, entry.getKey());
+                ItemSessionStateBinaryMarshaller.writeItemSessionState(output, entry.getValue());
+            }
+            output.flush();
+        }
+        catch (final IOException e) {
+            throw new QtiLogicException("Unexpected IOException writing to byte array", e);
+        }
+        return outputStream.toByteArray();
+    }
+
+    private static <E> Map<TestPlanNodeKey, E> findChangedEntries(final Map<TestPlanNodeKey, E> previous,
+            final Map<TestPlanNodeKey, E> current) {
+        final Map<TestPlanNodeKey, E> result = new LinkedHashMap<TestPlanNodeKey, E>();
+        for (final Entry<TestPlanNodeKey, E> entry : current.entrySet()) {
+            if (!entry.getValue().equals(previous.get(entry.getKey()))) {
+                result.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Applies a delta created by {@link #marshalDelta(TestSessionState, TestSessionState)}
+     * to the given {@link TestSessionState}, which is updated in place.
+     */
+    public static void applyDelta(final TestSessionState target, final byte[] data) {
+        try {
+            final BinaryStateInput input = new BinaryStateInput(new ByteArrayInputStream(data));
+            input.readHeader(BinaryMarshallerCore.CONTENT_TEST_SESSION_STATE_DELTA);
+            BinaryMarshallerCore.readControlObjectSessionState(input, target);
+            target.setInitialized(input.readBoolean());
+            target.setCurrentTestPartKey(BinaryMarshallerCore.readNullableTestPlanNodeKey(input));
+            target.setCurrentItemKey(BinaryMarshallerCore.readNullableTestPlanNodeKey(input));
+            readPartStates(input, target);
+        }
+        catch (final IOException e) {
+            throw new BinaryUnmarshallingException("Binary state data ended unexpectedly", e);
+        }
+    }
+
+    //----------------------------------------------
+
+    public static TestSessionState unmarshal(final byte[] data) {
+        try {
+            return unmarshal(new ByteArrayInputStream(data));
+        }
+        catch (final IOException e) {
+            throw new BinaryUnmarshallingException("Binary state data ended unexpectedly", e);
+        }
+    }
+
+    public static TestSessionState unmarshal(final InputStream inputStream) throws IOException {
+        final BinaryStateInput input = new BinaryStateInput(inputStream);
+        input.readHeader(BinaryMarshallerCore.CONTENT_TEST_SESSION_STATE);
+        return readTestSessionState(input);
+    }
+
+    static TestSessionState readTestSessionState(final BinaryStateInput input) throws IOException {
+        final TestPlan testPlan = TestPlanBinaryMarshaller.readTestPlan(input);
+        final TestSessionState result = new TestSessionState(testPlan);
+
+        BinaryMarshallerCore.readControlObjectSessionState(input, result);
+        result.setInitialized(input.readBoolean());
+        result.setCurrentTestPartKey(BinaryMarshallerCore.readNullableTestPlanNodeKey(input));
+        result.setCurrentItemKey(BinaryMarshallerCore.readNullableTestPlanNodeKey(input));
+
+        readPartStates(input, result);
+        return result;
+    }
+
+    /**
+     * Reads outcome values and part states into the given {@link TestSessionState}, adding to or
+     * replacing whatever is already there. (This is shared by full unmarshalling and deltas.)
+     */
+    private static void readPartStates(final BinaryStateInput input, final TestSessionState target) throws IOException {
+        for (final Entry<Identifier, Value> entry : BinaryMarshallerCore.readValues(input).entrySet()) {
+            target.setOutcomeValue(entry.getKey(), entry.getValue());
+        }
+
+        final int testPartCount = input.readVarInt();
+        for (int i=0; i<testPartCount; i++) {
+            final TestPlanNodeKey key = BinaryMarshallerCore.readTestPlanNodeKey(input);
+            final TestPartSessionState testPartSessionState = new TestPartSessionState();
+            BinaryMarshallerCore.readAbstractPartSessionState(input, testPartSessionState);
+            target.getTestPartSessionStates().put(key, testPartSessionState);
+        }
+
+        final int assessmentSectionCount = input.readVarInt();
+        for (int i=0; i<assessmentSectionCount; i++) {
+            final TestPlanNodeKey key = BinaryMarshallerCore.readTestPlanNodeKey(input);
+            final AssessmentSectionSessionState assessmentSectionSessionState = new AssessmentSectionSessionState();
+            BinaryMarshallerCore.readAbstractPartSessionState(input, assessmentSectionSessionState);
+            target.getAssessmentSectionSessionStates().put(key, assessmentSectionSessionState);
+        }
+
+        final int itemCount = input.readVarInt();
+        for (int i=0; i<itemCount; i++) {
+            final TestPlanNodeKey key = BinaryMarshallerCore.readTestPlanNodeKey(input);
+            target.getItemSessionStates().put(key, ItemSessionStateBinaryMarshaller.readItemSessionState(input));
+        }
+    }
+}
@@ -41,6 +41,7 @@ import uk.ac.ed.ph.jqtiplus.xmlutils.XmlResourceNotFoundException;
 import uk.ac.ed.ph.jqtiplus.xmlutils.XmlResourceReader;
 import uk.ac.ed.ph.jqtiplus.xmlutils.locators.FileSandboxResourceLocator;
 import uk.ac.ed.ph.jqtiplus.xmlutils.locators.NullResourceLocator;
+import uk.ac.ed.ph.jqtiplus.xmlutils.locators.ResourceLocator;
 
 import java.io.File;
 import java.net.URI;
@@ -89,12 +90,20 @@ public final class QtiContentPackageExtractor {
     };
 
     private final XmlResourceReader xmlResourceReader;
-    private final FileSandboxResourceLocator packageResourceLocator;
+    private final ResourceLocator packageResourceLocator;
 
     public QtiContentPackageExtractor(final File packageSandboxDirectory) {
-        Assert.notNull(packageSandboxDirectory);
+        this(new FileSandboxResourceLocator(PACKAGE_URI_SCHEME, packageSandboxDirectory));
+    }
+
+    /**
+     * Creates an extractor reading the package's files using the given {@link ResourceLocator},
+     * which must map {@link #PACKAGE_URI_SCHEME} URIs to the files within the package.
+     */
+    public QtiContentPackageExtractor(final ResourceLocator packageResourceLocator) {
+        Assert.notNull(packageResourceLocator);
         this.xmlResourceReader = new XmlResourceReader(NullResourceLocator.getInstance()); /* (Not doing schema validation so no XSDs to register) */
-        this.packageResourceLocator = new FileSandboxResourceLocator(PACKAGE_URI_SCHEME, packageSandboxDirectory);
+        this.packageResourceLocator = packageResourceLocator;
     }
 
     public QtiContentPackageSummary parse() throws XmlResourceNotFoundException, ImsManifestException {
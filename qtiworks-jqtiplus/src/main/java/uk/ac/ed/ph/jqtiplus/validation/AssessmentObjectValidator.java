@@ -35,6 +35,7 @@ package uk.ac.ed.ph.jqtiplus.validation;
 
 import uk.ac.ed.ph.jqtiplus.JqtiExtensionManager;
 import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
+import uk.ac.ed.ph.jqtiplus.internal.util.ConcurrencyUtilities;
 import uk.ac.ed.ph.jqtiplus.node.item.AssessmentItem;
 import uk.ac.ed.ph.jqtiplus.node.item.response.processing.ResponseProcessing;
 import uk.ac.ed.ph.jqtiplus.node.test.AssessmentItemRef;
@@ -48,8 +49,13 @@ import uk.ac.ed.ph.jqtiplus.resolution.ResolvedAssessmentTest;
 import uk.ac.ed.ph.jqtiplus.resolution.RootNodeLookup;
 
 import java.net.URI;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -59,6 +65,10 @@ import org.slf4j.LoggerFactory;
  * <p>
  * You won't normally want to use this on its own. See {@link AssessmentObjectXmlLoader} for a more
  * end-to-end solution.
+ * <p>
+ * If an {@link ExecutorService} is provided then the items within a {@link ResolvedAssessmentTest}
+ * are validated in parallel using it. The resulting notifications are merged in the same order as
+ * for sequential validation, so the results are identical.
  *
  * @see AssessmentObjectXmlLoader
  *
@@ -69,9 +79,23 @@ public final class AssessmentObjectValidator {
     private static final Logger logger = LoggerFactory.getLogger(AssessmentObjectValidator.class);
 
     private final JqtiExtensionManager jqtiExtensionManager;
+    private final ExecutorService executorService;
 
     public AssessmentObjectValidator(final JqtiExtensionManager jqtiExtensionManager) {
+        this(jqtiExtensionManager, null);
+    }
+
+    /**
+     * Creates a validator that uses the given {@link ExecutorService} to validate test items
+     * in parallel. Pass null to validate sequentially.
+     */
+    public AssessmentObjectValidator(final JqtiExtensionManager jqtiExtensionManager, final ExecutorService executorService) {
         this.jqtiExtensionManager = jqtiExtensionManager;
+        this.executorService = executorService;
+    }
+
+    public ExecutorService getExecutorService() {
+        return executorService;
     }
 
     public ItemValidationResult validateItem(final ResolvedAssessmentItem resolvedAssessmentItem) {
@@ -103,6 +127,7 @@ public final class AssessmentObjectValidator {
         final AssessmentTest test = resolvedAssessmentTest.getTestLookup().extractIfSuccessful();
         if (test!=null) {
             /* Validate each unique item first */
+            final Map<URI, ItemValidationResult> itemValidationResultMap = validateItems(resolvedAssessmentTest.getResolvedAssessmentItemBySystemIdMap());
             for (final Entry<URI, ResolvedAssessmentItem> entry : resolvedAssessmentTest.getResolvedAssessmentItemBySystemIdMap().entrySet()) {
                 final URI itemSystemId = entry.getKey();
                 final ResolvedAssessmentItem resolvedAssessmentItem = entry.getValue();
@@ -125,7 +150,7 @@ public final class AssessmentObjectValidator {
                 }
                 final String itemReferenceDescription = itemReferenceBuilder.toString();
 
-                final ItemValidationResult itemValidationResult = validateItem(resolvedAssessmentItem);
+                final ItemValidationResult itemValidationResult = itemValidationResultMap.get(itemSystemId);
                 result.addItemValidationResult(itemValidationResult);
                 if (resolvedAssessmentItem.getItemLookup().wasSuccessful()) {
                     if (itemValidationResult.hasErrors()) {
@@ -158,12 +183,49 @@ public final class AssessmentObjectValidator {
         return result;
     }
 
+    /**
+     * Validates each of the given items, using the {@link #executorService} if available.
+     * The resulting Map has the same iteration order as the input.
+     */
+    private Map<URI, ItemValidationResult> validateItems(final Map<URI, ResolvedAssessmentItem> resolvedAssessmentItemMap) {
+        final Map<URI, ItemValidationResult> result = new LinkedHashMap<URI, ItemValidationResult>();
+        if (executorService==null || resolvedAssessmentItemMap.size() <= 1) {
+            for (final Entry<URI, ResolvedAssessmentItem> entry : resolvedAssessmentItemMap.entrySet()) {
+                result.put(entry.getKey(), validateItem(entry.getValue()));
+            }
+            return result;
+        }
+        final Map<URI, Future<ItemValidationResult>> futureMap = new LinkedHashMap<URI, Future<ItemValidationResult>>();
+        for (final Entry<URI, ResolvedAssessmentItem> entry : resolvedAssessmentItemMap.entrySet()) {
+            final ResolvedAssessmentItem resolvedAssessmentItem = entry.getValue();
+            futureMap.put(entry.getKey(), executorService.submit(new Callable<ItemValidationResult>() {
+                @Override
+                public ItemValidationResult call() {
+                    return validateItem(resolvedAssessmentItem);
+                }
+            }));
+        }
+        try {
+            for (final Entry<URI, Future<ItemValidationResult>> entry : futureMap.entrySet()) {
+                result.put(entry.getKey(), ConcurrencyUtilities.getResult(entry.getValue()));
+            }
+        }
+        finally {
+            /* Cancel anything still outstanding if we failed part way through */
+            for (final Future<ItemValidationResult> future : futureMap.values()) {
+                future.cancel(true);
+            }
+        }
+        return result;
+    }
+
     //-------------------------------------------------------------------
 
     @Override
     public String toString() {
         return getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(this))
                 + "(jqtiExtensionManager=" + jqtiExtensionManager
+                + ",executorService=" + executorService
                 + ")";
     }
 }
@@ -239,8 +239,9 @@ public final class XmlResourceReader {
 
         /* Parse input and convert to a DOM containing SAX Locator information */
         logger.trace("XML parse of {} starting", systemIdString);
+        final InputStream inputStream = ensureLocateInput(systemId, inputResourceLocator);
         final InputSource inputSource = new InputSource();
-        inputSource.setByteStream(ensureLocateInput(systemId, inputResourceLocator));
+        inputSource.setByteStream(inputStream);
         inputSource.setSystemId(systemIdString);
 
         final SimpleDomBuilderHandler handler = new SimpleDomBuilderHandler(document);
@@ -251,6 +252,10 @@ public final class XmlResourceReader {
         catch (final SAXParseException e) {
             /* Fatal parsing error */
         }
+        finally {
+            /* (Parsers usually do this themselves, but some locators need to know when we've finished) */
+            close(inputStream);
+        }
 
         /* We'll consider successful parsing to be no errors or fatal errors, and no unresolved
          * entities */
@@ -305,11 +310,17 @@ public final class XmlResourceReader {
                  * when validating from a DOM.)
                  */
                 logger.trace("Schema validaton of {} starting", systemIdString);
-                final StreamSource input = new StreamSource(ensureLocateInput(systemId, inputResourceLocator), systemIdString);
-                final Validator validator = schema.newValidator();
-                validator.setResourceResolver(schemaResourceResolver);
-                validator.setErrorHandler(inputErrorHandler);
-                validator.validate(input);
+                final InputStream validationStream = ensureLocateInput(systemId, inputResourceLocator);
+                try {
+                    final StreamSource input = new StreamSource(validationStream, systemIdString);
+                    final Validator validator = schema.newValidator();
+                    validator.setResourceResolver(schemaResourceResolver);
+                    validator.setErrorHandler(inputErrorHandler);
+                    validator.validate(input);
+                }
+                finally {
+                    close(validationStream);
+                }
                 validated = true;
                 logger.debug("Schema validation of {} finished", systemIdString);
             }
@@ -326,6 +337,18 @@ public final class XmlResourceReader {
         return new XmlReadResult(parsed ? document : null, xmlParseResult);
     }
 
+    /**
+     * Compiles the schema having the given URI, storing the result in the {@link SchemaCache}
+     * (if used). This can be used to warm up the cache before documents are read.
+     *
+     * @param schemaUri URI of the schema to compile, which should normally be one of the
+     *   registered schemas.
+     */
+    public void precompileSchema(final String schemaUri) {
+        Assert.notNull(schemaUri, "schemaUri");
+        getSchema(Collections.singletonList(schemaUri));
+    }
+
     /**
      * Obtains the schema compiled from the given list of URIs, using a cached version if
      * possible.
@@ -336,14 +359,19 @@ public final class XmlResourceReader {
         if (schemaCache!=null) {
             synchronized (schemaCache) {
                 result = schemaCache.getSchema(key);
-                if (result!=null) {
-                    logger.debug("Schema cache hit for URIs {} yielded {}", key, result);
-                }
-                else {
-                    result = compileSchema(schemaUris);
+            }
+            if (result!=null) {
+                logger.debug("Schema cache hit for URIs {} yielded {}", key, result);
+            }
+            else {
+                /* Compile outside the lock so that different schemas may be compiled in parallel.
+                 * (Concurrent misses on the same key may compile twice, which is harmless.)
+                 */
+                result = compileSchema(schemaUris);
+                synchronized (schemaCache) {
                     schemaCache.putSchema(key, result);
-                    logger.debug("Schema cache miss for URIs {} stored {}", key, result);
                 }
+                logger.debug("Schema cache miss for URIs {} stored {}", key, result);
             }
         }
         else {
@@ -487,6 +515,15 @@ public final class XmlResourceReader {
         return inputStream;
     }
 
+    private static void close(final InputStream inputStream) {
+        try {
+            inputStream.close();
+        }
+        catch (final IOException e) {
+            logger.warn("Failed to close XML resource stream", e);
+        }
+    }
+
     public static XmlSourceLocationInformation extractLocationInformation(final Node elementOrTextNode) {
         XmlSourceLocationInformation result = null;
         final Object locationData = elementOrTextNode.getUserData(LOCATION_INFORMATION_NAME);
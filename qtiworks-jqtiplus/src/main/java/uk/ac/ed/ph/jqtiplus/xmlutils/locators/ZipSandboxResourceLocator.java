@@ -0,0 +1,136 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.xmlutils.locators;
+
+import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
+import uk.ac.ed.ph.jqtiplus.xmlutils.CustomUriScheme;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Convenience {@link ResourceLocator} that maps a custom pseudo-URI scheme to an entry within
+ * a given {@link ZipFile}, which is useful for locating resources within content packages
+ * without having to expand them first.
+ * <p>
+ * This behaves in the same way as {@link FileSandboxResourceLocator}, with the ZIP file playing
+ * the role of the sandbox directory:
+ *
+ * <code>package:/a/b/c.xml</code> -> <code>ZIP entry a/b/c.xml</code>
+ *
+ * Entries are looked up using the ZIP file's central directory, so nothing is read from the
+ * ZIP until the resulting {@link InputStream} is used.
+ * <p>
+ * The caller is responsible for closing the {@link ZipFile} once it has finished with this
+ * locator (and any streams obtained from it).
+ *
+ * @author David McKain
+ */
+public class ZipSandboxResourceLocator implements ResourceLocator {
+
+    private static final Logger logger = LoggerFactory.getLogger(ZipSandboxResourceLocator.class);
+
+    private final CustomUriScheme uriScheme;
+    private final ZipFile zipFile;
+
+    public ZipSandboxResourceLocator(final CustomUriScheme uriScheme, final ZipFile zipFile) {
+        Assert.notNull(uriScheme, "uriScheme");
+        Assert.notNull(zipFile, "zipFile");
+        this.uriScheme = uriScheme;
+        this.zipFile = zipFile;
+    }
+
+    @Override
+    public InputStream findResource(final URI systemIdUri) {
+        final ZipEntry zipEntry = findZipEntry(systemIdUri);
+        if (zipEntry!=null) {
+            try {
+                return zipFile.getInputStream(zipEntry);
+            }
+            catch (final IOException e) {
+                logger.warn("Failed to read entry {} from ZIP file {}", zipEntry.getName(), zipFile.getName());
+                return null;
+            }
+        }
+        return null;
+    }
+
+    public ZipEntry findZipEntry(final URI systemIdUri) {
+        final URI normalizedUri = systemIdUri.normalize();
+        if (uriScheme.isInScheme(normalizedUri)) {
+            final String normalizedPath = uriScheme.uriToDecodedPath(normalizedUri);
+            if (normalizedPath!=null) {
+                if (normalizedPath.startsWith("..")) {
+                    /* This is trying to go outside the package, so we'll return null here */
+                    logger.trace("URI {} normalized to path {} which is 'outside' the package so returning null for safety", systemIdUri, normalizedPath);
+                    return null;
+                }
+                final ZipEntry resultingEntry = zipFile.getEntry(normalizedPath);
+                if (resultingEntry==null) {
+                    logger.trace("URI {} successfully mapped to non-existent ZIP entry {}", systemIdUri, normalizedPath);
+                    return null;
+                }
+                else if (resultingEntry.isDirectory()) {
+                    logger.trace("URI {} successfully mapped to directory ZIP entry {}", systemIdUri, normalizedPath);
+                    return null;
+                }
+                logger.trace("URI {} successfully mapped to good ZIP entry {}", systemIdUri, normalizedPath);
+                return resultingEntry;
+            }
+        }
+        return null;
+    }
+
+    public CustomUriScheme getUriScheme() {
+        return uriScheme;
+    }
+
+    public ZipFile getZipFile() {
+        return zipFile;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(this))
+                + "(uriScheme=" + uriScheme
+                + ",zipFile=" + zipFile.getName()
+                + ")";
+    }
+}
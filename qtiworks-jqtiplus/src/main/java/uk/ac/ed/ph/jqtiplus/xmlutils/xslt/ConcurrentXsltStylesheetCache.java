@@ -0,0 +1,195 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.xmlutils.xslt;
+
+import uk.ac.ed.ph.jqtiplus.internal.util.Assert;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+
+/**
+ * Thread-safe implementation of {@link XsltStylesheetCache} that compiles each stylesheet
+ * only once, without needing any global locking. The {@link XsltStylesheetManager} detects
+ * this class and uses {@link #getStylesheet(String, Callable)} instead of its usual
+ * (synchronized) get-then-put logic.
+ * <p>
+ * This can optionally keep a small pool of reusable {@link Transformer}s for each
+ * stylesheet. See {@link XsltStylesheetManager#obtainTransformer(java.net.URI, uk.ac.ed.ph.jqtiplus.xmlutils.locators.ResourceLocator)}
+ * and {@link XsltStylesheetManager#releaseTransformer(java.net.URI, Transformer)}.
+ * <p>
+ * An instance of this class is safe to use concurrently by multiple threads.
+ *
+ * @author David McKain
+ */
+public class ConcurrentXsltStylesheetCache implements XsltStylesheetCache {
+
+    private final ConcurrentMap<String, Future<Templates>> cacheData;
+    private final ConcurrentMap<String, BlockingQueue<Transformer>> transformerPools;
+    private final int transformerPoolSize;
+
+    /**
+     * Creates a new cache without any {@link Transformer} pooling.
+     */
+    public ConcurrentXsltStylesheetCache() {
+        this(0);
+    }
+
+    /**
+     * Creates a new cache that will pool up to the given number of idle {@link Transformer}s
+     * for each stylesheet. A value of 0 disables pooling.
+     */
+    public ConcurrentXsltStylesheetCache(final int transformerPoolSize) {
+        if (transformerPoolSize < 0) {
+            throw new IllegalArgumentException("transformerPoolSize must be non-negative");
+        }
+        this.cacheData = new ConcurrentHashMap<String, Future<Templates>>();
+        this.transformerPools = new ConcurrentHashMap<String, BlockingQueue<Transformer>>();
+        this.transformerPoolSize = transformerPoolSize;
+    }
+
+    public int getTransformerPoolSize() {
+        return transformerPoolSize;
+    }
+
+    @Override
+    public Templates getStylesheet(final String key) {
+        final Future<Templates> future = cacheData.get(key);
+        if (future==null || !future.isDone()) {
+            return null;
+        }
+        return getResult(key, future);
+    }
+
+    @Override
+    public void putStylesheet(final String key, final Templates stylesheet) {
+        Assert.notNull(stylesheet, "stylesheet");
+        final FutureTask<Templates> future = new FutureTask<Templates>(new Callable<Templates>() {
+            @Override
+            public Templates call() {
+                return stylesheet;
+            }
+        });
+        future.run();
+        cacheData.put(key, future);
+    }
+
+    /**
+     * Returns the stylesheet having the given key, using the given compiler to create it if
+     * it's not already in the cache. Concurrent requests for the same key will wait for a single
+     * compilation to finish. If compilation fails, nothing is cached and the compiler's
+     * {@link RuntimeException} is rethrown.
+     */
+    public Templates getStylesheet(final String key, final Callable<Templates> compiler) {
+        Assert.notNull(key, "key");
+        Assert.notNull(compiler, "compiler");
+        Future<Templates> future = cacheData.get(key);
+        if (future==null) {
+            final FutureTask<Templates> newFuture = new FutureTask<Templates>(compiler);
+            future = cacheData.putIfAbsent(key, newFuture);
+            if (future==null) {
+                future = newFuture;
+                newFuture.run();
+            }
+        }
+        return getResult(key, future);
+    }
+
+    private Templates getResult(final String key, final Future<Templates> future) {
+        try {
+            return future.get();
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new QtiSerializationException("Interrupted while waiting for stylesheet " + key + " to compile", e);
+        }
+        catch (final ExecutionException e) {
+            /* Don't remember failures */
+            cacheData.remove(key, future);
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new QtiSerializationException("Unexpected Exception compiling stylesheet " + key, cause);
+        }
+    }
+
+    //----------------------------------------------------------
+
+    /**
+     * Takes an idle {@link Transformer} for the stylesheet having the given key from the pool,
+     * returning null if there isn't one.
+     */
+    public Transformer pollTransformer(final String key) {
+        final BlockingQueue<Transformer> pool = transformerPools.get(key);
+        return pool!=null ? pool.poll() : null;
+    }
+
+    /**
+     * Offers the given (already reset) {@link Transformer} back to the pool for the stylesheet
+     * having the given key. It will be silently discarded if pooling is disabled or the pool
+     * is full.
+     */
+    public void offerTransformer(final String key, final Transformer transformer) {
+        Assert.notNull(transformer, "transformer");
+        if (transformerPoolSize==0) {
+            return;
+        }
+        BlockingQueue<Transformer> pool = transformerPools.get(key);
+        if (pool==null) {
+            final BlockingQueue<Transformer> newPool = new ArrayBlockingQueue<Transformer>(transformerPoolSize);
+            pool = transformerPools.putIfAbsent(key, newPool);
+            if (pool==null) {
+                pool = newPool;
+            }
+        }
+        pool.offer(transformer);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(this))
+                + "(keys=" + cacheData.keySet()
+                + ",transformerPoolSize=" + transformerPoolSize
+                + ")";
+    }
+}
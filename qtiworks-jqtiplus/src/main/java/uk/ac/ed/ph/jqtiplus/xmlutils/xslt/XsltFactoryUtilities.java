@@ -90,6 +90,23 @@ public final class XsltFactoryUtilities {
         return tranformer.getClass().getName().startsWith("net.sf.saxon.");
     }
 
+    /**
+     * Resets the given {@link Transformer} so that it can safely be reused. In addition to the
+     * standard {@link Transformer#reset()}, this clears out SAXON's pool of documents loaded
+     * via <code>document()</code>, which would otherwise be kept between transformations.
+     */
+    public static void resetTransformer(final Transformer transformer) {
+        transformer.reset();
+        if (supportsXSLT20(transformer)) {
+            try {
+                transformer.getClass().getMethod("clearDocumentPool").invoke(transformer);
+            }
+            catch (final Exception e) {
+                throw new QtiSerializationException("Could not clear document pool of SAXON Transformer", e);
+            }
+        }
+    }
+
     /**
      * Helper to turn on indentation for a {@link Transformer} that works correctly for
      * both Saxon and Xalan.
@@ -39,7 +39,8 @@ import javax.xml.transform.Templates;
  * Interface for a simple XSLT stylesheet cache.
  * <p>
  * All use of this cache within this application is done in a thread-safe manner, so
- * implementations need not be thread-safe.
+ * implementations need not be thread-safe. (The {@link ConcurrentXsltStylesheetCache}
+ * implementation is thread-safe and avoids this locking.)
  *
  * @author  David McKain
  */
@@ -44,6 +44,7 @@ import java.io.InputStream;
 import java.io.StringReader;
 import java.net.URI;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Source;
@@ -168,6 +169,14 @@ public final class XsltStylesheetManager {
         if (xsltStylesheetCache==null) {
             result = compileStylesheet(xsltUri);
         }
+        else if (xsltStylesheetCache instanceof ConcurrentXsltStylesheetCache) {
+            result = ((ConcurrentXsltStylesheetCache) xsltStylesheetCache).getStylesheet(xsltUri.toString(), new Callable<Templates>() {
+                @Override
+                public Templates call() {
+                    return compileStylesheet(xsltUri);
+                }
+            });
+        }
         else {
             synchronized(xsltStylesheetCache) {
                 result = xsltStylesheetCache.getStylesheet(xsltUri.toString());
@@ -195,6 +204,50 @@ public final class XsltStylesheetManager {
         return transformerHandler;
     }
 
+    /**
+     * Obtains a {@link Transformer} for the compiled XSLT stylesheet at the given URI, configured
+     * to use the given (optional) {@link ResourceLocator} to locate XML resources at runtime.
+     * <p>
+     * If a {@link ConcurrentXsltStylesheetCache} with pooling is being used, this may return a
+     * previously-used {@link Transformer}. Call {@link #releaseTransformer(URI, Transformer)}
+     * once you have finished with it (and not before) so that it can be reused.
+     */
+    public Transformer obtainTransformer(final URI xsltUri, final ResourceLocator runtimeResourceLocator) {
+        Assert.notNull(xsltUri, "xsltUri");
+        final Templates templates = getCompiledStylesheet(xsltUri);
+        Transformer transformer = null;
+        if (xsltStylesheetCache instanceof ConcurrentXsltStylesheetCache) {
+            transformer = ((ConcurrentXsltStylesheetCache) xsltStylesheetCache).pollTransformer(xsltUri.toString());
+        }
+        if (transformer==null) {
+            try {
+                transformer = templates.newTransformer();
+            }
+            catch (final TransformerConfigurationException e) {
+                throw new QtiSerializationException("Unexpected failure instantiating Transformer " + xsltUri, e);
+            }
+        }
+        configureRuntimeUriResolution(transformer, runtimeResourceLocator);
+        return transformer;
+    }
+
+    /**
+     * Returns a {@link Transformer} previously obtained via {@link #obtainTransformer(URI, ResourceLocator)}
+     * so that it may be reused, if pooling is enabled. The {@link Transformer} is reset first.
+     * Do not release a {@link Transformer} that may still be in use, or which failed unexpectedly.
+     */
+    public void releaseTransformer(final URI xsltUri, final Transformer transformer) {
+        Assert.notNull(xsltUri, "xsltUri");
+        Assert.notNull(transformer, "transformer");
+        if (xsltStylesheetCache instanceof ConcurrentXsltStylesheetCache) {
+            final ConcurrentXsltStylesheetCache concurrentCache = (ConcurrentXsltStylesheetCache) xsltStylesheetCache;
+            if (concurrentCache.getTransformerPoolSize() > 0) {
+                XsltFactoryUtilities.resetTransformer(transformer);
+                concurrentCache.offerTransformer(xsltUri.toString(), transformer);
+            }
+        }
+    }
+
     private Templates compileStylesheet(final URI xsltUri) {
         final TransformerFactory transformerFactory = getTransformerFactory();
         Source resolved;
@@ -216,6 +269,15 @@ public final class XsltStylesheetManager {
         if (xsltStylesheetCache==null) {
             result = compileStylesheetDriver(xsltUris);
         }
+        else if (xsltStylesheetCache instanceof ConcurrentXsltStylesheetCache) {
+            final String cacheKey = "xslt-driver(" + StringUtilities.join(xsltUris, ",") + ")";
+            result = ((ConcurrentXsltStylesheetCache) xsltStylesheetCache).getStylesheet(cacheKey, new Callable<Templates>() {
+                @Override
+                public Templates call() {
+                    return compileStylesheetDriver(xsltUris);
+                }
+            });
+        }
         else {
             final String cacheKey = "xslt-driver(" + StringUtilities.join(xsltUris, ",") + ")";
             synchronized(xsltStylesheetCache) {
@@ -0,0 +1,123 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.reading;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import uk.ac.ed.ph.jqtiplus.notification.Notification;
+import uk.ac.ed.ph.jqtiplus.resolution.ResolvedAssessmentItem;
+import uk.ac.ed.ph.jqtiplus.testutils.UnitTestHelper;
+import uk.ac.ed.ph.jqtiplus.validation.ItemValidationResult;
+import uk.ac.ed.ph.jqtiplus.validation.TestValidationResult;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that parallel loading, resolution and validation of tests via
+ * {@link AssessmentObjectXmlLoader} gives the same results as sequential loading.
+ *
+ * @author David McKain
+ */
+public final class AssessmentObjectXmlLoaderTest {
+
+    private ExecutorService executorService;
+
+    @Before
+    public void before() {
+        executorService = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void after() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void testParallelMultipleItems() {
+        final TestValidationResult result = assertParallelMatchesSequential("reading/test-multiple-items.xml");
+        assertEquals(11, result.getItemValidationResults().size());
+        assertTrue(result.hasErrors());
+    }
+
+    private TestValidationResult assertParallelMatchesSequential(final String testFilePath) {
+        final URI testUri = UnitTestHelper.createTestResourceUri(testFilePath);
+        final QtiXmlReader qtiXmlReader = UnitTestHelper.createUnitTestQtiXmlReader();
+        final TestValidationResult sequentialResult = new AssessmentObjectXmlLoader(qtiXmlReader,
+                UnitTestHelper.createTestFileResourceLocator()).loadResolveAndValidateTest(testUri);
+        final TestValidationResult parallelResult = new AssessmentObjectXmlLoader(qtiXmlReader,
+                UnitTestHelper.createTestFileResourceLocator(), executorService).loadResolveAndValidateTest(testUri);
+
+        /* Make sure items were resolved in the same order */
+        final Map<URI, ResolvedAssessmentItem> sequentialItemMap = sequentialResult.getResolvedAssessmentTest().getResolvedAssessmentItemBySystemIdMap();
+        final Map<URI, ResolvedAssessmentItem> parallelItemMap = parallelResult.getResolvedAssessmentTest().getResolvedAssessmentItemBySystemIdMap();
+        assertTrue(sequentialItemMap.size() > 1);
+        assertEquals(new ArrayList<URI>(sequentialItemMap.keySet()), new ArrayList<URI>(parallelItemMap.keySet()));
+        for (final Entry<URI, ResolvedAssessmentItem> entry : parallelItemMap.entrySet()) {
+            assertEquals(sequentialItemMap.get(entry.getKey()).getItemLookup().wasSuccessful(),
+                    entry.getValue().getItemLookup().wasSuccessful());
+        }
+
+        /* Then make sure notifications are identical */
+        assertEquals(describe(sequentialResult.getNotifications()), describe(parallelResult.getNotifications()));
+        final List<ItemValidationResult> sequentialItemResults = sequentialResult.getItemValidationResults();
+        final List<ItemValidationResult> parallelItemResults = parallelResult.getItemValidationResults();
+        assertEquals(sequentialItemResults.size(), parallelItemResults.size());
+        for (int i=0; i<sequentialItemResults.size(); i++) {
+            assertEquals(sequentialItemResults.get(i).getResolvedAssessmentObject().getRootNodeLookup().getSystemId(),
+                    parallelItemResults.get(i).getResolvedAssessmentObject().getRootNodeLookup().getSystemId());
+            assertEquals(describe(sequentialItemResults.get(i).getNotifications()),
+                    describe(parallelItemResults.get(i).getNotifications()));
+        }
+        return parallelResult;
+    }
+
+    private static List<String> describe(final List<Notification> notifications) {
+        final List<String> result = new ArrayList<String>();
+        for (final Notification notification : notifications) {
+            result.add(notification.getNotificationLevel() + ": " + notification.getMessage());
+        }
+        return result;
+    }
+}
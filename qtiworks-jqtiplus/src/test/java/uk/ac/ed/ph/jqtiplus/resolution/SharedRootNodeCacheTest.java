@@ -0,0 +1,131 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.resolution;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import uk.ac.ed.ph.jqtiplus.node.item.AssessmentItem;
+import uk.ac.ed.ph.jqtiplus.node.item.response.processing.ResponseProcessing;
+import uk.ac.ed.ph.jqtiplus.reading.AssessmentObjectXmlLoader;
+import uk.ac.ed.ph.jqtiplus.reading.QtiXmlReader;
+import uk.ac.ed.ph.jqtiplus.testutils.UnitTestHelper;
+
+import java.net.URI;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link SharedRootNodeCache}
+ *
+ * @author David McKain
+ */
+public final class SharedRootNodeCacheTest {
+
+    private QtiXmlReader qtiXmlReader;
+    private URI choiceUri;
+
+    @Before
+    public void before() {
+        qtiXmlReader = UnitTestHelper.createUnitTestQtiXmlReader();
+        choiceUri = UnitTestHelper.createTestResourceUri("reading/choice.xml");
+    }
+
+    @Test
+    public void testTemplateShared() {
+        final SharedRootNodeCache sharedRootNodeCache = new SharedRootNodeCache(qtiXmlReader, 10);
+        final ResolvedAssessmentItem first = loadChoice(sharedRootNodeCache, false);
+        final ResolvedAssessmentItem second = loadChoice(sharedRootNodeCache, false);
+
+        /* Item is not in a content hashed scheme, so is not shared... */
+        assertNotSame(first.getRootNodeLookup().extractAssumingSuccessful(), second.getRootNodeLookup().extractAssumingSuccessful());
+
+        /* ...but the RP template lives in the ClassPath so is */
+        final ResponseProcessing firstTemplate = first.getResolvedResponseProcessingTemplateLookup().extractAssumingSuccessful();
+        assertNotNull(firstTemplate);
+        assertSame(firstTemplate, second.getResolvedResponseProcessingTemplateLookup().extractAssumingSuccessful());
+        assertEquals(1, sharedRootNodeCache.size());
+    }
+
+    @Test
+    public void testContentHashedItemShared() {
+        final SharedRootNodeCache sharedRootNodeCache = new SharedRootNodeCache(qtiXmlReader, 10, Arrays.asList(choiceUri.getScheme()));
+        final ResolvedAssessmentItem first = loadChoice(sharedRootNodeCache, false);
+        final ResolvedAssessmentItem second = loadChoice(sharedRootNodeCache, false);
+
+        assertSame(first.getRootNodeLookup().extractAssumingSuccessful(), second.getRootNodeLookup().extractAssumingSuccessful());
+        assertEquals(2, sharedRootNodeCache.size());
+    }
+
+    @Test
+    public void testValidatingKeptApart() {
+        final SharedRootNodeCache sharedRootNodeCache = new SharedRootNodeCache(qtiXmlReader, 10, Arrays.asList(choiceUri.getScheme()));
+        final AssessmentItem unvalidated = loadChoice(sharedRootNodeCache, false).getRootNodeLookup().extractAssumingSuccessful();
+        final AssessmentItem validated = loadChoice(sharedRootNodeCache, true).getRootNodeLookup().extractAssumingSuccessful();
+
+        assertNotSame(unvalidated, validated);
+        assertEquals(4, sharedRootNodeCache.size());
+    }
+
+    @Test
+    public void testOtherReaderNotShared() {
+        final SharedRootNodeCache sharedRootNodeCache = new SharedRootNodeCache(UnitTestHelper.createUnitTestQtiXmlReader(), 10);
+        loadChoice(sharedRootNodeCache, false);
+
+        assertEquals(0, sharedRootNodeCache.size());
+    }
+
+    @Test
+    public void testBounded() {
+        final SharedRootNodeCache sharedRootNodeCache = new SharedRootNodeCache(qtiXmlReader, 1, Arrays.asList(choiceUri.getScheme()));
+        final ResolvedAssessmentItem resolvedAssessmentItem = loadChoice(sharedRootNodeCache, false);
+
+        assertTrue(resolvedAssessmentItem.getRootNodeLookup().wasSuccessful());
+        assertEquals(1, sharedRootNodeCache.size());
+    }
+
+    private ResolvedAssessmentItem loadChoice(final SharedRootNodeCache sharedRootNodeCache, final boolean validating) {
+        final AssessmentObjectXmlLoader assessmentObjectXmlLoader = new AssessmentObjectXmlLoader(qtiXmlReader,
+                UnitTestHelper.createTestFileResourceLocator(), null, sharedRootNodeCache);
+        if (validating) {
+            return assessmentObjectXmlLoader.loadResolveAndValidateItem(choiceUri).getResolvedAssessmentItem();
+        }
+        return assessmentObjectXmlLoader.loadAndResolveAssessmentItem(choiceUri);
+    }
+}
@@ -50,6 +50,7 @@ import uk.ac.ed.ph.jqtiplus.types.Identifier;
 import uk.ac.ed.ph.jqtiplus.types.ResponseData;
 import uk.ac.ed.ph.jqtiplus.types.StringResponseData;
 import uk.ac.ed.ph.jqtiplus.value.BooleanValue;
+import uk.ac.ed.ph.jqtiplus.value.FloatValue;
 import uk.ac.ed.ph.jqtiplus.value.Value;
 
 import java.io.File;
@@ -725,6 +726,50 @@ public final class ChoiceItemRunningTest {
 
     //-------------------------------------------------------
 
+    @Test
+    public void testRescoreResponsesAfterExit() {
+        itemSessionController.performTemplateProcessing(templateProcessingTimestamp);
+        itemSessionController.enterItem(entryTimestamp);
+        assertTrue(bindChoiceResponse("ChoiceA"));
+        itemSessionController.commitResponses(commitTimestamp);
+        itemSessionController.performResponseProcessing(rpTimestamp);
+        itemSessionController.endItem(rpTimestamp);
+        itemSessionController.exitItem(rpTimestamp);
+
+        /* Simulate a stale score, then re-score */
+        itemSessionState.setOutcomeValue(SCORE, new FloatValue(0.0));
+        itemSessionController.rescoreResponses();
+
+        assertTrue(itemSessionState.isExited());
+        assertEquals(SessionStatus.FINAL, itemSessionState.getSessionStatus());
+        assertEquals(1, itemSessionState.getNumAttempts());
+        assertEquals(bindDelta + commitDelta + rpDelta, itemSessionState.getDurationAccumulated());
+        assertChoiceResponseValue("ChoiceA");
+        assertResponseProcessingDone();
+        assertScore(1.0);
+    }
+
+    @Test
+    public void testRescoreResponsesBeforeResponseProcessing() {
+        itemSessionController.performTemplateProcessing(templateProcessingTimestamp);
+        itemSessionController.enterItem(entryTimestamp);
+        assertTrue(bindChoiceResponse("ChoiceA"));
+        itemSessionController.commitResponses(commitTimestamp);
+        itemSessionController.rescoreResponses();
+
+        assertEquals(SessionStatus.PENDING_RESPONSE_PROCESSING, itemSessionState.getSessionStatus());
+        assertEquals(0, itemSessionState.getNumAttempts());
+        assertScore(0.0);
+    }
+
+    @Test(expected=QtiCandidateStateException.class)
+    public void testRescoreResponsesNotEntered() {
+        itemSessionController.performTemplateProcessing(templateProcessingTimestamp);
+        itemSessionController.rescoreResponses();
+    }
+
+    //-------------------------------------------------------
+
     protected boolean bindChoiceResponse(final String choiceIdentifier) {
         final Map<Identifier, ResponseData> responseMap = new HashMap<Identifier, ResponseData>();
         responseMap.put(RESPONSE, new StringResponseData(choiceIdentifier));
@@ -0,0 +1,113 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.running;
+
+import uk.ac.ed.ph.jqtiplus.state.TestPlanNode;
+import uk.ac.ed.ph.jqtiplus.testutils.UnitTestHelper;
+import uk.ac.ed.ph.jqtiplus.types.Identifier;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link TestProcessingController#computeItemSubset(Identifier, List, List)}
+ *
+ * @author David McKain
+ */
+public final class TestItemSubsetTest {
+
+    public static final String TEST_FILE_PATH = "running/test-item-subsets.xml";
+
+    private TestSessionController testSessionController;
+
+    @Before
+    public void before() {
+        testSessionController = UnitTestHelper.loadUnitTestAssessmentTestForControl(TEST_FILE_PATH, true);
+        testSessionController.initialize(new Date());
+    }
+
+    @Test
+    public void testAll() {
+        assertSubset(null, null, null, "i1", "i2", "i3", "i4", "i5");
+    }
+
+    @Test
+    public void testSection() {
+        assertSubset("s1", null, null, "i1", "i2", "i3");
+        assertSubset("s11", null, null, "i3");
+        assertSubset("s2", null, null, "i4", "i5");
+    }
+
+    @Test
+    public void testUnknownSection() {
+        assertSubset("nope", null, null);
+    }
+
+    @Test
+    public void testIncludeCategories() {
+        assertSubset(null, Arrays.asList("easy"), null, "i1", "i3");
+        assertSubset(null, Arrays.asList("easy", "bonus"), null, "i1", "i3", "i4");
+        assertSubset(null, Arrays.asList("unknown"), null);
+    }
+
+    @Test
+    public void testExcludeCategories() {
+        assertSubset(null, null, Arrays.asList("bonus"), "i1", "i2", "i5");
+        assertSubset(null, null, Arrays.asList("unknown"), "i1", "i2", "i3", "i4", "i5");
+    }
+
+    @Test
+    public void testSectionAndCategories() {
+        assertSubset("s1", Arrays.asList("easy", "hard"), Arrays.asList("bonus"), "i1", "i2");
+        assertSubset("s2", Arrays.asList("bonus"), null, "i4");
+    }
+
+    private void assertSubset(final String sectionIdentifier, final List<String> includeCategories,
+            final List<String> excludeCategories, final String... expectedItemRefIdentifiers) {
+        final List<TestPlanNode> itemRefNodes = testSessionController.computeItemSubset(
+                sectionIdentifier!=null ? Identifier.assumedLegal(sectionIdentifier) : null,
+                includeCategories, excludeCategories);
+        final List<String> actualItemRefIdentifiers = new ArrayList<String>();
+        for (final TestPlanNode itemRefNode : itemRefNodes) {
+            actualItemRefIdentifiers.add(itemRefNode.getIdentifier().toString());
+        }
+        Assert.assertEquals(Arrays.asList(expectedItemRefIdentifiers), actualItemRefIdentifiers);
+    }
+}
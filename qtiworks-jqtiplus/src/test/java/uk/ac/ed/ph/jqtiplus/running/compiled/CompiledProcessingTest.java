@@ -0,0 +1,217 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.running.compiled;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import uk.ac.ed.ph.jqtiplus.node.expression.general.BaseValue;
+import uk.ac.ed.ph.jqtiplus.node.expression.general.Variable;
+import uk.ac.ed.ph.jqtiplus.node.expression.operator.And;
+import uk.ac.ed.ph.jqtiplus.node.expression.operator.IsNull;
+import uk.ac.ed.ph.jqtiplus.node.expression.operator.Sum;
+import uk.ac.ed.ph.jqtiplus.running.ItemSessionController;
+import uk.ac.ed.ph.jqtiplus.running.TestSessionController;
+import uk.ac.ed.ph.jqtiplus.state.ItemSessionState;
+import uk.ac.ed.ph.jqtiplus.state.TestSessionState;
+import uk.ac.ed.ph.jqtiplus.testutils.UnitTestHelper;
+import uk.ac.ed.ph.jqtiplus.types.ComplexReferenceIdentifier;
+import uk.ac.ed.ph.jqtiplus.types.Identifier;
+import uk.ac.ed.ph.jqtiplus.types.ResponseData;
+import uk.ac.ed.ph.jqtiplus.types.StringResponseData;
+import uk.ac.ed.ph.jqtiplus.value.BaseType;
+import uk.ac.ed.ph.jqtiplus.value.BooleanValue;
+import uk.ac.ed.ph.jqtiplus.value.FloatValue;
+import uk.ac.ed.ph.jqtiplus.value.IntegerValue;
+import uk.ac.ed.ph.jqtiplus.value.NullValue;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Checks that compiled processing gives the same results as the interpreter.
+ *
+ * @author David McKain
+ */
+public final class CompiledProcessingTest {
+
+    public static final String ITEM_FILE_PATH = "running/compiled-processing.xml";
+    public static final String TEST_FILE_PATH = "running/simple-linear-simultaneous.xml";
+
+    public static final Identifier RESPONSE = Identifier.assumedLegal("RESPONSE");
+    public static final Identifier B = Identifier.assumedLegal("B");
+    public static final Identifier SCORE = Identifier.assumedLegal("SCORE");
+    public static final Identifier TEST_SCORE = Identifier.assumedLegal("TEST_SCORE");
+
+    @Test
+    public void testItemProcessingMatchesInterpreter() {
+        for (long seed=1L; seed<=20L; seed++) {
+            final ItemSessionState reference = runItem(false, seed, null);
+            final int b = ((IntegerValue) reference.getTemplateValue(B)).intValue();
+            final String[] responses = new String[] {
+                    "", /* NULL response */
+                    Integer.toString(b),
+                    Integer.toString(b - 2),
+                    Integer.toString(b + 3),
+                    "-4"
+            };
+            for (final String response : responses) {
+                final ItemSessionState interpreted = runItem(false, seed, response);
+                final ItemSessionState compiled = runItem(true, seed, response);
+                assertEquals(interpreted.getTemplateValues(), compiled.getTemplateValues());
+                assertEquals(interpreted.getOutcomeValues(), compiled.getOutcomeValues());
+            }
+            assertEquals(new FloatValue(6.0), runItem(true, seed, Integer.toString(b)).getOutcomeValue(SCORE));
+            assertEquals(new FloatValue(-1.0), runItem(true, seed, "-4").getOutcomeValue(SCORE));
+        }
+    }
+
+    @Test
+    public void testTestProcessingMatchesInterpreter() {
+        final TestSessionState interpreted = runTest(false);
+        final TestSessionState compiled = runTest(true);
+        assertEquals(new FloatValue(1.0), compiled.getOutcomeValue(TEST_SCORE));
+        assertEquals(interpreted.getOutcomeValues(), compiled.getOutcomeValues());
+    }
+
+    @Test
+    public void testConstantFolding() {
+        final ItemSessionController itemSessionController = UnitTestHelper.loadUnitTestAssessmentItemForControl(ITEM_FILE_PATH, true);
+        final Sum sum = new Sum(null);
+        sum.getExpressions().add(createIntegerBaseValue(sum, 1));
+        sum.getExpressions().add(createIntegerBaseValue(sum, 2));
+
+        final CompiledExpression compiled = new ProcessingCompiler(itemSessionController).compileExpression(sum);
+        assertTrue(compiled instanceof CompiledExpressions.Constant);
+        assertEquals(new IntegerValue(3), compiled.evaluate(itemSessionController));
+    }
+
+    @Test
+    public void testAndWithNull() {
+        /* A NULL before the first false gives NULL, as in the interpreter */
+        final CompiledExpression and = new CompiledExpressions.And(new CompiledExpression[] {
+                new CompiledExpressions.Constant(BooleanValue.TRUE),
+                new CompiledExpressions.Constant(NullValue.INSTANCE),
+                new CompiledExpressions.Constant(BooleanValue.FALSE)
+        });
+        assertSame(NullValue.INSTANCE, and.evaluate(null));
+    }
+
+    @Test
+    public void testOrShortCircuit() {
+        final CompiledExpression or = new CompiledExpressions.Or(new CompiledExpression[] {
+                new CompiledExpressions.Constant(BooleanValue.TRUE),
+                new CompiledExpressions.Constant(NullValue.INSTANCE)
+        });
+        assertSame(BooleanValue.TRUE, or.evaluate(null));
+    }
+
+    @Test
+    public void testEmptyAndConstantFolded() {
+        final ItemSessionController itemSessionController = UnitTestHelper.loadUnitTestAssessmentItemForControl(ITEM_FILE_PATH, true);
+        final And and = new And(null);
+        final CompiledExpression compiled = new ProcessingCompiler(itemSessionController).compileExpression(and);
+        assertTrue(compiled instanceof CompiledExpressions.Constant);
+        assertSame(BooleanValue.TRUE, compiled.evaluate(itemSessionController));
+    }
+
+    @Test
+    public void testAndCompiledNatively() {
+        final Date timestamp = new Date(1000000L);
+        final ItemSessionController itemSessionController = UnitTestHelper.loadUnitTestAssessmentItemForControl(ITEM_FILE_PATH, true);
+        itemSessionController.initialize(timestamp);
+        itemSessionController.performTemplateProcessing(timestamp);
+
+        /* isNull(RESPONSE) depends on the state, so this can't be folded */
+        final And and = new And(null);
+        final IsNull isNull = new IsNull(and);
+        final Variable variable = new Variable(isNull);
+        variable.setIdentifier(ComplexReferenceIdentifier.assumedLegal(RESPONSE.toString()));
+        isNull.getExpressions().add(variable);
+        and.getExpressions().add(isNull);
+        final BaseValue baseValue = new BaseValue(and);
+        baseValue.setBaseTypeAttrValue(BaseType.BOOLEAN);
+        baseValue.setSingleValue(BooleanValue.TRUE);
+        and.getExpressions().add(baseValue);
+
+        final CompiledExpression compiled = new ProcessingCompiler(itemSessionController).compileExpression(and);
+        assertTrue(compiled instanceof CompiledExpressions.And);
+        assertSame(BooleanValue.TRUE, compiled.evaluate(itemSessionController));
+    }
+
+    //-------------------------------------------------------
+
+    private ItemSessionState runItem(final boolean compiledProcessing, final long seed, final String response) {
+        final Date timestamp = new Date(1000000L);
+        final ItemSessionController itemSessionController = UnitTestHelper.loadUnitTestAssessmentItemForControl(ITEM_FILE_PATH, true);
+        itemSessionController.getItemSessionControllerSettings().setCompiledProcessing(compiledProcessing);
+        itemSessionController.setRandomSeed(Long.valueOf(seed));
+        itemSessionController.initialize(timestamp);
+        itemSessionController.performTemplateProcessing(timestamp);
+        if (response!=null) {
+            itemSessionController.enterItem(timestamp);
+            final Map<Identifier, ResponseData> responseMap = new HashMap<Identifier, ResponseData>();
+            responseMap.put(RESPONSE, new StringResponseData(response));
+            itemSessionController.bindResponses(timestamp, responseMap);
+            itemSessionController.commitResponses(timestamp);
+            itemSessionController.performResponseProcessing(timestamp);
+        }
+        return itemSessionController.getItemSessionState();
+    }
+
+    private TestSessionState runTest(final boolean compiledProcessing) {
+        final Date timestamp = new Date(1000000L);
+        final TestSessionController testSessionController = UnitTestHelper.loadUnitTestAssessmentTestForControl(TEST_FILE_PATH, true);
+        testSessionController.getTestSessionControllerSettings().setCompiledProcessing(compiledProcessing);
+        testSessionController.initialize(timestamp);
+        testSessionController.enterTest(timestamp);
+        testSessionController.enterNextAvailableTestPart(timestamp);
+        final Map<Identifier, ResponseData> responseMap = new HashMap<Identifier, ResponseData>();
+        responseMap.put(RESPONSE, new StringResponseData("ChoiceA"));
+        testSessionController.handleResponsesToCurrentItem(timestamp, responseMap);
+        testSessionController.endCurrentTestPart(timestamp);
+        return testSessionController.getTestSessionState();
+    }
+
+    private static BaseValue createIntegerBaseValue(final Sum parent, final int value) {
+        final BaseValue result = new BaseValue(parent);
+        result.setBaseTypeAttrValue(BaseType.INTEGER);
+        result.setSingleValue(new IntegerValue(value));
+        return result;
+    }
+}
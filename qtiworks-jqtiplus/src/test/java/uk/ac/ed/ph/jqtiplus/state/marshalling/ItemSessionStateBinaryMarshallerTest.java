@@ -0,0 +1,147 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.state.marshalling;
+
+import uk.ac.ed.ph.jqtiplus.node.result.SessionStatus;
+import uk.ac.ed.ph.jqtiplus.state.ItemSessionState;
+import uk.ac.ed.ph.jqtiplus.types.FileResponseData;
+import uk.ac.ed.ph.jqtiplus.types.Identifier;
+import uk.ac.ed.ph.jqtiplus.types.StringResponseData;
+import uk.ac.ed.ph.jqtiplus.value.BooleanValue;
+import uk.ac.ed.ph.jqtiplus.value.DirectedPairValue;
+import uk.ac.ed.ph.jqtiplus.value.DurationValue;
+import uk.ac.ed.ph.jqtiplus.value.FileValue;
+import uk.ac.ed.ph.jqtiplus.value.FloatValue;
+import uk.ac.ed.ph.jqtiplus.value.IdentifierValue;
+import uk.ac.ed.ph.jqtiplus.value.IntegerValue;
+import uk.ac.ed.ph.jqtiplus.value.MultipleValue;
+import uk.ac.ed.ph.jqtiplus.value.NullValue;
+import uk.ac.ed.ph.jqtiplus.value.OrderedValue;
+import uk.ac.ed.ph.jqtiplus.value.PairValue;
+import uk.ac.ed.ph.jqtiplus.value.PointValue;
+import uk.ac.ed.ph.jqtiplus.value.RecordValue;
+import uk.ac.ed.ph.jqtiplus.value.SingleValue;
+import uk.ac.ed.ph.jqtiplus.value.StringValue;
+import uk.ac.ed.ph.jqtiplus.value.UriValue;
+
+import java.io.File;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests round-tripping of {@link ItemSessionState} via {@link ItemSessionStateBinaryMarshaller},
+ * covering all supported kinds of {@link uk.ac.ed.ph.jqtiplus.value.Value}.
+ *
+ * @author David McKain
+ */
+public class ItemSessionStateBinaryMarshallerTest {
+
+    @Test
+    public void testRoundTrip() {
+        final ItemSessionState itemSessionState = createItemSessionState();
+        final byte[] data = ItemSessionStateBinaryMarshaller.marshal(itemSessionState);
+        Assert.assertTrue(BinaryMarshallerCore.isBinaryState(data));
+
+        final ItemSessionState refried = ItemSessionStateBinaryMarshaller.unmarshal(data);
+        Assert.assertEquals(itemSessionState, refried);
+    }
+
+    @Test(expected=BinaryUnmarshallingException.class)
+    public void testTruncated() {
+        final byte[] data = ItemSessionStateBinaryMarshaller.marshal(createItemSessionState());
+        ItemSessionStateBinaryMarshaller.unmarshal(Arrays.copyOf(data, data.length / 2));
+    }
+
+    @Test(expected=BinaryUnmarshallingException.class)
+    public void testWrongContentType() {
+        final byte[] data = ItemSessionStateBinaryMarshaller.marshal(createItemSessionState());
+        TestSessionStateBinaryMarshaller.unmarshal(data);
+    }
+
+    @Test
+    public void testIsBinaryState() {
+        Assert.assertFalse(BinaryMarshallerCore.isBinaryState("<itemSessionState/>".getBytes()));
+        Assert.assertFalse(BinaryMarshallerCore.isBinaryState(new byte[0]));
+    }
+
+    private ItemSessionState createItemSessionState() {
+        final ItemSessionState itemSessionState = new ItemSessionState();
+        itemSessionState.setEntryTime(new Date(1000L));
+        itemSessionState.setDurationIntervalStartTime(new Date(2000L));
+        itemSessionState.setDurationAccumulated(1234L);
+        itemSessionState.setInitialized(true);
+        itemSessionState.setResponded(true);
+        itemSessionState.setSessionStatus(SessionStatus.PENDING_RESPONSE_PROCESSING);
+        itemSessionState.setNumAttempts(3);
+        itemSessionState.setCandidateComment("Comment \u00e9\u4e2d");
+        itemSessionState.setUnboundResponseIdentifiers(Arrays.asList(Identifier.parseString("RESPONSE")));
+        itemSessionState.setShuffledInteractionChoiceOrder(Identifier.parseString("RESPONSE"),
+                Arrays.asList(Identifier.parseString("B"), Identifier.parseString("A")));
+        itemSessionState.setRawResponseData(Identifier.parseString("RESPONSE"),
+                new StringResponseData("A", null, "B"));
+        itemSessionState.setRawResponseData(Identifier.parseString("UPLOAD"),
+                new FileResponseData(new File("/tmp/upload"), "text/plain", "upload.txt"));
+
+        final Map<Identifier, SingleValue> recordBuilder = new HashMap<Identifier, SingleValue>();
+        recordBuilder.put(Identifier.parseString("a"), new IntegerValue(-42));
+        recordBuilder.put(Identifier.parseString("b"), new StringValue("record"));
+        recordBuilder.put(Identifier.parseString("c"), new FloatValue(-0.25));
+
+        itemSessionState.setResponseValue(Identifier.parseString("RESPONSE"), new IdentifierValue("A"));
+        itemSessionState.setResponseValue(Identifier.parseString("MULTIPLE"),
+                MultipleValue.createMultipleValue(new IdentifierValue("A"), new IdentifierValue("B")));
+        itemSessionState.setResponseValue(Identifier.parseString("ORDERED"),
+                OrderedValue.createOrderedValue(new IntegerValue(Integer.MIN_VALUE), new IntegerValue(Integer.MAX_VALUE)));
+        itemSessionState.setResponseValue(Identifier.parseString("POINT"), new PointValue(-3, 4));
+        itemSessionState.setResponseValue(Identifier.parseString("PAIR"), new PairValue("A", "B"));
+        itemSessionState.setResponseValue(Identifier.parseString("DPAIR"), new DirectedPairValue("A", "B"));
+        itemSessionState.setResponseValue(Identifier.parseString("FILE"),
+                new FileValue(new File("/tmp/upload"), "text/plain", "upload.txt"));
+        itemSessionState.setResponseValue(Identifier.parseString("URI"), new UriValue(URI.create("http://example.com/a")));
+        itemSessionState.setResponseValue(Identifier.parseString("NULL"), NullValue.INSTANCE);
+        itemSessionState.setOutcomeValue(Identifier.parseString("SCORE"), new FloatValue(1.5));
+        itemSessionState.setOutcomeValue(Identifier.parseString("FLAG"), BooleanValue.TRUE);
+        itemSessionState.setOutcomeValue(Identifier.parseString("TIME"), new DurationValue(12.25));
+        itemSessionState.setOutcomeValue(Identifier.parseString("RECORD"), RecordValue.createRecordValue(recordBuilder));
+        itemSessionState.setTemplateValue(Identifier.parseString("T"), new IntegerValue(7));
+        itemSessionState.setOverriddenCorrectResponseValue(Identifier.parseString("RESPONSE"), new IdentifierValue("B"));
+        return itemSessionState;
+    }
+}
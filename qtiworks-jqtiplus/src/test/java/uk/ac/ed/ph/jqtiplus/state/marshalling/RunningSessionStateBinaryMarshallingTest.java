@@ -0,0 +1,161 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.state.marshalling;
+
+import uk.ac.ed.ph.jqtiplus.internal.util.ObjectDumper;
+import uk.ac.ed.ph.jqtiplus.internal.util.ObjectUtilities;
+import uk.ac.ed.ph.jqtiplus.running.ItemSessionController;
+import uk.ac.ed.ph.jqtiplus.running.TestSessionController;
+import uk.ac.ed.ph.jqtiplus.state.ItemSessionState;
+import uk.ac.ed.ph.jqtiplus.state.TestSessionState;
+import uk.ac.ed.ph.jqtiplus.testutils.UnitTestHelper;
+import uk.ac.ed.ph.jqtiplus.types.Identifier;
+import uk.ac.ed.ph.jqtiplus.types.ResponseData;
+import uk.ac.ed.ph.jqtiplus.types.StringResponseData;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that the states produced by actually running an item and a test survive
+ * the binary marshalling process at each step, and that each step can be recorded
+ * as a delta against the previous one.
+ *
+ * @author David McKain
+ */
+public class RunningSessionStateBinaryMarshallingTest {
+
+    public static final String ITEM_FILE_PATH = "running/choice.xml";
+    public static final String TEST_FILE_PATH = "running/simple-linear-simultaneous.xml";
+
+    public static final Identifier RESPONSE = Identifier.assumedLegal("RESPONSE");
+
+    private Date timestamp;
+
+    @Test
+    public void testChoiceItem() {
+        final ItemSessionController itemSessionController = UnitTestHelper.loadUnitTestAssessmentItemForControl(ITEM_FILE_PATH, true);
+        final ItemSessionState itemSessionState = itemSessionController.getItemSessionState();
+        timestamp = new Date();
+
+        itemSessionController.initialize(timestamp);
+        assertRoundTrip(itemSessionState);
+        itemSessionController.performTemplateProcessing(nextTimestamp());
+        assertRoundTrip(itemSessionState);
+        itemSessionController.enterItem(nextTimestamp());
+        assertRoundTrip(itemSessionState);
+        Assert.assertTrue(itemSessionController.bindResponses(nextTimestamp(), createChoiceResponseMap("ChoiceA")));
+        assertRoundTrip(itemSessionState);
+        itemSessionController.commitResponses(nextTimestamp());
+        assertRoundTrip(itemSessionState);
+        itemSessionController.performResponseProcessing(nextTimestamp());
+        assertRoundTrip(itemSessionState);
+        itemSessionController.endItem(nextTimestamp());
+        assertRoundTrip(itemSessionState);
+        itemSessionController.exitItem(nextTimestamp());
+        assertRoundTrip(itemSessionState);
+    }
+
+    @Test
+    public void testLinearSimultaneousTest() {
+        final TestSessionController testSessionController = UnitTestHelper.loadUnitTestAssessmentTestForControl(TEST_FILE_PATH, true);
+        final TestSessionState testSessionState = testSessionController.getTestSessionState();
+        timestamp = new Date();
+
+        testSessionController.initialize(timestamp);
+        byte[] previousData = assertRoundTrip(testSessionState);
+        testSessionController.enterTest(nextTimestamp());
+        previousData = assertRoundTripAndDelta(previousData, testSessionState);
+        testSessionController.enterNextAvailableTestPart(nextTimestamp());
+        previousData = assertRoundTripAndDelta(previousData, testSessionState);
+        testSessionController.handleResponsesToCurrentItem(nextTimestamp(), createChoiceResponseMap("ChoiceA"));
+        previousData = assertRoundTripAndDelta(previousData, testSessionState);
+        Assert.assertNotNull(testSessionController.advanceItemLinear(nextTimestamp()));
+        previousData = assertRoundTripAndDelta(previousData, testSessionState);
+        testSessionController.handleResponsesToCurrentItem(nextTimestamp(), createChoiceResponseMap("ChoiceB"));
+        previousData = assertRoundTripAndDelta(previousData, testSessionState);
+        testSessionController.endCurrentTestPart(nextTimestamp());
+        previousData = assertRoundTripAndDelta(previousData, testSessionState);
+        Assert.assertNull(testSessionController.enterNextAvailableTestPart(nextTimestamp()));
+        previousData = assertRoundTripAndDelta(previousData, testSessionState);
+        testSessionController.exitTest(nextTimestamp());
+        assertRoundTripAndDelta(previousData, testSessionState);
+    }
+
+    //-------------------------------------------------------
+
+    private Date nextTimestamp() {
+        timestamp = ObjectUtilities.addToTime(timestamp, 1000L);
+        return timestamp;
+    }
+
+    private static Map<Identifier, ResponseData> createChoiceResponseMap(final String choiceIdentifier) {
+        final Map<Identifier, ResponseData> responseMap = new HashMap<Identifier, ResponseData>();
+        responseMap.put(RESPONSE, new StringResponseData(choiceIdentifier));
+        return responseMap;
+    }
+
+    private static void assertRoundTrip(final ItemSessionState itemSessionState) {
+        final ItemSessionState refried = ItemSessionStateBinaryMarshaller.unmarshal(ItemSessionStateBinaryMarshaller.marshal(itemSessionState));
+        if (!refried.equals(itemSessionState)) {
+            System.err.println("State before marshalling: " + ObjectDumper.dumpObject(itemSessionState));
+            System.err.println("State after marshalling: " + ObjectDumper.dumpObject(refried));
+            Assert.assertEquals(itemSessionState, refried);
+        }
+    }
+
+    private static byte[] assertRoundTrip(final TestSessionState testSessionState) {
+        final byte[] data = TestSessionStateBinaryMarshaller.marshal(testSessionState);
+        final TestSessionState refried = TestSessionStateBinaryMarshaller.unmarshal(data);
+        if (!refried.equals(testSessionState)) {
+            System.err.println("State before marshalling: " + ObjectDumper.dumpObject(testSessionState));
+            System.err.println("State after marshalling: " + ObjectDumper.dumpObject(refried));
+            Assert.assertEquals(testSessionState, refried);
+        }
+        return data;
+    }
+
+    private static byte[] assertRoundTripAndDelta(final byte[] previousData, final TestSessionState testSessionState) {
+        final TestSessionState previousState = TestSessionStateBinaryMarshaller.unmarshal(previousData);
+        final byte[] delta = TestSessionStateBinaryMarshaller.marshalDelta(previousState, testSessionState);
+        Assert.assertNotNull(delta);
+        TestSessionStateBinaryMarshaller.applyDelta(previousState, delta);
+        Assert.assertEquals(testSessionState, previousState);
+        return assertRoundTrip(testSessionState);
+    }
+}
@@ -0,0 +1,156 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.xmlutils.locators;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import uk.ac.ed.ph.jqtiplus.xmlutils.CustomUriScheme;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link ZipSandboxResourceLocator} class
+ *
+ * @author David McKain
+ */
+public class ZipSandboxResourceLocatorTest {
+
+    private final CustomUriScheme uriScheme = new CustomUriScheme("package");
+
+    private File file;
+    private ZipFile zipFile;
+    private ZipSandboxResourceLocator locator;
+
+    @Before
+    public void setup() throws Exception {
+        file = File.createTempFile("ZipSandboxResourceLocatorTest", ".zip");
+        final ZipOutputStream zipOutputStream = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            writeEntry(zipOutputStream, "item.xml", "item");
+            writeEntry(zipOutputStream, "images/");
+            writeEntry(zipOutputStream, "images/a picture.png", "picture");
+        }
+        finally {
+            zipOutputStream.close();
+        }
+        zipFile = new ZipFile(file);
+        locator = new ZipSandboxResourceLocator(uriScheme, zipFile);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (zipFile!=null) {
+            zipFile.close();
+        }
+        if (file!=null) {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testTopLevelEntry() throws Exception {
+        assertEquals("item", readResource(uriScheme.decodedPathToUri("item.xml")));
+    }
+
+    @Test
+    public void testEncodedNestedEntry() throws Exception {
+        final URI uri = uriScheme.decodedPathToUri("images/a picture.png");
+        assertEquals("picture", readResource(uri));
+        assertEquals(7L, locator.findZipEntry(uri).getSize());
+    }
+
+    @Test
+    public void testNormalizedEntry() throws Exception {
+        assertEquals("item", readResource(uriScheme.decodedPathToUri("images/../item.xml")));
+    }
+
+    @Test
+    public void testMissingEntry() {
+        assertNull(locator.findResource(uriScheme.decodedPathToUri("missing.xml")));
+    }
+
+    @Test
+    public void testDirectoryEntry() {
+        assertNull(locator.findResource(uriScheme.decodedPathToUri("images/")));
+    }
+
+    @Test
+    public void testOutsidePackage() {
+        assertNull(locator.findResource(uriScheme.decodedPathToUri("../item.xml")));
+    }
+
+    @Test
+    public void testOtherScheme() {
+        assertNull(locator.findResource(URI.create("other:/item.xml")));
+    }
+
+    private String readResource(final URI uri) throws Exception {
+        final InputStream inputStream = locator.findResource(uri);
+        assertNotNull(inputStream);
+        try {
+            final ByteArrayOutputStream result = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[1024];
+            int count;
+            while ((count = inputStream.read(buffer)) != -1) {
+                result.write(buffer, 0, count);
+            }
+            return result.toString("UTF-8");
+        }
+        finally {
+            inputStream.close();
+        }
+    }
+
+    private static void writeEntry(final ZipOutputStream zipOutputStream, final String name, final String... content)
+            throws Exception {
+        zipOutputStream.putNextEntry(new ZipEntry(name));
+        for (final String data : content) {
+            zipOutputStream.write(data.getBytes("UTF-8"));
+        }
+        zipOutputStream.closeEntry();
+    }
+}
@@ -0,0 +1,178 @@
+/* Copyright (c) 2012-2013, University of Edinburgh.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of the University of Edinburgh nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ *
+ * This software is derived from (and contains code from) QTItools and MathAssessEngine.
+ * QTItools is (c) 2008, University of Southampton.
+ * MathAssessEngine is (c) 2010, University of Edinburgh.
+ */
+package uk.ac.ed.ph.jqtiplus.xmlutils.xslt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import uk.ac.ed.ph.jqtiplus.xmlutils.locators.ResourceLocator;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link ConcurrentXsltStylesheetCache} class, and its use by the
+ * {@link XsltStylesheetManager}
+ *
+ * @author David McKain
+ */
+public class ConcurrentXsltStylesheetCacheTest {
+
+    private static final URI XSLT_URI = URI.create("test:/greeting.xsl");
+
+    private static final String XSLT = "<xsl:stylesheet version='1.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>"
+            + "<xsl:output method='text'/>"
+            + "<xsl:param name='greeting' select=\"'Hello'\"/>"
+            + "<xsl:template match='/'><xsl:value-of select='$greeting'/><xsl:text> </xsl:text><xsl:value-of select='*'/></xsl:template>"
+            + "</xsl:stylesheet>";
+
+    /** Counts how many times the stylesheet is loaded */
+    private final AtomicInteger loadCount = new AtomicInteger();
+
+    private final ResourceLocator xsltResourceLocator = new ResourceLocator() {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public InputStream findResource(final URI systemId) {
+            if (!XSLT_URI.equals(systemId)) {
+                return null;
+            }
+            loadCount.incrementAndGet();
+            try {
+                return new ByteArrayInputStream(XSLT.getBytes("UTF-8"));
+            }
+            catch (final UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    @Test
+    public void testCompilesOnceWhenConcurrent() throws Exception {
+        final ConcurrentXsltStylesheetCache cache = new ConcurrentXsltStylesheetCache();
+        final XsltStylesheetManager manager = new XsltStylesheetManager(xsltResourceLocator, cache);
+        final int threadCount = 8;
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+        try {
+            final List<Future<Templates>> results = new ArrayList<Future<Templates>>();
+            for (int i=0; i<threadCount; i++) {
+                results.add(executorService.submit(new Callable<Templates>() {
+                    @Override
+                    public Templates call() throws Exception {
+                        startLatch.await();
+                        return manager.getCompiledStylesheet(XSLT_URI);
+                    }
+                }));
+            }
+            startLatch.countDown();
+            final Templates first = results.get(0).get();
+            for (final Future<Templates> result : results) {
+                assertSame(first, result.get());
+            }
+        }
+        finally {
+            executorService.shutdown();
+        }
+        assertEquals(1, loadCount.get());
+        assertSame(cache.getStylesheet(XSLT_URI.toString()), manager.getCompiledStylesheet(XSLT_URI));
+    }
+
+    @Test
+    public void testFailureNotCached() {
+        final ConcurrentXsltStylesheetCache cache = new ConcurrentXsltStylesheetCache();
+        final XsltStylesheetManager manager = new XsltStylesheetManager(xsltResourceLocator, cache);
+        final URI missingUri = URI.create("test:/missing.xsl");
+        for (int i=0; i<2; i++) {
+            try {
+                manager.getCompiledStylesheet(missingUri);
+            }
+            catch (final QtiSerializationException e) {
+                /* Expected */
+            }
+            assertNull(cache.getStylesheet(missingUri.toString()));
+        }
+    }
+
+    @Test
+    public void testTransformerPooling() throws Exception {
+        final ConcurrentXsltStylesheetCache cache = new ConcurrentXsltStylesheetCache(1);
+        final XsltStylesheetManager manager = new XsltStylesheetManager(xsltResourceLocator, cache);
+
+        final Transformer first = manager.obtainTransformer(XSLT_URI, null);
+        first.setParameter("greeting", "Goodbye");
+        assertEquals("Goodbye world", transform(first));
+        manager.releaseTransformer(XSLT_URI, first);
+
+        /* Should get the same Transformer back, with parameters reset */
+        final Transformer second = manager.obtainTransformer(XSLT_URI, null);
+        assertSame(first, second);
+        assertEquals("Hello world", transform(second));
+
+        /* Pool is empty now, so we should get a new one */
+        final Transformer third = manager.obtainTransformer(XSLT_URI, null);
+        assertEquals("Hello world", transform(third));
+        manager.releaseTransformer(XSLT_URI, second);
+        manager.releaseTransformer(XSLT_URI, third); /* (Pool is full, so will be discarded) */
+        assertSame(second, cache.pollTransformer(XSLT_URI.toString()));
+        assertNull(cache.pollTransformer(XSLT_URI.toString()));
+    }
+
+    private static String transform(final Transformer transformer) throws Exception {
+        final StringWriter resultWriter = new StringWriter();
+        transformer.transform(new StreamSource(new StringReader("<doc>world</doc>")), new StreamResult(resultWriter));
+        return resultWriter.toString();
+    }
+}